@@ -187,6 +187,7 @@ public class Account implements BaseAccount {
     private boolean mIsSignatureBeforeQuotedText;
     private String mExpungePolicy = EXPUNGE_IMMEDIATELY;
     private int mMaxPushFolders;
+    private int mMaxPushConnections;
     private int mIdleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private boolean mNotificationShowsUnreadCount;
@@ -291,6 +292,7 @@ public class Account implements BaseAccount {
         mAutoExpandFolderName = INBOX;
         mInboxFolderName = INBOX;
         mMaxPushFolders = 10;
+        mMaxPushConnections = 3;
         mChipColor = pickColor(context);
         goToUnreadMessageSearch = false;
         mNotificationShowsUnreadCount = true;
@@ -399,6 +401,7 @@ public class Account implements BaseAccount {
         mSyncRemoteDeletions = prefs.getBoolean(mUuid  + ".syncRemoteDeletions", true);
 
         mMaxPushFolders = prefs.getInt(mUuid + ".maxPushFolders", 10);
+        mMaxPushConnections = prefs.getInt(mUuid + ".maxPushConnections", 3);
         goToUnreadMessageSearch = prefs.getBoolean(mUuid + ".goToUnreadMessageSearch", false);
         mNotificationShowsUnreadCount = prefs.getBoolean(mUuid + ".notificationUnreadCount", true);
         subscribedFoldersOnly = prefs.getBoolean(mUuid + ".subscribedFoldersOnly", false);
@@ -563,6 +566,7 @@ public class Account implements BaseAccount {
         editor.remove(mUuid + ".expungePolicy");
         editor.remove(mUuid + ".syncRemoteDeletions");
         editor.remove(mUuid + ".maxPushFolders");
+        editor.remove(mUuid + ".maxPushConnections");
         editor.remove(mUuid + ".searchableFolders");
         editor.remove(mUuid + ".chipColor");
         editor.remove(mUuid + ".led");
@@ -730,6 +734,7 @@ public class Account implements BaseAccount {
         editor.putString(mUuid + ".expungePolicy", mExpungePolicy);
         editor.putBoolean(mUuid + ".syncRemoteDeletions", mSyncRemoteDeletions);
         editor.putInt(mUuid + ".maxPushFolders", mMaxPushFolders);
+        editor.putInt(mUuid + ".maxPushConnections", mMaxPushConnections);
         editor.putString(mUuid + ".searchableFolders", searchableFolders.name());
         editor.putInt(mUuid + ".chipColor", mChipColor);
         editor.putBoolean(mUuid + ".goToUnreadMessageSearch", goToUnreadMessageSearch);
@@ -807,8 +812,10 @@ public class Account implements BaseAccount {
 
         ContentResolver cr = context.getContentResolver();
 
+        // The conditions below only refer to folders, so the counters in the folders table can
+        // be used
         Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
-                "account/" + getUuid() + "/stats");
+                "account/" + getUuid() + "/stats/folders");
 
         String[] projection = {
                 StatsColumns.UNREAD_COUNT,
@@ -1298,6 +1305,20 @@ public class Account implements BaseAccount {
         return oldMaxPushFolders != maxPushFolders;
     }
 
+    /**
+     * @return The maximum number of connections used to push folders if the server doesn't
+     *         support NOTIFY. If there are more push folders, the connections take turns.
+     */
+    public synchronized int getMaxPushConnections() {
+        return mMaxPushConnections;
+    }
+
+    public synchronized boolean setMaxPushConnections(int maxPushConnections) {
+        int oldMaxPushConnections = mMaxPushConnections;
+        mMaxPushConnections = maxPushConnections;
+        return oldMaxPushConnections != maxPushConnections;
+    }
+
     public LocalStore getLocalStore() throws MessagingException {
         return Store.getLocalInstance(this, K9.app);
     }
@@ -1179,6 +1179,7 @@ public class MessageList extends K9FragmentActivity implements MessageListFragme
 
             if (mMessageListFragment != null) {
                 mMessageListFragment.setActiveMessage(messageReference);
+                mMessageListFragment.prefetchAdjacentMessages(messageReference);
             }
 
             MessageViewFragment fragment = MessageViewFragment.newInstance(messageReference);
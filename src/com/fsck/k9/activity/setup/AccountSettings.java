@@ -84,6 +84,7 @@ public class AccountSettings extends K9PreferenceActivity {
     private static final String PREFERENCE_PUSH_MODE = "folder_push_mode";
     private static final String PREFERENCE_PUSH_POLL_ON_CONNECT = "push_poll_on_connect";
     private static final String PREFERENCE_MAX_PUSH_FOLDERS = "max_push_folders";
+    private static final String PREFERENCE_MAX_PUSH_CONNECTIONS = "max_push_connections";
     private static final String PREFERENCE_IDLE_REFRESH_PERIOD = "idle_refresh_period";
     private static final String PREFERENCE_TARGET_MODE = "folder_target_mode";
     private static final String PREFERENCE_DELETE_POLICY = "delete_policy";
@@ -170,6 +171,7 @@ public class AccountSettings extends K9PreferenceActivity {
     private CheckBoxPreference mPushPollOnConnect;
     private ListPreference mIdleRefreshPeriod;
     private ListPreference mMaxPushFolders;
+    private ListPreference mMaxPushConnections;
     private CheckBoxPreference mCryptoAutoSignature;
     private CheckBoxPreference mCryptoAutoEncrypt;
     private CheckBoxPreference mCryptoUsePgpMime;
@@ -514,6 +516,7 @@ public class AccountSettings extends K9PreferenceActivity {
         mPushPollOnConnect = (CheckBoxPreference) findPreference(PREFERENCE_PUSH_POLL_ON_CONNECT);
         mIdleRefreshPeriod = (ListPreference) findPreference(PREFERENCE_IDLE_REFRESH_PERIOD);
         mMaxPushFolders = (ListPreference) findPreference(PREFERENCE_MAX_PUSH_FOLDERS);
+        mMaxPushConnections = (ListPreference) findPreference(PREFERENCE_MAX_PUSH_CONNECTIONS);
         if (mIsPushCapable) {
             mPushPollOnConnect.setChecked(mAccount.isPushPollOnConnect());
 
@@ -546,6 +549,18 @@ public class AccountSettings extends K9PreferenceActivity {
                     return false;
                 }
             });
+
+            mMaxPushConnections.setValue(String.valueOf(mAccount.getMaxPushConnections()));
+            mMaxPushConnections.setSummary(mMaxPushConnections.getEntry());
+            mMaxPushConnections.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    final String summary = newValue.toString();
+                    int index = mMaxPushConnections.findIndexOfValue(summary);
+                    mMaxPushConnections.setSummary(mMaxPushConnections.getEntries()[index]);
+                    mMaxPushConnections.setValue(summary);
+                    return false;
+                }
+            });
             mPushMode = (ListPreference) findPreference(PREFERENCE_PUSH_MODE);
             mPushMode.setValue(mAccount.getFolderPushMode().name());
             mPushMode.setSummary(mPushMode.getEntry());
@@ -815,6 +830,7 @@ public class AccountSettings extends K9PreferenceActivity {
         //IMAP specific stuff
         if (mIsPushCapable) {
             boolean needsPushRestart = mAccount.setFolderPushMode(Account.FolderMode.valueOf(mPushMode.getValue()));
+            needsPushRestart |= mAccount.setMaxPushConnections(Integer.parseInt(mMaxPushConnections.getValue()));
             if (mAccount.getFolderPushMode() != FolderMode.NONE) {
                 needsPushRestart |= displayModeChanged;
                 needsPushRestart |= mIncomingChanged;
@@ -0,0 +1,149 @@
+package com.fsck.k9.cache;
+
+import java.util.Locale;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.helper.Contacts;
+
+/**
+ * Process-wide cache of the contact information looked up by {@link Contacts}.
+ *
+ * <p>
+ * The message list displays the contact name of the sender of every row it binds, which used to
+ * cost a query to the contacts provider per row and address. The cache remembers the name, the
+ * contact ID and the photo URI for an email address. Addresses that don't belong to a contact are
+ * cached, too. All entries are dropped when the contacts provider reports a change.
+ * </p>
+ */
+public class ContactsCache {
+    /**
+     * The maximum number of email addresses to remember.
+     */
+    private static final int MAX_ENTRIES = 1000;
+
+    /**
+     * Contact ID of entries for email addresses that don't belong to a contact.
+     */
+    public static final long NO_CONTACT = -1;
+
+    private static ContactsCache sInstance;
+
+    public static synchronized ContactsCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactsCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * The cached information about an email address.
+     */
+    public static class Entry {
+        public final String name;
+        public final long contactId;
+
+        /**
+         * The URI of the contact's photo. Only valid if {@link #photoLoaded} is {@code true}.
+         */
+        public final Uri photoUri;
+        public final boolean photoLoaded;
+
+        public Entry(String name, long contactId) {
+            this(name, contactId, null, false);
+        }
+
+        private Entry(String name, long contactId, Uri photoUri, boolean photoLoaded) {
+            this.name = name;
+            this.contactId = contactId;
+            this.photoUri = photoUri;
+            this.photoLoaded = photoLoaded;
+        }
+
+        public boolean isContact() {
+            return contactId != NO_CONTACT;
+        }
+
+        public Entry withPhotoUri(Uri photoUri) {
+            return new Entry(name, contactId, photoUri, true);
+        }
+    }
+
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    /**
+     * Incremented every time the cache is cleared. Used to drop the results of lookups that were
+     * started before the contacts changed.
+     */
+    private volatile int mGeneration;
+
+    private ContactsCache(Context context) {
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                clear();
+            }
+        };
+        context.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                observer);
+    }
+
+    /**
+     * @return The cached entry for the given email address, or {@code null} if the address
+     *         needs to be looked up.
+     */
+    public Entry get(String address) {
+        return mEntries.get(getKey(address));
+    }
+
+    /**
+     * Get the value to pass to {@link #put(String, Entry, int)} once a lookup finished.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Store the result of a lookup.
+     *
+     * @param generation
+     *         The value returned by {@link #getGeneration()} before the lookup was started. The
+     *         entry is dropped if the contacts changed in the meantime.
+     */
+    public synchronized void put(String address, Entry entry, int generation) {
+        if (generation == mGeneration) {
+            mEntries.put(getKey(address), entry);
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+
+        if (K9.DEBUG) {
+            Log.d(K9.LOG_TAG, "Contacts changed, clearing contacts cache (hits: " +
+                    mEntries.hitCount() + ", misses: " + mEntries.missCount() + ")");
+        }
+
+        mEntries.evictAll();
+    }
+
+    public int getHitCount() {
+        return mEntries.hitCount();
+    }
+
+    public int getMissCount() {
+        return mEntries.missCount();
+    }
+
+    private static String getKey(String address) {
+        return address.toLowerCase(Locale.US);
+    }
+}
@@ -3,11 +3,15 @@ package com.fsck.k9.cache;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.util.LongSparseArray;
 
 import com.fsck.k9.fragment.MessageListFragment;
 import com.fsck.k9.mail.Message;
@@ -22,6 +26,7 @@ public class EmailProviderCache {
     public static final String ACTION_CACHE_UPDATED = "EmailProviderCache.ACTION_CACHE_UPDATED";
 
     private static Context sContext;
+    private static final Handler sMainThreadHandler = new Handler(Looper.getMainLooper());
     private static Map<String, EmailProviderCache> sInstances =
             new HashMap<String, EmailProviderCache>();
 
@@ -41,120 +46,200 @@ public class EmailProviderCache {
     }
 
 
-    private String mAccountUuid;
-    private Map<Long, Map<String, String>> mMessageCache = new HashMap<Long, Map<String, String>>();
-    private Map<Long, Map<String, String>> mThreadCache = new HashMap<Long, Map<String, String>>();
-    private Map<Long, Long> mHiddenMessageCache = new HashMap<Long, Long>();
+    private final String mAccountUuid;
+
+    /**
+     * The current contents of the cache.
+     *
+     * <p>
+     * Readers (mostly {@link EmailProviderCacheCursor} on the UI thread) never take a lock. Writers
+     * synchronize on this instance, modify a copy of the current snapshot and then publish it.
+     * </p>
+     */
+    private volatile Snapshot mSnapshot = new Snapshot();
+
+    /**
+     * {@code true} while a change notification has been scheduled but not sent yet.
+     */
+    private final AtomicBoolean mNotificationPending = new AtomicBoolean();
+
+    private final Runnable mSendNotification = new Runnable() {
+        @Override
+        public void run() {
+            mNotificationPending.set(false);
+            sendNotification();
+        }
+    };
 
 
     private EmailProviderCache(String accountUuid) {
         mAccountUuid = accountUuid;
     }
 
-    public String getValueForMessage(Long messageId, String columnName) {
-        synchronized (mMessageCache) {
-            Map<String, String> map = mMessageCache.get(messageId);
-            return (map == null) ? null : map.get(columnName);
+    /**
+     * An immutable view of the cache contents.
+     *
+     * <p>
+     * The {@link LongSparseArray}s are compacted before a snapshot is published. Otherwise even
+     * methods like {@link LongSparseArray#size()} would modify them.
+     * </p>
+     */
+    static class Snapshot {
+        public final int version;
+        private final Map<String, LongSparseArray<String>> mMessageValues;
+        private final Map<String, LongSparseArray<String>> mThreadValues;
+        private final LongSparseArray<Long> mHiddenMessages;
+
+        Snapshot() {
+            this(0, new HashMap<String, LongSparseArray<String>>(),
+                    new HashMap<String, LongSparseArray<String>>(), new LongSparseArray<Long>());
+        }
+
+        private Snapshot(int version, Map<String, LongSparseArray<String>> messageValues,
+                Map<String, LongSparseArray<String>> threadValues,
+                LongSparseArray<Long> hiddenMessages) {
+            this.version = version;
+            mMessageValues = messageValues;
+            mThreadValues = threadValues;
+            mHiddenMessages = hiddenMessages;
+        }
+
+        /**
+         * @return {@code true} if there are no cached values for the given column.
+         */
+        public boolean hasNoValues(String columnName) {
+            return !mMessageValues.containsKey(columnName) && !mThreadValues.containsKey(columnName);
+        }
+
+        public String getValueForMessage(long messageId, String columnName) {
+            LongSparseArray<String> values = mMessageValues.get(columnName);
+            return (values == null) ? null : values.get(messageId);
+        }
+
+        public String getValueForThread(long threadRootId, String columnName) {
+            LongSparseArray<String> values = mThreadValues.get(columnName);
+            return (values == null) ? null : values.get(threadRootId);
+        }
+
+        public boolean hasHiddenMessages() {
+            return mHiddenMessages.size() > 0;
+        }
+
+        public boolean isMessageHidden(long messageId, long folderId) {
+            Long hiddenInFolder = mHiddenMessages.get(messageId);
+            return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
+        }
+
+        Snapshot withValues(boolean threads, List<Long> ids, String columnName, String value) {
+            Map<String, LongSparseArray<String>> map = (threads) ? mThreadValues : mMessageValues;
+            Map<String, LongSparseArray<String>> newMap =
+                    new HashMap<String, LongSparseArray<String>>(map);
+
+            LongSparseArray<String> values = map.get(columnName);
+            values = (values == null) ? new LongSparseArray<String>() : values.clone();
+            for (Long id : ids) {
+                if (value == null) {
+                    values.delete(id);
+                } else {
+                    values.put(id, value);
+                }
+            }
+
+            if (values.size() == 0) {
+                newMap.remove(columnName);
+            } else {
+                newMap.put(columnName, values);
+            }
+
+            return (threads) ?
+                    new Snapshot(version + 1, mMessageValues, newMap, mHiddenMessages) :
+                    new Snapshot(version + 1, newMap, mThreadValues, mHiddenMessages);
+        }
+
+        Snapshot withHiddenMessages(LongSparseArray<Long> hiddenMessages) {
+            // Compact the array
+            hiddenMessages.size();
+            return new Snapshot(version + 1, mMessageValues, mThreadValues, hiddenMessages);
         }
+
+        LongSparseArray<Long> copyHiddenMessages() {
+            return mHiddenMessages.clone();
+        }
+    }
+
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    public String getValueForMessage(Long messageId, String columnName) {
+        return mSnapshot.getValueForMessage(messageId, columnName);
     }
 
     public String getValueForThread(Long threadRootId, String columnName) {
-        synchronized (mThreadCache) {
-            Map<String, String> map = mThreadCache.get(threadRootId);
-            return (map == null) ? null : map.get(columnName);
-        }
+        return mSnapshot.getValueForThread(threadRootId, columnName);
     }
 
     public void setValueForMessages(List<Long> messageIds, String columnName, String value) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mMessageCache.put(messageId, map);
-                }
-                map.put(columnName, value);
-            }
+        synchronized (this) {
+            mSnapshot = mSnapshot.withValues(false, messageIds, columnName, value);
         }
 
         notifyChange();
     }
 
     public void setValueForThreads(List<Long> threadRootIds, String columnName, String value) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mThreadCache.put(threadRootId, map);
-                }
-                map.put(columnName, value);
-            }
+        synchronized (this) {
+            mSnapshot = mSnapshot.withValues(true, threadRootIds, columnName, value);
         }
 
         notifyChange();
     }
 
     public void removeValueForMessages(List<Long> messageIds, String columnName) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.size() == 0) {
-                        mMessageCache.remove(messageId);
-                    }
-                }
-            }
+        synchronized (this) {
+            mSnapshot = mSnapshot.withValues(false, messageIds, columnName, null);
         }
     }
 
     public void removeValueForThreads(List<Long> threadRootIds, String columnName) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.size() == 0) {
-                        mThreadCache.remove(threadRootId);
-                    }
-                }
-            }
+        synchronized (this) {
+            mSnapshot = mSnapshot.withValues(true, threadRootIds, columnName, null);
         }
     }
 
     public void hideMessages(List<Message> messages) {
-        synchronized (mHiddenMessageCache) {
+        synchronized (this) {
+            LongSparseArray<Long> hiddenMessages = mSnapshot.copyHiddenMessages();
             for (Message message : messages) {
                 LocalMessage localMessage = (LocalMessage) message;
                 long messageId = localMessage.getId();
                 long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                mHiddenMessageCache.put(messageId, folderId);
+                hiddenMessages.put(messageId, folderId);
             }
+            mSnapshot = mSnapshot.withHiddenMessages(hiddenMessages);
         }
 
         notifyChange();
     }
 
     public boolean isMessageHidden(Long messageId, long folderId) {
-        synchronized (mHiddenMessageCache) {
-            Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-            return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
-        }
+        return mSnapshot.isMessageHidden(messageId, folderId);
     }
 
     public void unhideMessages(Message[] messages) {
-        synchronized (mHiddenMessageCache) {
+        synchronized (this) {
+            LongSparseArray<Long> hiddenMessages = mSnapshot.copyHiddenMessages();
             for (Message message : messages) {
                 LocalMessage localMessage = (LocalMessage) message;
                 long messageId = localMessage.getId();
                 long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                Long hiddenInFolder = mHiddenMessageCache.get(messageId);
+                Long hiddenInFolder = hiddenMessages.get(messageId);
 
                 if (hiddenInFolder != null && hiddenInFolder.longValue() == folderId) {
-                    mHiddenMessageCache.remove(messageId);
+                    hiddenMessages.delete(messageId);
                 }
             }
+            mSnapshot = mSnapshot.withHiddenMessages(hiddenMessages);
         }
     }
 
@@ -168,8 +253,20 @@ public class EmailProviderCache {
      * {@link LocalBroadcastManager} to send a {@link #ACTION_CACHE_UPDATED} broadcast. This way
      * {@code MessageListFragment} can update the view without reloading the cursor.
      * </p>
+     *
+     * <p>
+     * Changes made in quick succession, e.g. when a bulk action sets a flag for messages and
+     * threads and hides messages, result in a single notification. It is sent from the main
+     * thread once it's done with its current work.
+     * </p>
      */
     private void notifyChange() {
+        if (mNotificationPending.compareAndSet(false, true)) {
+            sMainThreadHandler.post(mSendNotification);
+        }
+    }
+
+    private void sendNotification() {
         LocalBroadcastManager.getInstance(sContext).sendBroadcast(new Intent(ACTION_CACHE_UPDATED));
 
         Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + mAccountUuid +
@@ -43,11 +43,14 @@ public class EmailProviderCacheCursor extends CursorWrapper {
                     ", " + ThreadColumns.ROOT);
         }
 
-        while (cursor.moveToNext()) {
-            long messageId = cursor.getLong(mMessageIdColumn);
-            long folderId = cursor.getLong(mFolderIdColumn);
-            if (mCache.isMessageHidden(messageId, folderId)) {
-                mHiddenRows.add(cursor.getPosition());
+        EmailProviderCache.Snapshot snapshot = mCache.getSnapshot();
+        if (snapshot.hasHiddenMessages()) {
+            while (cursor.moveToNext()) {
+                long messageId = cursor.getLong(mMessageIdColumn);
+                long folderId = cursor.getLong(mFolderIdColumn);
+                if (snapshot.isMessageHidden(messageId, folderId)) {
+                    mHiddenRows.add(cursor.getPosition());
+                }
             }
         }
 
@@ -58,19 +61,23 @@ public class EmailProviderCacheCursor extends CursorWrapper {
 
     @Override
     public int getInt(int columnIndex) {
-        long messageId = getLong(mMessageIdColumn);
-        long threadRootId = getLong(mThreadRootColumn);
-
+        // Use the same snapshot for all lookups. Most of the time there are no cached values.
+        EmailProviderCache.Snapshot snapshot = mCache.getSnapshot();
         String columnName = getColumnName(columnIndex);
-        String value = mCache.getValueForMessage(messageId, columnName);
+        if (snapshot.hasNoValues(columnName)) {
+            return super.getInt(columnIndex);
+        }
 
+        long messageId = getLong(mMessageIdColumn);
+        String value = snapshot.getValueForMessage(messageId, columnName);
         if (value != null) {
-            return Integer.valueOf(value);
+            return Integer.parseInt(value);
         }
 
-        value = mCache.getValueForThread(threadRootId, columnName);
+        long threadRootId = getLong(mThreadRootColumn);
+        value = snapshot.getValueForThread(threadRootId, columnName);
         if (value != null) {
-            return Integer.valueOf(value);
+            return Integer.parseInt(value);
         }
 
         return super.getInt(columnIndex);
@@ -88,7 +95,7 @@ public class EmailProviderCacheCursor extends CursorWrapper {
 
     @Override
     public boolean moveToLast() {
-        return moveToPosition(getCount());
+        return moveToPosition(getCount() - 1);
     }
 
     @Override
@@ -0,0 +1,103 @@
+package com.fsck.k9.cache;
+
+import android.support.v4.util.LruCache;
+
+import com.fsck.k9.activity.MessageReference;
+import com.fsck.k9.mail.store.LocalStore.LocalMessage;
+
+/**
+ * Process-wide cache of messages that have been prepared for the message view.
+ *
+ * <p>
+ * Before a message can be displayed its body has to be loaded from the database and the text to
+ * display has to be extracted from the MIME structure. When the message view is opened, the
+ * previous and next message of the message list are prepared in the background, so moving to them
+ * doesn't have to wait for the database.
+ * </p>
+ *
+ * <p>
+ * An entry is checked against the database before it is used; see
+ * {@link com.fsck.k9.controller.MessagingController#loadMessageForView}. Entries are removed when
+ * the body of the message is downloaded or one of its attachments is loaded.
+ * </p>
+ */
+public class MessageViewCache {
+    /**
+     * The maximum number of messages to remember: the displayed message, its neighbours and the
+     * messages that were displayed just before.
+     */
+    private static final int MAX_ENTRIES = 5;
+
+    private static MessageViewCache sInstance;
+
+    public static synchronized MessageViewCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new MessageViewCache();
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * A message whose body has been loaded, and the text to display.
+     */
+    public static class Entry {
+        public final LocalMessage message;
+
+        /**
+         * The result of {@link LocalMessage#getTextForDisplay()}. May be {@code null}.
+         */
+        public final String text;
+        public final boolean hasExternalImages;
+
+        public Entry(LocalMessage message, String text, boolean hasExternalImages) {
+            this.message = message;
+            this.text = text;
+            this.hasExternalImages = hasExternalImages;
+        }
+    }
+
+
+    private final LruCache<MessageReference, Entry> mEntries =
+            new LruCache<MessageReference, Entry>(MAX_ENTRIES);
+
+
+    private MessageViewCache() {
+    }
+
+    /**
+     * @return The cached entry for the given message, or {@code null} if the message needs to be
+     *         loaded.
+     */
+    public Entry get(MessageReference reference) {
+        return mEntries.get(reference);
+    }
+
+    public void put(MessageReference reference, Entry entry) {
+        mEntries.put(reference, entry);
+    }
+
+    public void remove(MessageReference reference) {
+        mEntries.remove(reference);
+    }
+
+    public void remove(String accountUuid, String folderName, String uid) {
+        MessageReference reference = new MessageReference();
+        reference.accountUuid = accountUuid;
+        reference.folderName = folderName;
+        reference.uid = uid;
+        remove(reference);
+    }
+
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+    public int getHitCount() {
+        return mEntries.hitCount();
+    }
+
+    public int getMissCount() {
+        return mEntries.missCount();
+    }
+}
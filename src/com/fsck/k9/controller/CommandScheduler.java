@@ -0,0 +1,167 @@
+package com.fsck.k9.controller;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.fsck.k9.controller.MessagingController.Command;
+
+/**
+ * Hands out {@link Command}s to a bounded number of worker threads.
+ *
+ * <p>
+ * Every command belongs to a lane (usually the UUID of the account it operates on). Commands in
+ * the same lane are executed one after another, in the order defined by
+ * {@link Command#compareTo(Command)}. Commands in different lanes may run at the same time, so a
+ * slow remote operation on one account no longer holds up all other accounts.
+ * </p>
+ * <p>
+ * Commands without a lane act as a barrier: they are only started once every command that was
+ * queued before them has completed. This keeps the semantics of e.g. the "finalize sync" step of
+ * {@link MessagingController#checkMail} that relies on all previously queued synchronizations
+ * having finished.
+ * </p>
+ * <p>
+ * When several lanes have a command ready, foreground commands are preferred over background
+ * commands. Among those the oldest command wins.
+ * </p>
+ */
+class CommandScheduler {
+    private final Map<String, PriorityQueue<Command>> mLanes = new HashMap<String, PriorityQueue<Command>>();
+    private final PriorityQueue<Command> mBarriers = new PriorityQueue<Command>();
+    private final Set<String> mActiveLanes = new HashSet<String>();
+    private final Set<Command> mRunning = new HashSet<Command>();
+    private int mQueued = 0;
+
+
+    /**
+     * Add a command to the lane it belongs to.
+     */
+    public synchronized void put(Command command) {
+        if (command.lane == null) {
+            mBarriers.add(command);
+        } else {
+            PriorityQueue<Command> queue = mLanes.get(command.lane);
+            if (queue == null) {
+                queue = new PriorityQueue<Command>();
+                mLanes.put(command.lane, queue);
+            }
+            queue.add(command);
+        }
+        mQueued++;
+        notifyAll();
+    }
+
+    /**
+     * Wait until a command can be executed and hand it out.
+     *
+     * <p>
+     * The lane of the returned command is blocked until {@link #complete(Command)} is called.
+     * </p>
+     */
+    public synchronized Command take() throws InterruptedException {
+        while (true) {
+            Command command = nextRunnableCommand();
+            if (command != null) {
+                if (command.lane == null) {
+                    mBarriers.remove(command);
+                } else {
+                    mLanes.get(command.lane).remove(command);
+                    mActiveLanes.add(command.lane);
+                }
+                mQueued--;
+                mRunning.add(command);
+                return command;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Mark a command returned by {@link #take()} as finished and unblock its lane.
+     */
+    public synchronized void complete(Command command) {
+        mRunning.remove(command);
+        if (command.lane != null) {
+            mActiveLanes.remove(command.lane);
+            PriorityQueue<Command> queue = mLanes.get(command.lane);
+            if (queue != null && queue.isEmpty()) {
+                mLanes.remove(command.lane);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return {@code true} if there are commands that haven't been started yet.
+     */
+    public synchronized boolean hasQueuedCommands() {
+        return mQueued > 0;
+    }
+
+    /**
+     * @return {@code true} if at least one command is currently being executed.
+     */
+    public synchronized boolean isBusy() {
+        return !mRunning.isEmpty();
+    }
+
+    private Command nextRunnableCommand() {
+        Command best = null;
+        for (Map.Entry<String, PriorityQueue<Command>> entry : mLanes.entrySet()) {
+            if (mActiveLanes.contains(entry.getKey())) {
+                continue;
+            }
+            Command head = entry.getValue().peek();
+            if (head != null && !isBlockedByBarrier(head) && (best == null || head.compareTo(best) < 0)) {
+                best = head;
+            }
+        }
+
+        Command barrier = oldestBarrier();
+        if (barrier != null && !hasOlderCommands(barrier) && (best == null || barrier.compareTo(best) < 0)) {
+            best = barrier;
+        }
+
+        return best;
+    }
+
+    /**
+     * A barrier that is still waiting for older commands must not be overtaken by a command that
+     * was queued after it, unless that command has a higher priority.
+     */
+    private boolean isBlockedByBarrier(Command command) {
+        Command barrier = oldestBarrier();
+        return (barrier != null && barrier.compareTo(command) < 0);
+    }
+
+    private Command oldestBarrier() {
+        Command oldest = null;
+        for (Command barrier : mBarriers) {
+            if (oldest == null || barrier.sequence < oldest.sequence) {
+                oldest = barrier;
+            }
+        }
+        return oldest;
+    }
+
+    private boolean hasOlderCommands(Command barrier) {
+        for (Command command : mRunning) {
+            if (command.sequence < barrier.sequence) {
+                return true;
+            }
+        }
+        for (PriorityQueue<Command> queue : mLanes.values()) {
+            Iterator<Command> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next().sequence < barrier.sequence) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -67,8 +67,11 @@ import com.fsck.k9.activity.setup.AccountSetupCheckSettings.CheckDirection;
 import com.fsck.k9.activity.setup.AccountSetupIncoming;
 import com.fsck.k9.activity.setup.AccountSetupOutgoing;
 import com.fsck.k9.cache.EmailProviderCache;
+import com.fsck.k9.cache.MessageViewCache;
+import com.fsck.k9.controller.PendingCommandCoalescer.Batch;
 import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.helper.NotificationBuilder;
+import com.fsck.k9.helper.Utility;
 import com.fsck.k9.helper.power.TracingPowerManager;
 import com.fsck.k9.helper.power.TracingPowerManager.TracingWakeLock;
 import com.fsck.k9.mail.Address;
@@ -94,6 +97,7 @@ import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalMessageIndex;
 import com.fsck.k9.mail.store.LocalStore;
 import com.fsck.k9.mail.store.LocalStore.LocalFolder;
 import com.fsck.k9.mail.store.LocalStore.LocalMessage;
@@ -112,9 +116,9 @@ import com.fsck.k9.service.NotificationActionService;
 
 
 /**
- * Starts a long running (application) Thread that will run through commands
- * that require remote mailbox access. This class is used to serialize and
- * prioritize these commands. Each method that will submit a command requires a
+ * Starts a few long running (application) Threads that will run through commands
+ * that require remote mailbox access. This class is used to serialize (per
+ * account) and prioritize these commands, see {@link CommandScheduler}. Each method that will submit a command requires a
  * MessagingListener instance to be provided. It is expected that that listener
  * has also been added as a registered listener using addListener(). When a
  * command is to be executed, if the listener that was provided with the command
@@ -141,7 +145,7 @@ public class MessagingController implements Runnable {
      */
     private static final Folder[] EMPTY_FOLDER_ARRAY = new Folder[0];
 
-    private HashMap<String,MimeMultipart> signedParts = new HashMap<String,MimeMultipart>();
+    private Map<String,MimeMultipart> signedParts = new ConcurrentHashMap<String,MimeMultipart>();
     
     /**
      * The maximum message size that we'll consider to be "small". A small message is downloaded
@@ -172,6 +176,9 @@ public class MessagingController implements Runnable {
     private static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
     private static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
 
+    private static final PendingCommandCoalescer PENDING_COMMAND_COALESCER = new PendingCommandCoalescer(
+            PENDING_COMMAND_SET_FLAG_BULK, PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW);
+
     public static class UidReverseComparator implements Comparator<Message> {
         @Override
         public int compare(Message o1, Message o2) {
@@ -197,12 +204,21 @@ public class MessagingController implements Runnable {
     /**
      * Maximum number of unsynced messages to store at once
      */
-    private static final int UNSYNC_CHUNK_SIZE = 5;
+    private static final int UNSYNC_CHUNK_SIZE = 25;
+
+    /**
+     * Maximum number of fully downloaded small messages to store in one transaction
+     */
+    private static final int SMALL_MESSAGE_CHUNK_SIZE = 10;
 
     private static MessagingController inst = null;
-    private BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
+    /**
+     * Maximum number of commands (for different accounts) that are executed at the same time.
+     */
+    private static final int MAX_CONCURRENT_COMMANDS = 3;
+
+    private CommandScheduler mCommands = new CommandScheduler();
 
-    private Thread mThread;
     private Set<MessagingListener> mListeners = new CopyOnWriteArraySet<MessagingListener>();
 
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<String, AtomicInteger>();
@@ -215,8 +231,6 @@ public class MessagingController implements Runnable {
 
     private MemorizingListener memorizingListener = new MemorizingListener();
 
-    private boolean mBusy;
-
     /**
      *  {@link K9}
      */
@@ -408,9 +422,11 @@ public class MessagingController implements Runnable {
      */
     private MessagingController(Application application) {
         mApplication = application;
-        mThread = new Thread(this);
-        mThread.setName("MessagingController");
-        mThread.start();
+        for (int i = 0; i < MAX_CONCURRENT_COMMANDS; i++) {
+            Thread thread = new Thread(this);
+            thread.setName("MessagingController-" + i);
+            thread.start();
+        }
         if (memorizingListener != null) {
             addListener(memorizingListener);
         }
@@ -430,7 +446,7 @@ public class MessagingController implements Runnable {
     }
 
     public boolean isBusy() {
-        return mBusy;
+        return mCommands.isBusy();
     }
 
     @Override
@@ -447,7 +463,6 @@ public class MessagingController implements Runnable {
                     if (K9.DEBUG)
                         Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
 
-                    mBusy = true;
                     try {
                         command.runnable.run();
                     } catch (UnavailableAccountException e) {
@@ -467,6 +482,8 @@ public class MessagingController implements Runnable {
                         } .start();
                     } catch( Exception e ) {
                     	Log.e(K9.LOG_TAG, "Unable to execute command", e );
+                    } finally {
+                        mCommands.complete(command);
                     }
 
                     if (K9.DEBUG)
@@ -474,45 +491,40 @@ public class MessagingController implements Runnable {
                               " Command '" + command.description + "' completed");
 
                     for (MessagingListener l : getListeners(command.listener)) {
-                        l.controllerCommandCompleted(!mCommands.isEmpty());
+                        l.controllerCommandCompleted(mCommands.hasQueuedCommands());
                     }
                 }
             } catch (Exception e) {
                 Log.e(K9.LOG_TAG, "Error running command '" + commandDescription + "'", e);
             }
-            mBusy = false;
         }
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, true);
+    private void put(String description, Account account, MessagingListener listener, Runnable runnable) {
+        putCommand(mCommands, description, account, listener, runnable, true);
     }
 
-    private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, false);
+    private void putBackground(String description, Account account, MessagingListener listener, Runnable runnable) {
+        putCommand(mCommands, description, account, listener, runnable, false);
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForeground = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ne) {
-                }
-                e = ie;
-            }
-        }
-        throw new Error(e);
+    /**
+     * Queue a command.
+     *
+     * @param account
+     *         The account the command operates on. Commands for the same account are executed
+     *         sequentially. If this is {@code null} the command will only be run after all
+     *         previously queued commands have completed.
+     */
+    private void putCommand(CommandScheduler queue, String description, Account account,
+            MessagingListener listener, Runnable runnable, boolean isForeground) {
+        Command command = new Command();
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        command.isForeground = isForeground;
+        command.lane = (account != null) ? account.getUuid() : null;
+        queue.put(command);
     }
 
 
@@ -629,7 +641,7 @@ public class MessagingController implements Runnable {
     }
 
     private void doRefreshRemote(final Account account, final MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        put("doRefreshRemote", account, listener, new Runnable() {
             @Override
             public void run() {
                 List <? extends Folder > localFolders = null;
@@ -910,10 +922,20 @@ public class MessagingController implements Runnable {
         final FetchProfile structure = new FetchProfile();
         structure.add(FetchProfile.Item.STRUCTURE);
 
+        String[] uids = new String[messages.size()];
+        for (int j = 0; j < uids.length; j++) {
+            uids[j] = messages.get(j).getUid();
+        }
+
+        Map<String, LocalMessage> localMessages = new HashMap<String, LocalMessage>();
+        for (Message localMessage : localFolder.getMessages(uids, null)) {
+            localMessages.put(localMessage.getUid(), (LocalMessage) localMessage);
+        }
+
         int i = 0;
         for (Message message : messages) {
             i++;
-            LocalMessage localMsg = localFolder.getMessage(message.getUid());
+            LocalMessage localMsg = localMessages.get(message.getUid());
 
             if (localMsg == null) {
                 remoteFolder.fetch(new Message [] {message}, header, null);
@@ -959,7 +981,7 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener, final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        putBackground("synchronizeMailbox", account, listener, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -979,8 +1001,9 @@ public class MessagingController implements Runnable {
      *
      * TODO Break this method up into smaller chunks.
      * @param providedRemoteFolder TODO
+     * @return {@code true} if the folder was synchronized without errors.
      */
-    private void synchronizeMailboxSynchronous(final Account account, final String folder, final MessagingListener listener, Folder providedRemoteFolder) {
+    private boolean synchronizeMailboxSynchronous(final Account account, final String folder, final MessagingListener listener, Folder providedRemoteFolder) {
         Folder remoteFolder = null;
         LocalFolder tLocalFolder = null;
 
@@ -998,7 +1021,7 @@ public class MessagingController implements Runnable {
                 l.synchronizeMailboxFinished(account, folder, 0, 0);
             }
 
-            return;
+            return false;
         }
 
         Exception commandException = null;
@@ -1027,11 +1050,7 @@ public class MessagingController implements Runnable {
             final LocalFolder localFolder = tLocalFolder;
             localFolder.open(Folder.OPEN_MODE_RW);
             localFolder.updateLastUid();
-            Message[] localMessages = localFolder.getMessages(null);
-            HashMap<String, Message> localUidMap = new HashMap<String, Message>();
-            for (Message message : localMessages) {
-                localUidMap.put(message.getUid(), message);
-            }
+            LocalMessageIndex localIndex = localFolder.getMessageIndex(null);
 
             if (providedRemoteFolder != null) {
                 if (K9.DEBUG)
@@ -1045,7 +1064,7 @@ public class MessagingController implements Runnable {
                 remoteFolder = remoteStore.getFolder(folder);
 
                 if (! verifyOrCreateRemoteSpecialFolder(account, folder, remoteFolder, listener)) {
-                    return;
+                    return false;
                 }
 
 
@@ -1101,8 +1120,54 @@ public class MessagingController implements Runnable {
                 Log.v(K9.LOG_TAG, "SYNC: Remote message count for folder " + folder + " is " + remoteMessageCount);
             final Date earliestDate = account.getEarliestPollDate();
 
+            /*
+             * If the server keeps mod-sequences (CONDSTORE) we only need to ask for messages
+             * that changed since the last sync. If it also reports removed messages (QRESYNC) we
+             * don't even have to look at the list of remote UIDs.
+             */
+            final long remoteUidValidity = remoteFolder.getUidValidity();
+            final long remoteModSeq = remoteFolder.getHighestModSeq();
+            final long localModSeq = localFolder.getHighestModSeq();
+            final boolean modSeqValid = (remoteModSeq > 0 && localModSeq > 0 &&
+                    remoteUidValidity == localFolder.getUidValidity());
+            final boolean quickResync = (modSeqValid && remoteFolder.supportsVanishedMessages());
+            final List<String> vanishedUids = new ArrayList<String>();
+            final List<Message> flagChangedMessages = new ArrayList<Message>();
+
+            if (quickResync) {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "SYNC: Using mod-sequence " + localModSeq + " (remote: " +
+                            remoteModSeq + ") for folder " + folder);
+
+                if (remoteModSeq != localModSeq) {
+                    Message[] changedMessages = remoteFolder.getChangedMessages(null, localModSeq,
+                            vanishedUids);
+                    long lowestLocalUid = (visibleLimit > 0) ? getLowestRemoteUid(localIndex) : -1;
+
+                    for (Message changedMessage : changedMessages) {
+                        int localPosition = indexOfListedMessage(localIndex, changedMessage.getUid());
+                        if (localPosition != -1 &&
+                                (localIndex.isSet(localPosition, Flag.X_DOWNLOADED_FULL) ||
+                                localIndex.isSet(localPosition, Flag.X_DOWNLOADED_PARTIAL))) {
+                            // We already have the message, the flags are all we need
+                            flagChangedMessages.add(changedMessage);
+                        } else if (localPosition == -1 &&
+                                isUidBelow(changedMessage.getUid(), lowestLocalUid)) {
+                            // An older message outside of the visible window whose flags changed.
+                            // Downloading it would grow the window past the limit.
+                            continue;
+                        } else {
+                            remoteMessages.add(changedMessage);
+                            remoteUidMap.put(changedMessage.getUid(), changedMessage);
+                        }
+                    }
+                }
 
-            if (remoteMessageCount > 0) {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "SYNC: Got " + remoteMessages.size() + " new and " +
+                            flagChangedMessages.size() + " changed messages, " +
+                            vanishedUids.size() + " vanished UIDs for folder " + folder);
+            } else if (remoteMessageCount > 0) {
                 /* Message numbers start at 1.  */
                 int remoteStart;
                 if (visibleLimit > 0) {
@@ -1130,8 +1195,8 @@ public class MessagingController implements Runnable {
                     for (MessagingListener l : getListeners(listener)) {
                         l.synchronizeMailboxHeadersProgress(account, folder, headerProgress.get(), messageCount);
                     }
-                    Message localMessage = localUidMap.get(thisMess.getUid());
-                    if (localMessage == null || !localMessage.olderThan(earliestDate)) {
+                    int localPosition = indexOfListedMessage(localIndex, thisMess.getUid());
+                    if (localPosition == -1 || !localIndex.olderThan(localPosition, earliestDate)) {
                         remoteMessages.add(thisMess);
                         remoteUidMap.put(thisMess.getUid(), thisMess);
                     }
@@ -1152,15 +1217,30 @@ public class MessagingController implements Runnable {
              * Remove any messages that are in the local store but no longer on the remote store or are too old
              */
             if (account.syncRemoteDeletions()) {
-                ArrayList<Message> destroyMessages = new ArrayList<Message>();
-                for (Message localMessage : localMessages) {
-                    if (remoteUidMap.get(localMessage.getUid()) == null) {
-                        destroyMessages.add(localMessage);
+                List<String> destroyUids = new ArrayList<String>();
+                if (quickResync) {
+                    for (String vanishedUid : vanishedUids) {
+                        if (indexOfListedMessage(localIndex, vanishedUid) != -1) {
+                            destroyUids.add(vanishedUid);
+                        }
+                    }
+                } else {
+                    for (int i = 0, size = localIndex.size(); i < size; i++) {
+                        if (!localIndex.isEmpty(i) &&
+                                remoteUidMap.get(localIndex.getUid(i)) == null) {
+                            destroyUids.add(localIndex.getUid(i));
+                        }
                     }
                 }
 
+                // Only load the messages we're going to remove
+                Message[] destroyMessages = EMPTY_MESSAGE_ARRAY;
+                if (!destroyUids.isEmpty()) {
+                    destroyMessages = localFolder.getMessages(
+                            destroyUids.toArray(EMPTY_STRING_ARRAY), null);
+                }
 
-                localFolder.destroyMessages(destroyMessages.toArray(EMPTY_MESSAGE_ARRAY));
+                localFolder.destroyMessages(destroyMessages);
 
                 for (Message destroyMessage : destroyMessages) {
                     for (MessagingListener l : getListeners(listener)) {
@@ -1168,12 +1248,28 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-            localMessages = null;
 
             /*
              * Now we download the actual content of messages.
              */
-            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false);
+            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages,
+                    false, modSeqValid ? localModSeq : -1, localIndex);
+
+            if (!flagChangedMessages.isEmpty()) {
+                applyRemoteFlags(account, localFolder, folder, flagChangedMessages, localIndex,
+                        null, 0);
+            }
+            localIndex = null;
+
+            /*
+             * Remember the mod-sequence so the next sync only needs to ask for changes. If the
+             * remote folder didn't report one (e.g. because the selection was reused) keep the
+             * old value, the next sync will catch up from there.
+             */
+            if (remoteModSeq > 0 && (remoteModSeq != localModSeq ||
+                    remoteUidValidity != localFolder.getUidValidity())) {
+                localFolder.setModSeqState(remoteUidValidity, remoteModSeq);
+            }
 
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
@@ -1207,6 +1303,7 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Done synchronizing folder " + account.getDescription() + ":" + folder);
 
+            return (commandException == null);
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "synchronizeMailbox", e);
             // If we don't set the last checked, it can try too often during
@@ -1229,6 +1326,7 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
             Log.e(K9.LOG_TAG, "Failed synchronizing folder " + account.getDescription() + ":" + folder + " @ " + new Date());
 
+            return false;
         } finally {
             if (providedRemoteFolder == null) {
                 closeFolder(remoteFolder);
@@ -1295,6 +1393,28 @@ public class MessagingController implements Runnable {
     private int downloadMessages(final Account account, final Folder remoteFolder,
                                  final LocalFolder localFolder, List<Message> inputMessages,
                                  boolean flagSyncOnly) throws MessagingException {
+        return downloadMessages(account, remoteFolder, localFolder, inputMessages, flagSyncOnly, -1,
+                null);
+    }
+
+    /**
+     * Fetches the messages described by inputMessages from the remote store and writes them to
+     * local storage.
+     *
+     * @param flagsChangedSince
+     *            If this is a positive value only the flags of messages that changed after this
+     *            mod-sequence are fetched from the remote store. Otherwise the flags of all
+     *            messages already present in the local store are fetched.
+     * @param localIndex
+     *            A snapshot of the local folder that contains at least the messages in
+     *            {@code inputMessages}, or {@code null} to create one.
+     *
+     * @see #downloadMessages(Account, Folder, LocalFolder, List, boolean)
+     */
+    private int downloadMessages(final Account account, final Folder remoteFolder,
+                                 final LocalFolder localFolder, List<Message> inputMessages,
+                                 boolean flagSyncOnly, long flagsChangedSince,
+                                 LocalMessageIndex localIndex) throws MessagingException {
 
         final Date earliestDate = account.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -1321,8 +1441,16 @@ public class MessagingController implements Runnable {
 
         List<Message> messages = new ArrayList<Message>(inputMessages);
 
+        if (localIndex == null) {
+            String[] uids = new String[messages.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = messages.get(i).getUid();
+            }
+            localIndex = localFolder.getMessageIndex(uids);
+        }
+
         for (Message message : messages) {
-            evaluateMessageForDownload(message, folder, localFolder, remoteFolder, account, unsyncedMessages, syncFlagMessages , flagSyncOnly);
+            evaluateMessageForDownload(message, folder, localFolder, remoteFolder, account, localIndex, unsyncedMessages, syncFlagMessages , flagSyncOnly);
         }
 
         final AtomicInteger progress = new AtomicInteger(0);
@@ -1418,7 +1546,8 @@ public class MessagingController implements Runnable {
          * download.
          */
 
-        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo);
+        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages,
+                flagsChangedSince, localIndex, progress, todo);
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Synced remote messages for folder " + folder + ", " + newMessages.get() + " new messages");
@@ -1477,6 +1606,7 @@ public class MessagingController implements Runnable {
                                             final LocalFolder localFolder,
                                             final Folder remoteFolder,
                                             final Account account,
+                                            final LocalMessageIndex localIndex,
                                             final List<Message> unsyncedMessages,
                                             final ArrayList<Message> syncFlagMessages,
                                             boolean flagSyncOnly) throws MessagingException {
@@ -1485,9 +1615,9 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        Message localMessage = localFolder.getMessage(message.getUid());
+        int localPosition = localIndex.indexOf(message.getUid());
 
-        if (localMessage == null) {
+        if (localPosition == -1) {
             if (!flagSyncOnly) {
                 if (!message.isSet(Flag.X_DOWNLOADED_FULL) && !message.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
                     if (K9.DEBUG)
@@ -1501,7 +1631,7 @@ public class MessagingController implements Runnable {
                     // Store the updated message locally
                     localFolder.appendMessages(new Message[] { message });
 
-                    localMessage = localFolder.getMessage(message.getUid());
+                    Message localMessage = localFolder.getMessage(message.getUid());
 
                     localMessage.setFlag(Flag.X_DOWNLOADED_FULL, message.isSet(Flag.X_DOWNLOADED_FULL));
                     localMessage.setFlag(Flag.X_DOWNLOADED_PARTIAL, message.isSet(Flag.X_DOWNLOADED_PARTIAL));
@@ -1514,11 +1644,12 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-        } else if (!localMessage.isSet(Flag.DELETED)) {
+        } else if (!localIndex.isSet(localPosition, Flag.DELETED)) {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Message with uid " + message.getUid() + " is present in the local store");
 
-            if (!localMessage.isSet(Flag.X_DOWNLOADED_FULL) && !localMessage.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
+            if (!localIndex.isSet(localPosition, Flag.X_DOWNLOADED_FULL) &&
+                    !localIndex.isSet(localPosition, Flag.X_DOWNLOADED_PARTIAL)) {
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "Message with uid " + message.getUid()
                           + " is not downloaded, even partially; trying again");
@@ -1686,76 +1817,45 @@ public class MessagingController implements Runnable {
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Fetching small messages for folder " + folder);
 
+        /*
+         * Messages to be batch written. Signed messages are mapped to a copy of the original
+         * message because storing them modifies the MIME structure.
+         */
+        final List<Message> chunk = new ArrayList<Message>(SMALL_MESSAGE_CHUNK_SIZE);
+        final Map<String, Message> originals = new HashMap<String, Message>();
+
         remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]),
         fp, new MessageRetrievalListener() {
             @Override
             public void messageFinished(final Message message, int number, int ofTotal) {
-                try {
-
-                    if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
-                        progress.incrementAndGet();
-
-                        return;
-                    }
+                if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
+                    progress.incrementAndGet();
 
-                    Message orig = null;
-                    if( message.getSignedMultipart() != null ) {
-                    	try {
-                    	
-	                    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	                    	message.writeTo( baos );
-	                    	
-	                    	ByteArrayInputStream bais = new ByteArrayInputStream( baos.toByteArray() );
-	                    	orig = new MimeMessage( bais );
-	                    	
-                    	} catch( IOException e ) {
-                    		Log.w( K9.LOG_TAG, "Could not preserve original signed message", e );
-                    	}	
-                    }
-                    
-                    // Store the updated message locally
-                    final Message localMessage = localFolder.storeSmallMessage(message, new Runnable() {
-                        @Override
-                        public void run() {
-                            progress.incrementAndGet();
-                        }
-                    });
+                    return;
+                }
 
-                    if( orig != null ) {
+                if( message.getSignedMultipart() != null ) {
+                	try {
+                	
+                    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    	message.writeTo( baos );
                     	
-                    	orig.setUid( localMessage.getUid() );
-                    	setSignedMultipart( orig, localFolder );
+                    	ByteArrayInputStream bais = new ByteArrayInputStream( baos.toByteArray() );
+                    	originals.put( message.getUid(), new MimeMessage( bais ) );
                     	
-                    }
-                    
-                    // Increment the number of "new messages" if the newly downloaded message is
-                    // not marked as read.
-                    if (!localMessage.isSet(Flag.SEEN)) {
-                        newMessages.incrementAndGet();
-                    }
-
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
-                              + account + ":" + folder + ":" + message.getUid());
-
-                    // Update the listener with what we've found
-                    for (MessagingListener l : getListeners()) {
-                        l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
-                        if (!localMessage.isSet(Flag.SEEN)) {
-                            l.synchronizeMailboxNewMessage(account, folder, localMessage);
-                        }
-                    }
-                    // Send a notification of this message
-
-                    if (shouldNotifyForMessage(account, localFolder, message)) {
-                        // Notify with the localMessage so that we don't have to recalculate the content preview.
-                        notifyAccount(mApplication, account, localMessage, unreadBeforeStart);
-                    }
+                	} catch( IOException e ) {
+                		Log.w( K9.LOG_TAG, "Could not preserve original signed message", e );
+                	} catch( MessagingException e ) {
+                		Log.w( K9.LOG_TAG, "Could not preserve original signed message", e );
+                	}
+                }
 
-                } catch (MessagingException me) {
-                    addErrorMessage(account, null, me);
-                    Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
+                chunk.add(message);
+                if (chunk.size() >= SMALL_MESSAGE_CHUNK_SIZE) {
+                    writeSmallMessages(account, localFolder, chunk, originals, progress,
+                            unreadBeforeStart, newMessages, todo);
+                    chunk.clear();
+                    originals.clear();
                 }
             }
 
@@ -1766,12 +1866,86 @@ public class MessagingController implements Runnable {
             public void messagesFinished(int total) {}
         });
 
+        if (!chunk.isEmpty()) {
+            writeSmallMessages(account, localFolder, chunk, originals, progress,
+                    unreadBeforeStart, newMessages, todo);
+        }
+
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Done fetching small messages for folder " + folder);
     }
 
 
 
+    /**
+     * Store a chunk of fully downloaded small messages in one transaction and notify the
+     * listeners about them.
+     */
+    private void writeSmallMessages(final Account account, final LocalFolder localFolder,
+                                    final List<Message> messages,
+                                    final Map<String, Message> originals,
+                                    final AtomicInteger progress,
+                                    final int unreadBeforeStart,
+                                    final AtomicInteger newMessages,
+                                    final int todo) {
+        final String folder = localFolder.getName();
+
+        if (K9.DEBUG) {
+            Log.v(K9.LOG_TAG, "Batch writing " + Integer.toString(messages.size()) + " small messages");
+        }
+
+        try {
+            // Store the updated messages locally
+            List<Message> localMessages = localFolder.storeSmallMessages(messages, new Runnable() {
+                @Override
+                public void run() {
+                    progress.incrementAndGet();
+                }
+            });
+
+            for (int i = 0, len = messages.size(); i < len; i++) {
+                Message message = messages.get(i);
+                Message localMessage = localMessages.get(i);
+
+                Message orig = originals.get(message.getUid());
+                if( orig != null ) {
+                	
+                	orig.setUid( localMessage.getUid() );
+                	setSignedMultipart( orig, localFolder );
+                	
+                }
+
+                // Increment the number of "new messages" if the newly downloaded message is
+                // not marked as read.
+                if (!localMessage.isSet(Flag.SEEN)) {
+                    newMessages.incrementAndGet();
+                }
+
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
+                          + account + ":" + folder + ":" + message.getUid());
+
+                // Update the listener with what we've found
+                for (MessagingListener l : getListeners()) {
+                    l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                    l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                    if (!localMessage.isSet(Flag.SEEN)) {
+                        l.synchronizeMailboxNewMessage(account, folder, localMessage);
+                    }
+                }
+                // Send a notification of this message
+
+                if (shouldNotifyForMessage(account, localFolder, message)) {
+                    // Notify with the localMessage so that we don't have to recalculate the content preview.
+                    notifyAccount(mApplication, account, localMessage, unreadBeforeStart);
+                }
+            }
+        } catch (MessagingException me) {
+            addErrorMessage(account, null, me);
+            Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
+        }
+    }
+
     private void downloadLargeMessages(final Account account, final Folder remoteFolder,
                                        final LocalFolder localFolder,
                                        ArrayList<Message> largeMessages,
@@ -1923,6 +2097,8 @@ public class MessagingController implements Runnable {
     private void refreshLocalMessageFlags(final Account account, final Folder remoteFolder,
                                           final LocalFolder localFolder,
                                           ArrayList<Message> syncFlagMessages,
+                                          long flagsChangedSince,
+                                          LocalMessageIndex localIndex,
                                           final AtomicInteger progress,
                                           final int todo
                                          ) throws MessagingException {
@@ -1937,44 +2113,93 @@ public class MessagingController implements Runnable {
             fp.add(FetchProfile.Item.FLAGS);
 
             List<Message> undeletedMessages = new LinkedList<Message>();
+            List<Message> remoteMessages = new ArrayList<Message>();
             for (Message message : syncFlagMessages) {
                 if (!message.isSet(Flag.DELETED)) {
                     undeletedMessages.add(message);
+                } else {
+                    remoteMessages.add(message);
                 }
             }
 
-            remoteFolder.fetch(undeletedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
-            for (Message remoteMessage : syncFlagMessages) {
-                Message localMessage = localFolder.getMessage(remoteMessage.getUid());
-                boolean messageChanged = syncFlags(localMessage, remoteMessage);
-                if (messageChanged) {
-                    boolean shouldBeNotifiedOf = false;
-                    if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, localMessage)) {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
-                        }
-                    } else {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        }
-                        if (shouldNotifyForMessage(account, localFolder, localMessage)) {
-                            shouldBeNotifiedOf = true;
-                        }
+            if (flagsChangedSince > 0) {
+                // Only messages whose flags changed since the last sync are returned
+                String[] uids = new String[undeletedMessages.size()];
+                int i = 0;
+                for (Message message : undeletedMessages) {
+                    uids[i++] = message.getUid();
+                }
+                remoteMessages.addAll(Arrays.asList(
+                        remoteFolder.getChangedMessages(uids, flagsChangedSince, null)));
+            } else {
+                remoteFolder.fetch(undeletedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
+                remoteMessages.addAll(undeletedMessages);
+            }
+
+            applyRemoteFlags(account, localFolder, folder, remoteMessages, localIndex, progress,
+                    todo);
+
+            // Messages whose flags didn't change count as done, too
+            if (remoteMessages.size() < syncFlagMessages.size()) {
+                progress.addAndGet(syncFlagMessages.size() - remoteMessages.size());
+                for (MessagingListener l : getListeners()) {
+                    l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the flags of the given remote messages to the corresponding local messages and notify
+     * the listeners about changed messages.
+     *
+     * @param localIndex
+     *         A snapshot of the local folder. Local messages are only loaded if the snapshot
+     *         shows that their flags differ. May be {@code null}.
+     * @param progress
+     *         Incremented for every message. May be {@code null}.
+     */
+    private void applyRemoteFlags(final Account account, final LocalFolder localFolder,
+                                  final String folder, List<Message> remoteMessages,
+                                  final LocalMessageIndex localIndex,
+                                  final AtomicInteger progress, final int todo)
+            throws MessagingException {
+        for (Message remoteMessage : remoteMessages) {
+            boolean messageChanged = false;
+            Message localMessage = null;
+            if (localIndex == null || flagsMayDiffer(localIndex, remoteMessage)) {
+                localMessage = localFolder.getMessage(remoteMessage.getUid());
+                messageChanged = syncFlags(localMessage, remoteMessage);
+            }
+            if (messageChanged) {
+                boolean shouldBeNotifiedOf = false;
+                if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, localMessage)) {
+                    for (MessagingListener l : getListeners()) {
+                        l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
                     }
+                } else {
+                    for (MessagingListener l : getListeners()) {
+                        l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                    }
+                    if (shouldNotifyForMessage(account, localFolder, localMessage)) {
+                        shouldBeNotifiedOf = true;
+                    }
+                }
 
-                    // we're only interested in messages that need removing
-                    if (!shouldBeNotifiedOf) {
-                        NotificationData data = getNotificationData(account, null);
-                        if (data != null) {
-                            synchronized (data) {
-                                MessageReference ref = localMessage.makeMessageReference();
-                                if (data.removeMatchingMessage(mApplication, ref)) {
-                                    notifyAccountWithDataLocked(mApplication, account, null, data);
-                                }
+                // we're only interested in messages that need removing
+                if (!shouldBeNotifiedOf) {
+                    NotificationData data = getNotificationData(account, null);
+                    if (data != null) {
+                        synchronized (data) {
+                            MessageReference ref = localMessage.makeMessageReference();
+                            if (data.removeMatchingMessage(mApplication, ref)) {
+                                notifyAccountWithDataLocked(mApplication, account, null, data);
                             }
                         }
                     }
                 }
+            }
+            if (progress != null) {
                 progress.incrementAndGet();
                 for (MessagingListener l : getListeners()) {
                     l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
@@ -1983,6 +2208,75 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Check whether {@link #syncFlags(Message, Message)} could change the local message, using
+     * only the snapshot of the local folder.
+     */
+    private boolean flagsMayDiffer(LocalMessageIndex localIndex, Message remoteMessage) {
+        int localPosition = localIndex.indexOf(remoteMessage.getUid());
+        if (localPosition == -1 || localIndex.isSet(localPosition, Flag.DELETED)) {
+            return false;
+        }
+        if (remoteMessage.isSet(Flag.DELETED)) {
+            return true;
+        }
+        for (Flag flag : MessagingController.SYNC_FLAGS) {
+            if (remoteMessage.isSet(flag) != localIndex.isSet(localPosition, flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The lowest numeric UID of the messages in the local folder that came from the
+     *         server, or {@code -1} if there are none.
+     */
+    private static long getLowestRemoteUid(LocalMessageIndex localIndex) {
+        long lowestUid = -1;
+        for (int i = 0, size = localIndex.size(); i < size; i++) {
+            String uid = localIndex.getUid(i);
+            if (localIndex.isEmpty(i) || uid.startsWith(K9.LOCAL_UID_PREFIX)) {
+                continue;
+            }
+            try {
+                long value = Long.parseLong(uid);
+                if (lowestUid == -1 || value < lowestUid) {
+                    lowestUid = value;
+                }
+            } catch (NumberFormatException e) {
+                // Not a server that uses numeric UIDs
+                return -1;
+            }
+        }
+        return lowestUid;
+    }
+
+    /**
+     * @return {@code true} if {@code uid} is a numeric UID lower than {@code lowestUid}.
+     */
+    private static boolean isUidBelow(String uid, long lowestUid) {
+        if (lowestUid == -1) {
+            return false;
+        }
+        try {
+            return Long.parseLong(uid) < lowestUid;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Find a message in the snapshot of the local folder, ignoring messages of which only the UID
+     * has been kept.
+     *
+     * @return The position of the message in {@code localIndex}, or {@code -1}.
+     */
+    private static int indexOfListedMessage(LocalMessageIndex localIndex, String uid) {
+        int position = localIndex.indexOf(uid);
+        return (position != -1 && !localIndex.isEmpty(position)) ? position : -1;
+    }
+
     private boolean syncFlags(Message localMessage, Message remoteMessage) throws MessagingException {
         boolean messageChanged = false;
         if (localMessage == null || localMessage.isSet(Flag.DELETED)) {
@@ -2035,7 +2329,7 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        putBackground("processPendingCommands", account, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2072,14 +2366,20 @@ public class MessagingController implements Runnable {
             l.synchronizeMailboxProgress(account, null, progress, todo);
         }
 
+        /*
+         * Merge adjacent commands that can be sent to the server as one, e.g. marking many
+         * messages in the same folder as read one by one.
+         */
+        List<Batch> batches = PENDING_COMMAND_COALESCER.coalesce(commands);
+        if (K9.DEBUG && batches.size() < todo) {
+            Log.d(K9.LOG_TAG, "Coalesced " + todo + " pending commands into " + batches.size() +
+                    " batches");
+        }
+
         PendingCommand processingCommand = null;
         try {
-            for (PendingCommand command : commands) {
-                processingCommand = command;
-                if (K9.DEBUG)
-                    Log.d(K9.LOG_TAG, "Processing pending command '" + command + "'");
-
-                String[] components = command.command.split("\\.");
+            for (Batch batch : batches) {
+                String[] components = batch.sources.get(0).command.split("\\.");
                 String commandTitle = components[components.length - 1];
                 for (MessagingListener l : getListeners()) {
                     l.pendingCommandStarted(account, commandTitle);
@@ -2090,38 +2390,26 @@ public class MessagingController implements Runnable {
                  * other command processes. This maintains the order of the commands.
                  */
                 try {
-                    if (PENDING_COMMAND_APPEND.equals(command.command)) {
-                        processPendingAppend(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
-                        processPendingSetFlag(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
-                        processPendingSetFlagOld(command, account);
-                    } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
-                        processPendingMarkAllAsRead(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
-                        processPendingMoveOrCopyOld2(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
-                        processPendingMoveOrCopy(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
-                        processPendingMoveOrCopyOld(command, account);
-                    } else if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
-                        processPendingEmptyTrash(command, account);
-                    } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
-                        processPendingExpunge(command, account);
+                    for (PendingCommand command : batch.commands) {
+                        processingCommand = command;
+                        if (K9.DEBUG)
+                            Log.d(K9.LOG_TAG, "Processing pending command '" + command + "'");
+
+                        processPendingCommand(command, account);
                     }
-                    localStore.removePendingCommand(command);
+                    localStore.removePendingCommands(batch.sources);
                     if (K9.DEBUG)
-                        Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'");
+                        Log.d(K9.LOG_TAG, "Done processing pending command '" + processingCommand + "'");
                 } catch (MessagingException me) {
                     if (me.isPermanentFailure()) {
                         addErrorMessage(account, null, me);
-                        Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
-                        localStore.removePendingCommand(processingCommand);
+                        Log.e(K9.LOG_TAG, "Failure of command '" + processingCommand + "' was permanent, removing command from queue");
+                        localStore.removePendingCommands(batch.sources);
                     } else {
                         throw me;
                     }
                 } finally {
-                    progress++;
+                    progress += batch.sources.size();
                     for (MessagingListener l : getListeners()) {
                         l.synchronizeMailboxProgress(account, null, progress, todo);
                         l.pendingCommandCompleted(account, commandTitle);
@@ -2140,6 +2428,29 @@ public class MessagingController implements Runnable {
         }
     }
 
+    private void processPendingCommand(PendingCommand command, Account account)
+            throws MessagingException {
+        if (PENDING_COMMAND_APPEND.equals(command.command)) {
+            processPendingAppend(command, account);
+        } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+            processPendingSetFlag(command, account);
+        } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
+            processPendingSetFlagOld(command, account);
+        } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
+            processPendingMarkAllAsRead(command, account);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
+            processPendingMoveOrCopyOld2(command, account);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
+            processPendingMoveOrCopy(command, account);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
+            processPendingMoveOrCopyOld(command, account);
+        } else if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
+            processPendingEmptyTrash(command, account);
+        } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
+            processPendingExpunge(command, account);
+        }
+    }
+
     /**
      * Process a pending append message command. This command uploads a local message to the
      * server, first checking to be sure that the server message is not newer than
@@ -2476,7 +2787,7 @@ public class MessagingController implements Runnable {
     }
 
     private void queueSetFlag(final Account account, final String folderName, final String newState, final String flag, final String[] uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, account, null, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -2582,7 +2893,7 @@ public class MessagingController implements Runnable {
         }
     }
     private void queueExpunge(final Account account, final String folderName) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, account, null, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -3099,7 +3410,7 @@ public class MessagingController implements Runnable {
 
     public void loadMessageForViewRemote(final Account account, final String folder,
                                          final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        put("loadMessageForViewRemote", account, listener, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -3116,6 +3427,7 @@ public class MessagingController implements Runnable {
             final boolean loadPartialFromSearch) {
         Folder remoteFolder = null;
         LocalFolder localFolder = null;
+        MessageViewCache.getInstance().remove(account.getUuid(), folder, uid);
         try {
             LocalStore localStore = account.getLocalStore();
             localFolder = localStore.getFolder(folder);
@@ -3256,17 +3568,18 @@ public class MessagingController implements Runnable {
                         return;
                     }
 
+                    MessageViewCache.Entry entry = getCachedMessageForView(message);
+                    if (entry != null) {
+                        message = entry.message;
+                    }
 
                     for (MessagingListener l : getListeners(listener)) {
                         l.loadMessageForViewHeadersAvailable(account, folder, uid, message);
                     }
 
-                    FetchProfile fp = new FetchProfile();
-                    fp.add(FetchProfile.Item.ENVELOPE);
-                    fp.add(FetchProfile.Item.BODY);
-                    localFolder.fetch(new Message[] {
-                                          message
-                                      }, fp, null);
+                    if (entry == null) {
+                        prepareMessageForView(localFolder, message);
+                    }
                     localFolder.close();
 
                     for (MessagingListener l : getListeners(listener)) {
@@ -3289,6 +3602,121 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Load the bodies of messages that are likely to be displayed next, so
+     * {@link #loadMessageForView(Account, String, String, MessagingListener)} can use them without
+     * going to the database.
+     *
+     * <p>
+     * Only messages that have already been downloaded are prepared.
+     * </p>
+     *
+     * @param references
+     *         The messages to prepare, e.g. the neighbours of the displayed message.
+     */
+    public void prefetchMessagesForView(final List<MessageReference> references) {
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                MessageViewCache cache = MessageViewCache.getInstance();
+                Preferences prefs = Preferences.getPreferences(mApplication);
+                for (MessageReference reference : references) {
+                    if (cache.get(reference) != null) {
+                        continue;
+                    }
+
+                    Account account = prefs.getAccount(reference.accountUuid);
+                    if (account == null) {
+                        continue;
+                    }
+
+                    LocalFolder localFolder = null;
+                    try {
+                        localFolder = account.getLocalStore().getFolder(reference.folderName);
+                        localFolder.open(Folder.OPEN_MODE_RW);
+
+                        LocalMessage message = localFolder.getMessage(reference.uid);
+                        if (message != null && message.getId() != 0 &&
+                                (message.isSet(Flag.X_DOWNLOADED_FULL) ||
+                                message.isSet(Flag.X_DOWNLOADED_PARTIAL))) {
+                            prepareMessageForView(localFolder, message);
+                        }
+                    } catch (Exception e) {
+                        Log.w(K9.LOG_TAG, "Unable to prefetch message " + reference.uid, e);
+                    } finally {
+                        closeFolder(localFolder);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the body of a message, extract the text to display and store the result in the
+     * {@link MessageViewCache}.
+     */
+    private void prepareMessageForView(LocalFolder localFolder, LocalMessage message)
+            throws MessagingException {
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.BODY);
+        localFolder.fetch(new Message[] { message }, fp, null);
+
+        String text = message.getTextForDisplay();
+        boolean hasExternalImages = (text != null && Utility.hasExternalImages(text));
+
+        MessageViewCache.getInstance().put(message.makeMessageReference(),
+                new MessageViewCache.Entry(message, text, hasExternalImages));
+    }
+
+    /**
+     * Get the prepared version of a message from the {@link MessageViewCache}.
+     *
+     * <p>
+     * The entry is dropped if the message has been replaced or its body has been downloaded since
+     * it was prepared. Otherwise the entry is replaced by one holding a copy of the cached message
+     * with the flags of {@code message}, which has just been read from the database. The cached
+     * message itself may still be displayed, so it must not be modified here.
+     * </p>
+     *
+     * @return The cached entry, or {@code null} if the message needs to be loaded.
+     */
+    private MessageViewCache.Entry getCachedMessageForView(LocalMessage message)
+            throws MessagingException {
+        MessageViewCache cache = MessageViewCache.getInstance();
+        MessageReference reference = message.makeMessageReference();
+        MessageViewCache.Entry entry = cache.get(reference);
+        if (entry == null) {
+            return null;
+        }
+
+        LocalMessage cachedMessage = entry.message;
+        if (cachedMessage.getId() != message.getId() ||
+                cachedMessage.isSet(Flag.X_DOWNLOADED_FULL) !=
+                        message.isSet(Flag.X_DOWNLOADED_FULL) ||
+                cachedMessage.isSet(Flag.X_DOWNLOADED_PARTIAL) !=
+                        message.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
+            cache.remove(reference);
+            return null;
+        }
+
+        // The copy shares the body, so the extracted text stays valid
+        LocalMessage copy = cachedMessage.clone();
+        for (Flag flag : copy.getFlags()) {
+            if (!message.isSet(flag)) {
+                copy.setFlagInternal(flag, false);
+            }
+        }
+        for (Flag flag : message.getFlags()) {
+            copy.setFlagInternal(flag, true);
+        }
+
+        MessageViewCache.Entry copyEntry =
+                new MessageViewCache.Entry(copy, entry.text, entry.hasExternalImages);
+        cache.put(reference, copyEntry);
+        return copyEntry;
+    }
+
     /**
      * Mark the provided message as read if not disabled by the account setting.
      *
@@ -3348,7 +3776,7 @@ public class MessagingController implements Runnable {
             l.loadAttachmentStarted(account, message, part, tag, true);
         }
 
-        put("loadAttachment", listener, new Runnable() {
+        put("loadAttachment", account, listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -3356,6 +3784,10 @@ public class MessagingController implements Runnable {
                 try {
                     LocalStore localStore = account.getLocalStore();
 
+                    // The message is modified below
+                    MessageViewCache.getInstance().remove(
+                            message.makeMessageReference());
+
                     List<Part> attachments = MimeUtility.collectAttachments(message);
                     for (Part attachment : attachments) {
                         attachment.setBody(null);
@@ -3446,7 +3878,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account,
                                     MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putBackground("sendPendingMessages", account, listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(mApplication)) {
@@ -3640,6 +4072,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessagesSynchronous(final Account account) {
         Folder localFolder = null;
+        Transport transport = null;
         Exception lastFailure = null;
         try {
             Store localStore = account.getLocalStore();
@@ -3670,7 +4103,8 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Scanning folder '" + account.getOutboxFolderName() + "' (" + ((LocalFolder)localFolder).getId() + ") for messages to send");
 
-            Transport transport = Transport.getInstance(account);
+            // The transport keeps its connection open, so all messages are sent using one session
+            transport = Transport.getInstance(account);
             for (Message message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
@@ -3794,6 +4228,9 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
 
         } finally {
+            if (transport != null) {
+                transport.close();
+            }
             if (lastFailure == null) {
                 cancelNotification(K9.SEND_FAILED_NOTIFICATION - account.getAccountNumber());
             }
@@ -3863,17 +4300,21 @@ public class MessagingController implements Runnable {
                 StatsColumns.FLAGGED_COUNT
         };
 
+        // Searches that only select folders (e.g. the Unified Inbox) can use the counters stored
+        // in the folders table instead of counting messages
+        ConditionsTreeNode conditions = search.getConditions();
+        String statsPath = SqlQueryBuilder.isFolderCondition(conditions) ? "/stats/folders" : "/stats";
+
         for (Account account : accounts) {
             StringBuilder query = new StringBuilder();
             List<String> queryArgs = new ArrayList<String>();
-            ConditionsTreeNode conditions = search.getConditions();
             SqlQueryBuilder.buildWhereClause(account, conditions, query, queryArgs);
 
             String selection = query.toString();
             String[] selectionArgs = queryArgs.toArray(EMPTY_STRING_ARRAY);
 
             Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
-                    "account/" + account.getUuid() + "/stats");
+                    "account/" + account.getUuid() + statsPath);
 
             // Query content provider to get the account stats
             Cursor cursor = cr.query(uri, projection, selection, selectionArgs, null);
@@ -3918,7 +4359,7 @@ public class MessagingController implements Runnable {
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
+        put("getFolderUnread:" + account.getDescription() + ":" + folderName, account, l, unreadRunnable);
     }
 
 
@@ -3957,7 +4398,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessages", null, new Runnable() {
+        putBackground("moveMessages", account, null, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -3975,7 +4416,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessagesInThread", null, new Runnable() {
+        putBackground("moveMessagesInThread", account, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3999,7 +4440,7 @@ public class MessagingController implements Runnable {
             final List<Message> messages, final String destFolder,
             final MessagingListener listener) {
 
-        putBackground("copyMessages", null, new Runnable() {
+        putBackground("copyMessages", account, null, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -4015,7 +4456,7 @@ public class MessagingController implements Runnable {
     public void copyMessagesInThread(final Account account, final String srcFolder,
             final List<Message> messages, final String destFolder) {
 
-        putBackground("copyMessagesInThread", null, new Runnable() {
+        putBackground("copyMessagesInThread", account, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4131,7 +4572,7 @@ public class MessagingController implements Runnable {
     }
 
     public void expunge(final Account account, final String folder, final MessagingListener listener) {
-        putBackground("expunge", null, new Runnable() {
+        putBackground("expunge", account, null, new Runnable() {
             @Override
             public void run() {
             	try {
@@ -4172,7 +4613,7 @@ public class MessagingController implements Runnable {
 
                 suppressMessages(account, messages);
 
-                putBackground("deleteThreads", null, new Runnable() {
+                putBackground("deleteThreads", account, null, new Runnable() {
                     @Override
                     public void run() {
                     	try {
@@ -4225,7 +4666,7 @@ public class MessagingController implements Runnable {
             final List<Message> accountMessages) {
                 suppressMessages(account, messages);
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putBackground("deleteMessages", account, null, new Runnable() {
                     @Override
                     public void run() {
                     	try {
@@ -4352,7 +4793,7 @@ public class MessagingController implements Runnable {
 
                 // When we empty trash, we need to actually synchronize the folder
                 // or local deletes will never get cleaned up
-                synchronizeFolder(account, remoteFolder, true, 0, null);
+                synchronizeFolder(account, remoteFolder, true, 0, null, null);
                 compact(account, null);
 
 
@@ -4363,7 +4804,7 @@ public class MessagingController implements Runnable {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putBackground("emptyTrash", account, listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -4510,7 +4951,7 @@ public class MessagingController implements Runnable {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        putBackground("checkMail", account, listener, new Runnable() {
             @Override
             public void run() {
 
@@ -4535,7 +4976,7 @@ public class MessagingController implements Runnable {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
                 }
-                putBackground("finalize sync", null, new Runnable() {
+                putBackground("finalize sync", null, null, new Runnable() {
                     @Override
                     public void run() {
 
@@ -4587,6 +5028,7 @@ public class MessagingController implements Runnable {
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
             Store localStore = account.getLocalStore();
+            List<LocalFolder> folders = new ArrayList<LocalFolder>();
             for (final Folder folder : localStore.getPersonalNamespaces(false)) {
                 folder.open(Folder.OPEN_MODE_RW);
                 folder.refresh(prefs);
@@ -4615,13 +5057,38 @@ public class MessagingController implements Runnable {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                folders.add((LocalFolder) folder);
+            }
+
+            Map<String, String> remoteStatuses = getRemoteStatuses(account, folders,
+                    ignoreLastCheckedTime, accountInterval);
+
+            boolean skippedFolder = false;
+            for (LocalFolder folder : folders) {
+                String remoteStatus = (remoteStatuses != null) ?
+                        remoteStatuses.get(folder.getName()) : null;
+                if (remoteStatus != null && remoteStatus.equals(folder.getRemoteStatus())) {
+                    if (K9.DEBUG)
+                        Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() +
+                              ", remote folder is unchanged (" + remoteStatus + ")");
+
+                    folder.setLastChecked(System.currentTimeMillis());
+                    skippedFolder = true;
+                    continue;
+                }
+                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval,
+                        remoteStatus, listener);
+            }
+
+            if (skippedFolder) {
+                // Skipped folders don't process pending commands as part of their sync
+                processPendingCommands(account);
             }
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+            putBackground("clear notification flag for " + account.getDescription(), account, null, new Runnable() {
                 @Override
                 public void run() {
                     if (K9.DEBUG)
@@ -4644,11 +5111,52 @@ public class MessagingController implements Runnable {
     }
 
 
+    /**
+     * Ask the remote store for the state of the folders that are due to be synchronized.
+     *
+     * <p>
+     * This takes a single round-trip on one connection for all folders, while synchronizing a
+     * folder needs to open it and fetch the list of messages. Folders whose state didn't change
+     * since their last successful sync can be skipped.
+     * </p>
+     *
+     * @return A map from folder name to remote state, or {@code null} if the state is unknown.
+     */
+    private Map<String, String> getRemoteStatuses(Account account, List<LocalFolder> folders,
+            boolean ignoreLastCheckedTime, long accountInterval) {
+        List<String> folderNames = new ArrayList<String>();
+        for (LocalFolder folder : folders) {
+            if (ignoreLastCheckedTime || folder.getLastChecked() <=
+                    (System.currentTimeMillis() - accountInterval)) {
+                folderNames.add(folder.getName());
+            }
+        }
+
+        if (folderNames.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return account.getRemoteStore().getFolderStatuses(folderNames);
+        } catch (Exception e) {
+            Log.w(K9.LOG_TAG, "Unable to get status of remote folders for " +
+                  account.getDescription() + ", synchronizing all folders", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param remoteStatus
+     *         The state of the remote folder as returned by
+     *         {@link Store#getFolderStatuses(java.util.Collection)}. It's stored after a
+     *         successful sync. May be {@code null}.
+     */
     private void synchronizeFolder(
         final Account account,
         final Folder folder,
         final boolean ignoreLastCheckedTime,
         final long accountInterval,
+        final String remoteStatus,
         final MessagingListener listener) {
 
 
@@ -4665,7 +5173,7 @@ public class MessagingController implements Runnable {
 
             return;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
+        putBackground("sync" + folder.getName(), account, null, new Runnable() {
             @Override
             public void run() {
                 LocalFolder tLocalFolder = null;
@@ -4686,7 +5194,11 @@ public class MessagingController implements Runnable {
                     }
                     notifyFetchingMail(account, folder);
                     try {
-                        synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
+                        boolean success = synchronizeMailboxSynchronous(account,
+                                folder.getName(), listener, null);
+                        if (success && remoteStatus != null) {
+                            tLocalFolder.setRemoteStatus(remoteStatus);
+                        }
                     } finally {
                         notifyFetchingMailCancel(account);
                     }
@@ -4708,7 +5220,7 @@ public class MessagingController implements Runnable {
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putBackground("compact:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4730,7 +5242,7 @@ public class MessagingController implements Runnable {
     }
 
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putBackground("clear:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4758,7 +5270,7 @@ public class MessagingController implements Runnable {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putBackground("recreate:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -5348,6 +5860,12 @@ public class MessagingController implements Runnable {
 
         boolean isForeground;
 
+        /**
+         * The lane (account UUID) this command is scheduled in, or {@code null} for commands that
+         * have to wait for all previously queued commands.
+         */
+        String lane;
+
         int sequence = sequencing.getAndIncrement();
 
         @Override
@@ -5502,7 +6020,7 @@ public class MessagingController implements Runnable {
 
         final CountDownLatch latch = new CountDownLatch(1);
         putBackground("Push messageArrived of account " + account.getDescription()
-        + ", folder " + remoteFolder.getName(), null, new Runnable() {
+        + ", folder " + remoteFolder.getName(), account, null, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
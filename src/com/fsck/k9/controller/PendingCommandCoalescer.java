@@ -0,0 +1,251 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fsck.k9.mail.store.LocalStore.PendingCommand;
+
+/**
+ * Merges adjacent compatible pending commands so they can be replayed with fewer round-trips.
+ *
+ * <p>
+ * Consecutive "set flag" commands for the same folder and flag are combined. If the same message
+ * is flagged and unflagged again only the last state is sent to the server. Consecutive
+ * move/copy commands with the same source folder, destination folder and type are combined into
+ * one command.
+ * </p>
+ * <p>
+ * Commands are never reordered across commands that can't be merged. This keeps the replay order
+ * that e.g. a flag change followed by moving the message relies on.
+ * </p>
+ * <p>
+ * Only flag changes cancel each other out. Move/copy commands are merged but never dropped, so
+ * moving messages from A to B and back again is still replayed as two moves. The second move
+ * refers to the messages by the UIDs they were given locally in B, and the local copies in A
+ * would be left without their server UIDs if both moves were skipped.
+ * </p>
+ */
+class PendingCommandCoalescer {
+    /**
+     * Maximum number of messages in one merged command. This keeps the command line a server
+     * has to accept reasonably short even if the UIDs can't be combined into ranges.
+     */
+    static final int MAX_MERGED_UIDS = 500;
+
+
+    /**
+     * The commands to execute in place of one or more queued commands.
+     */
+    static class Batch {
+        /**
+         * The commands to execute, in order.
+         */
+        final List<PendingCommand> commands;
+
+        /**
+         * The queued commands that have been replaced by {@link #commands}. They may only be
+         * removed from the queue once all of {@link #commands} have been executed.
+         */
+        final List<PendingCommand> sources;
+
+        Batch(List<PendingCommand> commands, List<PendingCommand> sources) {
+            this.commands = commands;
+            this.sources = sources;
+        }
+    }
+
+
+    private final String mSetFlagCommand;
+    private final String mMoveOrCopyCommand;
+
+
+    /**
+     * @param setFlagCommand
+     *         Name of the bulk "set flag" command. Arguments: folder, new state, flag, UIDs...
+     * @param moveOrCopyCommand
+     *         Name of the bulk move/copy command. Arguments: source folder, destination folder,
+     *         is copy, has new UIDs, UIDs... (followed by the new UIDs if "has new UIDs" is true)
+     */
+    PendingCommandCoalescer(String setFlagCommand, String moveOrCopyCommand) {
+        mSetFlagCommand = setFlagCommand;
+        mMoveOrCopyCommand = moveOrCopyCommand;
+    }
+
+    /**
+     * Group the queued commands into batches.
+     *
+     * @param commands
+     *         The pending commands in the order they were queued.
+     *
+     * @return The batches to execute, in order. Together they cover all of {@code commands}.
+     */
+    public List<Batch> coalesce(List<PendingCommand> commands) {
+        List<Batch> batches = new ArrayList<Batch>();
+
+        int i = 0;
+        while (i < commands.size()) {
+            PendingCommand first = commands.get(i);
+            int end = i + 1;
+
+            if (isSetFlag(first)) {
+                end = findEndOfGroup(commands, i);
+                batches.add(mergeSetFlag(commands.subList(i, end)));
+            } else if (isMoveOrCopy(first)) {
+                end = findEndOfGroup(commands, i);
+                batches.add(mergeMoveOrCopy(commands.subList(i, end)));
+            } else {
+                batches.add(new Batch(Collections.singletonList(first),
+                        Collections.singletonList(first)));
+            }
+
+            i = end;
+        }
+
+        return batches;
+    }
+
+    private int findEndOfGroup(List<PendingCommand> commands, int start) {
+        PendingCommand first = commands.get(start);
+        int uidCount = getUidCount(first);
+
+        int end = start + 1;
+        while (end < commands.size()) {
+            PendingCommand command = commands.get(end);
+            uidCount += getUidCount(command);
+            if (uidCount > MAX_MERGED_UIDS || !isCompatible(first, command)) {
+                break;
+            }
+            end++;
+        }
+
+        return end;
+    }
+
+    private boolean isCompatible(PendingCommand first, PendingCommand other) {
+        if (!first.command.equals(other.command) || !(isSetFlag(other) || isMoveOrCopy(other))) {
+            return false;
+        }
+
+        if (isSetFlag(first)) {
+            // Same folder and flag; the new state may differ
+            return first.arguments[0].equals(other.arguments[0]) &&
+                    first.arguments[2].equals(other.arguments[2]);
+        }
+
+        // Same source folder, destination folder, "is copy" and "has new UIDs"
+        for (int i = 0; i < 4; i++) {
+            if (!first.arguments[i].equals(other.arguments[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Batch mergeSetFlag(List<PendingCommand> group) {
+        if (group.size() == 1) {
+            return new Batch(Collections.singletonList(group.get(0)),
+                    Collections.singletonList(group.get(0)));
+        }
+
+        // The last state wins if the same message is flagged and unflagged again
+        Map<String, Boolean> states = new LinkedHashMap<String, Boolean>();
+        for (PendingCommand command : group) {
+            Boolean newState = Boolean.valueOf(command.arguments[1]);
+            for (int i = 3; i < command.arguments.length; i++) {
+                states.remove(command.arguments[i]);
+                states.put(command.arguments[i], newState);
+            }
+        }
+
+        List<String> setUids = new ArrayList<String>();
+        List<String> clearUids = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> entry : states.entrySet()) {
+            if (entry.getValue()) {
+                setUids.add(entry.getKey());
+            } else {
+                clearUids.add(entry.getKey());
+            }
+        }
+
+        String folder = group.get(0).arguments[0];
+        String flag = group.get(0).arguments[2];
+
+        List<PendingCommand> merged = new ArrayList<PendingCommand>(2);
+        if (!setUids.isEmpty()) {
+            merged.add(createCommand(mSetFlagCommand, setUids, folder, Boolean.toString(true), flag));
+        }
+        if (!clearUids.isEmpty()) {
+            merged.add(createCommand(mSetFlagCommand, clearUids, folder, Boolean.toString(false), flag));
+        }
+
+        return new Batch(merged, new ArrayList<PendingCommand>(group));
+    }
+
+    private Batch mergeMoveOrCopy(List<PendingCommand> group) {
+        if (group.size() == 1) {
+            return new Batch(Collections.singletonList(group.get(0)),
+                    Collections.singletonList(group.get(0)));
+        }
+
+        PendingCommand first = group.get(0);
+        boolean hasNewUids = Boolean.parseBoolean(first.arguments[3]);
+
+        // Maps the UID in the source folder to the UID in the local destination folder (if known)
+        Map<String, String> uids = new LinkedHashMap<String, String>();
+        for (PendingCommand command : group) {
+            if (hasNewUids) {
+                int offset = (command.arguments.length - 4) / 2;
+                for (int i = 4; i < 4 + offset; i++) {
+                    uids.put(command.arguments[i], command.arguments[i + offset]);
+                }
+            } else {
+                for (int i = 4; i < command.arguments.length; i++) {
+                    uids.put(command.arguments[i], null);
+                }
+            }
+        }
+
+        List<String> arguments = new ArrayList<String>(uids.keySet());
+        if (hasNewUids) {
+            arguments.addAll(uids.values());
+        }
+
+        PendingCommand merged = createCommand(mMoveOrCopyCommand, arguments,
+                Arrays.copyOf(first.arguments, 4));
+
+        return new Batch(Collections.singletonList(merged), new ArrayList<PendingCommand>(group));
+    }
+
+    private boolean isSetFlag(PendingCommand command) {
+        return mSetFlagCommand.equals(command.command) && command.arguments.length >= 3;
+    }
+
+    private boolean isMoveOrCopy(PendingCommand command) {
+        return mMoveOrCopyCommand.equals(command.command) && command.arguments.length >= 4;
+    }
+
+    private int getUidCount(PendingCommand command) {
+        if (isSetFlag(command)) {
+            return command.arguments.length - 3;
+        } else if (isMoveOrCopy(command)) {
+            int count = command.arguments.length - 4;
+            return Boolean.parseBoolean(command.arguments[3]) ? count / 2 : count;
+        }
+        return 0;
+    }
+
+    private static PendingCommand createCommand(String name, List<String> uids, String... prefix) {
+        PendingCommand command = new PendingCommand();
+        command.command = name;
+        command.arguments = new String[prefix.length + uids.size()];
+        System.arraycopy(prefix, 0, command.arguments, 0, prefix.length);
+        for (int i = 0; i < uids.size(); i++) {
+            command.arguments[prefix.length + i] = uids.get(i);
+        }
+        return command;
+    }
+}
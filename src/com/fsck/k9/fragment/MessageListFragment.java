@@ -34,7 +34,6 @@ import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.widget.CursorAdapter;
@@ -56,6 +55,8 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
@@ -80,7 +81,6 @@ import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.fragment.ConfirmationDialogFragment.ConfirmationDialogFragmentListener;
 import com.fsck.k9.helper.ContactPicture;
-import com.fsck.k9.helper.MergeCursorWithUniqueId;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.helper.StringUtils;
 import com.fsck.k9.helper.Utility;
@@ -133,25 +133,25 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         SpecialColumns.THREAD_COUNT,
     };
 
-    private static final int ID_COLUMN = 0;
-    private static final int UID_COLUMN = 1;
-    private static final int INTERNAL_DATE_COLUMN = 2;
-    private static final int SUBJECT_COLUMN = 3;
-    private static final int DATE_COLUMN = 4;
-    private static final int SENDER_LIST_COLUMN = 5;
-    private static final int TO_LIST_COLUMN = 6;
-    private static final int CC_LIST_COLUMN = 7;
-    private static final int READ_COLUMN = 8;
-    private static final int FLAGGED_COLUMN = 9;
-    private static final int ANSWERED_COLUMN = 10;
-    private static final int FORWARDED_COLUMN = 11;
-    private static final int ATTACHMENT_COUNT_COLUMN = 12;
-    private static final int FOLDER_ID_COLUMN = 13;
-    private static final int PREVIEW_COLUMN = 14;
-    private static final int THREAD_ROOT_COLUMN = 15;
-    private static final int ACCOUNT_UUID_COLUMN = 16;
-    private static final int FOLDER_NAME_COLUMN = 17;
-    private static final int THREAD_COUNT_COLUMN = 18;
+    static final int ID_COLUMN = 0;
+    static final int UID_COLUMN = 1;
+    static final int INTERNAL_DATE_COLUMN = 2;
+    static final int SUBJECT_COLUMN = 3;
+    static final int DATE_COLUMN = 4;
+    static final int SENDER_LIST_COLUMN = 5;
+    static final int TO_LIST_COLUMN = 6;
+    static final int CC_LIST_COLUMN = 7;
+    static final int READ_COLUMN = 8;
+    static final int FLAGGED_COLUMN = 9;
+    static final int ANSWERED_COLUMN = 10;
+    static final int FORWARDED_COLUMN = 11;
+    static final int ATTACHMENT_COUNT_COLUMN = 12;
+    static final int FOLDER_ID_COLUMN = 13;
+    static final int PREVIEW_COLUMN = 14;
+    static final int THREAD_ROOT_COLUMN = 15;
+    static final int ACCOUNT_UUID_COLUMN = 16;
+    static final int FOLDER_NAME_COLUMN = 17;
+    static final int THREAD_COUNT_COLUMN = 18;
 
     private static final String[] PROJECTION = Utility.copyOf(THREADED_PROJECTION,
             THREAD_COUNT_COLUMN);
@@ -336,6 +336,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private static final int ACTIVITY_CHOOSE_FOLDER_MOVE = 1;
     private static final int ACTIVITY_CHOOSE_FOLDER_COPY = 2;
 
+    /**
+     * The next page of messages is loaded when the user scrolls this close to the end of the list.
+     */
+    private static final int PAGE_PREFETCH_DISTANCE = 20;
+
     private static final String ARG_SEARCH = "searchObject";
     private static final String ARG_THREADED_LIST = "threadedList";
     private static final String ARG_IS_THREAD_DISPLAY = "isThreadedDisplay";
@@ -387,8 +392,20 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private String[] mAccountUuids;
     private int mUnreadMessageCount = 0;
 
-    private Cursor[] mCursors;
-    private boolean[] mCursorValid;
+    private MessageListPages mPages;
+
+    /**
+     * {@code true} while all messages are loaded at once because the user selected all of them.
+     * Otherwise a batch operation would only cover the pages loaded so far.
+     */
+    private boolean mLoadAllPages;
+
+    /**
+     * {@code true} if all messages should be selected once the list has been loaded completely.
+     */
+    private boolean mSelectAllPending;
+
+    private final MessageListItem.Cache mItemCache = new MessageListItem.Cache();
     private int mUniqueIdColumn;
 
     /**
@@ -852,11 +869,33 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         mLoaderJustInitialized = true;
         LoaderManager loaderManager = getLoaderManager();
         int len = mAccountUuids.length;
-        mCursors = new Cursor[len];
-        mCursorValid = new boolean[len];
+        mPages = new MessageListPages(len, ID_COLUMN);
+        resetPages();
+
+        // Pages loaded before a configuration change aren't restored. Start over with the first
+        // page, which has to be queried again if it was turned into a closed range.
+        boolean hadMorePages = false;
+        for (int page = 1; ; page++) {
+            boolean found = false;
+            for (int i = 0; i < len; i++) {
+                int loaderId = mPages.getLoaderId(i, page);
+                if (loaderManager.getLoader(loaderId) != null) {
+                    loaderManager.destroyLoader(loaderId);
+                    found = true;
+                }
+            }
+            if (!found) {
+                break;
+            }
+            hadMorePages = true;
+        }
+
         for (int i = 0; i < len; i++) {
-            loaderManager.initLoader(i, null, this);
-            mCursorValid[i] = false;
+            if (hadMorePages) {
+                loaderManager.restartLoader(mPages.getLoaderId(i, 0), null, this);
+            } else {
+                loaderManager.initLoader(mPages.getLoaderId(i, 0), null, this);
+            }
         }
     }
 
@@ -1115,15 +1154,60 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     private void restartLoader() {
-        if (mCursorValid == null) {
+        if (mPages == null) {
             return;
         }
 
-        // Refresh the message list
+        // Refresh the message list, starting over with the first page
         LoaderManager loaderManager = getLoaderManager();
+        for (int loaderId : resetPages()) {
+            loaderManager.destroyLoader(loaderId);
+        }
         for (int i = 0; i < mAccountUuids.length; i++) {
-            loaderManager.restartLoader(i, null, this);
-            mCursorValid[i] = false;
+            loaderManager.restartLoader(mPages.getLoaderId(i, 0), null, this);
+        }
+    }
+
+    /**
+     * Forget the pages loaded so far.
+     *
+     * <p>
+     * Paging requires a stable sort key, so messages are only loaded in pages when the list is
+     * sorted by date. Threaded lists are only paged when the precalculated thread summaries
+     * can be used, i.e. when a single folder is displayed. The query that always includes the
+     * active message isn't paged either, otherwise that message could show up on a page where it
+     * doesn't belong. Neither is the list while all messages are selected.
+     * </p>
+     *
+     * @return The IDs of the loaders that are no longer used.
+     */
+    private List<Integer> resetPages() {
+        boolean sortedByDate = (mSortType == SortType.SORT_DATE || mSortType == SortType.SORT_ARRIVAL);
+        boolean enabled = sortedByDate && !mIsThreadDisplay && mActiveMessage == null &&
+                !mLoadAllPages &&
+                (!mThreadedList || SqlQueryBuilder.isSingleFolderCondition(mSearch.getConditions()));
+
+        if (mSortType == SortType.SORT_ARRIVAL) {
+            return mPages.reset(enabled, INTERNAL_DATE_COLUMN, MessageColumns.INTERNAL_DATE,
+                    mSortAscending);
+        }
+        return mPages.reset(enabled, DATE_COLUMN, MessageColumns.DATE, mSortAscending);
+    }
+
+    /**
+     * Load the next page of messages if the user scrolled close to the end of the list.
+     *
+     * @param remainingRows
+     *         The number of rows below the last visible one.
+     */
+    private void loadNextPage(int remainingRows) {
+        if (mPages == null || remainingRows > PAGE_PREFETCH_DISTANCE || mPages.isComplete()) {
+            return;
+        }
+
+        LoaderManager loaderManager = getLoaderManager();
+        for (int loaderId : mPages.addPages()) {
+            loaderManager.restartLoader(loaderId, null, this);
         }
     }
 
@@ -1160,6 +1244,21 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             });
         }
 
+        mPullToRefreshView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // Nothing to do
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (totalItemCount > 0) {
+                    loadNextPage(totalItemCount - firstVisibleItem - visibleItemCount);
+                }
+            }
+        });
+
         // Disable pull-to-refresh until the message list has been loaded
         setPullToRefreshEnabled(false);
     }
@@ -1292,10 +1391,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         Toast toast = Toast.makeText(getActivity(), toastString, Toast.LENGTH_SHORT);
         toast.show();
 
-        LoaderManager loaderManager = getLoaderManager();
-        for (int i = 0, len = mAccountUuids.length; i < len; i++) {
-            loaderManager.restartLoader(i, null, this);
-        }
+        restartLoader();
     }
 
     public void onCycleSort() {
@@ -1900,47 +1996,22 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         public void bindView(View view, Context context, Cursor cursor) {
             Account account = getAccountFromCursor(cursor);
 
-            String fromList = cursor.getString(SENDER_LIST_COLUMN);
-            String toList = cursor.getString(TO_LIST_COLUMN);
-            String ccList = cursor.getString(CC_LIST_COLUMN);
-            Address[] fromAddrs = Address.unpack(fromList);
-            Address[] toAddrs = Address.unpack(toList);
-            Address[] ccAddrs = Address.unpack(ccList);
-
-            boolean fromMe = mMessageHelper.toMe(account, fromAddrs);
-            boolean toMe = mMessageHelper.toMe(account, toAddrs);
-            boolean ccMe = mMessageHelper.toMe(account, ccAddrs);
-
-            CharSequence displayName = mMessageHelper.getDisplayName(account, fromAddrs, toAddrs);
-            CharSequence displayDate = DateUtils.getRelativeTimeSpanString(context, cursor.getLong(DATE_COLUMN));
-
-            Address counterpartyAddress = null;
-            if (fromMe) {
-                if (toAddrs.length > 0) {
-                    counterpartyAddress = toAddrs[0];
-                } else if (ccAddrs.length > 0) {
-                    counterpartyAddress = ccAddrs[0];
-                }
-            } else if (fromAddrs.length > 0) {
-                counterpartyAddress = fromAddrs[0];
-            }
-
-            int threadCount = (mThreadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
-
-            String subject = cursor.getString(SUBJECT_COLUMN);
-            if (StringUtils.isNullOrEmpty(subject)) {
-                subject = getString(R.string.general_no_subject);
-            } else if (threadCount > 1) {
-                // If this is a thread, strip the RE/FW from the subject.  "Be like Outlook."
-                subject = Utility.stripSubject(subject);
-            }
+            MessageListItem item = MessageListItem.getItem(context, mItemCache, account, cursor,
+                    mThreadedList);
 
-            boolean read = (cursor.getInt(READ_COLUMN) == 1);
-            boolean flagged = (cursor.getInt(FLAGGED_COLUMN) == 1);
-            boolean answered = (cursor.getInt(ANSWERED_COLUMN) == 1);
-            boolean forwarded = (cursor.getInt(FORWARDED_COLUMN) == 1);
+            Address counterpartyAddress = item.counterpartyAddress;
+            CharSequence displayName = item.displayName;
+            CharSequence displayDate = item.displayDate;
+            int threadCount = item.threadCount;
+            String subject = item.subject;
+            boolean toMe = item.toMe;
+            boolean ccMe = item.ccMe;
+            boolean read = item.read;
+            boolean flagged = item.flagged;
+            boolean answered = item.answered;
+            boolean forwarded = item.forwarded;
 
-            boolean hasAttachments = (cursor.getInt(ATTACHMENT_COUNT_COLUMN) > 0);
+            boolean hasAttachments = (item.attachmentCount > 0);
 
             MessageViewHolder holder = (MessageViewHolder) view.getTag();
 
@@ -2217,6 +2288,8 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         } else {
             mSelected.clear();
             mSelectedCount = 0;
+            mLoadAllPages = false;
+            mSelectAllPending = false;
             if (mActionMode != null) {
                 mActionMode.finish();
                 mActionMode = null;
@@ -2992,6 +3065,15 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     public void selectAll() {
+        if (mPages != null && !mPages.isComplete()) {
+            // Load the remaining messages first, so everything the user sees as selected is
+            // included in the batch operation
+            mLoadAllPages = true;
+            mSelectAllPending = true;
+            restartLoader();
+            return;
+        }
+
         setSelectionState(true);
     }
 
@@ -3036,6 +3118,29 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         return true;
     }
 
+    /**
+     * Prepare the messages before and after the given one in the background, so they can be
+     * displayed right away when the user moves to them.
+     */
+    public void prefetchAdjacentMessages(MessageReference messageReference) {
+        int position = getPosition(messageReference);
+        if (position < 0) {
+            return;
+        }
+
+        List<MessageReference> references = new ArrayList<MessageReference>(2);
+        if (position < mAdapter.getCount() - 1) {
+            references.add(getReferenceForPosition(position + 1));
+        }
+        if (position > 0) {
+            references.add(getReferenceForPosition(position - 1));
+        }
+
+        if (!references.isEmpty()) {
+            mController.prefetchMessagesForView(references);
+        }
+    }
+
     public boolean isFirst(MessageReference messageReference) {
         return mAdapter.isEmpty() || messageReference.equals(getReferenceForPosition(0));
     }
@@ -3293,10 +3398,13 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String accountUuid = mAccountUuids[id];
+        int accountIndex = mPages.getAccount(id);
+        int page = mPages.getPage(id);
+        String accountUuid = mAccountUuids[accountIndex];
         Account account = mPreferences.getAccount(accountUuid);
 
         String threadId = getThreadId(mSearch);
+        boolean selectActive = mActiveMessage != null && mActiveMessage.accountUuid.equals(accountUuid);
 
         Uri uri;
         String[] projection;
@@ -3305,6 +3413,12 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/thread/" + threadId);
             projection = PROJECTION;
             needConditions = false;
+        } else if (mThreadedList && !selectActive &&
+                SqlQueryBuilder.isSingleFolderCondition(mSearch.getConditions())) {
+            // Use the precalculated thread summaries when a single folder is displayed
+            uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages/threaded/folders");
+            projection = THREADED_PROJECTION;
+            needConditions = true;
         } else if (mThreadedList) {
             uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages/threaded");
             projection = THREADED_PROJECTION;
@@ -3318,8 +3432,6 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         StringBuilder query = new StringBuilder();
         List<String> queryArgs = new ArrayList<String>();
         if (needConditions) {
-            boolean selectActive = mActiveMessage != null && mActiveMessage.accountUuid.equals(accountUuid);
-
             if (selectActive) {
                 query.append("(" + MessageColumns.UID + " = ? AND " + SpecialColumns.FOLDER_NAME + " = ?) OR (");
                 queryArgs.add(mActiveMessage.uid);
@@ -3333,13 +3445,28 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             }
         }
 
+        String pageCondition = mPages.getPageCondition(accountIndex, page, queryArgs);
+        if (pageCondition != null) {
+            if (query.length() > 0) {
+                query.insert(0, '(').append(") AND ");
+            }
+            query.append(pageCondition);
+        }
+
+        int limit = mPages.getLimit(accountIndex, page);
+        if (limit > 0) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                    .build();
+        }
+
         String selection = query.toString();
         String[] selectionArgs = queryArgs.toArray(new String[0]);
 
         String sortOrder = buildSortOrder();
 
-        return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
-                sortOrder);
+        return new MessageListLoader(getActivity(), uri, projection, selection, selectionArgs,
+                sortOrder, account, mItemCache, mThreadedList);
     }
 
     private String getThreadId(LocalSearch search) {
@@ -3412,16 +3539,14 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         setPullToRefreshEnabled(isPullToRefreshAllowed());
 
-        final int loaderId = loader.getId();
-        mCursors[loaderId] = data;
-        mCursorValid[loaderId] = true;
+        if (!mPages.setCursor(loader.getId(), data)) {
+            return;
+        }
 
-        Cursor cursor;
-        if (mCursors.length > 1) {
-            cursor = new MergeCursorWithUniqueId(mCursors, getComparator());
+        Cursor cursor = mPages.buildCursor(getComparator());
+        if (mAccountUuids.length > 1) {
             mUniqueIdColumn = cursor.getColumnIndex("_id");
         } else {
-            cursor = data;
             mUniqueIdColumn = ID_COLUMN;
         }
 
@@ -3448,6 +3573,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         resetActionMode();
         computeBatchDirection();
 
+        if (mSelectAllPending && isLoadFinished()) {
+            mSelectAllPending = false;
+            setSelectionState(true);
+        }
+
         if (isLoadFinished()) {
             if (mSavedListState != null) {
                 mHandler.restoreListPosition();
@@ -3458,17 +3588,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     public boolean isLoadFinished() {
-        if (mCursorValid == null) {
-            return false;
-        }
-
-        for (boolean cursorValid : mCursorValid) {
-            if (!cursorValid) {
-                return false;
-            }
-        }
-
-        return true;
+        return mPages != null && mPages.isLoadFinished();
     }
 
     /**
@@ -3556,8 +3676,14 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mSelected.clear();
-        mAdapter.swapCursor(null);
+        mPages.removeCursor(loader.getId());
+
+        // Keep displaying the pages of the loaders that are still around
+        Cursor cursor = mPages.buildCursor(getComparator());
+        if (cursor == null) {
+            mSelected.clear();
+        }
+        mAdapter.swapCursor(cursor);
     }
 
     private Account getAccountFromCursor(Cursor cursor) {
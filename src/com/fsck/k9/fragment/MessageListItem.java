@@ -0,0 +1,226 @@
+package com.fsck.k9.fragment;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.util.LruCache;
+import android.text.format.DateUtils;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Identity;
+import com.fsck.k9.K9;
+import org.thialfihar.android.apg.R;
+import com.fsck.k9.cache.ContactsCache;
+import com.fsck.k9.helper.MessageHelper;
+import com.fsck.k9.helper.StringUtils;
+import com.fsck.k9.helper.Utility;
+import com.fsck.k9.mail.Address;
+
+import static com.fsck.k9.fragment.MessageListFragment.ANSWERED_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.ATTACHMENT_COUNT_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.CC_LIST_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.DATE_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.FLAGGED_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.FORWARDED_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.ID_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.READ_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.SENDER_LIST_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.SUBJECT_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.THREAD_COUNT_COLUMN;
+import static com.fsck.k9.fragment.MessageListFragment.TO_LIST_COLUMN;
+
+/**
+ * The values displayed in a row of the message list.
+ *
+ * <p>
+ * Parsing the address lists, looking up contact names and formatting the date for every row
+ * that is bound causes a lot of work and garbage while the list is scrolled. Instances of this
+ * class are created by {@link MessageListLoader} in the background and kept in a {@link Cache},
+ * so binding a row only needs to assign the values to the views.
+ * </p>
+ *
+ * <p>
+ * An instance is only valid as long as the columns it was created from don't change, the
+ * contacts stay the same, the settings that affect how names are displayed and the identities
+ * of the account stay the same, and the day hasn't changed (the date is displayed relative to
+ * the current day). See {@link #isValid(Cursor, boolean, int, int, long)}.
+ * </p>
+ */
+class MessageListItem {
+    /**
+     * Remembers the {@link MessageListItem}s of the messages recently displayed, by account and
+     * message ID.
+     */
+    static class Cache {
+        private static final int MAX_ITEMS_PER_ACCOUNT = 1000;
+
+        private final Map<String, LruCache<Long, MessageListItem>> mItems =
+                new HashMap<String, LruCache<Long, MessageListItem>>();
+
+        public MessageListItem get(String accountUuid, long messageId) {
+            return getAccountItems(accountUuid).get(messageId);
+        }
+
+        public void put(String accountUuid, long messageId, MessageListItem item) {
+            getAccountItems(accountUuid).put(messageId, item);
+        }
+
+        private synchronized LruCache<Long, MessageListItem> getAccountItems(String accountUuid) {
+            LruCache<Long, MessageListItem> items = mItems.get(accountUuid);
+            if (items == null) {
+                items = new LruCache<Long, MessageListItem>(MAX_ITEMS_PER_ACCOUNT);
+                mItems.put(accountUuid, items);
+            }
+            return items;
+        }
+    }
+
+
+    /**
+     * Get the cached item for the current row of the cursor, or create a new one if there's no
+     * valid item in the cache.
+     *
+     * @param threadedList
+     *         {@code true} if the cursor contains the thread count column.
+     */
+    static MessageListItem getItem(Context context, Cache cache, Account account, Cursor cursor,
+            boolean threadedList) {
+        int contactsGeneration = ContactsCache.getInstance(context).getGeneration();
+        int displaySettings = getDisplaySettings(account);
+        long day = getCurrentDay();
+
+        String accountUuid = account.getUuid();
+        long messageId = cursor.getLong(ID_COLUMN);
+        MessageListItem item = cache.get(accountUuid, messageId);
+        if (item == null ||
+                !item.isValid(cursor, threadedList, contactsGeneration, displaySettings, day)) {
+            item = new MessageListItem(context, account, cursor, threadedList, contactsGeneration,
+                    displaySettings, day);
+            cache.put(accountUuid, messageId, item);
+        }
+
+        return item;
+    }
+
+    /**
+     * @return A value that changes when one of the settings used to create an item changes: how
+     *         correspondent names are displayed, and the email addresses of the identities, which
+     *         decide whether a message was sent by or to the user.
+     */
+    static int getDisplaySettings(Account account) {
+        int result = (K9.showContactName() ? 1 : 0) |
+                (K9.showCorrespondentNames() ? 2 : 0) |
+                (K9.changeContactNameColor() ? 4 : 0);
+        result = 31 * result + K9.getContactNameColor();
+
+        synchronized (account) {
+            for (Identity identity : account.getIdentities()) {
+                String email = identity.getEmail();
+                result = 31 * result + ((email == null) ? 0 : email.hashCode());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of days since the epoch in the local time zone.
+     */
+    static long getCurrentDay() {
+        long now = System.currentTimeMillis();
+        return (now + TimeZone.getDefault().getOffset(now)) / DateUtils.DAY_IN_MILLIS;
+    }
+
+
+    public final Address counterpartyAddress;
+    public final CharSequence displayName;
+    public final String subject;
+    public final CharSequence displayDate;
+    public final boolean toMe;
+    public final boolean ccMe;
+    public final boolean read;
+    public final boolean flagged;
+    public final boolean answered;
+    public final boolean forwarded;
+    public final int attachmentCount;
+    public final int threadCount;
+
+    private final long mDate;
+    private final int mContactsGeneration;
+    private final int mDisplaySettings;
+    private final long mDay;
+
+
+    private MessageListItem(Context context, Account account, Cursor cursor, boolean threadedList,
+            int contactsGeneration, int displaySettings, long day) {
+        MessageHelper messageHelper = MessageHelper.getInstance(context);
+
+        Address[] fromAddrs = Address.unpack(cursor.getString(SENDER_LIST_COLUMN));
+        Address[] toAddrs = Address.unpack(cursor.getString(TO_LIST_COLUMN));
+        Address[] ccAddrs = Address.unpack(cursor.getString(CC_LIST_COLUMN));
+
+        boolean fromMe = messageHelper.toMe(account, fromAddrs);
+        toMe = messageHelper.toMe(account, toAddrs);
+        ccMe = messageHelper.toMe(account, ccAddrs);
+
+        displayName = messageHelper.getDisplayName(account, fromAddrs, toAddrs);
+
+        if (fromMe) {
+            if (toAddrs.length > 0) {
+                counterpartyAddress = toAddrs[0];
+            } else if (ccAddrs.length > 0) {
+                counterpartyAddress = ccAddrs[0];
+            } else {
+                counterpartyAddress = null;
+            }
+        } else if (fromAddrs.length > 0) {
+            counterpartyAddress = fromAddrs[0];
+        } else {
+            counterpartyAddress = null;
+        }
+
+        threadCount = (threadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
+
+        String subject = cursor.getString(SUBJECT_COLUMN);
+        if (StringUtils.isNullOrEmpty(subject)) {
+            subject = context.getString(R.string.general_no_subject);
+        } else if (threadCount > 1) {
+            // If this is a thread, strip the RE/FW from the subject.  "Be like Outlook."
+            subject = Utility.stripSubject(subject);
+        }
+        this.subject = subject;
+
+        read = (cursor.getInt(READ_COLUMN) == 1);
+        flagged = (cursor.getInt(FLAGGED_COLUMN) == 1);
+        answered = (cursor.getInt(ANSWERED_COLUMN) == 1);
+        forwarded = (cursor.getInt(FORWARDED_COLUMN) == 1);
+        attachmentCount = cursor.getInt(ATTACHMENT_COUNT_COLUMN);
+
+        mDate = cursor.getLong(DATE_COLUMN);
+        displayDate = DateUtils.getRelativeTimeSpanString(context, mDate);
+
+        mContactsGeneration = contactsGeneration;
+        mDisplaySettings = displaySettings;
+        mDay = day;
+    }
+
+    /**
+     * Check whether this item can still be used to display the current row of the cursor.
+     */
+    boolean isValid(Cursor cursor, boolean threadedList, int contactsGeneration,
+            int displaySettings, long day) {
+        int threadCount = (threadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
+
+        return contactsGeneration == mContactsGeneration && displaySettings == mDisplaySettings &&
+                day == mDay &&
+                threadCount == this.threadCount &&
+                cursor.getLong(DATE_COLUMN) == mDate &&
+                (cursor.getInt(READ_COLUMN) == 1) == read &&
+                (cursor.getInt(FLAGGED_COLUMN) == 1) == flagged &&
+                (cursor.getInt(ANSWERED_COLUMN) == 1) == answered &&
+                (cursor.getInt(FORWARDED_COLUMN) == 1) == forwarded &&
+                cursor.getInt(ATTACHMENT_COUNT_COLUMN) == attachmentCount;
+    }
+}
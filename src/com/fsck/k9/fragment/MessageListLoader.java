@@ -0,0 +1,99 @@
+package com.fsck.k9.fragment;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.helper.Contacts;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+
+/**
+ * Loads the rows of a {@link MessageListFragment}.
+ *
+ * <p>
+ * If contact names are displayed, the contacts of the senders and recipients are looked up in
+ * the background with a few queries per page. Otherwise the contacts provider would be queried
+ * for every address when the rows are bound.
+ * </p>
+ *
+ * <p>
+ * The {@link MessageListItem}s for the first rows are created in the background, too. The
+ * items of the rows further down are created when they are scrolled into view.
+ * </p>
+ */
+class MessageListLoader extends CursorLoader {
+    /**
+     * The number of rows to create {@link MessageListItem}s for. That's more than fit on the
+     * screen, and far less than the cache holds, so the items of long lists don't push out the
+     * items of the rows at the top.
+     */
+    private static final int MAX_PRECOMPUTED_ITEMS = MessageListPages.PAGE_SIZE;
+
+    private final Contacts mContacts;
+    private final Account mAccount;
+    private final MessageListItem.Cache mItemCache;
+    private final boolean mThreadedList;
+
+
+    MessageListLoader(Context context, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, Account account,
+            MessageListItem.Cache itemCache, boolean threadedList) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        mContacts = Contacts.getInstance(context);
+        mAccount = account;
+        mItemCache = itemCache;
+        mThreadedList = threadedList;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = super.loadInBackground();
+
+        if (cursor != null && K9.showContactName() && K9.showCorrespondentNames()) {
+            preloadContacts(cursor);
+        }
+
+        if (cursor != null) {
+            createListItems(cursor);
+        }
+
+        return cursor;
+    }
+
+    private void createListItems(Cursor cursor) {
+        Context context = getContext();
+        int count = Math.min(cursor.getCount(), MAX_PRECOMPUTED_ITEMS);
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            MessageListItem.getItem(context, mItemCache, mAccount, cursor, mThreadedList);
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    private void preloadContacts(Cursor cursor) {
+        int senderListColumn = cursor.getColumnIndex(MessageColumns.SENDER_LIST);
+        int toListColumn = cursor.getColumnIndex(MessageColumns.TO_LIST);
+        if (senderListColumn == -1 || toListColumn == -1) {
+            return;
+        }
+
+        Set<String> addresses = new HashSet<String>();
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            for (Address address : Address.unpack(cursor.getString(senderListColumn))) {
+                addresses.add(address.getAddress());
+            }
+            for (Address address : Address.unpack(cursor.getString(toListColumn))) {
+                addresses.add(address.getAddress());
+            }
+        }
+        cursor.moveToPosition(-1);
+
+        mContacts.preloadContacts(addresses);
+    }
+}
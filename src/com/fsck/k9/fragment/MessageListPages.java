@@ -0,0 +1,536 @@
+package com.fsck.k9.fragment;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.fsck.k9.helper.MergeCursor;
+import com.fsck.k9.helper.MergeCursorWithUniqueId;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+
+/**
+ * Keeps track of the pages of messages loaded for each account displayed by a
+ * {@link MessageListFragment}.
+ *
+ * <p>
+ * Loading all messages of a large folder (or of the unified inbox) before the first row can be
+ * displayed is slow and keeps a lot of memory around. When the list is sorted by date the
+ * messages are loaded in pages instead. The last page of an account is queried with a
+ * {@code LIMIT} of {@link #PAGE_SIZE}. When the user scrolls towards the end of the list that page
+ * is turned into a closed range ending at its last row, and a new page starting after that row
+ * is loaded. Pages are continued using the sort key {@code (date, id)} instead of an
+ * {@code OFFSET}, so SQLite doesn't have to skip all rows of the previous pages, and the pages
+ * still cover every message when messages are added or removed while the list is displayed.
+ * </p>
+ *
+ * <p>
+ * Every page has its own loader. The loader ID is {@code page * accountCount + account}, so the
+ * first page of each account uses the same loader ID as before paging was introduced.
+ * </p>
+ *
+ * <p>
+ * When multiple accounts are displayed, the merged list is cut off at the last row every
+ * account has loaded. Otherwise messages of an account that has more rows loaded could be
+ * displayed before messages of another account that haven't been loaded yet.
+ * </p>
+ */
+class MessageListPages {
+    /**
+     * The maximum number of messages loaded per page and account.
+     */
+    static final int PAGE_SIZE = 100;
+
+
+    /**
+     * The sort key of a row.
+     */
+    private static class Key {
+        public final long value;
+        public final long id;
+
+        Key(long value, long id) {
+            this.value = value;
+            this.id = id;
+        }
+    }
+
+    private static class AccountPages {
+        public final List<Cursor> cursors = new ArrayList<Cursor>();
+        public final List<Boolean> valid = new ArrayList<Boolean>();
+
+        /**
+         * The key of the last row of each page, or {@code null} for empty pages.
+         *
+         * <p>
+         * The keys are read when a cursor is stored. The cursors must not be moved later on,
+         * because {@link MergeCursor} expects to be the only one moving them.
+         * </p>
+         */
+        public final List<Key> lastKeys = new ArrayList<Key>();
+
+        /**
+         * The key of the last row of each page except the last one.
+         */
+        public final List<Key> boundaries = new ArrayList<Key>();
+
+        /**
+         * {@code true} if the last page contains the last message of this account.
+         */
+        public boolean complete;
+
+        /**
+         * Start over with one page. The cursor of the first page is kept until its loader
+         * delivers new results, so the list doesn't go blank in the meantime.
+         */
+        public void reset() {
+            Cursor firstCursor = cursors.isEmpty() ? null : cursors.get(0);
+            Key firstLastKey = lastKeys.isEmpty() ? null : lastKeys.get(0);
+
+            cursors.clear();
+            valid.clear();
+            lastKeys.clear();
+            boundaries.clear();
+            addPage();
+            cursors.set(0, firstCursor);
+            lastKeys.set(0, firstLastKey);
+            complete = false;
+        }
+
+        public void addPage() {
+            cursors.add(null);
+            valid.add(false);
+            lastKeys.add(null);
+        }
+
+        public int getPageCount() {
+            return cursors.size();
+        }
+
+        public boolean isLoadFinished() {
+            return !valid.contains(false);
+        }
+
+        /**
+         * @return The key of the last row loaded for this account, or {@code null} if no rows
+         *         have been loaded yet.
+         */
+        public Key getLastKey() {
+            for (int i = lastKeys.size() - 1; i >= 0; i--) {
+                Key key = lastKeys.get(i);
+                if (key != null) {
+                    return key;
+                }
+            }
+            return null;
+        }
+    }
+
+
+    private final AccountPages[] mAccounts;
+    private final int mIdColumn;
+    private boolean mEnabled;
+    private int mKeyColumn;
+    private String mKeyColumnName;
+    private boolean mAscending;
+
+
+    /**
+     * @param accountCount
+     *         The number of accounts displayed in the message list.
+     * @param idColumn
+     *         The index of the {@link MessageColumns#ID} column in the cursors.
+     */
+    MessageListPages(int accountCount, int idColumn) {
+        mAccounts = new AccountPages[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            mAccounts[i] = new AccountPages();
+            mAccounts[i].reset();
+        }
+        mIdColumn = idColumn;
+    }
+
+    /**
+     * Forget all pages and start over with one page per account.
+     *
+     * @param enabled
+     *         {@code false} if all messages of an account should be loaded at once. This is the
+     *         case when the list isn't sorted by a date column.
+     * @param keyColumn
+     *         The index of the date column the list is sorted by.
+     * @param keyColumnName
+     *         The name of the date column the list is sorted by.
+     * @param ascending
+     *         {@code true} if the list is sorted by ascending date.
+     *
+     * @return The IDs of the loaders that are no longer used.
+     */
+    List<Integer> reset(boolean enabled, int keyColumn, String keyColumnName, boolean ascending) {
+        List<Integer> unusedLoaderIds = new ArrayList<Integer>();
+        for (int account = 0; account < mAccounts.length; account++) {
+            for (int page = 1, end = mAccounts[account].getPageCount(); page < end; page++) {
+                unusedLoaderIds.add(getLoaderId(account, page));
+            }
+            mAccounts[account].reset();
+        }
+
+        mEnabled = enabled;
+        mKeyColumn = keyColumn;
+        mKeyColumnName = keyColumnName;
+        mAscending = ascending;
+
+        return unusedLoaderIds;
+    }
+
+    int getLoaderId(int account, int page) {
+        return page * mAccounts.length + account;
+    }
+
+    int getAccount(int loaderId) {
+        return loaderId % mAccounts.length;
+    }
+
+    int getPage(int loaderId) {
+        return loaderId / mAccounts.length;
+    }
+
+    /**
+     * Get the condition restricting a query to the rows of a page.
+     *
+     * @param account
+     *         The index of the account.
+     * @param page
+     *         The page number.
+     * @param selectionArgs
+     *         The arguments for the placeholders of the condition will be added to this list.
+     *
+     * @return The condition, or {@code null} if all rows should be included.
+     */
+    String getPageCondition(int account, int page, List<String> selectionArgs) {
+        if (!mEnabled) {
+            return null;
+        }
+
+        AccountPages pages = mAccounts[account];
+        StringBuilder condition = new StringBuilder();
+        if (page > 0) {
+            // Rows after the last row of the previous page
+            Key start = pages.boundaries.get(page - 1);
+            appendKeyCondition(condition, selectionArgs, start, mAscending ? ">" : "<", "<");
+        }
+        if (page < pages.boundaries.size()) {
+            // Rows up to and including the last row of this page
+            if (condition.length() > 0) {
+                condition.append(" AND ");
+            }
+            Key end = pages.boundaries.get(page);
+            appendKeyCondition(condition, selectionArgs, end, mAscending ? "<" : ">", ">=");
+        }
+
+        return (condition.length() > 0) ? condition.toString() : null;
+    }
+
+    private void appendKeyCondition(StringBuilder condition, List<String> selectionArgs, Key key,
+            String valueOperator, String idOperator) {
+        condition.append("(");
+        condition.append(mKeyColumnName).append(" ").append(valueOperator).append(" ? OR (");
+        condition.append(mKeyColumnName).append(" = ? AND ");
+        condition.append(MessageColumns.ID).append(" ").append(idOperator).append(" ?))");
+
+        String value = Long.toString(key.value);
+        selectionArgs.add(value);
+        selectionArgs.add(value);
+        selectionArgs.add(Long.toString(key.id));
+    }
+
+    /**
+     * @return The maximum number of rows to load for the given page, or {@code 0} if there's no
+     *         limit.
+     */
+    int getLimit(int account, int page) {
+        return (mEnabled && page == mAccounts[account].getPageCount() - 1) ? PAGE_SIZE : 0;
+    }
+
+    /**
+     * Store the result of a loader.
+     *
+     * @return {@code false} if the loader belongs to a page that is no longer used.
+     */
+    boolean setCursor(int loaderId, Cursor cursor) {
+        AccountPages pages = mAccounts[getAccount(loaderId)];
+        int page = getPage(loaderId);
+        if (page >= pages.getPageCount()) {
+            return false;
+        }
+
+        Key lastKey = null;
+        if (cursor.moveToLast()) {
+            lastKey = new Key(cursor.getLong(mKeyColumn), cursor.getLong(mIdColumn));
+        }
+
+        pages.cursors.set(page, cursor);
+        pages.valid.set(page, true);
+        pages.lastKeys.set(page, lastKey);
+        if (page == pages.getPageCount() - 1) {
+            pages.complete = !mEnabled || cursor.getCount() < PAGE_SIZE;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the result of a loader that has been reset.
+     */
+    void removeCursor(int loaderId) {
+        AccountPages pages = mAccounts[getAccount(loaderId)];
+        int page = getPage(loaderId);
+        if (page < pages.getPageCount()) {
+            pages.cursors.set(page, null);
+            pages.valid.set(page, false);
+            pages.lastKeys.set(page, null);
+        }
+    }
+
+    /**
+     * @return {@code true} if all pages of all accounts have been loaded.
+     */
+    boolean isLoadFinished() {
+        for (AccountPages pages : mAccounts) {
+            if (!pages.isLoadFinished()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if all messages of all accounts have been loaded.
+     */
+    boolean isComplete() {
+        for (AccountPages pages : mAccounts) {
+            if (!pages.complete) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a page to the accounts that limit the number of rows that can be displayed.
+     *
+     * <p>
+     * The current last page of those accounts is turned into a closed range, so its loader has
+     * to be restarted, too.
+     * </p>
+     *
+     * @return The IDs of the loaders that need to be (re)started.
+     */
+    List<Integer> addPages() {
+        List<Integer> loaderIds = new ArrayList<Integer>();
+        if (!mEnabled || !isLoadFinished()) {
+            return loaderIds;
+        }
+
+        Key cutOff = getCutOff();
+        for (int account = 0; account < mAccounts.length; account++) {
+            AccountPages pages = mAccounts[account];
+            if (pages.complete) {
+                continue;
+            }
+
+            Key lastKey = pages.getLastKey();
+            if (lastKey == null || compare(lastKey, cutOff) > 0) {
+                continue;
+            }
+
+            int lastPage = pages.getPageCount() - 1;
+            pages.boundaries.add(lastKey);
+            pages.valid.set(lastPage, false);
+            pages.addPage();
+
+            loaderIds.add(getLoaderId(account, lastPage));
+            loaderIds.add(getLoaderId(account, lastPage + 1));
+        }
+
+        return loaderIds;
+    }
+
+    /**
+     * Combine the loaded pages of all accounts.
+     *
+     * @return The cursor to display, or {@code null} if nothing has been loaded.
+     */
+    Cursor buildCursor(Comparator<Cursor> comparator) {
+        Cursor[] accountCursors = new Cursor[mAccounts.length];
+        boolean empty = true;
+        for (int i = 0; i < mAccounts.length; i++) {
+            accountCursors[i] = buildAccountCursor(mAccounts[i], comparator);
+            empty &= (accountCursors[i] == null);
+        }
+
+        if (empty) {
+            return null;
+        } else if (mAccounts.length == 1) {
+            return accountCursors[0];
+        }
+
+        Cursor cursor = new MergeCursorWithUniqueId(accountCursors, comparator);
+
+        Key cutOff = getCutOff();
+        if (cutOff == null) {
+            return cursor;
+        }
+
+        int count = 0;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            Key key = new Key(cursor.getLong(mKeyColumn), cursor.getLong(mIdColumn));
+            if (compare(key, cutOff) > 0) {
+                break;
+            }
+            count++;
+        }
+
+        return (count < cursor.getCount()) ? new TruncatedCursor(cursor, count) : cursor;
+    }
+
+    private Cursor buildAccountCursor(AccountPages pages, Comparator<Cursor> comparator) {
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (Cursor cursor : pages.cursors) {
+            if (cursor != null) {
+                cursors.add(cursor);
+            }
+        }
+
+        if (cursors.isEmpty()) {
+            return null;
+        } else if (cursors.size() == 1) {
+            return cursors.get(0);
+        }
+
+        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]), comparator);
+    }
+
+    /**
+     * @return The earliest key (in display order) of the last rows loaded for the accounts that
+     *         have more messages, or {@code null} if all messages have been loaded.
+     */
+    private Key getCutOff() {
+        if (!mEnabled) {
+            return null;
+        }
+
+        Key cutOff = null;
+        for (AccountPages pages : mAccounts) {
+            if (pages.complete) {
+                continue;
+            }
+
+            Key lastKey = pages.getLastKey();
+            if (lastKey != null && (cutOff == null || compare(lastKey, cutOff) < 0)) {
+                cutOff = lastKey;
+            }
+        }
+
+        return cutOff;
+    }
+
+    /**
+     * Compare two keys in the order the rows are displayed, i.e. by date in the configured
+     * direction, then by descending ID. This has to match the sort order used in the queries.
+     */
+    private int compare(Key key1, Key key2) {
+        if (key1.value != key2.value) {
+            return ((key1.value < key2.value) == mAscending) ? -1 : 1;
+        }
+        if (key1.id != key2.id) {
+            return (key1.id > key2.id) ? -1 : 1;
+        }
+        return 0;
+    }
+
+
+    /**
+     * Only exposes the first {@code count} rows of the wrapped cursor.
+     */
+    static class TruncatedCursor extends CursorWrapper {
+        private final int mCount;
+        private int mPosition = -1;
+
+
+        TruncatedCursor(Cursor cursor, int count) {
+            super(cursor);
+            mCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            if (position >= mCount) {
+                mPosition = mCount;
+                return false;
+            }
+            if (position < 0) {
+                mPosition = -1;
+                return false;
+            }
+
+            mPosition = position;
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(mPosition + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(mCount - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(mPosition + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(mPosition - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return mCount != 0 && mPosition == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return mCount != 0 && mPosition == mCount - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return mCount == 0 || mPosition == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return mCount == 0 || mPosition == mCount;
+        }
+    }
+}
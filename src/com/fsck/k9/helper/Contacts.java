@@ -11,9 +11,15 @@ import android.provider.ContactsContract.DataUsageFeedback;
 import android.util.Log;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.cache.ContactsCache;
 import com.fsck.k9.mail.Address;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * Helper class to access the contacts stored on the device.
@@ -60,6 +66,12 @@ public class Contacts {
      */
     protected static final int CONTACT_ID_INDEX = 3;
 
+    /**
+     * The maximum number of email addresses looked up with one query by
+     * {@link #preloadContacts(Collection)}.
+     */
+    private static final int PRELOAD_BATCH_SIZE = 100;
+
 
     /**
      * Get instance of the Contacts class.
@@ -78,6 +90,7 @@ public class Contacts {
     protected Context mContext;
     protected ContentResolver mContentResolver;
     protected Boolean mHasContactPicker;
+    protected ContactsCache mCache;
 
     /**
      * Constructor
@@ -87,6 +100,7 @@ public class Contacts {
     protected Contacts(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
+        mCache = ContactsCache.getInstance(context);
     }
 
     /**
@@ -140,18 +154,7 @@ public class Contacts {
      *         <tt>false</tt>, otherwise.
      */
     public boolean isInContacts(final String emailAddress) {
-        boolean result = false;
-
-        final Cursor c = getContactByAddress(emailAddress);
-
-        if (c != null) {
-            if (c.getCount() > 0) {
-                result = true;
-            }
-            c.close();
-        }
-
-        return result;
+        return getCacheEntry(emailAddress).isContact();
     }
 
     /**
@@ -198,18 +201,109 @@ public class Contacts {
             return null;
         }
 
-        final Cursor c = getContactByAddress(address);
+        return getCacheEntry(address).name;
+    }
+
+    /**
+     * Look up the contacts of multiple email addresses at once.
+     *
+     * <p>
+     * This uses one query per {@value #PRELOAD_BATCH_SIZE} addresses instead of one query per
+     * address, so it should be called before displaying a list of messages. Addresses that are
+     * already cached are skipped.
+     * </p>
+     *
+     * @param addresses
+     *         The email addresses to look up.
+     */
+    public void preloadContacts(Collection<String> addresses) {
+        Set<String> pending = new HashSet<String>();
+        for (String address : addresses) {
+            if (address != null && mCache.get(address) == null) {
+                pending.add(address.toLowerCase(Locale.US));
+            }
+        }
+
+        Iterator<String> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Set<String> batch = new HashSet<String>();
+            while (iterator.hasNext() && batch.size() < PRELOAD_BATCH_SIZE) {
+                batch.add(iterator.next());
+            }
+            preloadBatch(batch);
+        }
+    }
+
+    private void preloadBatch(Set<String> addresses) {
+        int generation = mCache.getGeneration();
+
+        StringBuilder selection = new StringBuilder();
+        selection.append("lower(" + ContactsContract.CommonDataKinds.Email.DATA + ") IN (");
+        for (int i = 0, len = addresses.size(); i < len; i++) {
+            selection.append((i == 0) ? "?" : ",?");
+        }
+        selection.append(")");
+
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
+                    PROJECTION, selection.toString(), addresses.toArray(new String[0]),
+                    SORT_ORDER);
+            if (c == null) {
+                return;
+            }
+
+            // Like the lookup of a single address, use the first matching contact
+            Set<String> found = new HashSet<String>();
+            while (c.moveToNext()) {
+                String address = getEmail(c);
+                if (address != null && found.add(address.toLowerCase(Locale.US))) {
+                    ContactsCache.Entry entry =
+                            new ContactsCache.Entry(getName(c), c.getLong(CONTACT_ID_INDEX));
+                    mCache.put(address, entry, generation);
+                }
+            }
+
+            for (String address : addresses) {
+                if (!found.contains(address)) {
+                    mCache.put(address, new ContactsCache.Entry(null, ContactsCache.NO_CONTACT),
+                            generation);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(K9.LOG_TAG, "Couldn't preload contacts", e);
+        } finally {
+            Utility.closeQuietly(c);
+        }
+    }
 
-        String name = null;
+    /**
+     * Get the cached contact information for an email address. The contacts provider is queried
+     * if the address isn't cached yet.
+     */
+    private ContactsCache.Entry getCacheEntry(String address) {
+        if (address == null) {
+            return new ContactsCache.Entry(null, ContactsCache.NO_CONTACT);
+        }
+
+        ContactsCache.Entry entry = mCache.get(address);
+        if (entry != null) {
+            return entry;
+        }
+
+        int generation = mCache.getGeneration();
+        entry = new ContactsCache.Entry(null, ContactsCache.NO_CONTACT);
+
+        final Cursor c = getContactByAddress(address);
         if (c != null) {
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                name = getName(c);
+            if (c.moveToFirst()) {
+                entry = new ContactsCache.Entry(getName(c), c.getLong(CONTACT_ID_INDEX));
             }
             c.close();
         }
 
-        return name;
+        mCache.put(address, entry, generation);
+        return entry;
     }
 
     /**
@@ -242,17 +336,11 @@ public class Contacts {
      *        contacts to be marked as contacted.
      */
     public void markAsContacted(final Address[] addresses) {
-        //TODO: Optimize! Potentially a lot of database queries
         for (final Address address : addresses) {
-            final Cursor c = getContactByAddress(address.getAddress());
+            final ContactsCache.Entry entry = getCacheEntry(address.getAddress());
 
-            if (c != null) {
-                if (c.getCount() > 0) {
-                    c.moveToFirst();
-                    final long personId = c.getLong(CONTACT_ID_INDEX);
-                    ContactsContract.Contacts.markAsContacted(mContentResolver, personId);
-                }
-                c.close();
+            if (entry.isContact()) {
+                ContactsContract.Contacts.markAsContacted(mContentResolver, entry.contactId);
             }
         }
     }
@@ -333,47 +421,47 @@ public class Contacts {
      *         no such contact could be found or the contact doesn't have a picture.
      */
     public Uri getPhotoUri(String address) {
-        Long contactId;
         try {
-            final Cursor c = getContactByAddress(address);
-            if (c == null) {
-                return null;
+            final ContactsCache.Entry entry = getCacheEntry(address);
+            if (entry.photoLoaded || !entry.isContact()) {
+                return entry.photoUri;
             }
 
-            try {
-                if (!c.moveToFirst()) {
-                    return null;
-                }
-
-                contactId = c.getLong(CONTACT_ID_INDEX);
-            } finally {
-                c.close();
-            }
-
-            Cursor cur = mContentResolver.query(
-                    ContactsContract.Data.CONTENT_URI,
-                    null,
-                    ContactsContract.Data.CONTACT_ID + "=" + contactId + " AND "
-                            + ContactsContract.Data.MIMETYPE + "='"
-                            + ContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE + "'", null,
-                    null);
-            if (cur == null) {
-                return null;
-            }
-            if (!cur.moveToFirst()) {
-                cur.close();
-                return null; // no photo
-            }
-            // Ok, they have a photo
-            cur.close();
-            Uri person = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
-            return Uri.withAppendedPath(person, ContactsContract.Contacts.Photo.CONTENT_DIRECTORY);
+            int generation = mCache.getGeneration();
+            Uri photoUri = getPhotoUri(entry.contactId);
+            mCache.put(address, entry.withPhotoUri(photoUri), generation);
+            return photoUri;
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "Couldn't fetch photo for contact with email " + address, e);
             return null;
         }
     }
 
+    /**
+     * @return URI to the picture of the given contact. {@code null} if the contact doesn't have a
+     *         picture.
+     */
+    private Uri getPhotoUri(long contactId) {
+        Cursor cur = mContentResolver.query(
+                ContactsContract.Data.CONTENT_URI,
+                null,
+                ContactsContract.Data.CONTACT_ID + "=" + contactId + " AND "
+                        + ContactsContract.Data.MIMETYPE + "='"
+                        + ContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE + "'", null,
+                null);
+        if (cur == null) {
+            return null;
+        }
+        if (!cur.moveToFirst()) {
+            cur.close();
+            return null; // no photo
+        }
+        // Ok, they have a photo
+        cur.close();
+        Uri person = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
+        return Uri.withAppendedPath(person, ContactsContract.Contacts.Photo.CONTENT_DIRECTORY);
+    }
+
     /**
      * Does the device actually have a Contacts application suitable for
      * picking a contact. As hard as it is to believe, some vendors ship
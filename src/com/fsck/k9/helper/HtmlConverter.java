@@ -420,6 +420,20 @@ public class HtmlConverter {
 
         }
         StringBuilder buff = new StringBuilder(html.length() + 512);
+        appendEmoji2Img(buff, html);
+        return buff.toString();
+    }
+
+    /**
+     * Append {@code html} to {@code buff}, replacing emoji with images like
+     * {@link #convertEmoji2Img(String)} does, but without creating another copy of the text.
+     */
+    public static void appendEmoji2Img(StringBuilder buff, String html) {
+        if (!hasEmoji(html)) {
+            buff.append(html);
+            return;
+        }
+
         for (int i = 0; i < html.length(); i = html.offsetByCodePoints(i, 1)) {
             int codePoint = html.codePointAt(i);
             String emoji = getEmojiForCodePoint(codePoint);
@@ -429,7 +443,6 @@ public class HtmlConverter {
                 buff.appendCodePoint(codePoint);
 
         }
-        return buff.toString();
     }
 
     private static String getEmojiForCodePoint(int codePoint) {
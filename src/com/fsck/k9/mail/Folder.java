@@ -187,6 +187,49 @@ public abstract class Folder {
         return true;
     }
 
+    /**
+     * @return The UIDVALIDITY value of the opened folder, or {@code -1} if the store doesn't
+     *         support it.
+     */
+    public long getUidValidity() {
+        return -1;
+    }
+
+    /**
+     * @return The highest mod-sequence (RFC 4551) of the opened folder, or {@code -1} if the store
+     *         doesn't keep mod-sequences for this folder. Only if this returns a positive value
+     *         {@link #getChangedMessages(String[], long, List)} may be used.
+     */
+    public long getHighestModSeq() {
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if {@link #getChangedMessages(String[], long, List)} is able to report
+     *         messages that were removed from the folder.
+     */
+    public boolean supportsVanishedMessages() {
+        return false;
+    }
+
+    /**
+     * Get the messages whose flags changed after the given mod-sequence.
+     *
+     * @param uids
+     *         Only check these messages. {@code null} to check all messages in the folder.
+     * @param modSeq
+     *         The mod-sequence returned by {@link #getHighestModSeq()} during the last sync.
+     * @param vanishedUids
+     *         If not {@code null} and {@link #supportsVanishedMessages()} returns {@code true}, the
+     *         UIDs of messages that were removed since {@code modSeq} are added to this list.
+     *
+     * @return The changed messages with their UID and flags populated. New messages are included.
+     */
+    public Message[] getChangedMessages(String[] uids, long modSeq, List<String> vanishedUids)
+            throws MessagingException {
+        throw new MessagingException("getChangedMessages() not supported");
+    }
+
     @Override
     public String toString() {
         return getName();
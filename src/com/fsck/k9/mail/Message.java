@@ -5,13 +5,13 @@ import java.io.IOException;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import android.util.Log;
 
 import com.fsck.k9.K9;
 import com.fsck.k9.activity.MessageReference;
-import com.fsck.k9.mail.filter.CountingOutputStream;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.SizeCountingOutputStream;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.store.UnavailableStorageException;
 
@@ -156,6 +156,29 @@ public abstract class Message implements Part, CompositeBody {
     public abstract String getPreview();
     public abstract boolean hasAttachments();
 
+    /**
+     * The maximum number of characters of the message text that are looked at when calculating
+     * the preview.
+     */
+    private static final int MAX_PREVIEW_INPUT_LENGTH = 8192;
+
+    /**
+     * The maximum length of a preview.
+     */
+    private static final int MAX_PREVIEW_LENGTH = 512;
+
+    // The patterns used by calculateContentPreview(). They are compiled once instead of for every
+    // stored message.
+    private static final Pattern PREVIEW_SIGNATURE = Pattern.compile("(?ms)^-- [\\r\\n]+.*");
+    private static final Pattern PREVIEW_DASHES = Pattern.compile("(?m)^----.*?$");
+    private static final Pattern PREVIEW_QUOTED_TEXT = Pattern.compile("(?m)^[#>].*$");
+    private static final Pattern PREVIEW_QUOTE_HEADER = Pattern.compile("(?m)^On .*wrote.?$");
+    private static final Pattern PREVIEW_GENERIC_QUOTE_HEADER = Pattern.compile("(?m)^.*\\w+:$");
+    private static final Pattern PREVIEW_HORIZONTAL_RULE = Pattern.compile("\\s*([-=_]{30,}+)\\s*");
+    private static final Pattern PREVIEW_URL = Pattern.compile("https?://\\S+");
+    private static final Pattern PREVIEW_NEWLINES = Pattern.compile("(\\r|\\n)+");
+    private static final Pattern PREVIEW_WHITESPACE = Pattern.compile("\\s+");
+
     /*
      * calculateContentPreview
      * Takes a plain text message body as a string.
@@ -175,34 +198,34 @@ public abstract class Message implements Part, CompositeBody {
         // Only look at the first 8k of a message when calculating
         // the preview.  This should avoid unnecessary
         // memory usage on large messages
-        if (text.length() > 8192) {
-            text = text.substring(0, 8192);
+        if (text.length() > MAX_PREVIEW_INPUT_LENGTH) {
+            text = text.substring(0, MAX_PREVIEW_INPUT_LENGTH);
         }
 
         // Remove (correctly delimited by '-- \n') signatures
-        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
+        text = PREVIEW_SIGNATURE.matcher(text).replaceAll("");
         // try to remove lines of dashes in the preview
-        text = text.replaceAll("(?m)^----.*?$", "");
+        text = PREVIEW_DASHES.matcher(text).replaceAll("");
         // remove quoted text from the preview
-        text = text.replaceAll("(?m)^[#>].*$", "");
+        text = PREVIEW_QUOTED_TEXT.matcher(text).replaceAll("");
         // Remove a common quote header from the preview
-        text = text.replaceAll("(?m)^On .*wrote.?$", "");
+        text = PREVIEW_QUOTE_HEADER.matcher(text).replaceAll("");
         // Remove a more generic quote header from the preview
-        text = text.replaceAll("(?m)^.*\\w+:$", "");
+        text = PREVIEW_GENERIC_QUOTE_HEADER.matcher(text).replaceAll("");
         // Remove horizontal rules.
-        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
+        text = PREVIEW_HORIZONTAL_RULE.matcher(text).replaceAll(" ");
 
         // URLs in the preview should just be shown as "..." - They're not
         // clickable and they usually overwhelm the preview
-        text = text.replaceAll("https?://\\S+", "...");
+        text = PREVIEW_URL.matcher(text).replaceAll("...");
         // Don't show newlines in the preview
-        text = text.replaceAll("(\\r|\\n)+", " ");
+        text = PREVIEW_NEWLINES.matcher(text).replaceAll(" ");
         // Collapse whitespace in the preview
-        text = text.replaceAll("\\s+", " ");
+        text = PREVIEW_WHITESPACE.matcher(text).replaceAll(" ");
         // Remove any whitespace at the beginning and end of the string.
         text = text.trim();
 
-        return (text.length() <= 512) ? text : text.substring(0, 512);
+        return (text.length() <= MAX_PREVIEW_LENGTH) ? text : text.substring(0, MAX_PREVIEW_LENGTH);
     }
 
     public void delete(String trashFolderName) throws MessagingException {}
@@ -262,13 +285,19 @@ public abstract class Message implements Part, CompositeBody {
         return mReference;
     }
 
+    /**
+     * Calculate the size of the message as it would be written by {@link #writeTo(java.io.OutputStream)}
+     * with all line endings converted to CRLF.
+     *
+     * <p>
+     * Attachment bodies that know their encoded length don't need to be encoded for this (see
+     * {@link SizeCountingOutputStream#skip(long)}).
+     * </p>
+     */
     public long calculateSize() {
         try {
-
-            CountingOutputStream out = new CountingOutputStream();
-            EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
-            writeTo(eolOut);
-            eolOut.flush();
+            SizeCountingOutputStream out = new SizeCountingOutputStream();
+            writeTo(out);
             return out.getCount();
         } catch (IOException e) {
             Log.e(K9.LOG_TAG, "Failed to calculate a message size", e);
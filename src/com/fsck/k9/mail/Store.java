@@ -1,8 +1,10 @@
 
 package com.fsck.k9.mail;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import android.app.Application;
@@ -245,6 +247,27 @@ public abstract class Store {
     public void sendMessages(Message[] messages) throws MessagingException {
     }
 
+    /**
+     * Get a summary of the state of the given folders that changes whenever the contents of a
+     * folder change.
+     *
+     * <p>
+     * The returned strings are only meant to be compared with the ones returned by an earlier
+     * call. If a folder is missing from the result its state is unknown and it has to be
+     * synchronized.
+     * </p>
+     *
+     * @param folderNames
+     *         The names of the folders to check.
+     *
+     * @return A map from folder name to state, or {@code null} if this store can't determine the
+     *         state of folders cheaply.
+     */
+    public Map<String, String> getFolderStatuses(Collection<String> folderNames)
+            throws MessagingException {
+        return null;
+    }
+
     public Pusher getPusher(PushReceiver receiver) {
         return null;
     }
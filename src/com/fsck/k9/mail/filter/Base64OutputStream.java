@@ -44,6 +44,23 @@ public class Base64OutputStream extends FilterOutputStream {
     private final boolean doEncode;
     private final Base64 base64;
     private final byte[] singleByte = new byte[1];
+    private byte[] resultBuffer = new byte[0];
+
+    /**
+     * Returns the number of bytes written to the wrapped stream when encoding
+     * <code>length</code> bytes with the default line length and line separator,
+     * i.e. using {@link #Base64OutputStream(OutputStream)}.
+     *
+     * @param length number of bytes to encode
+     * @return the length of the encoded data, including all line separators
+     */
+    public static long getEncodedLength(long length) {
+        long encodedLength = 4 * ((length + 2) / 3);
+
+        // A line separator is written after every full line and always once at the end
+        long fullLines = (4 * (length / 3)) / Base64.CHUNK_SIZE;
+        return encodedLength + (fullLines + 1) * Base64.CHUNK_SEPARATOR.length;
+    }
 
     /**
      * Creates a Base64OutputStream such that all data written is Base64-encoded
@@ -143,10 +160,12 @@ public class Base64OutputStream extends FilterOutputStream {
     private void flush(boolean propogate) throws IOException {
         int avail = base64.avail();
         if (avail > 0) {
-            byte[] buf = new byte[avail];
-            int c = base64.readResults(buf, 0, avail);
+            if (resultBuffer.length < avail) {
+                resultBuffer = new byte[avail];
+            }
+            int c = base64.readResults(resultBuffer, 0, avail);
             if (c > 0) {
-                out.write(buf, 0, c);
+                out.write(resultBuffer, 0, c);
             }
         }
         if (propogate) {
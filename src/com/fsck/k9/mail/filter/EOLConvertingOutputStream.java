@@ -24,6 +24,29 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
         ignoreNextIfLF = false;
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > 0 && ignoreNextIfLF) {
+            write(b[off]);
+            off++;
+            len--;
+        }
+
+        // Write everything up to the next <LF> that needs a <CR> with one call
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            byte oneByte = b[i];
+            if ((oneByte == '\n') && (lastChar != '\r')) {
+                out.write(b, start, i - start);
+                out.write('\r');
+                start = i;
+            }
+            lastChar = oneByte;
+        }
+        out.write(b, start, end - start);
+    }
+
     @Override
     public void flush() throws IOException {
         if (lastChar == '\r') {
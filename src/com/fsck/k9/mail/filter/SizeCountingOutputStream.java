@@ -0,0 +1,47 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.IOException;
+
+/**
+ * Counts how many bytes a message takes up when it is sent, i.e. after all line endings have
+ * been converted to CRLF.
+ *
+ * <p>
+ * Bodies that know the length of their encoded contents can call {@link #skip(long)} instead of
+ * encoding everything just to have it counted. See {@link com.fsck.k9.mail.Message#calculateSize()}.
+ * </p>
+ */
+public class SizeCountingOutputStream extends EOLConvertingOutputStream {
+    private final CountingOutputStream mCounter;
+    private long mSkipped;
+
+
+    public SizeCountingOutputStream() {
+        this(new CountingOutputStream());
+    }
+
+    private SizeCountingOutputStream(CountingOutputStream counter) {
+        super(counter);
+        mCounter = counter;
+    }
+
+    /**
+     * Count data that is not written to this stream.
+     *
+     * <p>
+     * The data must start after a line break and end with CRLF, so the line ending conversion
+     * wouldn't have changed it.
+     * </p>
+     *
+     * @param count
+     *         The length of the data.
+     */
+    public void skip(long count) {
+        mSkipped += count;
+    }
+
+    public long getCount() throws IOException {
+        flush();
+        return mCounter.getCount() + mSkipped;
+    }
+}
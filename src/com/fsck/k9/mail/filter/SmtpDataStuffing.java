@@ -30,4 +30,27 @@ public class SmtpDataStuffing extends FilterOutputStream {
         }
         super.write(oneByte);
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Write everything between two periods that need to be doubled with one call
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            byte oneByte = b[i];
+            if (oneByte == '\r') {
+                state = STATE_CR;
+            } else if ((state == STATE_CR) && (oneByte == '\n')) {
+                state = STATE_CRLF;
+            } else if ((state == STATE_CRLF) && (oneByte == '.')) {
+                out.write(b, start, i - start);
+                out.write('.');
+                start = i;
+                state = STATE_NORMAL;
+            } else {
+                state = STATE_NORMAL;
+            }
+        }
+        out.write(b, start, end - start);
+    }
 }
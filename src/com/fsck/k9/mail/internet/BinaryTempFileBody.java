@@ -3,6 +3,7 @@ package com.fsck.k9.mail.internet;
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.SizeCountingOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.Base64InputStream;
 import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
@@ -88,6 +89,14 @@ public class BinaryTempFileBody implements Body {
     }
 
     public void writeTo(OutputStream out) throws IOException, MessagingException {
+        if (out instanceof SizeCountingOutputStream && !rawOutput && mFile != null &&
+                MimeUtil.isBase64Encoding(mEncoding)) {
+            // Only the size of the message is calculated. Don't encode the file for that.
+            ((SizeCountingOutputStream) out).skip(
+                    Base64OutputStream.getEncodedLength(mFile.length()));
+            return;
+        }
+
         InputStream in = getInputStream();
         try {
             boolean closeStream = false;
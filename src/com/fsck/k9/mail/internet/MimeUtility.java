@@ -1408,7 +1408,9 @@ public class MimeUtility {
      *         The message to extract the text and attachments from.
      *
      * @return A {@link ViewableContainer} instance containing the textual parts of the message as
-     *         plain text and HTML, and a list of message parts considered attachments.
+     *         plain text and HTML, and a list of message parts considered attachments. Emoji in
+     *         the HTML are replaced by images while it is built, see
+     *         {@link HtmlConverter#appendEmoji2Img(StringBuilder, String)}.
      *
      * @throws MessagingException
      *          In case of an error.
@@ -1435,8 +1437,7 @@ public class MimeUtility {
                 if (viewable instanceof Textual) {
                     // This is either a text/plain or text/html part. Fill the variables 'text' and
                     // 'html', converting between plain text and HTML as necessary.
-                    text.append(buildText(viewable, !hideDivider));
-                    html.append(buildHtml(viewable, !hideDivider));
+                    appendTextual(text, html, (Textual) viewable, !hideDivider);
                     hideDivider = false;
                 } else if (viewable instanceof MessageHeader) {
                     MessageHeader header = (MessageHeader) viewable;
@@ -1459,23 +1460,37 @@ public class MimeUtility {
                      * creating the Alternative object. If one part is not present we convert the
                      * other one to make sure 'text' and 'html' always contain the same text.
                      */
-                    List<Viewable> textAlternative = alternative.getText().isEmpty() ?
-                            alternative.getHtml() : alternative.getText();
-                    List<Viewable> htmlAlternative = alternative.getHtml().isEmpty() ?
-                            alternative.getText() : alternative.getHtml();
+                    List<Viewable> textAlternative = alternative.getText();
+                    List<Viewable> htmlAlternative = alternative.getHtml();
 
-                    // Fill the 'text' variable
                     boolean divider = !hideDivider;
-                    for (Viewable textViewable : textAlternative) {
-                        text.append(buildText(textViewable, divider));
-                        divider = true;
-                    }
+                    if (textAlternative.isEmpty() || htmlAlternative.isEmpty()) {
+                        // Only one version is present. Decode each part once and use it to fill
+                        // both 'text' and 'html'.
+                        List<Viewable> alternativeViewables = textAlternative.isEmpty() ?
+                                htmlAlternative : textAlternative;
+                        for (Viewable alternativeViewable : alternativeViewables) {
+                            if (alternativeViewable instanceof Textual) {
+                                appendTextual(text, html, (Textual) alternativeViewable, divider);
+                            } else {
+                                appendText(text, alternativeViewable, divider);
+                                appendHtml(html, alternativeViewable, divider);
+                            }
+                            divider = true;
+                        }
+                    } else {
+                        // Fill the 'text' variable
+                        for (Viewable textViewable : textAlternative) {
+                            appendText(text, textViewable, divider);
+                            divider = true;
+                        }
 
-                    // Fill the 'html' variable
-                    divider = !hideDivider;
-                    for (Viewable htmlViewable : htmlAlternative) {
-                        html.append(buildHtml(htmlViewable, divider));
-                        divider = true;
+                        // Fill the 'html' variable
+                        divider = !hideDivider;
+                        for (Viewable htmlViewable : htmlAlternative) {
+                            appendHtml(html, htmlViewable, divider);
+                            divider = true;
+                        }
                     }
                     hideDivider = false;
                 }
@@ -1872,43 +1887,38 @@ public class MimeUtility {
      */
     private static void addTableRow(StringBuilder html, String header, String value) {
         html.append("<tr><th style=\"text-align: left; vertical-align: top;\">");
-        html.append(header);
+        HtmlConverter.appendEmoji2Img(html, header);
         html.append("</th>");
         html.append("<td>");
-        html.append(value);
+        HtmlConverter.appendEmoji2Img(html, value);
         html.append("</td></tr>");
     }
 
     /**
-     * Use the contents of a {@link Viewable} to create the plain text to be displayed.
+     * Append the contents of a {@link Viewable} to the plain text to be displayed.
      *
      * <p>
      * This will use {@link HtmlConverter#htmlToText(String)} to convert HTML parts to plain text
      * if necessary.
      * </p>
      *
+     * @param text
+     *         The {@link StringBuilder} to append the plain text to.
      * @param viewable
      *         The viewable part to build the text from.
      * @param prependDivider
      *         {@code true}, if the text divider should be inserted as first element.
      *         {@code false}, otherwise.
-     *
-     * @return The contents of the supplied viewable instance as plain text.
      */
-    private static StringBuilder buildText(Viewable viewable, boolean prependDivider)
-    {
-        StringBuilder text = new StringBuilder();
+    private static void appendText(StringBuilder text, Viewable viewable, boolean prependDivider) {
         if (viewable instanceof Textual) {
             Part part = ((Textual)viewable).getPart();
             addTextDivider(text, part, prependDivider);
 
             String t = getTextFromPart(part);
-            if (t == null) {
-                t = "";
-            } else if (viewable instanceof Html) {
-                t = HtmlConverter.htmlToText(t);
+            if (t != null) {
+                text.append((viewable instanceof Html) ? HtmlConverter.htmlToText(t) : t);
             }
-            text.append(t);
         } else if (viewable instanceof Alternative) {
             // That's odd - an Alternative as child of an Alternative; go ahead and try to use the
             // text/plain child; fall-back to the text/html part.
@@ -1919,12 +1929,41 @@ public class MimeUtility {
 
             boolean divider = prependDivider;
             for (Viewable textViewable : textAlternative) {
-                text.append(buildText(textViewable, divider));
+                appendText(text, textViewable, divider);
                 divider = true;
             }
         }
+    }
 
-        return text;
+    /**
+     * Append the contents of a {@link Textual} to both the plain text and the HTML to be
+     * displayed.
+     *
+     * <p>
+     * The part is only decoded once, then converted to the other representation.
+     * </p>
+     *
+     * @see #appendText(StringBuilder, Viewable, boolean)
+     * @see #appendHtml(StringBuilder, Viewable, boolean)
+     */
+    private static void appendTextual(StringBuilder text, StringBuilder html, Textual viewable,
+            boolean prependDivider) {
+        Part part = viewable.getPart();
+        addTextDivider(text, part, prependDivider);
+        addHtmlDivider(html, part, prependDivider);
+
+        String t = getTextFromPart(part);
+        if (t == null) {
+            return;
+        }
+
+        if (viewable instanceof Html) {
+            text.append(HtmlConverter.htmlToText(t));
+            HtmlConverter.appendEmoji2Img(html, t);
+        } else {
+            text.append(t);
+            HtmlConverter.appendEmoji2Img(html, HtmlConverter.textToHtml(t));
+        }
     }
 
     /*
@@ -1971,35 +2010,31 @@ public class MimeUtility {
     }
 
     /**
-     * Use the contents of a {@link Viewable} to create the HTML to be displayed.
+     * Append the contents of a {@link Viewable} to the HTML to be displayed.
      *
      * <p>
      * This will use {@link HtmlConverter#textToHtml(String)} to convert plain text parts
      * to HTML if necessary.
      * </p>
      *
+     * @param html
+     *         The {@link StringBuilder} to append the HTML to.
      * @param viewable
      *         The viewable part to build the HTML from.
      * @param prependDivider
      *         {@code true}, if the HTML divider should be inserted as first element.
      *         {@code false}, otherwise.
-     *
-     * @return The contents of the supplied viewable instance as HTML.
      */
-    private static StringBuilder buildHtml(Viewable viewable, boolean prependDivider)
-    {
-        StringBuilder html = new StringBuilder();
+    private static void appendHtml(StringBuilder html, Viewable viewable, boolean prependDivider) {
         if (viewable instanceof Textual) {
             Part part = ((Textual)viewable).getPart();
             addHtmlDivider(html, part, prependDivider);
 
             String t = getTextFromPart(part);
-            if (t == null) {
-                t = "";
-            } else if (viewable instanceof Text) {
-                t = HtmlConverter.textToHtml(t);
+            if (t != null) {
+                HtmlConverter.appendEmoji2Img(html,
+                        (viewable instanceof Text) ? HtmlConverter.textToHtml(t) : t);
             }
-            html.append(t);
         } else if (viewable instanceof Alternative) {
             // That's odd - an Alternative as child of an Alternative; go ahead and try to use the
             // text/html child; fall-back to the text/plain part.
@@ -2010,12 +2045,10 @@ public class MimeUtility {
 
             boolean divider = prependDivider;
             for (Viewable htmlViewable : htmlAlternative) {
-                html.append(buildHtml(htmlViewable, divider));
+                appendHtml(html, htmlViewable, divider);
                 divider = true;
             }
         }
-
-        return html;
     }
 
     /**
@@ -2034,7 +2067,7 @@ public class MimeUtility {
             String filename = getPartName(part);
 
             html.append("<p style=\"margin-top: 2.5em; margin-bottom: 1em; border-bottom: 1px solid #000\">");
-            html.append(filename);
+            HtmlConverter.appendEmoji2Img(html, filename);
             html.append("</p>");
         }
     }
@@ -0,0 +1,370 @@
+package com.fsck.k9.mail.store;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+
+/**
+ * A bounded pool of {@link ImapConnection}s for one {@link ImapStore}.
+ *
+ * <p>
+ * At most {@code maxSize} connections are checked out at the same time. When the limit is
+ * reached {@link #checkout(String)} waits for a connection to be released. If none is released within
+ * {@link #CHECKOUT_TIMEOUT} a new connection is created anyway, so a connection that was never
+ * released can't block the account forever.
+ * </p>
+ * <p>
+ * Released connections are kept until they have been idle for {@link #IDLE_TIMEOUT}. Only
+ * connections that have been idle for at least {@link #VALIDATION_INTERVAL} are checked with a
+ * {@code NOOP} before being handed out again. The most recently released connection is reused
+ * first, unless another idle connection already has the requested folder selected.
+ * </p>
+ * <p>
+ * The folder selected on a connection is only trusted for {@link #SELECTION_REUSE_INTERVAL} after
+ * the connection was released. The message count remembered by the connection doesn't reflect
+ * changes made by other clients in the meantime, so after that the folder has to be selected
+ * again. The {@code HIGHESTMODSEQ} isn't remembered at all, so a sync on a reused selection
+ * compares all messages instead of relying on mod-sequences.
+ * </p>
+ */
+class ImapConnectionPool {
+    /**
+     * Idle connections are closed after this time. Many NAT gateways drop idle TCP connections
+     * after a few minutes, so there's little point in keeping them longer.
+     */
+    static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Connections that have been idle for this long are validated before they are reused.
+     */
+    static final long VALIDATION_INTERVAL = 30 * 1000;
+
+    /**
+     * Maximum time to wait for a connection to be released when the pool is exhausted.
+     */
+    static final long CHECKOUT_TIMEOUT = 30 * 1000;
+
+    /**
+     * How long the folder selected on an idle connection may be used without selecting it again.
+     */
+    static final long SELECTION_REUSE_INTERVAL = 5 * 1000;
+
+
+    interface ConnectionFactory {
+        ImapConnection createConnection();
+    }
+
+    private static class IdleConnection {
+        final ImapConnection connection;
+        final long idleSince;
+
+        IdleConnection(ImapConnection connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+
+    private final ConnectionFactory mFactory;
+    private final int mMaxSize;
+    private final LinkedList<IdleConnection> mIdleConnections = new LinkedList<IdleConnection>();
+    private final Map<ImapConnection, Boolean> mCheckedOut = new IdentityHashMap<ImapConnection, Boolean>();
+
+    private long mCheckoutCount;
+    private long mReuseCount;
+    private long mValidationCount;
+    private long mEvictionCount;
+    private long mAffinityCount;
+    private long mSkippedSelectCount;
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+
+
+    ImapConnectionPool(ConnectionFactory factory, int maxSize) {
+        mFactory = factory;
+        mMaxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Get an idle connection or create a new one.
+     *
+     * <p>
+     * A new connection is not opened yet. It will be opened by the first command sent.
+     * </p>
+     *
+     * @param folderName
+     *         The prefixed name of the folder the connection will be used for, or {@code null}.
+     *         An idle connection that has this folder selected is preferred.
+     */
+    public ImapConnection checkout(String folderName) {
+        final long start = now();
+        while (true) {
+            IdleConnection idle;
+            synchronized (this) {
+                waitForCapacity(start);
+                evictIdleConnections();
+
+                idle = pollIdleConnection(folderName);
+                if (idle == null) {
+                    ImapConnection connection = mFactory.createConnection();
+                    checkedOut(connection, start);
+                    return connection;
+                }
+                mCheckedOut.put(idle.connection, Boolean.TRUE);
+            }
+
+            long idleTime = now() - idle.idleSince;
+            if (idleTime >= SELECTION_REUSE_INTERVAL) {
+                idle.connection.setSelectedFolder(null);
+            }
+
+            // Don't block the pool while talking to the server
+            if (idleTime < VALIDATION_INTERVAL || validate(idle.connection)) {
+                synchronized (this) {
+                    mReuseCount++;
+                    checkedOut(idle.connection, start);
+                }
+                return idle.connection;
+            }
+
+            synchronized (this) {
+                mCheckedOut.remove(idle.connection);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Create a new connection that counts against the pool size, ignoring idle connections.
+     *
+     * <p>
+     * This is meant for connections whose state is changed in ways other users don't expect, e.g.
+     * by {@code NOTIFY}. They should be closed before they are released. If the pool is exhausted
+     * the least recently used idle connection is closed to make room.
+     * </p>
+     */
+    public synchronized ImapConnection checkoutNew() {
+        final long start = now();
+        waitForCapacity(start);
+        evictIdleConnections();
+
+        if (mCheckedOut.size() >= mMaxSize && !mIdleConnections.isEmpty()) {
+            mIdleConnections.removeLast().connection.close();
+        }
+
+        ImapConnection connection = mFactory.createConnection();
+        checkedOut(connection, start);
+        return connection;
+    }
+
+    /**
+     * Return a connection obtained from {@link #checkout(String)} or {@link #checkoutNew()}.
+     *
+     * <p>
+     * Closed connections are dropped. Releasing a connection more than once has no effect.
+     * </p>
+     */
+    public synchronized void release(ImapConnection connection) {
+        if (connection == null || mCheckedOut.remove(connection) == null) {
+            return;
+        }
+
+        if (connection.isOpen() && connection.getPendingCommandCount() > 0) {
+            // The next user would read responses that were meant for someone else
+            Log.w(K9.LOG_TAG, "Closing released connection with " +
+                    connection.getPendingCommandCount() + " outstanding commands");
+            connection.close();
+        }
+
+        if (connection.isOpen()) {
+            mIdleConnections.addFirst(new IdleConnection(connection, now()));
+        }
+        evictIdleConnections();
+        notifyAll();
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public synchronized void closeIdleConnections() {
+        for (IdleConnection idle : mIdleConnections) {
+            idle.connection.close();
+        }
+        mIdleConnections.clear();
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdleConnections.size();
+    }
+
+    public synchronized int getCheckedOutCount() {
+        return mCheckedOut.size();
+    }
+
+    /**
+     * Record that a folder was opened without {@code SELECT} because the connection already had
+     * it selected.
+     */
+    public synchronized void selectSkipped() {
+        mSkippedSelectCount++;
+    }
+
+    /**
+     * @return The number of {@code SELECT}/{@code EXAMINE} commands that were skipped.
+     */
+    public synchronized long getSkippedSelectCount() {
+        return mSkippedSelectCount;
+    }
+
+    /**
+     * @return The number of checkouts that were served by an idle connection that already had
+     *         the requested folder selected.
+     */
+    public synchronized long getAffinityCount() {
+        return mAffinityCount;
+    }
+
+    public synchronized long getCheckoutCount() {
+        return mCheckoutCount;
+    }
+
+    /**
+     * @return The number of checkouts that were served by an idle connection.
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * @return The fraction of checkouts that were served by an idle connection.
+     */
+    public synchronized double getReuseRate() {
+        return (mCheckoutCount == 0) ? 0 : (double) mReuseCount / mCheckoutCount;
+    }
+
+    /**
+     * @return The number of {@code NOOP}s sent to check idle connections.
+     */
+    public synchronized long getValidationCount() {
+        return mValidationCount;
+    }
+
+    /**
+     * @return The number of idle connections closed because of {@link #IDLE_TIMEOUT}.
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return The average time in milliseconds {@link #checkout(String)} took, including waiting for
+     *         a connection and validating it.
+     */
+    public synchronized long getAverageWaitTime() {
+        return (mCheckoutCount == 0) ? 0 : mTotalWaitTime / mCheckoutCount;
+    }
+
+    public synchronized long getMaxWaitTime() {
+        return mMaxWaitTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImapConnectionPool(checkedOut=" + mCheckedOut.size() + ", idle=" +
+                mIdleConnections.size() + ", checkouts=" + mCheckoutCount + ", reused=" +
+                mReuseCount + ", affinity=" + mAffinityCount + ", skippedSelects=" +
+                mSkippedSelectCount + ", validations=" + mValidationCount + ", evictions=" +
+                mEvictionCount + ", avgWait=" + getAverageWaitTime() + "ms, maxWait=" +
+                mMaxWaitTime + "ms)";
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void waitForCapacity(long start) {
+        while (mIdleConnections.isEmpty() && mCheckedOut.size() >= mMaxSize) {
+            long remaining = start + CHECKOUT_TIMEOUT - now();
+            if (remaining <= 0) {
+                Log.w(K9.LOG_TAG, "Timed out waiting for a free IMAP connection; exceeding pool size " +
+                        mMaxSize + " " + this);
+                return;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private IdleConnection pollIdleConnection(String folderName) {
+        if (folderName != null) {
+            long now = now();
+            Iterator<IdleConnection> it = mIdleConnections.iterator();
+            while (it.hasNext()) {
+                IdleConnection idle = it.next();
+                if (now - idle.idleSince < SELECTION_REUSE_INTERVAL &&
+                        folderName.equals(idle.connection.getSelectedFolderName())) {
+                    it.remove();
+                    mAffinityCount++;
+                    return idle;
+                }
+            }
+        }
+
+        return mIdleConnections.poll();
+    }
+
+    private void evictIdleConnections() {
+        long now = now();
+        Iterator<IdleConnection> it = mIdleConnections.iterator();
+        while (it.hasNext()) {
+            IdleConnection idle = it.next();
+            if (now - idle.idleSince >= IDLE_TIMEOUT || !idle.connection.isOpen()) {
+                it.remove();
+                idle.connection.close();
+                mEvictionCount++;
+            }
+        }
+    }
+
+    private void checkedOut(ImapConnection connection, long start) {
+        mCheckedOut.put(connection, Boolean.TRUE);
+        mCheckoutCount++;
+
+        long waitTime = now() - start;
+        mTotalWaitTime += waitTime;
+        mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+    }
+
+    private boolean validate(ImapConnection connection) {
+        synchronized (this) {
+            mValidationCount++;
+        }
+
+        try {
+            connection.executeSimpleCommand("NOOP");
+            return true;
+        } catch (IOException e) {
+            if (K9.DEBUG) {
+                Log.d(K9.LOG_TAG, "Idle IMAP connection is dead, discarding it", e);
+            }
+        } catch (MessagingException e) {
+            if (K9.DEBUG) {
+                Log.d(K9.LOG_TAG, "Idle IMAP connection failed NOOP, discarding it", e);
+            }
+        }
+        connection.close();
+        return false;
+    }
+}
@@ -3,25 +3,99 @@ package com.fsck.k9.mail.store;
 import android.text.TextUtils;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
-import com.fsck.k9.mail.filter.PeekableInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 
+/**
+ * Parses IMAP responses.
+ *
+ * <p>
+ * The parser reads the stream in blocks into its own buffer and scans tokens directly from that
+ * buffer. Strings are created from the bytes of the buffer in one step. Frequent atoms like
+ * {@code FETCH}, {@code UID} or {@code \Seen} and small numbers are taken from a table of shared
+ * instances, so a large {@code FETCH} response doesn't create a new {@code String} for each of
+ * them.
+ * </p>
+ * <p>
+ * Because of the read-ahead, the parser must be the only reader of the stream it was created
+ * with. Literals handed to an {@link IImapResponseCallback} are read through the parser's buffer.
+ * </p>
+ */
 public class ImapResponseParser {
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat3 = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
 
-    private PeekableInputStream mIn;
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Atoms that show up in almost every response. Tokens matching one of these (case-sensitive)
+     * are replaced with the shared instance.
+     */
+    private static final String[] COMMON_ATOMS = {
+        "OK", "NO", "BAD", "BYE", "PREAUTH", "NIL", "FETCH", "UID", "FLAGS", "MODSEQ",
+        "INTERNALDATE", "RFC822.SIZE", "BODY", "BODYSTRUCTURE", "ENVELOPE", "EXISTS", "RECENT",
+        "EXPUNGE", "VANISHED", "EARLIER", "SEARCH", "LIST", "LSUB", "STATUS", "MESSAGES", "UNSEEN",
+        "UIDNEXT", "UIDVALIDITY", "HIGHESTMODSEQ", "CAPABILITY", "PERMANENTFLAGS", "READ-WRITE",
+        "READ-ONLY", "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent", "\\*",
+        "$Forwarded", "\\Noselect", "\\NoInferiors", "\\HasChildren", "\\HasNoChildren", "TEXT",
+        "PLAIN", "HTML", "MULTIPART", "MIXED", "ALTERNATIVE", "RELATED", "CHARSET", "NAME",
+        "UTF-8", "US-ASCII", "7BIT", "8BIT", "QUOTED-PRINTABLE", "BASE64", "ATTACHMENT", "INLINE"
+    };
+    private static final int MAX_COMMON_ATOM_LENGTH = 16;
+    private static final String[] ATOM_TABLE = new String[256];
+
+    private static final int NUMBER_CACHE_SIZE = 1024;
+    private static final String[] NUMBER_CACHE = new String[NUMBER_CACHE_SIZE];
+
+    /**
+     * {@code true} for all bytes that may be part of an atom as parsed by {@link #parseAtom()}.
+     */
+    private static final boolean[] ATOM_CHARS = new boolean[256];
+
+    static {
+        for (String atom : COMMON_ATOMS) {
+            int index = atom.hashCode() & (ATOM_TABLE.length - 1);
+            while (ATOM_TABLE[index] != null) {
+                index = (index + 1) & (ATOM_TABLE.length - 1);
+            }
+            ATOM_TABLE[index] = atom;
+        }
+
+        for (int i = 0; i < NUMBER_CACHE_SIZE; i++) {
+            NUMBER_CACHE[i] = Integer.toString(i);
+        }
+
+        for (int ch = 0; ch < 256; ch++) {
+            // docs claim that flags are \ atom but atom isn't supposed to contain * and some
+            // flags contain *
+            // TODO probably should not allow \ and should recognize it as a flag instead
+            ATOM_CHARS[ch] = !(ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                    ch == '[' || ch == ']' || ch == '"' || ch <= 0x1f || ch == 0x7f);
+        }
+    }
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition = 0;
+    private int mLimit = 0;
+
+    /**
+     * Holds the bytes of a token that doesn't fit into what's left of {@link #mBuffer}.
+     */
+    private byte[] mScratch = new byte[256];
+    private int mScratchLength;
+
     private ImapResponse mResponse;
     private Exception mException;
 
-    public ImapResponseParser(PeekableInputStream in) {
+    public ImapResponseParser(InputStream in) {
         this.mIn = in;
     }
 
@@ -39,7 +113,7 @@ public class ImapResponseParser {
             mResponse = response;
             mResponse.mCallback = callback;
 
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '*') {
                 parseUntaggedResponse();
                 readTokens(response);
@@ -109,7 +183,7 @@ public class ImapResponseParser {
     private void parseResponseText(ImapResponse parent) throws IOException {
         skipIfSpace();
 
-        int next = mIn.peek();
+        int next = peek();
         if (next == '[') {
             parseSequence(parent);
             skipIfSpace();
@@ -125,7 +199,7 @@ public class ImapResponseParser {
     }
 
     private void skipIfSpace() throws IOException {
-        if (mIn.peek() == ' ') {
+        if (peek() == ' ') {
             expect(' ');
         }
     }
@@ -150,7 +224,7 @@ public class ImapResponseParser {
 
     private Object parseToken(ImapList parent) throws IOException {
         while (true) {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '(') {
                 return parseList(parent);
             } else if (ch == '[') {
@@ -240,30 +314,33 @@ public class ImapResponseParser {
     }
 
     private String parseAtom() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
+        mScratchLength = 0;
         while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
+            if (mPosition == mLimit && !fill()) {
                 throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                       ch == '[' || ch == ']' ||
-                       // docs claim that flags are \ atom but atom isn't supposed to
-                       // contain
-                       // * and some flags contain *
-                       // ch == '%' || ch == '*' ||
-//                    ch == '%' ||
-                       // TODO probably should not allow \ and should recognize
-                       // it as a flag instead
-                       // ch == '"' || ch == '\' ||
-                       ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
-                    throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+            }
+
+            int start = mPosition;
+            while (mPosition < mLimit && ATOM_CHARS[mBuffer[mPosition] & 0xff]) {
+                mPosition++;
+            }
+
+            if (mPosition < mLimit) {
+                // Found the end of the atom
+                if (mScratchLength == 0) {
+                    if (mPosition == start) {
+                        int ch = mBuffer[mPosition] & 0xff;
+                        throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+                    }
+                    return createString(mBuffer, start, mPosition - start);
                 }
-                return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
+
+                appendToScratch(start, mPosition - start);
+                return createString(mScratch, 0, mScratchLength);
             }
+
+            // The atom continues in the next block
+            appendToScratch(start, mPosition - start);
         }
     }
 
@@ -273,7 +350,7 @@ public class ImapResponseParser {
      */
     private Object parseLiteral() throws IOException {
         expect('{');
-        int size = Integer.parseInt(readStringUntil('}'));
+        int size = readNumberUntil('}');
         expect('\r');
         expect('\n');
 
@@ -282,7 +359,7 @@ public class ImapResponseParser {
         }
 
         if (mResponse.mCallback != null) {
-            FixedLengthInputStream fixed = new FixedLengthInputStream(mIn, size);
+            FixedLengthInputStream fixed = new FixedLengthInputStream(new LiteralInputStream(), size);
 
             Object result = null;
             try {
@@ -313,10 +390,12 @@ public class ImapResponseParser {
         byte[] data = new byte[size];
         int read = 0;
         while (read != size) {
-            int count = mIn.read(data, read, size - read);
-            if (count == -1) {
+            if (mPosition == mLimit && !fill()) {
                 throw new IOException("parseLiteral(): end of stream reached");
             }
+            int count = Math.min(size - read, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, data, read, count);
+            mPosition += count;
             read += count;
         }
 
@@ -326,45 +405,258 @@ public class ImapResponseParser {
     private String parseQuoted() throws IOException {
         expect('"');
 
-        StringBuilder sb = new StringBuilder();
-        int ch;
+        mScratchLength = 0;
         boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
-            if (!escape && (ch == '\\')) {
-                // Found the escape character
-                escape = true;
-            } else if (!escape && (ch == '"')) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
-                escape = false;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("parseQuoted(): end of stream reached");
             }
+
+            int start = mPosition;
+            while (mPosition < mLimit) {
+                byte b = mBuffer[mPosition];
+                if (!escape && b == '\\') {
+                    // Found the escape character
+                    appendToScratch(start, mPosition - start);
+                    mPosition++;
+                    start = mPosition;
+                    escape = true;
+                } else if (!escape && b == '"') {
+                    String result;
+                    if (mScratchLength == 0) {
+                        result = createString(mBuffer, start, mPosition - start);
+                    } else {
+                        appendToScratch(start, mPosition - start);
+                        result = createString(mScratch, 0, mScratchLength);
+                    }
+                    mPosition++;
+                    return result;
+                } else {
+                    mPosition++;
+                    escape = false;
+                }
+            }
+
+            appendToScratch(start, mPosition - start);
         }
-        throw new IOException("parseQuoted(): end of stream reached");
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        mScratchLength = 0;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("readStringUntil(): end of stream reached");
+            }
+
+            int start = mPosition;
+            while (mPosition < mLimit && mBuffer[mPosition] != end) {
+                mPosition++;
+            }
+
+            if (mPosition < mLimit) {
+                String result;
+                if (mScratchLength == 0) {
+                    result = createString(mBuffer, start, mPosition - start);
+                } else {
+                    appendToScratch(start, mPosition - start);
+                    result = createString(mScratch, 0, mScratchLength);
+                }
+                // Skip the end character
+                mPosition++;
+                return result;
+            }
+
+            appendToScratch(start, mPosition - start);
+        }
+    }
+
+    /**
+     * Read a decimal number terminated by {@code end} without creating a {@code String}.
+     */
+    private int readNumberUntil(char end) throws IOException {
+        long value = 0;
+        int digits = 0;
         int ch;
-        while ((ch = mIn.read()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
+        while ((ch = read()) != end) {
+            if (ch < '0' || ch > '9' || digits == 10) {
+                throw new IOException(String.format("Invalid number: unexpected %04x (%c)", ch, (char) ch));
             }
+            value = value * 10 + (ch - '0');
+            digits++;
+        }
+
+        if (digits == 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid number: " + value);
         }
-        throw new IOException("readStringUntil(): end of stream reached");
+        return (int) value;
     }
 
     private int expect(char ch) throws IOException {
         int d;
-        if ((d = mIn.read()) != ch) {
+        if ((d = read()) != ch) {
             throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)", (int)ch,
                                                 ch, d, (char)d));
         }
         return d;
     }
 
+    private int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition] & 0xff;
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+    /**
+     * Read the next block from the stream. Must only be called when the buffer is exhausted.
+     *
+     * @return {@code false} if the end of the stream was reached.
+     */
+    private boolean fill() throws IOException {
+        mPosition = 0;
+        mLimit = 0;
+        int count = mIn.read(mBuffer, 0, BUFFER_SIZE);
+        if (count <= 0) {
+            return false;
+        }
+        mLimit = count;
+        return true;
+    }
+
+    private void appendToScratch(int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (mScratchLength + length > mScratch.length) {
+            byte[] scratch = new byte[Math.max(mScratch.length * 2, mScratchLength + length)];
+            System.arraycopy(mScratch, 0, scratch, 0, mScratchLength);
+            mScratch = scratch;
+        }
+        System.arraycopy(mBuffer, start, mScratch, mScratchLength, length);
+        mScratchLength += length;
+    }
+
+    /**
+     * Create a string from the given bytes, mapping each byte to the character with the same
+     * value. Common atoms and small numbers are returned as shared instances.
+     */
+    static String createString(byte[] bytes, int offset, int length) {
+        if (length <= MAX_COMMON_ATOM_LENGTH) {
+            String number = lookupNumber(bytes, offset, length);
+            if (number != null) {
+                return number;
+            }
+
+            String atom = lookupAtom(bytes, offset, length);
+            if (atom != null) {
+                return atom;
+            }
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (bytes[offset + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private static String lookupNumber(byte[] bytes, int offset, int length) {
+        if (length == 0 || length > 4 || (length > 1 && bytes[offset] == '0')) {
+            return null;
+        }
+
+        int value = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+
+        return (value < NUMBER_CACHE_SIZE) ? NUMBER_CACHE[value] : null;
+    }
+
+    private static String lookupAtom(byte[] bytes, int offset, int length) {
+        // Same as String.hashCode() for strings made of characters 0-255
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + (bytes[i] & 0xff);
+        }
+
+        int mask = ATOM_TABLE.length - 1;
+        for (int index = hash & mask; ATOM_TABLE[index] != null; index = (index + 1) & mask) {
+            String atom = ATOM_TABLE[index];
+            if (atom.length() == length && atom.hashCode() == hash && regionMatches(atom, bytes, offset)) {
+                return atom;
+            }
+        }
+        return null;
+    }
+
+    private static boolean regionMatches(String atom, byte[] bytes, int offset) {
+        for (int i = 0, length = atom.length(); i < length; i++) {
+            if (atom.charAt(i) != (bytes[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives access to the data of a literal, starting with the bytes already in the parser's
+     * buffer.
+     */
+    private class LiteralInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return ImapResponseParser.this.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            if (mPosition == mLimit) {
+                if (length >= BUFFER_SIZE) {
+                    // Nothing buffered; no need to copy the data twice
+                    return mIn.read(b, offset, length);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(length, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("skip(): end of stream reached");
+            }
+
+            int count = (int) Math.min(n, mLimit - mPosition);
+            mPosition += count;
+            return count;
+        }
+    }
+
     /**
      * Represents an IMAP list response and is also the base class for the
      * ImapResponse.
@@ -513,6 +805,21 @@ public class ImapResponseParser {
             }
         }
 
+        /**
+         * @return The response code of a status response, e.g. {@code BADEVENT} for
+         *         {@code NO [BADEVENT (MessageNew)] Unsupported event}, or {@code null} if there
+         *         is none.
+         */
+        public String getResponseCode() {
+            if (size() > 1 && get(1) instanceof ImapList) {
+                ImapList responseCode = (ImapList) get(1);
+                if (responseCode.size() > 0 && responseCode.get(0) instanceof String) {
+                    return (String) responseCode.get(0);
+                }
+            }
+            return null;
+        }
+
         @Override
         public String toString() {
             return "#" + (mCommandContinuationRequested ? "+" : mTag) + "# " + super.toString();
@@ -31,11 +31,13 @@ import java.security.cert.CertificateException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -45,7 +47,6 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -55,6 +56,7 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.TrustManager;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
@@ -98,6 +100,7 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.imap.FetchWindow;
 import com.fsck.k9.mail.store.imap.ImapUtility;
 import com.fsck.k9.mail.transport.imap.ImapSettings;
 import com.fsck.k9.net.ssl.TrustManagerFactory;
@@ -120,6 +123,7 @@ public class ImapStore extends Store {
     private static int NORMAL_DELAY_TIME = 5000;
 
     private static int FETCH_WINDOW_SIZE = 100;
+    private static final int MAX_PIPELINED_FETCH_COMMANDS = 3;
 
     private Set<Flag> mPermanentFlagsIndex = new HashSet<Flag>();
 
@@ -137,6 +141,22 @@ public class ImapStore extends Store {
     private static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     private static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
 
+    private static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    private static final String CAPABILITY_QRESYNC = "QRESYNC";
+    private static final String COMMAND_ENABLE_QRESYNC = "ENABLE QRESYNC";
+
+    private static final String CAPABILITY_NOTIFY = "NOTIFY";
+
+    /**
+     * How long a connection watches a folder before moving on to the next one, if there are more
+     * push folders than push connections.
+     */
+    private static final int PUSH_ROTATION_INTERVAL = 5 * 60 * 1000;
+
+    private static final String STATUS_ITEMS = "MESSAGES UIDNEXT UIDVALIDITY UNSEEN";
+    private static final String[] STATUS_RESPONSE_ITEMS =
+            { "MESSAGES", "UIDNEXT", "UIDVALIDITY", "UNSEEN", "HIGHESTMODSEQ" };
+
     private static final Message[] EMPTY_MESSAGE_ARRAY = new Message[0];
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -424,8 +444,19 @@ public class ImapStore extends Store {
 
     private static final SimpleDateFormat RFC3501_DATE = new SimpleDateFormat("dd-MMM-yyyy", Locale.US);
 
-    private LinkedList<ImapConnection> mConnections =
-        new LinkedList<ImapConnection>();
+    /**
+     * Maximum number of connections used for commands other than push. Push connections are
+     * taken from the pool and held for a long time, so the pool is sized to allow one per push
+     * folder on top of this.
+     */
+    private static final int MAX_COMMAND_CONNECTIONS = 3;
+
+    private ImapConnectionPool mConnectionPool;
+
+    /**
+     * Whether the server supports NOTIFY (RFC 5465), or {@code null} if we don't know yet.
+     */
+    private volatile Boolean mNotifyCapable;
 
     /**
      * Charset used for converting folder names to and from UTF-7 as defined by RFC 3501.
@@ -463,6 +494,13 @@ public class ImapStore extends Store {
         mPathPrefix = (settings.autoDetectNamespace) ? null : settings.pathPrefix;
 
         mModifiedUtf7Charset = new CharsetProvider().charsetForName("X-RFC-3501");
+
+        mConnectionPool = new ImapConnectionPool(new ImapConnectionPool.ConnectionFactory() {
+            @Override
+            public ImapConnection createConnection() {
+                return new ImapConnection(new StoreImapSettings());
+            }
+        }, mAccount.getMaxPushFolders() + MAX_COMMAND_CONNECTIONS);
     }
 
     @Override
@@ -692,33 +730,125 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Gets a connection if one is available for reuse, or creates a new one if not.
-     * @return
+     * Get the state of the given folders with one pipelined {@code STATUS} command per folder,
+     * sent over a single connection.
+     *
+     * <p>
+     * The returned string contains {@code MESSAGES}, {@code UIDNEXT}, {@code UIDVALIDITY},
+     * {@code UNSEEN} and, if the server supports CONDSTORE, {@code HIGHESTMODSEQ}. Folders the
+     * server returned an error for are left out.
+     * </p>
      */
-    private ImapConnection getConnection() throws MessagingException {
-        synchronized (mConnections) {
-            ImapConnection connection = null;
-            while ((connection = mConnections.poll()) != null) {
-                try {
-                    connection.executeSimpleCommand("NOOP");
-                    break;
-                } catch (IOException ioe) {
-                    connection.close();
+    @Override
+    public Map<String, String> getFolderStatuses(Collection<String> folderNames)
+            throws MessagingException {
+        ImapConnection connection = getConnection();
+        try {
+            connection.open();
+            return getFolderStatuses(connection, folderNames, null);
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException("Unable to get folder status.", ioe);
+        } catch (MessagingException me) {
+            connection.close();
+            throw me;
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    private Map<String, String> getFolderStatuses(ImapConnection connection,
+            Collection<String> folderNames, UntaggedHandler untaggedHandler)
+            throws IOException, MessagingException {
+        String statusItems = (connection.isCondstoreCapable()) ?
+                STATUS_ITEMS + " HIGHESTMODSEQ" : STATUS_ITEMS;
+
+        // Send all commands before reading the first response to save round-trips
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        for (String folderName : folderNames) {
+            String command = String.format("STATUS %s (%s)",
+                    encodeString(encodeFolderName(getPrefixedName(folderName))), statusItems);
+            tags.put(folderName, connection.sendCommand(command, false));
+        }
+
+        Map<String, String> statuses = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : tags.entrySet()) {
+            String folderName = entry.getKey();
+            List<ImapResponse> responses;
+            try {
+                responses = connection.readStatusResponse(entry.getValue(),
+                        "STATUS " + folderName, untaggedHandler);
+            } catch (ImapException e) {
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Unable to get status of folder " + folderName +
+                            " for " + connection.getLogId() + ": " + e.getMessage());
                 }
+                continue;
             }
-            if (connection == null) {
-                connection = new ImapConnection(new StoreImapSettings());
+
+            for (ImapResponse response : responses) {
+                // * STATUS <mailbox> (MESSAGES 231 UIDNEXT 44292 ...)
+                if (response.mTag == null && response.size() >= 3 &&
+                        ImapResponseParser.equalsIgnoreCase(response.get(0), "STATUS") &&
+                        response.get(2) instanceof ImapList) {
+                    statuses.put(folderName, formatFolderStatus(response.getList(2)));
+                }
             }
-            return connection;
         }
+
+        return statuses;
     }
 
-    private void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isOpen()) {
-            synchronized (mConnections) {
-                mConnections.offer(connection);
+    /**
+     * Get the name of a folder on the server. Unlike {@link ImapFolder#getPrefixedName()} this
+     * expects the path prefix to be known already.
+     */
+    private String getPrefixedName(String folderName) {
+        return (mAccount.getInboxFolderName().equalsIgnoreCase(folderName)) ?
+                folderName : getCombinedPrefix() + folderName;
+    }
+
+    /**
+     * Build a string from the values of a {@code STATUS} response that doesn't depend on the
+     * order in which the server returned them.
+     */
+    private static String formatFolderStatus(ImapList values) {
+        StringBuilder status = new StringBuilder();
+        for (String item : STATUS_RESPONSE_ITEMS) {
+            if (values.containsKey(item)) {
+                if (status.length() > 0) {
+                    status.append(' ');
+                }
+                status.append(item).append(' ').append(values.getKeyedString(item));
             }
         }
+        return status.toString();
+    }
+
+    /**
+     * Gets a connection if one is available for reuse, or creates a new one if not.
+     * @return
+     */
+    private ImapConnection getConnection() throws MessagingException {
+        return mConnectionPool.checkout(null);
+    }
+
+    /**
+     * Get a connection, preferring one that has the given folder selected.
+     */
+    private ImapConnection getConnection(String folderName) throws MessagingException {
+        return mConnectionPool.checkout(folderName);
+    }
+
+    private void releaseConnection(ImapConnection connection) {
+        mConnectionPool.release(connection);
+    }
+
+    /**
+     * @return Usage statistics of this store's connection pool, for diagnostics.
+     */
+    public String getConnectionPoolStatistics() {
+        return mConnectionPool.toString();
     }
 
     /**
@@ -796,6 +926,8 @@ public class ImapStore extends Store {
         private String mName;
         protected volatile int mMessageCount = -1;
         protected volatile long uidNext = -1L;
+        protected volatile long mUidValidity = -1L;
+        protected volatile long mHighestModSeq = -1L;
         protected volatile ImapConnection mConnection;
         private int mMode;
         private volatile boolean mExists;
@@ -847,7 +979,7 @@ public class ImapStore extends Store {
 
         @Override
         public void open(int mode) throws MessagingException {
-            internalOpen(mode);
+            internalOpen(mode, true);
 
             if (mMessageCount == -1) {
                 throw new MessagingException(
@@ -856,6 +988,19 @@ public class ImapStore extends Store {
         }
 
         public List<ImapResponse> internalOpen(int mode) throws MessagingException {
+            return internalOpen(mode, false);
+        }
+
+        /**
+         * Open the folder, selecting it on a connection from the pool.
+         *
+         * @param reuseSelection
+         *         If {@code true} and the connection we get from the pool has this folder selected
+         *         in the requested mode, skip the {@code SELECT}/{@code EXAMINE} and use the state
+         *         remembered by the connection instead. In that case an empty list is returned.
+         */
+        private List<ImapResponse> internalOpen(int mode, boolean reuseSelection)
+                throws MessagingException {
             if (isOpen() && mMode == mode) {
                 // Make sure the connection is valid. If it's not we'll close it down and continue
                 // on to get a new one.
@@ -868,8 +1013,28 @@ public class ImapStore extends Store {
             }
             releaseConnection(mConnection);
             synchronized (this) {
-                mConnection = getConnection();
+                mConnection = getConnection(getPrefixedName());
+            }
+
+            SelectedFolder selectedFolder = mConnection.getSelectedFolder();
+            if (reuseSelection && selectedFolder != null && selectedFolder.mode == mode &&
+                    getPrefixedName().equals(selectedFolder.name)) {
+                msgSeqUidMap.clear();
+                mMode = selectedFolder.mode;
+                mUidValidity = selectedFolder.uidValidity;
+                // Other clients may have changed the folder since it was selected. Without a
+                // current HIGHESTMODSEQ a sync has to compare all messages instead of asking for
+                // the changes since the last one, which could miss those changes.
+                mHighestModSeq = -1L;
+                mMessageCount = selectedFolder.messageCount;
+                mExists = true;
+                mConnectionPool.selectSkipped();
+                if (K9.DEBUG) {
+                    Log.v(K9.LOG_TAG, "Folder is already selected, skipping SELECT for " + getLogId());
+                }
+                return Collections.emptyList();
             }
+
             // * FLAGS (\Answered \Flagged \Deleted \Seen \Draft NonJunk
             // $MDNSent)
             // * OK [PERMANENTFLAGS (\Answered \Flagged \Deleted \Seen \Draft
@@ -881,9 +1046,17 @@ public class ImapStore extends Store {
             // 2 OK [READ-WRITE] Select completed.
             try {
                 msgSeqUidMap.clear();
+                mUidValidity = -1L;
+                mHighestModSeq = -1L;
                 String command = String.format("%s %s", mode == OPEN_MODE_RW ? "SELECT"
                         : "EXAMINE", encodeString(encodeFolderName(getPrefixedName())));
+                if (mConnection.isCondstoreCapable()) {
+                    // Ask the server to include mod-sequences in FETCH responses (RFC 4551)
+                    command += " (CONDSTORE)";
+                }
 
+                // A failed SELECT leaves the connection without a selected folder
+                mConnection.setSelectedFolder(null);
                 List<ImapResponse> responses = executeSimpleCommand(command);
 
                 /*
@@ -912,6 +1085,19 @@ public class ImapStore extends Store {
                             Object keyObj = bracketed.get(0);
                             if (keyObj instanceof String) {
                                 String key = (String) keyObj;
+                                if (response.mTag == null && bracketed.size() > 1) {
+                                    // parse: * OK [UIDVALIDITY 3857529045] UIDs valid
+                                    // parse: * OK [HIGHESTMODSEQ 715194045007] Highest
+                                    if ("UIDVALIDITY".equalsIgnoreCase(key)) {
+                                        mUidValidity = bracketed.getLong(1);
+                                    } else if ("HIGHESTMODSEQ".equalsIgnoreCase(key)) {
+                                        mHighestModSeq = bracketed.getLong(1);
+                                    }
+                                } else if (response.mTag == null && "NOMODSEQ".equalsIgnoreCase(key)) {
+                                    // The server doesn't keep mod-sequences for this mailbox
+                                    mHighestModSeq = -1L;
+                                }
+
                                 if (response.mTag != null) {
 
                                     if ("READ-ONLY".equalsIgnoreCase(key)) {
@@ -925,6 +1111,8 @@ public class ImapStore extends Store {
                     }
                 }
                 mExists = true;
+                mConnection.setSelectedFolder(new SelectedFolder(getPrefixedName(), mMode,
+                        mUidValidity, mMessageCount));
                 return responses;
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
@@ -971,8 +1159,25 @@ public class ImapStore extends Store {
             return mMode;
         }
 
+        @Override
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        @Override
+        public long getHighestModSeq() {
+            return mHighestModSeq;
+        }
+
+        @Override
+        public boolean supportsVanishedMessages() {
+            ImapConnection connection = mConnection;
+            return (connection != null && connection.isQresyncEnabled() && mHighestModSeq > 0);
+        }
+
         @Override
         public void close() {
+            int messageCount = mMessageCount;
             if (mMessageCount != -1) {
                 mMessageCount = -1;
             }
@@ -981,13 +1186,19 @@ public class ImapStore extends Store {
             }
 
             synchronized (this) {
+                // Keep the message count the connection remembers for this folder up to date
+                SelectedFolder selectedFolder = mConnection.getSelectedFolder();
+                if (selectedFolder != null && messageCount != -1 &&
+                        getPrefixedName().equals(selectedFolder.name)) {
+                    selectedFolder.messageCount = messageCount;
+                }
+
                 // If we are mid-search and we get a close request, we gotta trash the connection.
                 if (mInSearch && mConnection != null) {
                     Log.i(K9.LOG_TAG, "IMAP search was aborted, shutting down connection.");
                     mConnection.close();
-                } else {
-                    releaseConnection(mConnection);
                 }
+                releaseConnection(mConnection);
                 mConnection = null;
             }
         }
@@ -1142,7 +1353,7 @@ public class ImapStore extends Store {
 
                 //TODO: Split this into multiple commands if the command exceeds a certain length.
                 List<ImapResponse> responses = executeSimpleCommand(String.format("UID COPY %s %s",
-                                                      Utility.combine(uids, ','),
+                                                      ImapUtility.toSequenceSet(uids),
                                                       remoteDestName));
 
                 // Get the tagged response for the UID COPY command
@@ -1442,6 +1653,55 @@ public class ImapStore extends Store {
             return messages.toArray(EMPTY_MESSAGE_ARRAY);
         }
 
+        @Override
+        public Message[] getChangedMessages(String[] uids, long modSeq, List<String> vanishedUids)
+        throws MessagingException {
+            checkOpen(); //only need READ access
+
+            if (uids != null && uids.length == 0) {
+                return EMPTY_MESSAGE_ARRAY;
+            }
+
+            // UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 12345 VANISHED)
+            String uidSet = (uids == null) ? "1:*" : Utility.combine(uids, ',');
+            boolean reportVanished = (vanishedUids != null && supportsVanishedMessages());
+            String command = String.format(Locale.US, "UID FETCH %s (UID FLAGS) (CHANGEDSINCE %d%s)",
+                    uidSet, modSeq, reportVanished ? " VANISHED" : "");
+
+            List<Message> messages = new ArrayList<Message>();
+            try {
+                List<ImapResponse> responses = mConnection.executeSimpleCommand(command);
+                for (ImapResponse response : responses) {
+                    if (response.mTag != null) {
+                        continue;
+                    }
+
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        if (uid == null) {
+                            continue;
+                        }
+
+                        ImapMessage message = new ImapMessage(uid, this);
+                        handleFetchResponse(message, fetchList);
+                        messages.add(message);
+                    } else if (reportVanished &&
+                            ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED")) {
+                        // * VANISHED (EARLIER) 41,43:116,118
+                        String vanishedSet = response.getString(response.size() - 1);
+                        vanishedUids.addAll(ImapUtility.getImapSequenceValues(vanishedSet));
+                    } else {
+                        handleUntaggedResponse(response);
+                    }
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+
+            return messages.toArray(EMPTY_MESSAGE_ARRAY);
+        }
+
         @Override
         public void fetch(Message[] messages, FetchProfile fp, MessageRetrievalListener listener)
         throws MessagingException {
@@ -1491,80 +1751,183 @@ public class ImapStore extends Store {
 
 
 
-            for (int windowStart = 0; windowStart < messages.length; windowStart += (FETCH_WINDOW_SIZE)) {
-                List<String> uidWindow = uids.subList(windowStart, Math.min((windowStart + FETCH_WINDOW_SIZE), messages.length));
+            String fetchItems = Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
 
-                try {
-                    mConnection.sendCommand(String.format("UID FETCH %s (%s)",
-                                                          Utility.combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
-                                                          Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                                                         ), false);
-                    ImapResponse response;
-                    int messageNumber = 0;
+            // Stream BODY[...] literals straight into the message instead of buffering them
+            ImapResponseParser.IImapResponseCallback callback = new FetchBodyCallback(messageMap);
+            boolean fetchingBodies = (fp.contains(FetchProfile.Item.BODY) ||
+                    fp.contains(FetchProfile.Item.BODY_SANE));
+
+            /*
+             * Keep up to MAX_PIPELINED_FETCH_COMMANDS UID FETCH commands outstanding so the server
+             * can start on the next window while we're still reading the current one. The size of
+             * each window is adapted to the measured round-trip time and response size.
+             *
+             * The responses are still read by this thread in the order the server sends them, so
+             * the listener sees the messages one after another, just like before.
+             */
+            FetchWindow fetchWindow = new FetchWindow(fetchingBodies ?
+                    FetchWindow.MIN_WINDOW_SIZE : FETCH_WINDOW_SIZE);
+            LinkedList<PendingFetch> pendingFetches = new LinkedList<PendingFetch>();
+            int windowStart = 0;
+            int messageNumber = 0;
+            boolean roundTripMeasured = false;
+            long lastCompletion = 0;
+            long lastBytesRead = 0;
 
-                    ImapResponseParser.IImapResponseCallback callback = null;
-                    if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        callback = new FetchBodyCallback(messageMap);
+            try {
+                while (windowStart < messages.length || !pendingFetches.isEmpty()) {
+                    while (windowStart < messages.length &&
+                            pendingFetches.size() < MAX_PIPELINED_FETCH_COMMANDS) {
+                        int windowEnd = Math.min(windowStart + fetchWindow.getSize(), messages.length);
+                        List<String> uidWindow = uids.subList(windowStart, windowEnd);
+
+                        if (pendingFetches.isEmpty()) {
+                            lastCompletion = System.currentTimeMillis();
+                            lastBytesRead = mConnection.getBytesRead();
+                        }
+                        String tag = mConnection.sendCommand(String.format("UID FETCH %s (%s)",
+                                Utility.combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
+                                fetchItems), false);
+                        pendingFetches.add(new PendingFetch(tag, uidWindow.size(),
+                                System.currentTimeMillis()));
+                        windowStart = windowEnd;
                     }
 
-                    do {
-                        response = mConnection.readResponse(callback);
-
-                        if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                            String uid = fetchList.getKeyedString("UID");
-                            long msgSeq = response.getLong(0);
-                            if (uid != null) {
-                                try {
-                                    msgSeqUidMap.put(msgSeq, uid);
-                                    if (K9.DEBUG) {
-                                        Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
-                                }
-                            }
+                    ImapResponse response = mConnection.readResponse(callback);
 
-                            Message message = messageMap.get(uid);
-                            if (message == null) {
-                                if (K9.DEBUG)
-                                    Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
+                    if (!roundTripMeasured) {
+                        fetchWindow.setRoundTripTime(System.currentTimeMillis() -
+                                pendingFetches.getFirst().sentAt);
+                        roundTripMeasured = true;
+                    }
 
-                                handleUntaggedResponse(response);
-                                continue;
-                            }
-                            if (listener != null) {
-                                listener.messageStarted(uid, messageNumber++, messageMap.size());
-                            }
+                    if (response.mTag != null) {
+                        if (!response.mTag.equalsIgnoreCase(pendingFetches.getFirst().tag)) {
+                            Log.w(K9.LOG_TAG, "Got tagged response " + response +
+                                    " for unexpected command for " + getLogId());
+                            continue;
+                        }
+
+                        PendingFetch completed = pendingFetches.removeFirst();
+                        if (response.size() < 1 ||
+                                ImapResponseParser.equalsIgnoreCase(response.get(0), "BAD")) {
+                            throw new ImapException("Command: UID FETCH; response: " +
+                                    response.toString(), response.getAlertText());
+                        } else if (!ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+                            // Some servers answer NO if a message was expunged in the meantime.
+                            // Keep the messages we got.
+                            Log.w(K9.LOG_TAG, "UID FETCH failed for some messages: " + response +
+                                    " for " + getLogId());
+                        }
 
-                            ImapMessage imapMessage = (ImapMessage) message;
+                        long now = System.currentTimeMillis();
+                        long bytesRead = mConnection.getBytesRead();
+                        fetchWindow.windowCompleted(completed.messageCount, bytesRead - lastBytesRead,
+                                now - Math.max(lastCompletion, completed.sentAt));
+                        lastCompletion = now;
+                        lastBytesRead = bytesRead;
 
-                            Object literal = handleFetchResponse(imapMessage, fetchList);
+                        if (K9.DEBUG) {
+                            Log.v(K9.LOG_TAG, "Fetched " + completed.messageCount + " messages, " +
+                                    "next window size is " + fetchWindow.getSize() + " for " + getLogId());
+                        }
+                        continue;
+                    }
 
-                            if (literal != null) {
-                                if (literal instanceof String) {
-                                    String bodyString = (String)literal;
-                                    InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
-                                    imapMessage.parse(bodyStream);
-                                } else if (literal instanceof Integer) {
-                                    // All the work was done in FetchBodyCallback.foundLiteral()
-                                } else {
-                                    // This shouldn't happen
-                                    throw new MessagingException("Got FETCH response with bogus parameters");
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        long msgSeq = response.getLong(0);
+                        if (uid != null) {
+                            try {
+                                msgSeqUidMap.put(msgSeq, uid);
+                                if (K9.DEBUG) {
+                                    Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
                                 }
+                            } catch (Exception e) {
+                                Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
                             }
+                        }
+
+                        Message message = messageMap.get(uid);
+                        if (message == null) {
+                            if (K9.DEBUG)
+                                Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
 
-                            if (listener != null) {
-                                listener.messageFinished(message, messageNumber, messageMap.size());
-                            }
-                        } else {
                             handleUntaggedResponse(response);
+                            continue;
+                        }
+                        if (listener != null) {
+                            listener.messageStarted(uid, messageNumber++, messageMap.size());
                         }
 
-                    } while (response.mTag == null);
-                } catch (IOException ioe) {
-                    throw ioExceptionHandler(mConnection, ioe);
+                        ImapMessage imapMessage = (ImapMessage) message;
+
+                        Object literal = handleFetchResponse(imapMessage, fetchList);
+
+                        if (literal != null) {
+                            if (literal instanceof String) {
+                                // A quoted string or a literal the callback couldn't assign
+                                String bodyString = (String)literal;
+                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes("US-ASCII"));
+                                imapMessage.parse(bodyStream);
+                            } else if (literal instanceof Integer) {
+                                // All the work was done in FetchBodyCallback.foundLiteral()
+                            } else {
+                                // This shouldn't happen
+                                throw new MessagingException("Got FETCH response with bogus parameters");
+                            }
+                        }
+
+                        if (listener != null) {
+                            listener.messageFinished(message, messageNumber, messageMap.size());
+                        }
+                    } else {
+                        handleUntaggedResponse(response);
+                    }
                 }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            } catch (MessagingException me) {
+                abortPipelinedFetch(pendingFetches);
+                throw me;
+            } catch (RuntimeException re) {
+                abortPipelinedFetch(pendingFetches);
+                throw re;
+            }
+        }
+
+        /**
+         * Close the connection if {@link #fetch(Message[], FetchProfile, MessageRetrievalListener)}
+         * failed while commands were still outstanding.
+         *
+         * <p>
+         * Their responses would otherwise be read by the next user of the connection. Since we
+         * might have stopped in the middle of a response, skipping them isn't an option.
+         * </p>
+         */
+        private void abortPipelinedFetch(List<PendingFetch> pendingFetches) {
+            if (!pendingFetches.isEmpty() && mConnection != null) {
+                Log.w(K9.LOG_TAG, "Closing connection with " + pendingFetches.size() +
+                        " outstanding FETCH commands for " + getLogId());
+                mConnection.close();
+            }
+        }
+
+        /**
+         * A {@code UID FETCH} command sent by {@link #fetch(Message[], FetchProfile, MessageRetrievalListener)}
+         * whose tagged response hasn't been read yet.
+         */
+        private class PendingFetch {
+            final String tag;
+            final int messageCount;
+            final long sentAt;
+
+            PendingFetch(String tag, int messageCount, long sentAt) {
+                this.tag = tag;
+                this.messageCount = messageCount;
+                this.sentAt = sentAt;
             }
         }
 
@@ -1626,8 +1989,9 @@ public class ImapStore extends Store {
                                 // Most of the work was done in FetchAttchmentCallback.foundLiteral()
                                 part.setBody((Body)literal);
                             } else if (literal instanceof String) {
+                                // A quoted string or a literal the callback couldn't assign
                                 String bodyString = (String)literal;
-                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes("US-ASCII"));
 
                                 String contentTransferEncoding = part
                                         .getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
@@ -1773,6 +2137,16 @@ public class ImapStore extends Store {
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Got untagged EXPUNGE with mMessageCount " + mMessageCount + " for " + getLogId());
                 }
+
+                // With QRESYNC enabled the server sends "* VANISHED <uids>" instead of EXPUNGE
+                // responses. "VANISHED (EARLIER)" refers to messages that were expunged before.
+                if (ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED") &&
+                        !(response.get(1) instanceof ImapList) && mMessageCount > 0) {
+                    int count = ImapUtility.getImapSequenceValues(response.getString(1)).size();
+                    mMessageCount = Math.max(0, mMessageCount - count);
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Got untagged VANISHED with mMessageCount " + mMessageCount + " for " + getLogId());
+                }
 //            if (response.size() > 1) {
 //                Object bracketedObj = response.get(1);
 //                if (bracketedObj instanceof ImapList)
@@ -2168,7 +2542,7 @@ public class ImapStore extends Store {
             }
             try {
                 executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
-                                                   Utility.combine(uids, ','),
+                                                   ImapUtility.toSequenceSet(uids),
                                                    value ? "+" : "-",
                                                    combineFlags(flags)));
             } catch (IOException ioe) {
@@ -2325,6 +2699,25 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * The state of a folder selected on an {@link ImapConnection}, as reported by the server in
+     * response to {@code SELECT} or {@code EXAMINE} and kept up to date by the {@link ImapFolder}
+     * using the connection.
+     */
+    static class SelectedFolder {
+        final String name;
+        final int mode;
+        final long uidValidity;
+        volatile int messageCount;
+
+        SelectedFolder(String name, int mode, long uidValidity, int messageCount) {
+            this.name = name;
+            this.mode = mode;
+            this.uidValidity = uidValidity;
+            this.messageCount = messageCount;
+        }
+    }
+
     /**
      * A cacheable class that stores the details for a single IMAP connection.
      */
@@ -2335,6 +2728,23 @@ public class ImapStore extends Store {
         protected ImapResponseParser mParser;
         protected int mNextCommandTag;
         protected Set<String> capabilities = new HashSet<String>();
+        protected boolean mQresyncEnabled;
+
+        /**
+         * Tags of the commands that were sent but whose tagged response hasn't been read yet.
+         */
+        protected final LinkedList<String> mPendingTags = new LinkedList<String>();
+
+        /**
+         * Counts the bytes received from the server (after TLS, before decompression).
+         */
+        private CountingInputStream mCountingIn;
+
+        /**
+         * The folder currently selected on this connection, or {@code null} if no folder is
+         * selected.
+         */
+        private SelectedFolder mSelectedFolder;
 
         private ImapSettings mSettings;
 
@@ -2390,6 +2800,8 @@ public class ImapStore extends Store {
             boolean authSuccess = false;
 
             mNextCommandTag = 1;
+            mPendingTags.clear();
+            mSelectedFolder = null;
             try {
                 Security.setProperty("networkaddress.cache.ttl", "0");
             } catch (Exception e) {
@@ -2446,8 +2858,8 @@ public class ImapStore extends Store {
 
                 setReadTimeout(Store.SOCKET_READ_TIMEOUT);
 
-                mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                              1024));
+                mCountingIn = new CountingInputStream(mSocket.getInputStream());
+                mIn = new PeekableInputStream(new BufferedInputStream(mCountingIn, 1024));
                 mParser = new ImapResponseParser(mIn);
                 mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
 
@@ -2484,8 +2896,8 @@ public class ImapStore extends Store {
                         mSocket = TrustedSocketFactory.createSocket(sslContext, mSocket,
                                 mSettings.getHost(), mSettings.getPort(), true);
                         mSocket.setSoTimeout(Store.SOCKET_READ_TIMEOUT);
-                        mIn = new PeekableInputStream(new BufferedInputStream(mSocket
-                                                      .getInputStream(), 1024));
+                        mCountingIn = new CountingInputStream(mSocket.getInputStream());
+                        mIn = new PeekableInputStream(new BufferedInputStream(mCountingIn, 1024));
                         mParser = new ImapResponseParser(mIn);
                         mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
                         // Per RFC 2595 (3.1):  Once TLS has been started, reissue CAPABILITY command
@@ -2557,7 +2969,8 @@ public class ImapStore extends Store {
                         try {
                             executeSimpleCommand(COMMAND_COMPRESS_DEFLATE);
                             Inflater inf = new Inflater(true);
-                            InflaterInputStream zInputStream = new InflaterInputStream(mSocket.getInputStream(), inf);
+                            mCountingIn = new CountingInputStream(mSocket.getInputStream());
+                            InflaterInputStream zInputStream = new InflaterInputStream(mCountingIn, inf);
                             mIn = new PeekableInputStream(new BufferedInputStream(zInputStream, 1024));
                             mParser = new ImapResponseParser(mIn);
                             ZOutputStream zOutputStream = new ZOutputStream(mSocket.getOutputStream(), JZlib.Z_BEST_SPEED, true);
@@ -2613,6 +3026,10 @@ public class ImapStore extends Store {
                         mSettings.setPathPrefix("");
                     }
                 }
+                if (hasCapability(CAPABILITY_QRESYNC)) {
+                    enableQresync();
+                }
+
                 if (mSettings.getPathDelimeter() == null) {
                     try {
                         List<ImapResponse> nameResponses =
@@ -2742,6 +3159,7 @@ public class ImapStore extends Store {
                 if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
                     Log.v(K9.LOG_TAG, getLogId() + "<<<" + response);
 
+                commandCompleted(response);
                 if (response.mTag != null && !response.mTag.equalsIgnoreCase(tag)) {
                     Log.w(K9.LOG_TAG, "After sending tag " + tag + ", got tag response from previous command " + response + " for " + getLogId());
                     Iterator<ImapResponse> iter = responses.iterator();
@@ -2761,7 +3179,8 @@ public class ImapStore extends Store {
                 responses.add(response);
             } while (response.mTag == null);
             if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
-                throw new ImapException("Command: " + commandToLog + "; response: " + response.toString(), response.getAlertText());
+                throw new ImapException("Command: " + commandToLog + "; response: " + response.toString(),
+                        response.getAlertText(), response.getResponseCode());
             }
             return responses;
         }
@@ -2773,6 +3192,43 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Enable the QRESYNC extension (RFC 5162) for this connection.
+         *
+         * <p>
+         * Once enabled the server will report expunged messages using VANISHED responses
+         * containing UIDs instead of EXPUNGE responses.
+         * </p>
+         */
+        private void enableQresync() {
+            try {
+                List<ImapResponse> responses = executeSimpleCommand(COMMAND_ENABLE_QRESYNC);
+                for (ImapResponse response : responses) {
+                    // * ENABLED QRESYNC
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(0), "ENABLED")) {
+                        for (int i = 1, count = response.size(); i < count; i++) {
+                            if (ImapResponseParser.equalsIgnoreCase(response.get(i), CAPABILITY_QRESYNC)) {
+                                mQresyncEnabled = true;
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Unable to enable QRESYNC for " + getLogId(), e);
+            }
+
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "QRESYNC enabled = " + mQresyncEnabled + " for " + getLogId());
+        }
+
+        protected boolean isCondstoreCapable() {
+            return hasCapability(CAPABILITY_CONDSTORE) || hasCapability(CAPABILITY_QRESYNC);
+        }
+
+        protected boolean isQresyncEnabled() {
+            return mQresyncEnabled;
+        }
+
         protected boolean isIdleCapable() {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Connection " + getLogId() + " has " + capabilities.size() + " capabilities");
@@ -2802,19 +3258,74 @@ public class ImapStore extends Store {
             mIn = null;
             mOut = null;
             mSocket = null;
+            mPendingTags.clear();
+            mSelectedFolder = null;
         }
 
-        public ImapResponse readResponse() throws IOException, MessagingException {
-            return readResponse(null);
+        /**
+         * Remember the folder selected by a successful {@code SELECT} or {@code EXAMINE}.
+         *
+         * @param selectedFolder
+         *         The state of the selected folder, or {@code null} if a selection failed and the
+         *         connection is now in the authenticated state.
+         */
+        public void setSelectedFolder(SelectedFolder selectedFolder) {
+            mSelectedFolder = selectedFolder;
         }
 
-        public ImapResponse readResponse(ImapResponseParser.IImapResponseCallback callback) throws IOException {
-            try {
-                ImapResponse response = mParser.readResponse(callback);
-                if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
-                    Log.v(K9.LOG_TAG, getLogId() + "<<<" + response);
+        /**
+         * @return The folder currently selected on this connection, or {@code null} if no folder
+         *         is selected or the state is no longer known.
+         */
+        public SelectedFolder getSelectedFolder() {
+            return mSelectedFolder;
+        }
 
-                return response;
+        /**
+         * @return The prefixed name of the folder currently selected on this connection, or
+         *         {@code null} if no folder is selected.
+         */
+        public String getSelectedFolderName() {
+            SelectedFolder selectedFolder = mSelectedFolder;
+            return (selectedFolder != null) ? selectedFolder.name : null;
+        }
+
+        /**
+         * @return The number of commands sent with {@link #sendCommand(String, boolean)} whose
+         *         tagged response hasn't been read yet.
+         */
+        public int getPendingCommandCount() {
+            return mPendingTags.size();
+        }
+
+        /**
+         * @return The number of bytes read from the network since the connection was opened. When
+         *         compression is enabled this counts the compressed bytes.
+         */
+        public long getBytesRead() {
+            CountingInputStream countingIn = mCountingIn;
+            return (countingIn == null) ? 0 : countingIn.getByteCount();
+        }
+
+        private void commandCompleted(ImapResponse response) {
+            if (response.mTag != null) {
+                mPendingTags.remove(response.mTag);
+            }
+        }
+
+        public ImapResponse readResponse() throws IOException, MessagingException {
+            return readResponse(null);
+        }
+
+        public ImapResponse readResponse(ImapResponseParser.IImapResponseCallback callback) throws IOException {
+            try {
+                ImapResponse response = mParser.readResponse(callback);
+                if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
+                    Log.v(K9.LOG_TAG, getLogId() + "<<<" + response);
+
+                commandCompleted(response);
+
+                return response;
             } catch (IOException ioe) {
                 close();
                 throw ioe;
@@ -2840,6 +3351,7 @@ public class ImapStore extends Store {
                 String commandToSend = tag + " " + command + "\r\n";
                 mOut.write(commandToSend.getBytes());
                 mOut.flush();
+                mPendingTags.add(tag);
 
                 if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
                     if (sensitive && !K9.DEBUG_SENSITIVE) {
@@ -2937,10 +3449,16 @@ public class ImapStore extends Store {
     static class ImapException extends MessagingException {
         private static final long serialVersionUID = 3725007182205882394L;
         String mAlertText;
+        String mResponseCode;
 
         public ImapException(String message, String alertText) {
+            this(message, alertText, null);
+        }
+
+        public ImapException(String message, String alertText, String responseCode) {
             super(message, true);
             this.mAlertText = alertText;
+            this.mResponseCode = responseCode;
         }
 
         public String getAlertText() {
@@ -2950,6 +3468,115 @@ public class ImapStore extends Store {
         public void setAlertText(String alertText) {
             mAlertText = alertText;
         }
+
+        /**
+         * @return The response code of the failed command, e.g. {@code BADEVENT}, or
+         *         {@code null}.
+         */
+        public String getResponseCode() {
+            return mResponseCode;
+        }
+    }
+
+    /**
+     * The listening loop shared by the pushers.
+     *
+     * <p>
+     * {@link #idle()} is called until the pusher is stopped. After an error the connection is
+     * closed and the loop sleeps before trying again, doubling the delay every time up to
+     * {@link #MAX_DELAY_TIME}. After {@link #IDLE_FAILURE_COUNT_LIMIT} consecutive errors the
+     * pusher is stopped.
+     * </p>
+     */
+    private static abstract class IdleLoop implements Runnable {
+        private final PushReceiver mReceiver;
+        private final TracingWakeLock mWakeLock;
+        private final AtomicBoolean mStop;
+        private int mDelayTime = NORMAL_DELAY_TIME;
+        private int mFailureCount = 0;
+
+        IdleLoop(PushReceiver receiver, TracingWakeLock wakeLock, AtomicBoolean stop) {
+            mReceiver = receiver;
+            mWakeLock = wakeLock;
+            mStop = stop;
+        }
+
+        /**
+         * Open the connection if necessary, synchronize what has changed and idle.
+         *
+         * @return {@code false} if the pusher can't continue and the loop should end.
+         */
+        protected abstract boolean idle() throws Exception;
+
+        /**
+         * Reset the delay and the failure count once {@code IDLE} worked.
+         */
+        protected void idleSucceeded() {
+            mDelayTime = NORMAL_DELAY_TIME;
+            mFailureCount = 0;
+        }
+
+        /**
+         * Clean up after {@link #idle()} failed. Called with the wake lock held.
+         */
+        protected abstract void closeAfterError();
+
+        /**
+         * Called when the loop has ended, before the wake lock is released.
+         */
+        protected abstract void exit();
+
+        /**
+         * @return The name of the watched folders used in the errors passed to the
+         *         {@link PushReceiver}.
+         */
+        protected abstract String getPushName();
+
+        protected abstract String getLogId();
+
+        public void run() {
+            mWakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+            if (K9.DEBUG)
+                Log.i(K9.LOG_TAG, "Pusher starting for " + getLogId());
+
+            try {
+                while (!mStop.get()) {
+                    try {
+                        if (!idle()) {
+                            break;
+                        }
+                    } catch (Exception e) {
+                        mWakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                        closeAfterError();
+                        if (mStop.get()) {
+                            Log.i(K9.LOG_TAG, "Got exception while idling, but stop is set for " + getLogId());
+                        } else {
+                            handleError(e);
+                        }
+                    }
+                }
+
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Pusher for " + getLogId() + " is exiting");
+                exit();
+            } finally {
+                mWakeLock.release();
+            }
+        }
+
+        private void handleError(Exception e) {
+            mReceiver.pushError("Push error for " + getPushName(), e);
+            Log.e(K9.LOG_TAG, "Got exception while idling for " + getLogId(), e);
+            mReceiver.sleep(mWakeLock, mDelayTime);
+            mDelayTime = Math.min(mDelayTime * 2, MAX_DELAY_TIME);
+            if (++mFailureCount > IDLE_FAILURE_COUNT_LIMIT) {
+                Log.e(K9.LOG_TAG, "Disabling pusher for " + getLogId() + " after " +
+                        mFailureCount + " consecutive errors");
+                mReceiver.pushError("Push disabled for " + getPushName() + " after " +
+                        mFailureCount + " consecutive errors", e);
+                mStop.set(true);
+            }
+        }
     }
 
     public class ImapFolderPusher extends ImapFolder implements UntaggedHandler {
@@ -2958,8 +3585,6 @@ public class ImapStore extends Store {
         final AtomicBoolean stop = new AtomicBoolean(false);
         final AtomicBoolean idling = new AtomicBoolean(false);
         final AtomicBoolean doneSent = new AtomicBoolean(false);
-        final AtomicInteger delayTime = new AtomicInteger(NORMAL_DELAY_TIME);
-        final AtomicInteger idleFailureCount = new AtomicInteger(0);
         final AtomicBoolean needsPoll = new AtomicBoolean(false);
         List<ImapResponse> storedUntaggedResponses = new ArrayList<ImapResponse>();
         TracingWakeLock wakeLock = null;
@@ -2999,168 +3624,155 @@ public class ImapStore extends Store {
         }
 
         public void start() {
-            Runnable runner = new Runnable() {
-                public void run() {
-                    wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Pusher starting for " + getLogId());
+            IdleLoop runner = new IdleLoop(receiver, wakeLock, stop) {
+                private long lastUidNext = -1L;
 
-                    long lastUidNext = -1L;
-                    while (!stop.get()) {
-                        try {
-                            long oldUidNext = -1L;
-                            try {
-                                String pushStateS = receiver.getPushState(getName());
-                                ImapPushState pushState = ImapPushState.parse(pushStateS);
-                                oldUidNext = pushState.uidNext;
-                                if (K9.DEBUG)
-                                    Log.i(K9.LOG_TAG, "Got oldUidNext " + oldUidNext + " for " + getLogId());
-                            } catch (Exception e) {
-                                Log.e(K9.LOG_TAG, "Unable to get oldUidNext for " + getLogId(), e);
-                            }
+                @Override
+                protected boolean idle() throws Exception {
+                    long oldUidNext = -1L;
+                    try {
+                        String pushStateS = receiver.getPushState(getName());
+                        ImapPushState pushState = ImapPushState.parse(pushStateS);
+                        oldUidNext = pushState.uidNext;
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Got oldUidNext " + oldUidNext + " for " + getLogId());
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Unable to get oldUidNext for " + getLogId(), e);
+                    }
 
-                            /*
-                             * This makes sure 'oldUidNext' is never smaller than 'UIDNEXT' from
-                             * the last loop iteration. This way we avoid looping endlessly causing
-                             * the battery to drain.
-                             *
-                             * See issue 4907
-                             */
-                            if (oldUidNext < lastUidNext) {
-                                oldUidNext = lastUidNext;
-                            }
+                    /*
+                     * This makes sure 'oldUidNext' is never smaller than 'UIDNEXT' from
+                     * the last loop iteration. This way we avoid looping endlessly causing
+                     * the battery to drain.
+                     *
+                     * See issue 4907
+                     */
+                    if (oldUidNext < lastUidNext) {
+                        oldUidNext = lastUidNext;
+                    }
 
-                            ImapConnection oldConnection = mConnection;
-                            internalOpen(OPEN_MODE_RO);
-                            ImapConnection conn = mConnection;
-                            if (conn == null) {
-                                receiver.pushError("Could not establish connection for IDLE", null);
-                                throw new MessagingException("Could not establish connection for IDLE");
+                    ImapConnection oldConnection = mConnection;
+                    internalOpen(OPEN_MODE_RO);
+                    ImapConnection conn = mConnection;
+                    if (conn == null) {
+                        receiver.pushError("Could not establish connection for IDLE", null);
+                        throw new MessagingException("Could not establish connection for IDLE");
 
-                            }
-                            if (!conn.isIdleCapable()) {
-                                stop.set(true);
-                                receiver.pushError("IMAP server is not IDLE capable: " + conn.toString(), null);
-                                throw new MessagingException("IMAP server is not IDLE capable:" + conn.toString());
-                            }
+                    }
+                    if (!conn.isIdleCapable()) {
+                        stop.set(true);
+                        receiver.pushError("IMAP server is not IDLE capable: " + conn.toString(), null);
+                        throw new MessagingException("IMAP server is not IDLE capable:" + conn.toString());
+                    }
 
-                            if (!stop.get() && mAccount.isPushPollOnConnect() && (conn != oldConnection || needsPoll.getAndSet(false))) {
-                                List<ImapResponse> untaggedResponses = new ArrayList<ImapResponse>(storedUntaggedResponses);
-                                storedUntaggedResponses.clear();
-                                processUntaggedResponses(untaggedResponses);
-                                if (mMessageCount == -1) {
-                                    throw new MessagingException("Message count = -1 for idling");
-                                }
-                                receiver.syncFolder(ImapFolderPusher.this);
-                            }
-                            if (stop.get()) {
-                                continue;
-                            }
-                            long startUid = oldUidNext;
+                    if (!stop.get() && mAccount.isPushPollOnConnect() && (conn != oldConnection || needsPoll.getAndSet(false))) {
+                        List<ImapResponse> untaggedResponses = new ArrayList<ImapResponse>(storedUntaggedResponses);
+                        storedUntaggedResponses.clear();
+                        processUntaggedResponses(untaggedResponses);
+                        if (mMessageCount == -1) {
+                            throw new MessagingException("Message count = -1 for idling");
+                        }
+                        receiver.syncFolder(ImapFolderPusher.this);
+                    }
+                    if (stop.get()) {
+                        return true;
+                    }
+                    long startUid = oldUidNext;
 
-                            long newUidNext = uidNext;
+                    long newUidNext = uidNext;
 
-                            if (newUidNext == -1) {
-                                if (K9.DEBUG) {
-                                    Log.d(K9.LOG_TAG, "uidNext is -1, using search to find highest UID");
-                                }
-                                long highestUid = getHighestUid();
-                                if (highestUid != -1L) {
-                                    if (K9.DEBUG)
-                                        Log.d(K9.LOG_TAG, "highest UID = " + highestUid);
-                                    newUidNext = highestUid + 1;
-                                    if (K9.DEBUG)
-                                        Log.d(K9.LOG_TAG, "highest UID = " + highestUid
-                                              + ", set newUidNext to " + newUidNext);
-                                }
-                            }
+                    if (newUidNext == -1) {
+                        if (K9.DEBUG) {
+                            Log.d(K9.LOG_TAG, "uidNext is -1, using search to find highest UID");
+                        }
+                        long highestUid = getHighestUid();
+                        if (highestUid != -1L) {
+                            if (K9.DEBUG)
+                                Log.d(K9.LOG_TAG, "highest UID = " + highestUid);
+                            newUidNext = highestUid + 1;
+                            if (K9.DEBUG)
+                                Log.d(K9.LOG_TAG, "highest UID = " + highestUid
+                                      + ", set newUidNext to " + newUidNext);
+                        }
+                    }
 
-                            if (startUid < newUidNext - mAccount.getDisplayCount()) {
-                                startUid = newUidNext - mAccount.getDisplayCount();
-                            }
-                            if (startUid < 1) {
-                                startUid = 1;
-                            }
+                    if (startUid < newUidNext - mAccount.getDisplayCount()) {
+                        startUid = newUidNext - mAccount.getDisplayCount();
+                    }
+                    if (startUid < 1) {
+                        startUid = 1;
+                    }
 
-                            lastUidNext = newUidNext;
-                            if (newUidNext > startUid) {
+                    lastUidNext = newUidNext;
+                    if (newUidNext > startUid) {
 
-                                if (K9.DEBUG)
-                                    Log.i(K9.LOG_TAG, "Needs sync from uid " + startUid  + " to " + newUidNext + " for " + getLogId());
-                                List<Message> messages = new ArrayList<Message>();
-                                for (long uid = startUid; uid < newUidNext; uid++) {
-                                    ImapMessage message = new ImapMessage("" + uid, ImapFolderPusher.this);
-                                    messages.add(message);
-                                }
-                                if (!messages.isEmpty()) {
-                                    pushMessages(messages, true);
-                                }
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Needs sync from uid " + startUid  + " to " + newUidNext + " for " + getLogId());
+                        List<Message> messages = new ArrayList<Message>();
+                        for (long uid = startUid; uid < newUidNext; uid++) {
+                            ImapMessage message = new ImapMessage("" + uid, ImapFolderPusher.this);
+                            messages.add(message);
+                        }
+                        if (!messages.isEmpty()) {
+                            pushMessages(messages, true);
+                        }
 
-                            } else {
-                                List<ImapResponse> untaggedResponses = null;
-                                while (!storedUntaggedResponses.isEmpty()) {
-                                    if (K9.DEBUG)
-                                        Log.i(K9.LOG_TAG, "Processing " + storedUntaggedResponses.size() + " untagged responses from previous commands for " + getLogId());
-                                    untaggedResponses = new ArrayList<ImapResponse>(storedUntaggedResponses);
-                                    storedUntaggedResponses.clear();
-                                    processUntaggedResponses(untaggedResponses);
-                                }
+                    } else {
+                        List<ImapResponse> untaggedResponses = null;
+                        while (!storedUntaggedResponses.isEmpty()) {
+                            if (K9.DEBUG)
+                                Log.i(K9.LOG_TAG, "Processing " + storedUntaggedResponses.size() + " untagged responses from previous commands for " + getLogId());
+                            untaggedResponses = new ArrayList<ImapResponse>(storedUntaggedResponses);
+                            storedUntaggedResponses.clear();
+                            processUntaggedResponses(untaggedResponses);
+                        }
 
-                                if (K9.DEBUG)
-                                    Log.i(K9.LOG_TAG, "About to IDLE for " + getLogId());
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "About to IDLE for " + getLogId());
 
-                                receiver.setPushActive(getName(), true);
-                                idling.set(true);
-                                doneSent.set(false);
+                        receiver.setPushActive(getName(), true);
+                        idling.set(true);
+                        doneSent.set(false);
 
-                                conn.setReadTimeout((getAccount().getIdleRefreshMinutes() * 60 * 1000) + IDLE_READ_TIMEOUT_INCREMENT);
-                                untaggedResponses = executeSimpleCommand(COMMAND_IDLE, false, ImapFolderPusher.this);
-                                idling.set(false);
-                                delayTime.set(NORMAL_DELAY_TIME);
-                                idleFailureCount.set(0);
-                            }
-                        } catch (Exception e) {
-                            wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
-                            storedUntaggedResponses.clear();
-                            idling.set(false);
-                            receiver.setPushActive(getName(), false);
-                            try {
-                                close();
-                            } catch (Exception me) {
-                                Log.e(K9.LOG_TAG, "Got exception while closing for exception for " + getLogId(), me);
-                            }
-                            if (stop.get()) {
-                                Log.i(K9.LOG_TAG, "Got exception while idling, but stop is set for " + getLogId());
-                            } else {
-                                receiver.pushError("Push error for " + getName(), e);
-                                Log.e(K9.LOG_TAG, "Got exception while idling for " + getLogId(), e);
-                                int delayTimeInt = delayTime.get();
-                                receiver.sleep(wakeLock, delayTimeInt);
-                                delayTimeInt *= 2;
-                                if (delayTimeInt > MAX_DELAY_TIME) {
-                                    delayTimeInt = MAX_DELAY_TIME;
-                                }
-                                delayTime.set(delayTimeInt);
-                                if (idleFailureCount.incrementAndGet() > IDLE_FAILURE_COUNT_LIMIT) {
-                                    Log.e(K9.LOG_TAG, "Disabling pusher for " + getLogId() + " after " + idleFailureCount.get() + " consecutive errors");
-                                    receiver.pushError("Push disabled for " + getName() + " after " + idleFailureCount.get() + " consecutive errors", e);
-                                    stop.set(true);
-                                }
+                        conn.setReadTimeout((getAccount().getIdleRefreshMinutes() * 60 * 1000) + IDLE_READ_TIMEOUT_INCREMENT);
+                        untaggedResponses = executeSimpleCommand(COMMAND_IDLE, false, ImapFolderPusher.this);
+                        idling.set(false);
+                        idleSucceeded();
+                    }
+                    return true;
+                }
 
-                            }
-                        }
+                @Override
+                protected void closeAfterError() {
+                    storedUntaggedResponses.clear();
+                    idling.set(false);
+                    receiver.setPushActive(getName(), false);
+                    try {
+                        close();
+                    } catch (Exception me) {
+                        Log.e(K9.LOG_TAG, "Got exception while closing for exception for " + getLogId(), me);
                     }
+                }
+
+                @Override
+                protected void exit() {
                     receiver.setPushActive(getName(), false);
                     try {
-                        if (K9.DEBUG)
-                            Log.i(K9.LOG_TAG, "Pusher for " + getLogId() + " is exiting");
                         close();
                     } catch (Exception me) {
                         Log.e(K9.LOG_TAG, "Got exception while closing for " + getLogId(), me);
-                    } finally {
-                        wakeLock.release();
                     }
                 }
+
+                @Override
+                protected String getPushName() {
+                    return getName();
+                }
+
+                @Override
+                protected String getLogId() {
+                    return ImapFolderPusher.this.getLogId();
+                }
             };
             listeningThread = new Thread(runner);
             listeningThread.start();
@@ -3313,6 +3925,19 @@ public class ImapStore extends Store {
                             flagSyncMsgSeqs.add(msgSeq);
                         }
                     }
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED") &&
+                            !(responseType instanceof ImapList)) {
+                        // QRESYNC is enabled: "* VANISHED 405,411" lists the UIDs of the
+                        // expunged messages. We can't tell which message sequence numbers
+                        // changed, so the cached mapping has to be dropped.
+                        List<String> uids = ImapUtility.getImapSequenceValues(response.getString(1));
+                        if (K9.DEBUG)
+                            Log.d(K9.LOG_TAG, "Got untagged VANISHED for UIDs " + uids + " for " + getLogId());
+
+                        messageCountDelta = -uids.size();
+                        removeMsgUids.addAll(uids);
+                        msgSeqUidMap.clear();
+                    }
                     if (ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE")) {
                         long msgSeq = response.getLong(0);
                         if (msgSeq <= oldMessageCount) {
@@ -3443,17 +4068,526 @@ public class ImapStore extends Store {
             }
         }
     }
+    /**
+     * Pushes changes of several folders using a single connection.
+     *
+     * <p>
+     * Unlike {@link ImapFolderPusher} this doesn't try to figure out which messages changed.
+     * Folders with changes are synchronized using {@link PushReceiver#syncFolder(Folder)}.
+     * </p>
+     */
+    abstract class MultiFolderPusher implements UntaggedHandler {
+        protected final PushReceiver mReceiver;
+        protected final List<String> mFolderNames;
+        private final TracingWakeLock mWakeLock;
+        private final AtomicBoolean mStop = new AtomicBoolean(false);
+        private final AtomicBoolean mIdling = new AtomicBoolean(false);
+        private final AtomicBoolean mDoneSent = new AtomicBoolean(false);
+        private final AtomicBoolean mRefreshRequested = new AtomicBoolean(false);
+        private final Set<String> mChangedFolders = new LinkedHashSet<String>();
+        private volatile ImapConnection mConnection;
+        private Thread mListeningThread;
+        private boolean mUnsupported;
+
+        MultiFolderPusher(PushReceiver receiver, List<String> folderNames) {
+            mReceiver = receiver;
+            mFolderNames = folderNames;
+            TracingPowerManager pm = TracingPowerManager.getPowerManager(receiver.getContext());
+            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getClass().getSimpleName() +
+                    " " + mAccount.getDescription() + ":" + folderNames);
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        /**
+         * Called after a new connection has been opened.
+         *
+         * @return {@code false} if the connection can't be used by this pusher.
+         */
+        protected abstract boolean prepareConnection(ImapConnection conn)
+                throws IOException, MessagingException;
+
+        /**
+         * Called after {@link #prepareConnection(ImapConnection)} returned {@code false}. The
+         * pusher has stopped at this point.
+         */
+        protected abstract void connectionUnsupported();
+
+        /**
+         * Called before every {@code IDLE} command.
+         */
+        protected void beforeIdle(ImapConnection conn) throws IOException, MessagingException {
+        }
+
+        /**
+         * Called after every {@code IDLE} command.
+         *
+         * @param refreshed
+         *         {@code true} if {@code IDLE} was ended by {@link #refresh()}, {@code false} if
+         *         it was ended because of a change.
+         */
+        protected void afterIdle(ImapConnection conn, boolean refreshed)
+                throws IOException, MessagingException {
+        }
+
+        /**
+         * Handle an untagged response received while idling.
+         *
+         * @return {@code true} if {@code IDLE} should be ended to synchronize the folders passed
+         *         to {@link #folderChanged(String)}.
+         */
+        protected abstract boolean handleIdleResponse(ImapResponse response);
+
+        protected void folderChanged(String folderName) {
+            mChangedFolders.add(folderName);
+        }
+
+        public void start() {
+            mListeningThread = new Thread(new IdleLoop(mReceiver, mWakeLock, mStop) {
+                @Override
+                protected boolean idle() throws Exception {
+                    ImapConnection conn = mConnection;
+                    if (conn == null || !conn.isOpen()) {
+                        closeConnection();
+                        conn = mConnectionPool.checkoutNew();
+                        mConnection = conn;
+                        conn.open();
+                        if (!prepareConnection(conn)) {
+                            mUnsupported = true;
+                            return false;
+                        }
+                        if (mAccount.isPushPollOnConnect()) {
+                            mChangedFolders.addAll(mFolderNames);
+                        }
+                    }
+
+                    beforeIdle(conn);
+                    syncChangedFolders();
+                    if (mStop.get()) {
+                        return true;
+                    }
+
+                    if (K9.DEBUG)
+                        Log.i(K9.LOG_TAG, "About to IDLE for " + getLogId());
+
+                    setPushActive(true);
+                    mRefreshRequested.set(false);
+                    mIdling.set(true);
+                    mDoneSent.set(false);
+                    conn.setReadTimeout((mAccount.getIdleRefreshMinutes() * 60 * 1000) +
+                            IDLE_READ_TIMEOUT_INCREMENT);
+                    conn.executeSimpleCommand(COMMAND_IDLE, false, MultiFolderPusher.this);
+                    mIdling.set(false);
+
+                    afterIdle(conn, mRefreshRequested.getAndSet(false));
+                    syncChangedFolders();
+                    idleSucceeded();
+                    return true;
+                }
+
+                @Override
+                protected void closeAfterError() {
+                    mIdling.set(false);
+                    setPushActive(false);
+                    closeConnection();
+                }
+
+                @Override
+                protected void exit() {
+                    setPushActive(false);
+                    closeConnection();
+                    if (mUnsupported) {
+                        connectionUnsupported();
+                    }
+                }
+
+                @Override
+                protected String getPushName() {
+                    return mFolderNames.toString();
+                }
+
+                @Override
+                protected String getLogId() {
+                    return MultiFolderPusher.this.getLogId();
+                }
+            });
+            mListeningThread.start();
+        }
+
+        private void syncChangedFolders() {
+            if (mChangedFolders.isEmpty()) {
+                return;
+            }
+
+            List<String> folderNames = new ArrayList<String>(mChangedFolders);
+            mChangedFolders.clear();
+            for (String folderName : folderNames) {
+                if (mStop.get()) {
+                    return;
+                }
+
+                // The folder is used by the sync, so don't hand out the cached instance
+                ImapFolder folder = new ImapFolder(ImapStore.this, folderName);
+                try {
+                    mReceiver.syncFolder(folder);
+                } finally {
+                    folder.close();
+                }
+            }
+        }
+
+        private void setPushActive(boolean enabled) {
+            for (String folderName : mFolderNames) {
+                mReceiver.setPushActive(folderName, enabled);
+            }
+        }
+
+        private void closeConnection() {
+            ImapConnection conn = mConnection;
+            mConnection = null;
+            if (conn != null) {
+                // The connection may have NOTIFY enabled, so it can't be used for anything else
+                conn.close();
+                releaseConnection(conn);
+            }
+        }
+
+        public void refresh() throws IOException {
+            if (mIdling.get()) {
+                mWakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                mRefreshRequested.set(true);
+                sendDone();
+            }
+        }
+
+        private void sendDone() throws IOException {
+            if (mDoneSent.compareAndSet(false, true)) {
+                ImapConnection conn = mConnection;
+                if (conn != null) {
+                    conn.setReadTimeout(Store.SOCKET_READ_TIMEOUT);
+                    conn.sendContinuation("DONE");
+                }
+            }
+        }
+
+        public void stop() {
+            mStop.set(true);
+            if (mListeningThread != null) {
+                mListeningThread.interrupt();
+            }
+            ImapConnection conn = mConnection;
+            if (conn != null) {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Closing connection to stop pushing for " + getLogId());
+                conn.close();
+            }
+        }
+
+        public void handleAsyncUntaggedResponse(ImapResponse response) {
+            if (response.mTag != null) {
+                return;
+            }
+
+            boolean endIdle;
+            if (mStop.get()) {
+                endIdle = true;
+            } else if (response.mCommandContinuationRequested) {
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "Idling " + getLogId());
+
+                mWakeLock.release();
+                endIdle = false;
+            } else {
+                endIdle = handleIdleResponse(response);
+                if (endIdle) {
+                    mWakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Got useful async untagged response: " + response +
+                                " for " + getLogId());
+                }
+            }
+
+            if (endIdle) {
+                try {
+                    sendDone();
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, "Exception while sending DONE for " + getLogId(), e);
+                }
+            }
+        }
+
+        protected String getLogId() {
+            ImapConnection conn = mConnection;
+            return getClass().getSimpleName() + " " + mAccount.getDescription() + ":" +
+                    mFolderNames + "/" + ((conn != null) ? conn.getLogId() : "not connected");
+        }
+    }
+
+    /**
+     * Watches all push folders over one connection using the NOTIFY extension (RFC 5465).
+     *
+     * <p>
+     * No folder is selected. The server reports new and expunged messages (and, depending on
+     * the server, flag changes) of the watched folders with {@code STATUS} responses while the
+     * connection is idling. If the server doesn't support NOTIFY, the {@link ImapPusher} falls
+     * back to {@code IDLE}.
+     * </p>
+     */
+    class NotifyPusher extends MultiFolderPusher {
+        private final ImapPusher mPusher;
+
+        /**
+         * Maps the encoded names of the watched mailboxes to folder names.
+         */
+        private final Map<String, String> mMailboxes = new HashMap<String, String>();
+        private boolean mNotifyLost;
+
+        /**
+         * Whether to ask for flag changes. Servers that don't support them answer with
+         * {@code BADEVENT}, and flag changes are then only noticed by the next poll.
+         */
+        private boolean mFlagChanges = true;
+
+        NotifyPusher(ImapPusher pusher, PushReceiver receiver, List<String> folderNames) {
+            super(receiver, folderNames);
+            mPusher = pusher;
+        }
+
+        @Override
+        protected boolean prepareConnection(ImapConnection conn)
+                throws IOException, MessagingException {
+            if (!conn.hasCapability(CAPABILITY_NOTIFY) || !conn.isIdleCapable()) {
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Server doesn't support NOTIFY for " + getLogId());
+
+                mNotifyCapable = Boolean.FALSE;
+                return false;
+            }
+
+            try {
+                try {
+                    sendNotify(conn);
+                } catch (ImapException e) {
+                    if (!mFlagChanges || !"BADEVENT".equalsIgnoreCase(e.getResponseCode())) {
+                        throw e;
+                    }
+
+                    if (K9.DEBUG)
+                        Log.i(K9.LOG_TAG, "Server doesn't report flag changes for " + getLogId());
+
+                    mFlagChanges = false;
+                    sendNotify(conn);
+                }
+            } catch (ImapException e) {
+                // Use IDLE for now, but try again the next time the pusher is started. The
+                // server might only have rejected one of the folders.
+                Log.w(K9.LOG_TAG, "Server rejected NOTIFY for " + getLogId(), e);
+                return false;
+            }
+
+            mNotifyCapable = Boolean.TRUE;
+            return true;
+        }
+
+        private void sendNotify(ImapConnection conn) throws IOException, MessagingException {
+            mMailboxes.clear();
+            StringBuilder mailboxes = new StringBuilder();
+            for (String folderName : mFolderNames) {
+                String mailbox = encodeFolderName(getPrefixedName(folderName));
+                mMailboxes.put(mailbox, folderName);
+                if (mailboxes.length() > 0) {
+                    mailboxes.append(' ');
+                }
+                mailboxes.append(encodeString(mailbox));
+            }
+
+            // FlagChange requires MessageNew and MessageExpunge to be present, too
+            String events = (mFlagChanges) ?
+                    "MessageNew MessageExpunge FlagChange" : "MessageNew MessageExpunge";
+            conn.executeSimpleCommand(String.format("NOTIFY SET (MAILBOXES (%s) (%s))",
+                    mailboxes, events));
+            mNotifyLost = false;
+        }
+
+        @Override
+        protected void connectionUnsupported() {
+            mPusher.fallBackToIdle(this);
+        }
+
+        @Override
+        protected void beforeIdle(ImapConnection conn) throws IOException, MessagingException {
+            if (mNotifyLost) {
+                sendNotify(conn);
+            }
+        }
+
+        @Override
+        protected boolean handleIdleResponse(ImapResponse response) {
+            if (response.size() < 2) {
+                return false;
+            }
+
+            // * STATUS "INBOX" (MESSAGES 232 UIDNEXT 44293)
+            if (ImapResponseParser.equalsIgnoreCase(response.get(0), "STATUS")) {
+                String mailbox = response.getString(1);
+                String folderName = mMailboxes.get(mailbox);
+                if (folderName == null && "INBOX".equalsIgnoreCase(mailbox)) {
+                    folderName = mMailboxes.get(mAccount.getInboxFolderName());
+                }
+
+                if (folderName != null) {
+                    folderChanged(folderName);
+                    return true;
+                }
+            }
+
+            // * OK [NOTIFICATIONOVERFLOW] Too many notifications
+            if (ImapResponseParser.equalsIgnoreCase(response.get(0), "OK") &&
+                    "NOTIFICATIONOVERFLOW".equalsIgnoreCase(response.getResponseCode())) {
+                // The server stopped sending notifications and we don't know what changed
+                for (String folderName : mFolderNames) {
+                    folderChanged(folderName);
+                }
+                mNotifyLost = true;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Watches a group of push folders with one connection by selecting one folder after the
+     * other.
+     *
+     * <p>
+     * The selected folder is watched using {@code IDLE}. Every time the connection is refreshed
+     * the next folder is selected, and the other folders are checked for changes using
+     * {@code STATUS}. When {@code IDLE} is ended because the selected folder changed, the other
+     * folders are checked as well, but the same folder is selected again.
+     * </p>
+     */
+    class RotatingIdlePusher extends MultiFolderPusher {
+        private final Map<String, String> mStatuses = new HashMap<String, String>();
+        private int mCurrent = 0;
+        private String mSelectedFolder;
+
+        /**
+         * Notices changes of the selected folder that are reported outside of {@code IDLE}.
+         */
+        private final UntaggedHandler mSelectedFolderHandler = new UntaggedHandler() {
+            public void handleAsyncUntaggedResponse(ImapResponse response) {
+                if (response.mTag == null) {
+                    handleIdleResponse(response);
+                }
+            }
+        };
+
+        RotatingIdlePusher(PushReceiver receiver, List<String> folderNames) {
+            super(receiver, folderNames);
+        }
+
+        @Override
+        protected boolean prepareConnection(ImapConnection conn) {
+            mSelectedFolder = null;
+            return conn.isIdleCapable();
+        }
+
+        @Override
+        protected void connectionUnsupported() {
+            mReceiver.pushError("IMAP server is not IDLE capable", null);
+        }
+
+        @Override
+        protected void beforeIdle(ImapConnection conn) throws IOException, MessagingException {
+            String nextFolder = mFolderNames.get(mCurrent);
+
+            if (mFolderNames.size() > 1) {
+                // Changes of the selected folder are reported while idling
+                List<String> folderNames = new ArrayList<String>(mFolderNames);
+                folderNames.remove(mSelectedFolder);
+
+                Map<String, String> statuses = getFolderStatuses(conn, folderNames,
+                        mSelectedFolderHandler);
+                for (Map.Entry<String, String> entry : statuses.entrySet()) {
+                    String oldStatus = mStatuses.put(entry.getKey(), entry.getValue());
+                    if (oldStatus != null && !oldStatus.equals(entry.getValue())) {
+                        folderChanged(entry.getKey());
+                    }
+                }
+            }
+
+            if (!nextFolder.equals(mSelectedFolder)) {
+                String idledFolder = mSelectedFolder;
+                mSelectedFolder = null;
+                try {
+                    conn.executeSimpleCommand(String.format("EXAMINE %s",
+                            encodeString(encodeFolderName(getPrefixedName(nextFolder)))));
+                    mSelectedFolder = nextFolder;
+                } catch (ImapException e) {
+                    // Keep checking the other folders
+                    Log.w(K9.LOG_TAG, "Unable to select folder " + nextFolder + " for " +
+                            getLogId(), e);
+                }
+
+                if (idledFolder != null) {
+                    // The changes of the folder we were idling on have been reported already.
+                    // Remember its current status so the next round doesn't report them again.
+                    mStatuses.remove(idledFolder);
+                    mStatuses.putAll(getFolderStatuses(conn,
+                            Collections.singletonList(idledFolder), mSelectedFolderHandler));
+                }
+            }
+        }
+
+        @Override
+        protected void afterIdle(ImapConnection conn, boolean refreshed) {
+            if (refreshed) {
+                mCurrent = (mCurrent + 1) % mFolderNames.size();
+            }
+        }
+
+        @Override
+        protected boolean handleIdleResponse(ImapResponse response) {
+            if (mSelectedFolder == null || response.size() < 2) {
+                return false;
+            }
+
+            Object responseType = response.get(1);
+            if (ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS") ||
+                    ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE") ||
+                    ImapResponseParser.equalsIgnoreCase(responseType, "FETCH") ||
+                    ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED")) {
+                folderChanged(mSelectedFolder);
+                return true;
+            }
+
+            return false;
+        }
+    }
+
     @Override
     public Pusher getPusher(PushReceiver receiver) {
         return new ImapPusher(this, receiver);
     }
 
+    /**
+     * Pushes the changes of an account's push folders.
+     *
+     * <p>
+     * If the server supports NOTIFY, all folders are watched using a single connection.
+     * Otherwise every folder is watched by an {@link ImapFolderPusher} with its own connection,
+     * as long as there are no more folders than {@link Account#getMaxPushConnections()}. If there
+     * are, the connections take turns watching the folders.
+     * </p>
+     */
     public class ImapPusher implements Pusher {
         final ImapStore mStore;
         final PushReceiver mReceiver;
         private long lastRefresh = -1;
 
         HashMap<String, ImapFolderPusher> folderPushers = new HashMap<String, ImapFolderPusher>();
+        List<MultiFolderPusher> multiFolderPushers = new ArrayList<MultiFolderPusher>();
+        private List<String> mFolderNames = Collections.emptyList();
 
         public ImapPusher(ImapStore store, PushReceiver receiver) {
             mStore = store;
@@ -3464,7 +4598,33 @@ public class ImapStore extends Store {
             stop();
             synchronized (folderPushers) {
                 setLastRefresh(System.currentTimeMillis());
-                for (String folderName : folderNames) {
+                mFolderNames = new ArrayList<String>(folderNames);
+                if (!Boolean.FALSE.equals(mNotifyCapable)) {
+                    NotifyPusher pusher = new NotifyPusher(this, mReceiver, mFolderNames);
+                    multiFolderPushers.add(pusher);
+                    pusher.start();
+                } else {
+                    startIdlePushers();
+                }
+            }
+        }
+
+        /**
+         * Called by a {@link NotifyPusher} that found the server doesn't support NOTIFY.
+         */
+        void fallBackToIdle(NotifyPusher notifyPusher) {
+            synchronized (folderPushers) {
+                // Don't start anything if we were stopped in the meantime
+                if (multiFolderPushers.remove(notifyPusher)) {
+                    startIdlePushers();
+                }
+            }
+        }
+
+        private void startIdlePushers() {
+            int maxConnections = Math.max(1, getAccount().getMaxPushConnections());
+            if (mFolderNames.size() <= maxConnections) {
+                for (String folderName : mFolderNames) {
                     ImapFolderPusher pusher = folderPushers.get(folderName);
                     if (pusher == null) {
                         pusher = new ImapFolderPusher(mStore, folderName, mReceiver);
@@ -3472,6 +4632,25 @@ public class ImapStore extends Store {
                         pusher.start();
                     }
                 }
+                return;
+            }
+
+            if (K9.DEBUG)
+                Log.i(K9.LOG_TAG, "Pushing " + mFolderNames.size() + " folders of " +
+                        getAccount().getDescription() + " using " + maxConnections +
+                        " connections");
+
+            List<List<String>> groups = new ArrayList<List<String>>();
+            for (int i = 0; i < maxConnections; i++) {
+                groups.add(new ArrayList<String>());
+            }
+            for (int i = 0, count = mFolderNames.size(); i < count; i++) {
+                groups.get(i % maxConnections).add(mFolderNames.get(i));
+            }
+            for (List<String> group : groups) {
+                RotatingIdlePusher pusher = new RotatingIdlePusher(mReceiver, group);
+                multiFolderPushers.add(pusher);
+                pusher.start();
             }
         }
 
@@ -3484,6 +4663,13 @@ public class ImapStore extends Store {
                         Log.e(K9.LOG_TAG, "Got exception while refreshing for " + folderPusher.getName(), e);
                     }
                 }
+                for (MultiFolderPusher pusher : multiFolderPushers) {
+                    try {
+                        pusher.refresh();
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Got exception while refreshing for " + pusher.getLogId(), e);
+                    }
+                }
             }
         }
 
@@ -3502,11 +4688,31 @@ public class ImapStore extends Store {
                     }
                 }
                 folderPushers.clear();
+
+                for (MultiFolderPusher pusher : multiFolderPushers) {
+                    try {
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Requesting stop of " + pusher.getLogId());
+                        pusher.stop();
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Got exception while stopping " + pusher.getLogId(), e);
+                    }
+                }
+                multiFolderPushers.clear();
             }
         }
 
         public int getRefreshInterval() {
-            return (getAccount().getIdleRefreshMinutes() * 60 * 1000);
+            int refreshInterval = getAccount().getIdleRefreshMinutes() * 60 * 1000;
+            synchronized (folderPushers) {
+                for (MultiFolderPusher pusher : multiFolderPushers) {
+                    if (pusher instanceof RotatingIdlePusher) {
+                        // Every refresh moves on to the next folder
+                        return Math.min(refreshInterval, PUSH_ROTATION_INTERVAL);
+                    }
+                }
+            }
+            return refreshInterval;
         }
 
         public long getLastRefresh() {
@@ -3518,7 +4724,7 @@ public class ImapStore extends Store {
         }
 
     }
-    private interface UntaggedHandler {
+    interface UntaggedHandler {
         void handleAsyncUntaggedResponse(ImapResponse respose);
     }
 
@@ -3560,7 +4766,31 @@ public class ImapStore extends Store {
         List<ImapResponse> search() throws IOException, MessagingException;
     }
 
-    private static class FetchBodyCallback implements ImapResponseParser.IImapResponseCallback {
+    /**
+     * Check whether the literal that is currently being read is the value of a
+     * {@code BODY[<section>]<<origin octet>>} item of a FETCH response.
+     *
+     * <p>
+     * Literals can show up in other places too, e.g. as strings inside of {@code BODYSTRUCTURE}.
+     * Those must not be mistaken for message content.
+     * </p>
+     *
+     * @param fetchList
+     *         The partially parsed list of FETCH items. The last item parsed precedes the literal.
+     */
+    static boolean isBodySectionLiteral(ImapList fetchList) {
+        int index = fetchList.size() - 1;
+        if (index >= 0 && fetchList.get(index) instanceof String &&
+                ((String) fetchList.get(index)).startsWith("<")) {
+            // Skip origin octet
+            index--;
+        }
+
+        return (index >= 1 && fetchList.get(index) instanceof ImapList &&
+                ImapResponseParser.equalsIgnoreCase(fetchList.get(index - 1), "BODY"));
+    }
+
+    static class FetchBodyCallback implements ImapResponseParser.IImapResponseCallback {
         private HashMap<String, Message> mMessageMap;
 
         FetchBodyCallback(HashMap<String, Message> mesageMap) {
@@ -3573,9 +4803,17 @@ public class ImapStore extends Store {
             if (response.mTag == null &&
                     ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
                 ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                String uid = fetchList.getKeyedString("UID");
+                if (!isBodySectionLiteral(fetchList)) {
+                    return null;
+                }
 
+                String uid = fetchList.getKeyedString("UID");
                 ImapMessage message = (ImapMessage) mMessageMap.get(uid);
+                if (message == null) {
+                    // UID not known (yet). Let the caller deal with it.
+                    return null;
+                }
+
                 message.parse(literal);
 
                 // Return placeholder object
@@ -3596,7 +4834,8 @@ public class ImapStore extends Store {
         public Object foundLiteral(ImapResponse response,
                                    FixedLengthInputStream literal) throws IOException, Exception {
             if (response.mTag == null &&
-                    ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH") &&
+                    isBodySectionLiteral((ImapList) response.getKeyedValue("FETCH"))) {
                 //TODO: check for correct UID
 
                 String contentTransferEncoding = mPart
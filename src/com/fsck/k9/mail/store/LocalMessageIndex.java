@@ -0,0 +1,169 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+import com.fsck.k9.mail.Flag;
+
+/**
+ * A compact snapshot of the UIDs, database IDs, flags and dates of the messages in a local
+ * folder.
+ *
+ * <p>
+ * Synchronizing a folder only needs to know which UIDs exist locally and what their flags are.
+ * Loading a full {@link LocalStore.LocalMessage} for each of them allocates a lot of memory for
+ * large folders. This class keeps the few values needed in parallel arrays sorted by UID, so a
+ * lookup is a binary search. Full messages can then be loaded for the UIDs that actually changed.
+ * </p>
+ *
+ * @see LocalStore.LocalFolder#getMessageIndex(String[])
+ */
+public class LocalMessageIndex {
+    /**
+     * Set in the flags of messages whose content has been removed, i.e. deleted messages that
+     * are only kept to remember their UID. They are not part of
+     * {@link LocalStore.LocalFolder#getMessages(com.fsck.k9.mail.MessageRetrievalListener)}.
+     */
+    static final long EMPTY = 1L << 63;
+
+    /**
+     * Collects the values of one message at a time.
+     */
+    static class Builder {
+        private String[] mUids = new String[64];
+        private long[] mIds = new long[64];
+        private long[] mFlags = new long[64];
+        private long[] mDates = new long[64];
+        private int mSize;
+
+        void add(String uid, long id, long flags, long date) {
+            if (mSize == mUids.length) {
+                int capacity = mSize * 2;
+                mUids = Arrays.copyOf(mUids, capacity);
+                mIds = Arrays.copyOf(mIds, capacity);
+                mFlags = Arrays.copyOf(mFlags, capacity);
+                mDates = Arrays.copyOf(mDates, capacity);
+            }
+            mUids[mSize] = uid;
+            mIds[mSize] = id;
+            mFlags[mSize] = flags;
+            mDates[mSize] = date;
+            mSize++;
+        }
+
+        LocalMessageIndex build() {
+            return new LocalMessageIndex(Arrays.copyOf(mUids, mSize), Arrays.copyOf(mIds, mSize),
+                    Arrays.copyOf(mFlags, mSize), Arrays.copyOf(mDates, mSize));
+        }
+    }
+
+
+    private final String[] mUids;
+    private final long[] mIds;
+    private final long[] mFlags;
+    private final long[] mDates;
+
+
+    /**
+     * The arrays must have the same length and will be sorted by UID.
+     */
+    LocalMessageIndex(String[] uids, long[] ids, long[] flags, long[] dates) {
+        if (!isSorted(uids)) {
+            sort(uids, ids, flags, dates);
+        }
+        mUids = uids;
+        mIds = ids;
+        mFlags = flags;
+        mDates = dates;
+    }
+
+    /**
+     * @return The number of messages in this snapshot.
+     */
+    public int size() {
+        return mUids.length;
+    }
+
+    /**
+     * @return The position of the message with the given UID, or {@code -1} if there's no such
+     *         message.
+     */
+    public int indexOf(String uid) {
+        int index = Arrays.binarySearch(mUids, uid);
+        return (index >= 0) ? index : -1;
+    }
+
+    public boolean contains(String uid) {
+        return indexOf(uid) != -1;
+    }
+
+    public String getUid(int index) {
+        return mUids[index];
+    }
+
+    /**
+     * @return The ID of the message in the {@code messages} table.
+     */
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    public boolean isSet(int index, Flag flag) {
+        return (mFlags[index] & flagBit(flag)) != 0;
+    }
+
+    /**
+     * @return {@code true} if only the UID of the message has been kept.
+     *
+     * @see #EMPTY
+     */
+    public boolean isEmpty(int index) {
+        return (mFlags[index] & EMPTY) != 0;
+    }
+
+    /**
+     * Same as {@link com.fsck.k9.mail.Message#olderThan(Date)} for the message at the given
+     * position.
+     */
+    public boolean olderThan(int index, Date earliestDate) {
+        return (earliestDate != null && mDates[index] < earliestDate.getTime());
+    }
+
+    static long flagBit(Flag flag) {
+        return 1L << flag.ordinal();
+    }
+
+    private static boolean isSorted(String[] uids) {
+        for (int i = 1; i < uids.length; i++) {
+            if (uids[i - 1].compareTo(uids[i]) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sort(final String[] uids, long[] ids, long[] flags, long[] dates) {
+        Integer[] order = new Integer[uids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return uids[lhs].compareTo(uids[rhs]);
+            }
+        });
+
+        String[] sortedUids = uids.clone();
+        long[] sortedIds = ids.clone();
+        long[] sortedFlags = flags.clone();
+        long[] sortedDates = dates.clone();
+        for (int i = 0; i < order.length; i++) {
+            uids[i] = sortedUids[order[i]];
+            ids[i] = sortedIds[order[i]];
+            flags[i] = sortedFlags[order[i]];
+            dates[i] = sortedDates[order[i]];
+        }
+    }
+}
@@ -40,7 +40,9 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.fsck.k9.Account;
@@ -51,7 +53,6 @@ import com.fsck.k9.Account.MessageFormat;
 import com.fsck.k9.activity.Search;
 import com.fsck.k9.controller.MessageRemovalListener;
 import com.fsck.k9.controller.MessageRetrievalListener;
-import com.fsck.k9.helper.HtmlConverter;
 import com.fsck.k9.helper.StringUtils;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Address;
@@ -67,6 +68,7 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.SizeCountingOutputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
@@ -112,7 +114,8 @@ public class LocalStore extends Store implements Serializable {
 
     private static final String GET_FOLDER_COLS =
         "folders.id, name, visible_limit, last_updated, status, push_state, last_pushed, " +
-        "integrate, top_group, poll_class, push_class, display_class";
+        "integrate, top_group, poll_class, push_class, display_class, uid_validity, " +
+        "highest_mod_seq, remote_status";
 
     private static final int FOLDER_ID_INDEX = 0;
     private static final int FOLDER_NAME_INDEX = 1;
@@ -126,6 +129,9 @@ public class LocalStore extends Store implements Serializable {
     private static final int FOLDER_SYNC_CLASS_INDEX = 9;
     private static final int FOLDER_PUSH_CLASS_INDEX = 10;
     private static final int FOLDER_DISPLAY_CLASS_INDEX = 11;
+    private static final int FOLDER_UID_VALIDITY_INDEX = 12;
+    private static final int FOLDER_HIGHEST_MOD_SEQ_INDEX = 13;
+    private static final int FOLDER_REMOTE_STATUS_INDEX = 14;
 
     private static final String[] UID_CHECK_PROJECTION = { "uid" };
 
@@ -136,6 +142,12 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int UID_CHECK_BATCH_SIZE = 500;
 
+    /**
+     * Selects the messages counted in {@code folders.unread_count} and
+     * {@code folders.flagged_count}.
+     */
+    private static final String COUNTED_MESSAGE = "deleted = 0 AND (empty IS NULL OR empty != 1)";
+
     /**
      * Maximum number of messages to perform flag updates on at once.
      *
@@ -150,7 +162,14 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 50;
+    public static final int DB_VERSION = 55;
+
+    /**
+     * The columns of the {@code thread_summary} table, in the order they are calculated by
+     * {@code StoreSchemaDefinition.selectThreadSummary()}.
+     */
+    private static final String THREAD_SUMMARY_COLS = "root, folder_id, message_id, thread_count, " +
+            "date, internal_date, attachment_count, read, flagged, answered, forwarded";
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -196,6 +215,8 @@ public class LocalStore extends Store implements Serializable {
         mApplication = application;
         mContentResolver = application.getContentResolver();
         database.setStorageProviderId(account.getLocalStorageProviderId());
+        // Always on, so the message list can be queried while a sync stores messages
+        database.setWriteAheadLogging(true);
         uUid = account.getUuid();
 
         database.open();
@@ -242,7 +263,8 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
                                + "last_updated INTEGER, unread_count INTEGER, visible_limit INTEGER, status TEXT, "
                                + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
-                               + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT"
+                               + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, "
+                               + "uid_validity INTEGER default -1, highest_mod_seq INTEGER default -1, remote_status TEXT"
                                + ")");
 
                     db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
@@ -338,6 +360,12 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("DROP TRIGGER IF EXISTS delete_message");
                     db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
                                + "DELETE FROM headers where old.id = message_id; END;");
+
+                    db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
+                    createFulltextTable(db);
+
+                    createFolderCounterTriggers(db);
+                    createThreadSummaryTable(db);
                 } else {
                     // in the case that we're starting out at 29 or newer, run all the needed updates
 
@@ -715,6 +743,28 @@ public class LocalStore extends Store implements Serializable {
                              Log.e(K9.LOG_TAG, "Unable to add signed_multipart column to messages");
                          }
                     }
+                    if (db.getVersion() < 51) {
+                        createFulltextTable(db);
+                        db.execSQL("INSERT INTO messages_fulltext (docid, fulltext) " +
+                                "SELECT id, text_content FROM messages " +
+                                "WHERE text_content IS NOT NULL");
+                    }
+                    if (db.getVersion() < 52) {
+                        db.execSQL("ALTER TABLE folders ADD uid_validity INTEGER default -1");
+                        db.execSQL("ALTER TABLE folders ADD highest_mod_seq INTEGER default -1");
+                    }
+                    if (db.getVersion() < 53) {
+                        createFolderCounterTriggers(db);
+                        rebuildFolderCounters(db);
+                    }
+                    if (db.getVersion() < 54) {
+                        createThreadSummaryTable(db);
+                        db.execSQL("INSERT INTO thread_summary (" + THREAD_SUMMARY_COLS + ") " +
+                                selectThreadSummary("1"));
+                    }
+                    if (db.getVersion() < 55) {
+                        db.execSQL("ALTER TABLE folders ADD remote_status TEXT");
+                    }
                 }
 
                 db.setVersion(DB_VERSION);
@@ -729,6 +779,226 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        /**
+         * Create the full-text index for message bodies.
+         *
+         * <p>
+         * The row ID ({@code docid}) of an entry in {@code messages_fulltext} is the ID of the
+         * message in {@code messages}. The index is kept up-to-date by triggers, so code writing
+         * to the {@code text_content} column doesn't need to know about it. Messages marked as
+         * deleted are indexed as well, the queries using the index already skip them.
+         * </p>
+         */
+        private void createFulltextTable(final SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+
+            db.execSQL("DROP TRIGGER IF EXISTS insert_message_fulltext");
+            db.execSQL("CREATE TRIGGER insert_message_fulltext " +
+                    "AFTER INSERT ON messages " +
+                    "WHEN NEW.text_content IS NOT NULL " +
+                    "BEGIN " +
+                    "INSERT INTO messages_fulltext (docid, fulltext) VALUES (NEW.id, NEW.text_content); " +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS update_message_fulltext");
+            db.execSQL("CREATE TRIGGER update_message_fulltext " +
+                    "AFTER UPDATE OF text_content ON messages " +
+                    "BEGIN " +
+                    "DELETE FROM messages_fulltext WHERE docid = OLD.id; " +
+                    "INSERT INTO messages_fulltext (docid, fulltext) " +
+                    "SELECT NEW.id, NEW.text_content WHERE NEW.text_content IS NOT NULL; " +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS delete_message_fulltext");
+            db.execSQL("CREATE TRIGGER delete_message_fulltext " +
+                    "AFTER DELETE ON messages " +
+                    "BEGIN " +
+                    "DELETE FROM messages_fulltext WHERE docid = OLD.id; " +
+                    "END");
+        }
+
+        /**
+         * Create the triggers that maintain {@code folders.unread_count} and
+         * {@code folders.flagged_count}.
+         *
+         * <p>
+         * Only messages that are neither deleted nor empty placeholders are counted (see
+         * {@link LocalStore#COUNTED_MESSAGE}). Every insert, delete and relevant update of a row in
+         * {@code messages} adjusts the counters of the affected folders, so code writing to
+         * {@code messages} doesn't need to know about them.
+         * </p>
+         */
+        private void createFolderCounterTriggers(final SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS insert_message_counters");
+            db.execSQL("CREATE TRIGGER insert_message_counters " +
+                    "AFTER INSERT ON messages " +
+                    "WHEN " + countedMessage("NEW") + " AND (NEW.read IS 0 OR NEW.flagged IS 1) " +
+                    "BEGIN " +
+                    "UPDATE folders SET " +
+                    "unread_count = IFNULL(unread_count, 0) + (NEW.read IS 0), " +
+                    "flagged_count = IFNULL(flagged_count, 0) + (NEW.flagged IS 1) " +
+                    "WHERE id = NEW.folder_id; " +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS delete_message_counters");
+            db.execSQL("CREATE TRIGGER delete_message_counters " +
+                    "AFTER DELETE ON messages " +
+                    "WHEN " + countedMessage("OLD") + " AND (OLD.read IS 0 OR OLD.flagged IS 1) " +
+                    "BEGIN " +
+                    "UPDATE folders SET " +
+                    "unread_count = IFNULL(unread_count, 0) - (OLD.read IS 0), " +
+                    "flagged_count = IFNULL(flagged_count, 0) - (OLD.flagged IS 1) " +
+                    "WHERE id = OLD.folder_id; " +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS update_message_counters");
+            db.execSQL("CREATE TRIGGER update_message_counters " +
+                    "AFTER UPDATE OF folder_id, deleted, empty, read, flagged ON messages " +
+                    "WHEN OLD.folder_id IS NOT NEW.folder_id OR OLD.deleted IS NOT NEW.deleted OR " +
+                    "OLD.empty IS NOT NEW.empty OR OLD.read IS NOT NEW.read OR " +
+                    "OLD.flagged IS NOT NEW.flagged " +
+                    "BEGIN " +
+                    "UPDATE folders SET " +
+                    "unread_count = IFNULL(unread_count, 0) - (OLD.read IS 0), " +
+                    "flagged_count = IFNULL(flagged_count, 0) - (OLD.flagged IS 1) " +
+                    "WHERE id = OLD.folder_id AND " + countedMessage("OLD") + "; " +
+                    "UPDATE folders SET " +
+                    "unread_count = IFNULL(unread_count, 0) + (NEW.read IS 0), " +
+                    "flagged_count = IFNULL(flagged_count, 0) + (NEW.flagged IS 1) " +
+                    "WHERE id = NEW.folder_id AND " + countedMessage("NEW") + "; " +
+                    "END");
+        }
+
+        private String countedMessage(String row) {
+            return "(" + row + ".deleted IS 0 AND " + row + ".empty IS NOT 1)";
+        }
+
+        /**
+         * Create the {@code thread_summary} table and the triggers that maintain it.
+         *
+         * <p>
+         * The table holds one row per thread and folder with the aggregated values the threaded
+         * message list displays, and the ID of the newest message of the thread in that folder.
+         * Only messages that are neither deleted nor empty placeholders are included. Whenever a
+         * row in {@code messages} or {@code threads} changes, the triggers recalculate the rows of
+         * the affected threads, so code writing to those tables doesn't need to know about the
+         * summary.
+         * </p>
+         */
+        private void createThreadSummaryTable(final SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS thread_summary");
+            db.execSQL("CREATE TABLE thread_summary (" +
+                    "root INTEGER, " +
+                    "folder_id INTEGER, " +
+                    "message_id INTEGER, " +
+                    "thread_count INTEGER, " +
+                    "date INTEGER, " +
+                    "internal_date INTEGER, " +
+                    "attachment_count INTEGER, " +
+                    "read INTEGER, " +
+                    "flagged INTEGER, " +
+                    "answered INTEGER, " +
+                    "forwarded INTEGER, " +
+                    "PRIMARY KEY (root, folder_id)" +
+                    ")");
+
+            db.execSQL("DROP INDEX IF EXISTS thread_summary_folder_date");
+            db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_date " +
+                    "ON thread_summary (folder_id, date)");
+
+            String messageRoot = "(SELECT root FROM threads WHERE message_id = %s.id)";
+            String threadFolder = "(SELECT folder_id FROM messages WHERE id = %s.message_id)";
+
+            db.execSQL("DROP TRIGGER IF EXISTS insert_message_thread_summary");
+            db.execSQL("CREATE TRIGGER insert_message_thread_summary " +
+                    "AFTER INSERT ON messages " +
+                    "BEGIN " +
+                    updateThreadSummary(String.format(messageRoot, "NEW"), "NEW.folder_id") +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS delete_message_thread_summary");
+            db.execSQL("CREATE TRIGGER delete_message_thread_summary " +
+                    "AFTER DELETE ON messages " +
+                    "BEGIN " +
+                    updateThreadSummary(String.format(messageRoot, "OLD"), "OLD.folder_id") +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS update_message_thread_summary");
+            db.execSQL("CREATE TRIGGER update_message_thread_summary " +
+                    "AFTER UPDATE OF folder_id, deleted, empty, date, internal_date, " +
+                    "attachment_count, read, flagged, answered, forwarded ON messages " +
+                    "WHEN OLD.folder_id IS NOT NEW.folder_id OR OLD.deleted IS NOT NEW.deleted OR " +
+                    "OLD.empty IS NOT NEW.empty OR OLD.date IS NOT NEW.date OR " +
+                    "OLD.internal_date IS NOT NEW.internal_date OR " +
+                    "OLD.attachment_count IS NOT NEW.attachment_count OR " +
+                    "OLD.read IS NOT NEW.read OR OLD.flagged IS NOT NEW.flagged OR " +
+                    "OLD.answered IS NOT NEW.answered OR OLD.forwarded IS NOT NEW.forwarded " +
+                    "BEGIN " +
+                    updateThreadSummary(String.format(messageRoot, "NEW"), "NEW.folder_id") +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS move_message_thread_summary");
+            db.execSQL("CREATE TRIGGER move_message_thread_summary " +
+                    "AFTER UPDATE OF folder_id ON messages " +
+                    "WHEN OLD.folder_id IS NOT NEW.folder_id " +
+                    "BEGIN " +
+                    updateThreadSummary(String.format(messageRoot, "OLD"), "OLD.folder_id") +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS insert_thread_thread_summary");
+            db.execSQL("CREATE TRIGGER insert_thread_thread_summary " +
+                    "AFTER INSERT ON threads " +
+                    "WHEN NEW.root IS NOT NULL " +
+                    "BEGIN " +
+                    updateThreadSummary("NEW.root", String.format(threadFolder, "NEW")) +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS update_thread_thread_summary");
+            db.execSQL("CREATE TRIGGER update_thread_thread_summary " +
+                    "AFTER UPDATE OF root ON threads " +
+                    "WHEN OLD.root IS NOT NEW.root " +
+                    "BEGIN " +
+                    updateThreadSummary("OLD.root", String.format(threadFolder, "OLD")) +
+                    updateThreadSummary("NEW.root", String.format(threadFolder, "NEW")) +
+                    "END");
+
+            db.execSQL("DROP TRIGGER IF EXISTS delete_thread_thread_summary");
+            db.execSQL("CREATE TRIGGER delete_thread_thread_summary " +
+                    "AFTER DELETE ON threads " +
+                    "BEGIN " +
+                    updateThreadSummary("OLD.root", String.format(threadFolder, "OLD")) +
+                    "END");
+        }
+
+        /**
+         * Create the statements that recalculate the {@code thread_summary} row of one thread
+         * in one folder.
+         */
+        private String updateThreadSummary(String root, String folderId) {
+            return "DELETE FROM thread_summary WHERE root = " + root + " AND folder_id = " +
+                    folderId + "; " +
+                    "INSERT INTO thread_summary (" + THREAD_SUMMARY_COLS + ") " +
+                    selectThreadSummary("t.root = " + root + " AND m.folder_id = " + folderId) +
+                    "; ";
+        }
+
+        /**
+         * Create a query that returns {@code thread_summary} rows for the threads and folders
+         * matching the given condition. The condition may refer to {@code threads t} and
+         * {@code messages m}.
+         */
+        private String selectThreadSummary(String where) {
+            return "SELECT t.root, m.folder_id, " +
+                    "(SELECT m2.id FROM threads t2 JOIN messages m2 ON (m2.id = t2.message_id) " +
+                    "WHERE t2.root = t.root AND m2.folder_id = m.folder_id AND " +
+                    countedMessage("m2") + " ORDER BY m2.date DESC, m2.id DESC LIMIT 1), " +
+                    "COUNT(m.id), MAX(m.date), MAX(m.internal_date), SUM(m.attachment_count), " +
+                    "MIN(m.read), MAX(m.flagged), MIN(m.answered), MIN(m.forwarded) " +
+                    "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                    "WHERE " + where + " AND " + countedMessage("m") + " " +
+                    "GROUP BY t.root, m.folder_id";
+        }
+
         private void update41Metadata(final SQLiteDatabase  db, SharedPreferences prefs, int id, String name) {
 
 
@@ -802,6 +1072,8 @@ public class LocalStore extends Store implements Serializable {
         if (K9.DEBUG)
             Log.i(K9.LOG_TAG, "Before compaction size = " + getSize());
 
+        checkFolderCounters();
+
         database.execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
@@ -858,6 +1130,54 @@ public class LocalStore extends Store implements Serializable {
         }
     }
 
+    /**
+     * Recalculate {@code folders.unread_count} and {@code folders.flagged_count} from the
+     * {@code messages} table.
+     */
+    private static void rebuildFolderCounters(SQLiteDatabase db) {
+        db.execSQL("UPDATE folders SET " +
+                "unread_count = (SELECT COUNT(id) FROM messages " +
+                "WHERE folder_id = folders.id AND " + COUNTED_MESSAGE + " AND read = 0), " +
+                "flagged_count = (SELECT COUNT(id) FROM messages " +
+                "WHERE folder_id = folders.id AND " + COUNTED_MESSAGE + " AND flagged = 1)");
+    }
+
+    /**
+     * Check that the unread and flagged counters stored in {@code folders} match the messages in
+     * the database and rebuild them if they don't.
+     *
+     * @return {@code true} if the counters were correct, {@code false} if they had to be rebuilt.
+     */
+    public boolean checkFolderCounters() throws MessagingException {
+        return database.execute(true, new DbCallback<Boolean>() {
+            @Override
+            public Boolean doDbWork(final SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT COUNT(f.id) FROM folders f " +
+                        "LEFT JOIN (SELECT folder_id, SUM(read = 0) AS unread, " +
+                        "SUM(flagged = 1) AS flagged FROM messages WHERE " + COUNTED_MESSAGE +
+                        " GROUP BY folder_id) m ON (m.folder_id = f.id) " +
+                        "WHERE IFNULL(f.unread_count, 0) != IFNULL(m.unread, 0) OR " +
+                        "IFNULL(f.flagged_count, 0) != IFNULL(m.flagged, 0)", null);
+                int mismatches;
+                try {
+                    cursor.moveToFirst();
+                    mismatches = cursor.getInt(0);
+                } finally {
+                    cursor.close();
+                }
+
+                if (mismatches == 0) {
+                    return true;
+                }
+
+                Log.w(K9.LOG_TAG, "Unread/flagged counters of " + mismatches + " folders were " +
+                        "wrong, rebuilding them");
+                rebuildFolderCounters(db);
+                return false;
+            }
+        });
+    }
+
     public int getMessageCount() throws MessagingException {
         return database.execute(false, new DbCallback<Integer>() {
             @Override
@@ -1097,6 +1417,22 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
+    /**
+     * Remove several pending commands in one transaction.
+     */
+    public void removePendingCommands(final List<PendingCommand> commands)
+            throws UnavailableStorageException {
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (PendingCommand command : commands) {
+                    db.delete("pending_commands", "id = ?", new String[] { Long.toString(command.mId) });
+                }
+                return null;
+            }
+        });
+    }
+
     public void removePendingCommands() throws UnavailableStorageException {
         database.execute(false, new DbCallback<Void>() {
             @Override
@@ -1353,6 +1689,9 @@ public class LocalStore extends Store implements Serializable {
         private boolean mInTopGroup = false;
         private String mPushState = null;
         private boolean mIntegrate = false;
+        private long mUidValidity = -1;
+        private long mHighestModSeq = -1;
+        private String mRemoteStatus = null;
         // mLastUid is used during syncs. It holds the highest UID within the local folder so we
         // know whether or not an unread message added to the local folder is actually "new" or not.
         private Integer mLastUid = null;
@@ -1447,6 +1786,11 @@ public class LocalStore extends Store implements Serializable {
             mPushClass = Folder.FolderClass.valueOf((pushClass == null) ? noClass : pushClass);
             String syncClass = cursor.getString(FOLDER_SYNC_CLASS_INDEX);
             mSyncClass = Folder.FolderClass.valueOf((syncClass == null) ? noClass : syncClass);
+            mUidValidity = cursor.isNull(FOLDER_UID_VALIDITY_INDEX) ?
+                    -1 : cursor.getLong(FOLDER_UID_VALIDITY_INDEX);
+            mHighestModSeq = cursor.isNull(FOLDER_HIGHEST_MOD_SEQ_INDEX) ?
+                    -1 : cursor.getLong(FOLDER_HIGHEST_MOD_SEQ_INDEX);
+            mRemoteStatus = cursor.getString(FOLDER_REMOTE_STATUS_INDEX);
         }
 
         @Override
@@ -1558,9 +1902,8 @@ public class LocalStore extends Store implements Serializable {
                     @Override
                     public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
                         int unreadMessageCount = 0;
-                        Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                                "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND read=0",
-                                new String[] { Long.toString(mFolderId) }, null, null, null);
+                        Cursor cursor = db.query("folders", new String[] { "unread_count" },
+                                "id = ?", new String[] { Long.toString(mFolderId) }, null, null, null);
 
                         try {
                             if (cursor.moveToFirst()) {
@@ -1589,9 +1932,8 @@ public class LocalStore extends Store implements Serializable {
                     @Override
                     public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
                         int flaggedMessageCount = 0;
-                        Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                                "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND flagged = 1",
-                                new String[] { Long.toString(mFolderId) }, null, null, null);
+                        Cursor cursor = db.query("folders", new String[] { "flagged_count" },
+                                "id = ?", new String[] { Long.toString(mFolderId) }, null, null, null);
 
                         try {
                             if (cursor.moveToFirst()) {
@@ -1655,6 +1997,14 @@ public class LocalStore extends Store implements Serializable {
 
 
         public void setVisibleLimit(final int visibleLimit) throws MessagingException {
+            if (visibleLimit != mVisibleLimit && mHighestModSeq != -1) {
+                // Messages outside of the old sync window aren't covered by the mod-sequence
+                setModSeqState(mUidValidity, -1);
+            }
+            if (visibleLimit != mVisibleLimit && mRemoteStatus != null) {
+                // The next poll has to fetch the messages of the new sync window
+                setRemoteStatus(null);
+            }
             mVisibleLimit = visibleLimit;
             updateFolderColumn("visible_limit", mVisibleLimit);
         }
@@ -1690,6 +2040,76 @@ public class LocalStore extends Store implements Serializable {
         public String getPushState() {
             return mPushState;
         }
+
+        /**
+         * @return The state of the remote folder at the time of the last successful sync, as
+         *         returned by {@link Store#getFolderStatuses(java.util.Collection)}, or
+         *         {@code null}.
+         */
+        public String getRemoteStatus() {
+            return mRemoteStatus;
+        }
+
+        /**
+         * Remember the state of the remote folder so polls can skip the folder until it changes.
+         *
+         * @param remoteStatus
+         *         The state returned by {@link Store#getFolderStatuses(java.util.Collection)}.
+         *         {@code null} to sync the folder on the next poll.
+         */
+        public void setRemoteStatus(final String remoteStatus) throws MessagingException {
+            mRemoteStatus = remoteStatus;
+            updateFolderColumn("remote_status", remoteStatus);
+        }
+
+        /**
+         * @return The UIDVALIDITY value of the remote folder at the time of the last successful
+         *         sync, or {@code -1}.
+         */
+        @Override
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        /**
+         * @return The highest mod-sequence of the remote folder at the time of the last successful
+         *         sync, or {@code -1}.
+         */
+        @Override
+        public long getHighestModSeq() {
+            return mHighestModSeq;
+        }
+
+        /**
+         * Remember the state of the remote folder so the next sync only has to ask for changes.
+         *
+         * @param uidValidity
+         *         The UIDVALIDITY value of the remote folder.
+         * @param highestModSeq
+         *         The highest mod-sequence of the remote folder. {@code -1} to force a full sync.
+         */
+        public void setModSeqState(final long uidValidity, final long highestModSeq)
+                throws MessagingException {
+            mUidValidity = uidValidity;
+            mHighestModSeq = highestModSeq;
+            try {
+                database.execute(false, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OPEN_MODE_RW);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        db.execSQL("UPDATE folders SET uid_validity = ?, highest_mod_seq = ? WHERE id = ?",
+                                new Object[] { uidValidity, highestModSeq, mFolderId });
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
         @Override
         public FolderClass getDisplayClass() {
             return mDisplayClass;
@@ -2091,45 +2511,59 @@ public class LocalStore extends Store implements Serializable {
             database.execute(false, new DbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    Cursor cursor = null;
-                    if (messages.isEmpty()) {
-                        return null;
-                    }
-                    try {
-                        Map<Long, LocalMessage> popMessages = new HashMap<Long, LocalMessage>();
-                        List<String> ids = new ArrayList<String>();
-                        StringBuilder questions = new StringBuilder();
-
-                        for (int i = 0; i < messages.size(); i++) {
-                            if (i != 0) {
-                                questions.append(", ");
-                            }
-                            questions.append("?");
-                            LocalMessage message = messages.get(i);
-                            Long id = message.getId();
-                            ids.add(Long.toString(id));
-                            popMessages.put(id, message);
-
-                        }
-
-                        cursor = db.rawQuery(
-                                     "SELECT message_id, name, value FROM headers " + "WHERE message_id in ( " + questions + ") ORDER BY id ASC",
-                                     ids.toArray(EMPTY_STRING_ARRAY));
+                    populateHeaders(db, messages);
+                    return null;
+                }
+            });
+        }
 
+        /**
+         * Same as {@link #populateHeaders(List)} but uses the supplied database. The headers are
+         * read with one query per {@link #UID_CHECK_BATCH_SIZE} messages.
+         */
+        private void populateHeaders(SQLiteDatabase db, List<LocalMessage> messages)
+                throws UnavailableStorageException {
+            Map<Long, LocalMessage> popMessages = new HashMap<Long, LocalMessage>();
+            List<String> ids = new ArrayList<String>();
+            int start = 0;
+
+            while (start < messages.size()) {
+                StringBuilder questions = new StringBuilder();
+                int count = Math.min(messages.size() - start, UID_CHECK_BATCH_SIZE);
+
+                for (int i = start, end = start + count; i < end; i++) {
+                    if (i > start) {
+                        questions.append(", ");
+                    }
+                    questions.append("?");
+                    LocalMessage message = messages.get(i);
+                    Long id = message.getId();
+                    ids.add(Long.toString(id));
+                    popMessages.put(id, message);
+
+                    // Don't let addHeader() load the headers of each message on its own
+                    message.mHeadersLoaded = true;
+                }
 
-                        while (cursor.moveToNext()) {
-                            Long id = cursor.getLong(0);
-                            String name = cursor.getString(1);
-                            String value = cursor.getString(2);
-                            //Log.i(K9.LOG_TAG, "Retrieved header name= " + name + ", value = " + value + " for message " + id);
-                            popMessages.get(id).addHeader(name, value);
-                        }
-                    } finally {
-                        Utility.closeQuietly(cursor);
+                Cursor cursor = db.rawQuery(
+                             "SELECT message_id, name, value FROM headers " + "WHERE message_id in ( " + questions + ") ORDER BY id ASC",
+                             ids.toArray(EMPTY_STRING_ARRAY));
+                try {
+                    while (cursor.moveToNext()) {
+                        Long id = cursor.getLong(0);
+                        String name = cursor.getString(1);
+                        String value = cursor.getString(2);
+                        //Log.i(K9.LOG_TAG, "Retrieved header name= " + name + ", value = " + value + " for message " + id);
+                        popMessages.get(id).addHeader(name, value);
                     }
-                    return null;
+                } finally {
+                    Utility.closeQuietly(cursor);
                 }
-            });
+
+                popMessages.clear();
+                ids.clear();
+                start += count;
+            }
         }
 
         public String getMessageUidById(final long id) throws MessagingException {
@@ -2238,23 +2672,218 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        /**
+         * Get the messages with the given UIDs.
+         *
+         * <p>
+         * The messages and their headers are read with one query per
+         * {@link #UID_CHECK_BATCH_SIZE} UIDs in a single transaction.
+         * </p>
+         *
+         * @return The messages in the order of {@code uids}. UIDs without a local message are
+         *         skipped. A UID listed more than once results in a separate instance each time.
+         */
         @Override
-        public Message[] getMessages(String[] uids, MessageRetrievalListener listener)
+        public Message[] getMessages(final String[] uids, final MessageRetrievalListener listener)
         throws MessagingException {
             open(OPEN_MODE_RW);
             if (uids == null) {
                 return getMessages(listener);
             }
-            ArrayList<Message> messages = new ArrayList<Message>();
+            if (uids.length == 0) {
+                return EMPTY_MESSAGE_ARRAY;
+            }
+
+            final Map<String, LocalMessage> messagesByUid = new HashMap<String, LocalMessage>();
+            try {
+                database.execute(true, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        List<String> selectionArgs = new ArrayList<String>();
+                        int start = 0;
+
+                        while (start < uids.length) {
+                            StringBuilder sql = new StringBuilder();
+                            sql.append("SELECT ");
+                            sql.append(GET_MESSAGES_COLS);
+                            sql.append("FROM messages ");
+                            sql.append("LEFT JOIN threads ON (threads.message_id = messages.id) ");
+                            sql.append("WHERE folder_id = ? AND uid IN (");
+                            selectionArgs.add(Long.toString(mFolderId));
+
+                            int count = Math.min(uids.length - start, UID_CHECK_BATCH_SIZE);
+
+                            for (int i = start, end = start + count; i < end; i++) {
+                                if (i > start) {
+                                    sql.append(",?");
+                                } else {
+                                    sql.append("?");
+                                }
+
+                                selectionArgs.add(uids[i]);
+                            }
+
+                            sql.append(")");
+
+                            Cursor cursor = db.rawQuery(sql.toString(),
+                                    selectionArgs.toArray(EMPTY_STRING_ARRAY));
+                            try {
+                                while (cursor.moveToNext()) {
+                                    String uid = cursor.getString(3);
+                                    if (!messagesByUid.containsKey(uid)) {
+                                        LocalMessage message = new LocalMessage(uid, LocalFolder.this);
+                                        message.populateFromGetMessageCursor(cursor);
+                                        messagesByUid.put(uid, message);
+                                    }
+                                }
+                            } catch (MessagingException e) {
+                                throw new WrappedException(e);
+                            } finally {
+                                Utility.closeQuietly(cursor);
+                            }
+
+                            selectionArgs.clear();
+                            start += count;
+                        }
+
+                        populateHeaders(db, new ArrayList<LocalMessage>(messagesByUid.values()));
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+
+            Set<String> returnedUids = new HashSet<String>();
+            List<LocalMessage> messages = new ArrayList<LocalMessage>(messagesByUid.size());
             for (String uid : uids) {
-                Message message = getMessage(uid);
+                LocalMessage message = messagesByUid.get(uid);
                 if (message != null) {
-                    messages.add(message);
+                    // Callers may modify the messages, so a UID listed twice gets its own copy
+                    messages.add(returnedUids.add(uid) ? message : message.clone());
                 }
             }
+
+            if (listener != null) {
+                for (int i = 0, count = messages.size(); i < count; i++) {
+                    LocalMessage message = messages.get(i);
+                    listener.messageStarted(message.getUid(), i, count);
+                    listener.messageFinished(message, i, count);
+                }
+                listener.messagesFinished(messages.size());
+            }
+
             return messages.toArray(EMPTY_MESSAGE_ARRAY);
         }
 
+        /**
+         * Get the UIDs, IDs, flags and dates of messages in this folder without loading the
+         * messages.
+         *
+         * <p>
+         * Deleted messages are included. Use {@link LocalMessageIndex#isSet(int, Flag)} with
+         * {@link Flag#DELETED} and {@link LocalMessageIndex#isEmpty(int)} to tell them apart.
+         * </p>
+         *
+         * @param uids
+         *         The UIDs of the messages to include, or {@code null} to include all messages in
+         *         this folder.
+         */
+        public LocalMessageIndex getMessageIndex(final String[] uids) throws MessagingException {
+            try {
+                return database.execute(false, new DbCallback<LocalMessageIndex>() {
+                    @Override
+                    public LocalMessageIndex doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        try {
+                            open(OPEN_MODE_RW);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+
+                        LocalMessageIndex.Builder builder = new LocalMessageIndex.Builder();
+                        String sql = "SELECT uid, id, date, flags, deleted, read, flagged, answered, " +
+                                "forwarded, empty FROM messages WHERE folder_id = ? AND uid IS NOT NULL";
+
+                        if (uids == null) {
+                            readMessageIndex(db, sql, new String[] { Long.toString(mFolderId) },
+                                    builder);
+                        } else {
+                            List<String> selectionArgs = new ArrayList<String>();
+                            int start = 0;
+
+                            while (start < uids.length) {
+                                StringBuilder batchSql = new StringBuilder(sql);
+                                batchSql.append(" AND uid IN (");
+                                selectionArgs.add(Long.toString(mFolderId));
+
+                                int count = Math.min(uids.length - start, UID_CHECK_BATCH_SIZE);
+
+                                for (int i = start, end = start + count; i < end; i++) {
+                                    if (i > start) {
+                                        batchSql.append(",?");
+                                    } else {
+                                        batchSql.append("?");
+                                    }
+
+                                    selectionArgs.add(uids[i]);
+                                }
+
+                                batchSql.append(")");
+
+                                readMessageIndex(db, batchSql.toString(),
+                                        selectionArgs.toArray(EMPTY_STRING_ARRAY), builder);
+
+                                selectionArgs.clear();
+                                start += count;
+                            }
+                        }
+
+                        return builder.build();
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        private void readMessageIndex(SQLiteDatabase db, String sql, String[] selectionArgs,
+                LocalMessageIndex.Builder builder) {
+            Cursor cursor = db.rawQuery(sql, selectionArgs);
+            try {
+                while (cursor.moveToNext()) {
+                    long flags = 0;
+                    String flagList = cursor.getString(3);
+                    if (flagList != null && flagList.length() > 0) {
+                        for (String flag : flagList.split(",")) {
+                            try {
+                                flags |= LocalMessageIndex.flagBit(Flag.valueOf(flag));
+                            } catch (IllegalArgumentException e) {
+                                // Ignore unknown flags like populateFromGetMessageCursor() does
+                            }
+                        }
+                    }
+
+                    flags = setFlagBit(flags, Flag.DELETED, cursor.getInt(4) == 1);
+                    flags = setFlagBit(flags, Flag.SEEN, cursor.getInt(5) == 1);
+                    flags = setFlagBit(flags, Flag.FLAGGED, cursor.getInt(6) == 1);
+                    flags = setFlagBit(flags, Flag.ANSWERED, cursor.getInt(7) == 1);
+                    flags = setFlagBit(flags, Flag.FORWARDED, cursor.getInt(8) == 1);
+                    if (cursor.getInt(9) == 1) {
+                        flags |= LocalMessageIndex.EMPTY;
+                    }
+
+                    builder.add(cursor.getString(0), cursor.getLong(1), flags, cursor.getLong(2));
+                }
+            } finally {
+                Utility.closeQuietly(cursor);
+            }
+        }
+
+        private long setFlagBit(long flags, Flag flag, boolean set) {
+            long bit = LocalMessageIndex.flagBit(flag);
+            return set ? (flags | bit) : (flags & ~bit);
+        }
+
         @Override
         public Map<String, String> copyMessages(Message[] msgs, Folder folder) throws MessagingException {
             if (!(folder instanceof LocalFolder)) {
@@ -2397,23 +3026,42 @@ public class LocalStore extends Store implements Serializable {
          * @return The local version of the message. Never <code>null</code>.
          * @throws MessagingException
          */
-        public Message storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
-            return database.execute(true, new DbCallback<Message>() {
-                @Override
-                public Message doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    try {
-                        appendMessages(new Message[] { message });
-                        final String uid = message.getUid();
-                        final Message result = getMessage(uid);
-                        runnable.run();
-                        // Set a flag indicating this message has now be fully downloaded
-                        result.setFlag(Flag.X_DOWNLOADED_FULL, true);
-                        return result;
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
+        /**
+         * Store a batch of fully downloaded messages in a single transaction.
+         *
+         * @param messages
+         *         The messages to store.
+         * @param runnable
+         *         Executed once for every stored message.
+         *
+         * @return The local copies of {@code messages}, in the same order.
+         */
+        public List<Message> storeSmallMessages(final List<Message> messages, final Runnable runnable)
+                throws MessagingException {
+            try {
+                return database.execute(true, new DbCallback<List<Message>>() {
+                    @Override
+                    public List<Message> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        try {
+                            appendMessages(messages.toArray(EMPTY_MESSAGE_ARRAY));
+
+                            List<Message> result = new ArrayList<Message>(messages.size());
+                            for (Message message : messages) {
+                                final Message localMessage = getMessage(message.getUid());
+                                runnable.run();
+                                // Set a flag indicating this message has now be fully downloaded
+                                localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                                result.add(localMessage);
+                            }
+                            return result;
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
                     }
-                }
-            });
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
         }
 
         /**
@@ -2502,6 +3150,20 @@ public class LocalStore extends Store implements Serializable {
                 database.execute(true, new DbCallback<Void>() {
                     @Override
                     public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        /*
+                         * Look up the messages that are going to be replaced with a few queries
+                         * instead of one per message. Messages inserted by this batch are added
+                         * to the map so a UID that appears twice replaces the earlier copy.
+                         */
+                        Map<String, Long> existingMessageIds = (copy) ?
+                                new HashMap<String, Long>() : getMessageIdsByUid(db, messages);
+
+                        SQLiteStatement insertThread = db.compileStatement(
+                                "INSERT INTO threads (message_id, root, parent) VALUES (?, ?, ?)");
+                        SQLiteStatement deleteHeaders = db.compileStatement(
+                                "DELETE FROM headers WHERE message_id = ?");
+                        SQLiteStatement insertHeader = db.compileStatement(
+                                "INSERT INTO headers (message_id, name, value) VALUES (?, ?, ?)");
                         try {
                             for (Message message : messages) {
                                 if (!(message instanceof MimeMessage)) {
@@ -2531,13 +3193,11 @@ public class LocalStore extends Store implements Serializable {
                                     /*
                                      * Replace an existing message in the database
                                      */
-                                    LocalMessage oldMessage = getMessage(uid);
-
-                                    if (oldMessage != null) {
-                                        oldMessageId = oldMessage.getId();
+                                    Long existingMessageId = existingMessageIds.get(uid);
+                                    if (existingMessageId != null) {
+                                        oldMessageId = existingMessageId;
+                                        deleteAttachments(oldMessageId);
                                     }
-
-                                    deleteAttachments(message.getUid());
                                 }
 
                                 long rootId = -1;
@@ -2572,7 +3232,7 @@ public class LocalStore extends Store implements Serializable {
 
                                     attachments = container.attachments;
                                     text = container.text;
-                                    html = HtmlConverter.convertEmoji2Img(container.html);
+                                    html = container.html;
                                 }
 
                                 String preview = Message.calculateContentPreview(text);
@@ -2585,7 +3245,10 @@ public class LocalStore extends Store implements Serializable {
                                     cv.put("sender_list", Address.pack(message.getFrom()));
                                     cv.put("date", message.getSentDate() == null
                                            ? System.currentTimeMillis() : message.getSentDate().getTime());
-                                    cv.put("flags", serializeFlags(message.getFlags()));
+                                    // All headers of the message are saved below
+                                    List<Flag> flags = new ArrayList<Flag>(Arrays.asList(message.getFlags()));
+                                    flags.add(Flag.X_GOT_ALL_HEADERS);
+                                    cv.put("flags", serializeFlags(flags.toArray(EMPTY_FLAG_ARRAY)));
                                     cv.put("deleted", message.isSet(Flag.DELETED) ? 1 : 0);
                                     cv.put("read", message.isSet(Flag.SEEN) ? 1 : 0);
                                     cv.put("flagged", message.isSet(Flag.FLAGGED) ? 1 : 0);
@@ -2618,34 +3281,37 @@ public class LocalStore extends Store implements Serializable {
 
                                     if (oldMessageId == -1) {
                                         msgId = db.insert("messages", "uid", cv);
+                                        existingMessageIds.put(uid, msgId);
 
                                         // Create entry in 'threads' table
-                                        cv.clear();
-                                        cv.put("message_id", msgId);
-
-                                        if (rootId != -1) {
-                                            cv.put("root", rootId);
-                                        }
-                                        if (parentId != -1) {
-                                            cv.put("parent", parentId);
-                                        }
-
-                                        db.insert("threads", null, cv);
+                                        insertThread.bindLong(1, msgId);
+                                        bindIdOrNull(insertThread, 2, rootId);
+                                        bindIdOrNull(insertThread, 3, parentId);
+                                        insertThread.executeInsert();
+                                        insertThread.clearBindings();
                                     } else {
                                         db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
                                         msgId = oldMessageId;
+
+                                        deleteHeaders.bindLong(1, msgId);
+                                        deleteHeaders.execute();
+                                        deleteHeaders.clearBindings();
                                     }
 
                                     for (Part attachment : attachments) {
                                         saveAttachment(msgId, attachment, copy);
                                     }
-                                    saveHeaders(msgId, (MimeMessage)message);
+                                    insertHeaders(insertHeader, msgId, (MimeMessage) message);
                                 } catch (Exception e) {
                                     throw new MessagingException("Error appending message", e);
                                 }
                             }
                         } catch (MessagingException e) {
                             throw new WrappedException(e);
+                        } finally {
+                            insertThread.close();
+                            deleteHeaders.close();
+                            insertHeader.close();
                         }
                         return null;
                     }
@@ -2659,6 +3325,95 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        /**
+         * Get the database IDs of the messages in this folder that have the same UID as one of the
+         * supplied messages.
+         *
+         * @return A map of UIDs to message IDs. Messages without a local counterpart are missing.
+         */
+        private Map<String, Long> getMessageIdsByUid(SQLiteDatabase db, Message[] messages) {
+            List<String> uids = new ArrayList<String>(messages.length);
+            for (Message message : messages) {
+                if (message.getUid() != null) {
+                    uids.add(message.getUid());
+                }
+            }
+
+            Map<String, Long> messageIds = new HashMap<String, Long>();
+            List<String> selectionArgs = new ArrayList<String>();
+            int start = 0;
+
+            while (start < uids.size()) {
+                StringBuilder sql = new StringBuilder();
+                sql.append("SELECT uid, id FROM messages WHERE folder_id = ? AND uid IN (");
+                selectionArgs.add(Long.toString(mFolderId));
+
+                int count = Math.min(uids.size() - start, UID_CHECK_BATCH_SIZE);
+
+                for (int i = start, end = start + count; i < end; i++) {
+                    if (i > start) {
+                        sql.append(",?");
+                    } else {
+                        sql.append("?");
+                    }
+
+                    selectionArgs.add(uids.get(i));
+                }
+
+                sql.append(")");
+
+                Cursor cursor = db.rawQuery(sql.toString(), selectionArgs.toArray(EMPTY_STRING_ARRAY));
+                try {
+                    while (cursor.moveToNext()) {
+                        String uid = cursor.getString(0);
+                        if (!messageIds.containsKey(uid)) {
+                            messageIds.put(uid, cursor.getLong(1));
+                        }
+                    }
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+
+                selectionArgs.clear();
+                start += count;
+            }
+
+            return messageIds;
+        }
+
+        /**
+         * Insert all headers of a message using a statement compiled by the caller.
+         *
+         * <p>
+         * Unlike {@link #saveHeaders(long, MimeMessage)} this neither removes old headers nor
+         * updates the flags of the message. It's meant to be used while storing a batch of messages
+         * in one transaction.
+         * </p>
+         */
+        private void insertHeaders(SQLiteStatement insertHeader, long id, MimeMessage message) {
+            for (String name : message.getHeaderNames()) {
+                for (String value : message.getHeader(name)) {
+                    insertHeader.bindLong(1, id);
+                    insertHeader.bindString(2, name);
+                    if (value == null) {
+                        insertHeader.bindNull(3);
+                    } else {
+                        insertHeader.bindString(3, value);
+                    }
+                    insertHeader.executeInsert();
+                    insertHeader.clearBindings();
+                }
+            }
+        }
+
+        private void bindIdOrNull(SQLiteStatement statement, int index, long id) {
+            if (id == -1) {
+                statement.bindNull(index);
+            } else {
+                statement.bindLong(index, id);
+            }
+        }
+
         /**
          * Update the given message in the LocalStore without first deleting the existing
          * message (contrast with appendMessages). This method is used to store changes
@@ -2683,7 +3438,7 @@ public class LocalStore extends Store implements Serializable {
 
                             List<Part> attachments = container.attachments;
                             String text = container.text;
-                            String html = HtmlConverter.convertEmoji2Img(container.html);
+                            String html = container.html;
 
                             String preview = Message.calculateContentPreview(text);
 
@@ -3122,6 +3877,8 @@ public class LocalStore extends Store implements Serializable {
             notifyChange();
 
             setPushState(null);
+            setModSeqState(-1, -1);
+            setRemoteStatus(null);
             setLastPush(0);
             setLastChecked(0);
             setVisibleLimit(mAccount.getDisplayCount());
@@ -4103,8 +4860,25 @@ public class LocalStore extends Store implements Serializable {
         @Override
         public abstract InputStream getInputStream() throws MessagingException;
 
+        /**
+         * @return The length of the (unencoded) contents, or -1 if it is unknown.
+         */
+        protected long getContentLength() {
+            return -1;
+        }
+
         @Override
         public void writeTo(OutputStream out) throws IOException, MessagingException {
+            if (out instanceof SizeCountingOutputStream && MimeUtil.isBase64Encoding(mEncoding)) {
+                // Only the size of the message is calculated. Don't encode the attachment for that.
+                long length = getContentLength();
+                if (length >= 0) {
+                    ((SizeCountingOutputStream) out).skip(
+                            Base64OutputStream.getEncodedLength(length));
+                    return;
+                }
+            }
+
             InputStream in = getInputStream();
             try {
                 boolean closeStream = false;
@@ -4153,6 +4927,11 @@ public class LocalStore extends Store implements Serializable {
                 return new ByteArrayInputStream(EMPTY_BYTE_ARRAY);
             }
         }
+
+        @Override
+        protected long getContentLength() {
+            return mFile.exists() ? mFile.length() : -1;
+        }
     }
 
     public static class LocalAttachmentBody extends BinaryAttachmentBody {
@@ -4177,6 +4956,21 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        @Override
+        protected long getContentLength() {
+            try {
+                ParcelFileDescriptor fd =
+                        mApplication.getContentResolver().openFileDescriptor(mUri, "r");
+                try {
+                    return fd.getStatSize();
+                } finally {
+                    fd.close();
+                }
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
         public Uri getContentUri() {
             return mUri;
         }
@@ -106,8 +106,21 @@ public class LockableDatabase {
         }
     }
 
+    /**
+     * Suffixes of the files SQLite keeps next to the database file when using write-ahead
+     * logging.
+     */
+    private static final String[] WAL_FILE_SUFFIXES = { "-wal", "-shm" };
+
     private String mStorageProviderId;
 
+    /**
+     * {@code true} if the database should use write-ahead logging.
+     *
+     * @see #setWriteAheadLogging(boolean)
+     */
+    private boolean mWriteAheadLogging;
+
     private SQLiteDatabase mDb;
     /**
      * Reentrant read lock
@@ -163,6 +176,28 @@ public class LockableDatabase {
         return mStorageProviderId;
     }
 
+    /**
+     * Use write-ahead logging instead of a rollback journal.
+     *
+     * <p>
+     * With a rollback journal a transaction blocks all queries from other threads until it ends.
+     * With write-ahead logging {@link SQLiteDatabase} keeps a small pool of additional
+     * connections, and callbacks executed outside of a transaction (see
+     * {@link #execute(boolean, DbCallback)}) read the last committed state of the database
+     * while another thread is writing. This lets the message list be queried while messages are
+     * being stored.
+     * </p>
+     *
+     * <p>
+     * Has to be called before {@link #open()}. Databases use a rollback journal unless this is
+     * called. {@link LocalStore} always enables write-ahead logging for the account databases,
+     * there is no user setting for it.
+     * </p>
+     */
+    public void setWriteAheadLogging(boolean enabled) {
+        mWriteAheadLogging = enabled;
+    }
+
     private StorageManager getStorageManager() {
         return StorageManager.getInstance(mApplication);
     }
@@ -337,7 +372,13 @@ public class LockableDatabase {
                 prepareStorage(newProviderId);
 
                 // move all database files
-                Utility.moveRecursive(oldDatabase, storageManager.getDatabase(uUid, newProviderId));
+                File newDatabase = storageManager.getDatabase(uUid, newProviderId);
+                Utility.moveRecursive(oldDatabase, newDatabase);
+                for (String suffix : WAL_FILE_SUFFIXES) {
+                    // SQLite removes these when the DB is closed, unless closing failed
+                    Utility.moveRecursive(new File(oldDatabase.getPath() + suffix),
+                            new File(newDatabase.getPath() + suffix));
+                }
                 // move all attachment files
                 Utility.moveRecursive(storageManager.getAttachmentDirectory(uUid, oldProviderId), storageManager.getAttachmentDirectory(uUid, newProviderId));
                 // remove any remaining old journal files
@@ -398,11 +439,27 @@ public class LockableDatabase {
             if (mDb.getVersion() != mSchemaDefinition.getVersion()) {
                 mSchemaDefinition.doDbUpgrade(mDb);
             }
+            if (mWriteAheadLogging) {
+                enableWriteAheadLogging();
+            }
         } finally {
             unlockWrite();
         }
     }
 
+    private void enableWriteAheadLogging() {
+        try {
+            if (!mDb.enableWriteAheadLogging()) {
+                Log.w(K9.LOG_TAG, "LockableDatabase: Write-ahead logging not supported for DB " +
+                        uUid);
+            }
+        } catch (Exception e) {
+            // Keep using the rollback journal
+            Log.w(K9.LOG_TAG, "LockableDatabase: Unable to enable write-ahead logging for DB " +
+                    uUid, e);
+        }
+    }
+
     /**
      * @param providerId
      *            Never <code>null</code>.
@@ -508,6 +565,9 @@ public class LockableDatabase {
         } else {
             deleted = database.delete();
             deleted |= new File(database.getPath() + "-journal").delete();
+            for (String suffix : WAL_FILE_SUFFIXES) {
+                deleted |= new File(database.getPath() + suffix).delete();
+            }
         }
         if (!deleted) {
             Log.i(K9.LOG_TAG,
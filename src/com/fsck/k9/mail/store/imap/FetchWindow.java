@@ -0,0 +1,98 @@
+package com.fsck.k9.mail.store.imap;
+
+/**
+ * Decides how many messages to request with a single {@code UID FETCH} command.
+ *
+ * <p>
+ * Every command costs at least one round-trip, so on high-latency links small windows waste most
+ * of the time waiting. Huge windows on the other hand delay progress reporting and make the
+ * command line grow without bound. This class tracks the round-trip time, the throughput of the
+ * connection and the average response size per message, and sizes the next window so that its
+ * response takes roughly {@link #TARGET_WINDOW_ROUND_TRIPS} round-trips (but at least
+ * {@link #MIN_TARGET_MILLIS}) to transfer.
+ * </p>
+ * <p>
+ * The window grows and shrinks by at most a factor of two per completed command and always stays
+ * between {@link #MIN_WINDOW_SIZE} and {@link #MAX_WINDOW_SIZE} messages.
+ * </p>
+ */
+public class FetchWindow {
+    public static final int MIN_WINDOW_SIZE = 10;
+    public static final int MAX_WINDOW_SIZE = 500;
+
+    /**
+     * Never request more than this many bytes (estimated) with one command.
+     */
+    static final long MAX_WINDOW_BYTES = 2 * 1024 * 1024;
+
+    static final int TARGET_WINDOW_ROUND_TRIPS = 4;
+    static final long MIN_TARGET_MILLIS = 250;
+
+    /**
+     * Weight of the most recent sample in the exponentially weighted moving averages.
+     */
+    private static final double SAMPLE_WEIGHT = 0.5;
+
+    private int mSize;
+    private long mRoundTripTime = -1;
+    private double mBytesPerMilli = -1;
+    private double mBytesPerMessage = -1;
+
+
+    public FetchWindow(int initialSize) {
+        mSize = clamp(initialSize, MIN_WINDOW_SIZE, MAX_WINDOW_SIZE);
+    }
+
+    /**
+     * @return The number of messages to request with the next command.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Record the time between sending a command and receiving the first line of its response
+     * while no other command was outstanding.
+     */
+    public void setRoundTripTime(long millis) {
+        mRoundTripTime = Math.max(1, millis);
+    }
+
+    /**
+     * Update the estimates with a finished command and compute the next window size.
+     *
+     * @param messageCount
+     *         The number of messages requested by the command.
+     * @param bytes
+     *         The number of bytes received for the command.
+     * @param millis
+     *         The time spent receiving the response. For pipelined commands this is the time since
+     *         the previous command completed, not since this command was sent.
+     */
+    public void windowCompleted(int messageCount, long bytes, long millis) {
+        if (messageCount <= 0 || bytes <= 0) {
+            return;
+        }
+
+        mBytesPerMessage = average(mBytesPerMessage, (double) bytes / messageCount);
+        mBytesPerMilli = average(mBytesPerMilli, (double) bytes / Math.max(1, millis));
+
+        long targetMillis = MIN_TARGET_MILLIS;
+        if (mRoundTripTime > 0) {
+            targetMillis = Math.max(targetMillis, TARGET_WINDOW_ROUND_TRIPS * mRoundTripTime);
+        }
+        double targetBytes = Math.min(mBytesPerMilli * targetMillis, MAX_WINDOW_BYTES);
+
+        int wanted = (int) Math.min(Integer.MAX_VALUE, targetBytes / mBytesPerMessage);
+        wanted = clamp(wanted, mSize / 2, mSize * 2);
+        mSize = clamp(wanted, MIN_WINDOW_SIZE, MAX_WINDOW_SIZE);
+    }
+
+    private static double average(double current, double sample) {
+        return (current < 0) ? sample : (SAMPLE_WEIGHT * sample + (1 - SAMPLE_WEIGHT) * current);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -20,8 +20,10 @@ package com.fsck.k9.mail.store.imap;
 import android.util.Log;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.helper.Utility;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -112,6 +114,57 @@ public class ImapUtility {
         return list;
     }
 
+    /**
+     * Create a compact sequence set per RFC 3501 from a list of numbers.
+     *
+     * <p>
+     * The numbers are sorted, duplicates are removed and runs of consecutive numbers are
+     * combined into ranges, e.g. {@code 9,1,2,3,4,5,13,12} becomes {@code 1:5,9,12:13}.
+     * </p>
+     *
+     * @param values
+     *         The numbers (e.g. UIDs) as strings.
+     *
+     * @return The sequence set. If any of the values is not a valid number the values are joined
+     *         with commas unchanged.
+     */
+    public static String toSequenceSet(String[] values) {
+        long[] numbers = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                numbers[i] = Long.parseLong(values[i]);
+            } catch (NumberFormatException e) {
+                numbers[i] = -1;
+            }
+            if (!is32bitValue(numbers[i])) {
+                return Utility.combine(values, ',');
+            }
+        }
+        Arrays.sort(numbers);
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < numbers.length) {
+            long first = numbers[i];
+            long last = first;
+            i++;
+            while (i < numbers.length && numbers[i] <= last + 1) {
+                last = numbers[i];
+                i++;
+            }
+
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(first);
+            if (last != first) {
+                sb.append(':').append(last);
+            }
+        }
+
+        return sb.toString();
+    }
+
     private static boolean isNumberValid(String number) {
         try {
             long value = Long.parseLong(number);
@@ -35,6 +35,16 @@ import java.util.*;
 public class SmtpTransport extends Transport {
     public static final String TRANSPORT_TYPE = "SMTP";
 
+    /**
+     * Size of the buffer used when writing to the server.
+     *
+     * <p>
+     * The buffer is used for the whole session, so message data is written to the socket in
+     * large chunks instead of one TLS record per kilobyte.
+     * </p>
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Decodes a SmtpTransport URI.
      *
@@ -176,6 +186,7 @@ public class SmtpTransport extends Transport {
     PeekableInputStream mIn;
     OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mPipeliningSupported;
     private int mLargestAcceptableMessage;
 
     public SmtpTransport(Account account) throws MessagingException {
@@ -231,7 +242,7 @@ public class SmtpTransport extends Transport {
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
 
             mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(), 1024));
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 
             // Eat the banner
             executeSimpleCommand(null);
@@ -272,7 +283,8 @@ public class SmtpTransport extends Transport {
                               mPort, true);
                     mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
                                                   1024));
-                    mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
+                    mOut = new BufferedOutputStream(mSocket.getOutputStream(),
+                            OUTPUT_BUFFER_SIZE);
                     /*
                      * Now resend the EHLO. Required by RFC2487 Sec. 5.2, and more specifically,
                      * Exim.
@@ -293,6 +305,8 @@ public class SmtpTransport extends Transport {
                 }
             }
 
+            mPipeliningSupported = extensions.containsKey("PIPELINING");
+
             boolean authLoginSupported = false;
             boolean authPlainSupported = false;
             boolean authCramMD5Supported = false;
@@ -465,12 +479,24 @@ public class SmtpTransport extends Transport {
         }
     }
 
+    /**
+     * Send a message to the given recipients.
+     *
+     * <p>
+     * The connection is kept open after the message was sent, so the messages of an outbox flush
+     * share one authenticated session. Callers need to call {@link #close()} when they're done.
+     * If the server closed the connection since the last message was sent, we reconnect and send
+     * the envelope again.
+     * </p>
+     */
     private void sendMessageTo(ArrayList<String> addresses, Message message)
     throws MessagingException {
         boolean possibleSend = false;
 
-        close();
-        open();
+        boolean reusingConnection = isOpen();
+        if (!reusingConnection) {
+            open();
+        }
 
         if (!m8bitEncodingAllowed) {
             message.setUsing7bitTransport();
@@ -487,12 +513,20 @@ public class SmtpTransport extends Transport {
 
         Address[] from = message.getFrom();
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from[0].getAddress() + ">"
-                    + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
-            for (String address : addresses) {
-                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
+            try {
+                sendEnvelope(from[0].getAddress(), addresses);
+            } catch (Exception e) {
+                if (!reusingConnection || !isConnectionFailure(e)) {
+                    throw e;
+                }
+
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "SMTP connection was closed by the server, reconnecting", e);
+                }
+                closeSocket();
+                open();
+                sendEnvelope(from[0].getAddress(), addresses);
             }
-            executeSimpleCommand("DATA");
 
             EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
                     new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
@@ -515,22 +549,116 @@ public class SmtpTransport extends Transport {
             }
 
             me.setPermanentFailure(possibleSend);
+
+            // The server rejected a command, but the connection can still be used for the next
+            // message once the transaction was reset. Anything else leaves the connection in an
+            // unknown state.
+            if (e instanceof NegativeSmtpReplyException && isOpen()) {
+                try {
+                    executeSimpleCommand("RSET");
+                } catch (Exception e2) {
+                    close();
+                }
+            } else {
+                close();
+            }
+
             throw me;
-        } finally {
-            close();
         }
+    }
 
+    /**
+     * Send the MAIL FROM, RCPT TO and DATA commands.
+     *
+     * <p>
+     * If the server supports PIPELINING (RFC 2920) all commands are sent at once and the replies
+     * are read afterwards. Otherwise we wait for the reply to each command before sending the
+     * next one.
+     * </p>
+     */
+    private void sendEnvelope(String from, List<String> recipients)
+            throws IOException, MessagingException {
+        List<String> commands = new ArrayList<String>(recipients.size() + 2);
+        commands.add("MAIL FROM:" + "<" + from + ">"
+                + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
+        for (String address : recipients) {
+            commands.add("RCPT TO:" + "<" + address + ">");
+        }
+        commands.add("DATA");
+
+        if (!mPipeliningSupported) {
+            for (String command : commands) {
+                executeSimpleCommand(command);
+            }
+            return;
+        }
 
+        for (String command : commands) {
+            writeLine(command, false, false);
+        }
+        mOut.flush();
+
+        // Read all replies, even if one of them is negative, so the responses don't get out of
+        // sync with the commands.
+        NegativeSmtpReplyException negativeReply = null;
+        boolean dataAccepted = false;
+        for (int i = 0, end = commands.size(); i < end; i++) {
+            try {
+                readCommandResponse();
+                dataAccepted = (i == end - 1);
+            } catch (NegativeSmtpReplyException e) {
+                if (negativeReply == null) {
+                    negativeReply = e;
+                }
+            }
+        }
+
+        if (negativeReply != null) {
+            if (dataAccepted) {
+                /*
+                 * Some recipients were rejected but the server is waiting for the message. The
+                 * only way to abort the transaction now is to drop the connection before sending
+                 * the terminating "." line.
+                 */
+                closeSocket();
+            }
+            throw negativeReply;
+        }
+    }
 
+    /**
+     * Check whether a failure is likely caused by a connection the server closed, i.e. whether
+     * it makes sense to reconnect and try again.
+     */
+    private static boolean isConnectionFailure(Exception e) {
+        if (e instanceof NegativeSmtpReplyException) {
+            // 421: Service not available, closing transmission channel
+            return ((NegativeSmtpReplyException) e).getReplyCode() == 421;
+        }
+        return true;
+    }
+
+    private boolean isOpen() {
+        return (mSocket != null && mSocket.isConnected() && !mSocket.isClosed());
     }
 
     @Override
     public void close() {
+        if (mSocket == null) {
+            return;
+        }
         try {
             executeSimpleCommand("QUIT");
         } catch (Exception e) {
 
         }
+        closeSocket();
+    }
+
+    /**
+     * Close the connection without sending QUIT.
+     */
+    private void closeSocket() {
         try {
             mIn.close();
         } catch (Exception e) {
@@ -571,6 +699,10 @@ public class SmtpTransport extends Transport {
     }
 
     private void writeLine(String s, boolean sensitive) throws IOException {
+        writeLine(s, sensitive, true);
+    }
+
+    private void writeLine(String s, boolean sensitive, boolean flush) throws IOException {
         if (K9.DEBUG && K9.DEBUG_PROTOCOL_SMTP) {
             final String commandToLog;
             if (sensitive && !K9.DEBUG_SENSITIVE) {
@@ -590,7 +722,9 @@ public class SmtpTransport extends Transport {
          * See issue 799.
          */
         mOut.write(data);
-        mOut.flush();
+        if (flush) {
+            mOut.flush();
+        }
     }
 
     private void checkLine(String line) throws MessagingException {
@@ -625,11 +759,16 @@ public class SmtpTransport extends Transport {
 
     private List<String> executeSimpleCommand(String command, boolean sensitive)
     throws IOException, MessagingException {
-        List<String> results = new ArrayList<String>();
         if (command != null) {
             writeLine(command, sensitive);
         }
 
+        return readCommandResponse();
+    }
+
+    private List<String> readCommandResponse() throws IOException, MessagingException {
+        List<String> results = new ArrayList<String>();
+
         /*
          * Read lines as long as the length is 4 or larger, e.g. "220-banner text here".
          * Shorter lines are either errors of contain only a reply code. Those cases will
@@ -104,6 +104,9 @@ public class AccountSettings {
         s.put("markMessageAsReadOnView", Settings.versions(
                 new V(7, new BooleanSetting(true))
             ));
+        s.put("maxPushConnections", Settings.versions(
+                new V(32, new IntegerRangeSetting(1, 10, 3))
+            ));
         s.put("maxPushFolders", Settings.versions(
                 new V(1, new IntegerRangeSetting(0, 100, 10))
             ));
@@ -48,6 +48,12 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter to limit the number of rows returned by the {@code messages} and
+     * {@code messages/threaded/folders} URIs.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
 
     /*
      * Constants that are used for the URI matching.
@@ -56,9 +62,11 @@ public class EmailProvider extends ContentProvider {
     private static final int MESSAGES = MESSAGE_BASE;
     private static final int MESSAGES_THREADED = MESSAGE_BASE + 1;
     private static final int MESSAGES_THREAD = MESSAGE_BASE + 2;
+    private static final int MESSAGES_THREADED_FOLDERS = MESSAGE_BASE + 3;
 
     private static final int STATS_BASE = 100;
     private static final int STATS = STATS_BASE;
+    private static final int STATS_FOLDERS = STATS_BASE + 1;
 
 
     private static final String MESSAGES_TABLE = "messages";
@@ -88,6 +96,12 @@ public class EmailProvider extends ContentProvider {
         MessageColumns.FORWARDED
     };
 
+    private static final String[] FIXUP_THREAD_SUMMARY_COLUMNS = {
+        MessageColumns.FOLDER_ID,
+        MessageColumns.DATE,
+        MessageColumns.INTERNAL_DATE
+    };
+
     private static final String FOLDERS_TABLE = "folders";
 
     private static final String[] FOLDERS_COLUMNS = {
@@ -109,14 +123,18 @@ public class EmailProvider extends ContentProvider {
 
     private static final String THREADS_TABLE = "threads";
 
+    private static final String THREAD_SUMMARY_TABLE = "thread_summary";
+
     static {
         UriMatcher matcher = sUriMatcher;
 
         matcher.addURI(AUTHORITY, "account/*/messages", MESSAGES);
         matcher.addURI(AUTHORITY, "account/*/messages/threaded", MESSAGES_THREADED);
         matcher.addURI(AUTHORITY, "account/*/thread/#", MESSAGES_THREAD);
+        matcher.addURI(AUTHORITY, "account/*/messages/threaded/folders", MESSAGES_THREADED_FOLDERS);
 
         matcher.addURI(AUTHORITY, "account/*/stats", STATS);
+        matcher.addURI(AUTHORITY, "account/*/stats/folders", STATS_FOLDERS);
     }
 
     public interface SpecialColumns {
@@ -220,7 +238,8 @@ public class EmailProvider extends ContentProvider {
         switch (match) {
             case MESSAGES:
             case MESSAGES_THREADED:
-            case MESSAGES_THREAD: {
+            case MESSAGES_THREAD:
+            case MESSAGES_THREADED_FOLDERS: {
                 List<String> segments = uri.getPathSegments();
                 String accountUuid = segments.get(1);
 
@@ -235,13 +254,17 @@ public class EmailProvider extends ContentProvider {
                 }
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
+                String limit = getLimit(uri);
 
                 if (match == MESSAGES) {
                     cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs,
-                            sortOrder);
+                            sortOrder, limit);
                 } else if (match == MESSAGES_THREADED) {
                     cursor = getThreadedMessages(accountUuid, dbProjection, selection,
                             selectionArgs, sortOrder);
+                } else if (match == MESSAGES_THREADED_FOLDERS) {
+                    cursor = getThreadSummaries(accountUuid, dbProjection, selection,
+                            selectionArgs, sortOrder, limit);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -259,11 +282,16 @@ public class EmailProvider extends ContentProvider {
                 cursor = new EmailProviderCacheCursor(accountUuid, cursor, getContext());
                 break;
             }
-            case STATS: {
+            case STATS:
+            case STATS_FOLDERS: {
                 List<String> segments = uri.getPathSegments();
                 String accountUuid = segments.get(1);
 
-                cursor = getAccountStats(accountUuid, projection, selection, selectionArgs);
+                if (match == STATS_FOLDERS) {
+                    cursor = getFolderStats(accountUuid, projection, selection, selectionArgs);
+                } else {
+                    cursor = getAccountStats(accountUuid, projection, selection, selectionArgs);
+                }
 
                 Uri notificationUri = Uri.withAppendedPath(CONTENT_URI, "account/" + accountUuid +
                         "/messages");
@@ -291,8 +319,23 @@ public class EmailProvider extends ContentProvider {
         throw new RuntimeException("not implemented yet");
     }
 
+    /**
+     * @return The value of the {@link #QUERY_PARAMETER_LIMIT} parameter, or {@code null} if
+     *         the number of rows isn't limited.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (StringUtils.isNullOrEmpty(limit)) {
+            return null;
+        }
+
+        // Make sure we only ever append a number to the query
+        return Integer.toString(Integer.parseInt(limit));
+    }
+
     protected Cursor getMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -346,11 +389,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
                                 "m.", sortOrder));
+                        if (limit != null) {
+                            query.append(" LIMIT ");
+                            query.append(limit);
+                        }
 
                         cursor = db.rawQuery(query.toString(), selectionArgs);
                     } else {
                         cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null,
-                                null, sortOrder);
+                                null, sortOrder, limit);
                     }
 
                     return cursor;
@@ -431,6 +478,95 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Same as {@link #getThreadedMessages(String, String[], String, String[], String)} but reads
+     * the aggregated values from the {@code thread_summary} table.
+     *
+     * <p>
+     * This avoids grouping all messages on every query, but the selection has to pick a single
+     * folder by {@code folder_id}. A summary only covers the messages of a thread that are in
+     * one folder, so a thread spanning several selected folders would be returned once per
+     * folder. Apart from that the selection may only refer to {@code id}, {@code date} and
+     * {@code internal_date} (the values of the newest message in the thread) which are used to
+     * load the list in pages.
+     * </p>
+     */
+    protected Cursor getThreadSummaries(String accountUuid, final String[] projection,
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
+
+        Account account = getAccount(accountUuid);
+        LockableDatabase database = getDatabase(account);
+
+        try {
+            return database.execute(false, new DbCallback<Cursor>() {
+                @Override
+                public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+
+                    StringBuilder query = new StringBuilder();
+
+                    query.append("SELECT ");
+                    boolean first = true;
+                    for (String columnName : projection) {
+                        if (!first) {
+                            query.append(",");
+                        } else {
+                            first = false;
+                        }
+
+                        if (MessageColumns.ID.equals(columnName)) {
+                            query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
+                        } else if (THREAD_AGGREGATION_FUNCS.containsKey(columnName) ||
+                                SpecialColumns.THREAD_COUNT.equals(columnName) ||
+                                ThreadColumns.ROOT.equals(columnName) ||
+                                MessageColumns.FOLDER_ID.equals(columnName)) {
+                            query.append("a.");
+                            query.append(columnName);
+                            query.append(" AS ");
+                            query.append(columnName);
+                        } else if (MessageColumns.MESSAGE_ID.equals(columnName)) {
+                            query.append("m." + MessageColumns.MESSAGE_ID + " AS " +
+                                    MessageColumns.MESSAGE_ID);
+                        } else {
+                            query.append(columnName);
+                        }
+                    }
+
+                    query.append(" FROM " + THREAD_SUMMARY_TABLE + " a " +
+                            "JOIN " + MESSAGES_TABLE + " m " +
+                            "ON (m." + MessageColumns.ID + " = a.message_id) " +
+                            "LEFT JOIN " + FOLDERS_TABLE + " f " +
+                            "ON (a." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
+                            ") ");
+
+                    if (!StringUtils.isNullOrEmpty(selection)) {
+                        query.append("WHERE ");
+                        String where = SqlQueryBuilder.addPrefixToSelection(
+                                FIXUP_THREAD_SUMMARY_COLUMNS, "a.", selection);
+                        query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
+                                "m.", where));
+                    }
+
+                    if (!StringUtils.isNullOrEmpty(sortOrder)) {
+                        query.append(" ORDER BY ");
+                        query.append(SqlQueryBuilder.addPrefixToSelection(
+                                FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
+                    }
+
+                    if (limit != null) {
+                        query.append(" LIMIT ");
+                        query.append(limit);
+                    }
+
+                    return db.rawQuery(query.toString(), selectionArgs);
+                }
+            });
+        } catch (UnavailableStorageException e) {
+            throw new RuntimeException("Storage not available", e);
+        }
+    }
+
     private void createThreadedSubQuery(String[] projection, String selection,
             String[] selectionArgs, StringBuilder query) {
 
@@ -472,7 +608,8 @@ public class EmailProvider extends ContentProvider {
 
         if (!StringUtils.isNullOrEmpty(selection)) {
             query.append(" AND (");
-            query.append(selection);
+            query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "m.",
+                    selection));
             query.append(")");
         }
 
@@ -536,6 +673,66 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Add up the unread and flagged counters stored in the {@code folders} table.
+     *
+     * <p>
+     * This is a lot cheaper than {@link #getAccountStats(String, String[], String, String[])}
+     * but the selection may only refer to columns of the {@code folders} table. The folder ID
+     * can be referred to as {@code folder_id}.
+     * </p>
+     */
+    private Cursor getFolderStats(String accountUuid, String[] columns,
+            final String selection, final String[] selectionArgs) {
+
+        Account account = getAccount(accountUuid);
+        LockableDatabase database = getDatabase(account);
+
+        // Use default projection if none was given
+        String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
+
+        // e.g. "SELECT SUM(unread_count) AS unread_count, SUM(flagged_count) AS flagged_count"
+        final StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ");
+        boolean first = true;
+        for (String columnName : sourceProjection) {
+            if (!first) {
+                sql.append(',');
+            } else {
+                first = false;
+            }
+
+            if (StatsColumns.UNREAD_COUNT.equals(columnName)) {
+                sql.append("SUM(" + FolderColumns.UNREAD_COUNT + ") AS " + StatsColumns.UNREAD_COUNT);
+            } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
+                sql.append("SUM(" + FolderColumns.FLAGGED_COUNT + ") AS " + StatsColumns.FLAGGED_COUNT);
+            } else {
+                throw new IllegalArgumentException("Column name not allowed: " + columnName);
+            }
+        }
+
+        sql.append(" FROM (SELECT *, id AS " + MessageColumns.FOLDER_ID + " FROM " + FOLDERS_TABLE + ")");
+
+        if (!StringUtils.isNullOrEmpty(selection)) {
+            sql.append(" WHERE (");
+            sql.append(selection);
+            sql.append(")");
+        }
+
+        try {
+            return database.execute(false, new DbCallback<Cursor>() {
+                @Override
+                public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+
+                    return db.rawQuery(sql.toString(), selectionArgs);
+                }
+            });
+        }  catch (UnavailableStorageException e) {
+            throw new RuntimeException("Storage not available", e);
+        }
+    }
+
     private Cursor getAccountStats(String accountUuid, String[] columns,
             final String selection, final String[] selectionArgs) {
 
@@ -18,6 +18,53 @@ public class SqlQueryBuilder {
         buildWhereClauseInternal(account, node, query, selectionArgs);
     }
 
+    /**
+     * Check whether the conditions only refer to properties of folders.
+     *
+     * <p>
+     * The WHERE clause created for such conditions by
+     * {@link #buildWhereClause(Account, ConditionsTreeNode, StringBuilder, List)} can be used to
+     * select folders instead of messages, as long as the folder ID is available as
+     * {@code folder_id}.
+     * </p>
+     */
+    public static boolean isFolderCondition(ConditionsTreeNode node) {
+        if (node == null) {
+            return true;
+        }
+
+        if (node.mLeft == null && node.mRight == null) {
+            switch (node.mCondition.field) {
+                case FOLDER:
+                case SEARCHABLE:
+                case INTEGRATE:
+                case DISPLAY_CLASS: {
+                    return true;
+                }
+                default: {
+                    return false;
+                }
+            }
+        }
+
+        return isFolderCondition(node.mLeft) && isFolderCondition(node.mRight);
+    }
+
+    /**
+     * Check whether the conditions select exactly one folder and nothing else.
+     *
+     * <p>
+     * The rows of the {@code thread_summary} table only aggregate the messages of a thread that
+     * are in the same folder. They can't be used for searches spanning several folders, because
+     * a thread with messages in more than one of them would show up more than once.
+     * </p>
+     */
+    public static boolean isSingleFolderCondition(ConditionsTreeNode node) {
+        return node != null && node.mLeft == null && node.mRight == null &&
+                node.mCondition.field == Searchfield.FOLDER &&
+                node.mCondition.attribute == Attribute.EQUALS;
+    }
+
     private static void buildWhereClauseInternal(Account account, ConditionsTreeNode node,
             StringBuilder query, List<String> selectionArgs) {
         if (node == null) {
@@ -72,6 +119,14 @@ public class SqlQueryBuilder {
                     }
                     break;
                 }
+                case MESSAGE_CONTENTS: {
+                    if (isFulltextCondition(condition)) {
+                        appendFulltextCondition(condition, query, selectionArgs);
+                    } else {
+                        appendCondition(condition, query, selectionArgs);
+                    }
+                    break;
+                }
                 default: {
                     appendCondition(condition, query, selectionArgs);
                 }
@@ -93,6 +148,50 @@ public class SqlQueryBuilder {
         appendExprRight(condition, query, selectionArgs);
     }
 
+    /**
+     * Check whether a condition can be answered using the full-text index.
+     *
+     * <p>
+     * Only (NOT_)CONTAINS conditions are supported. Search terms without any letters or digits
+     * would result in an empty full-text query. Those fall back to a {@code LIKE} expression.
+     * </p>
+     */
+    private static boolean isFulltextCondition(SearchCondition condition) {
+        if (condition.attribute != Attribute.CONTAINS &&
+                condition.attribute != Attribute.NOT_CONTAINS) {
+            return false;
+        }
+
+        String value = condition.value;
+        for (int i = 0, len = value.length(); i < len; i++) {
+            if (Character.isLetterOrDigit(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Use the {@code messages_fulltext} table to look up messages containing the search term.
+     *
+     * <p>
+     * The search term is turned into a phrase query whose last word is matched as a prefix. So
+     * unlike the {@code LIKE} variant words have to match from the beginning.
+     * </p>
+     */
+    private static void appendFulltextCondition(SearchCondition condition, StringBuilder query,
+            List<String> selectionArgs) {
+        query.append("id ");
+        if (condition.attribute == Attribute.NOT_CONTAINS) {
+            query.append("NOT ");
+        }
+        query.append("IN (SELECT docid FROM messages_fulltext WHERE fulltext MATCH ?)");
+
+        // Double quotes can't be escaped inside a phrase query
+        String phrase = condition.value.replace('"', ' ').trim();
+        selectionArgs.add("\"" + phrase + "*\"");
+    }
+
     private static long getFolderId(Account account, String folderName) {
         long folderId = 0;
         try {
@@ -34,6 +34,7 @@ import android.widget.Toast;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import org.thialfihar.android.apg.R;
+import com.fsck.k9.cache.MessageViewCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.controller.MessagingListener;
 import com.fsck.k9.crypto.Apg;
@@ -576,12 +577,21 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         resetView();
 
         String text = null;
+        Boolean hasExternalImages = null;
         if (pgpData != null) {
             text = pgpData.getDecryptedData();
         }
 
         if (text == null) {
-            text = message.getTextForDisplay();
+            MessageViewCache.Entry entry =
+                    MessageViewCache.getInstance().get(message.makeMessageReference());
+            if (entry != null && entry.message == message) {
+                // The text was extracted in the background
+                text = entry.text;
+                hasExternalImages = entry.hasExternalImages;
+            } else {
+                text = message.getTextForDisplay();
+            }
         }
 
         mText = text;
@@ -628,7 +638,10 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
             // If the message contains external pictures and the "Show pictures"
             // button wasn't already pressed, see if the user's preferences has us
             // showing them anyway.
-            if (Utility.hasExternalImages(text) && !showPictures()) {
+            if (hasExternalImages == null) {
+                hasExternalImages = Utility.hasExternalImages(text);
+            }
+            if (hasExternalImages && !showPictures()) {
                 Address[] from = message.getFrom();
                 if ((account.getShowPictures() == Account.ShowPictures.ALWAYS) ||
                         ((account.getShowPictures() == Account.ShowPictures.ONLY_FROM_CONTACTS) &&
@@ -0,0 +1,51 @@
+package com.fsck.k9.cache;
+
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.activity.MessageReference;
+
+public class MessageViewCacheTest extends AndroidTestCase {
+    private MessageViewCache mCache;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = MessageViewCache.getInstance();
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear();
+        super.tearDown();
+    }
+
+    public void testRemoveByUid() {
+        MessageViewCache.Entry entry = new MessageViewCache.Entry(null, "Text", false);
+        mCache.put(createReference("1"), entry);
+
+        assertSame(entry, mCache.get(createReference("1")));
+
+        mCache.remove("account", "INBOX", "1");
+        assertNull(mCache.get(createReference("1")));
+    }
+
+    public void testOnlyRecentMessagesAreKept() {
+        for (int i = 0; i < 20; i++) {
+            mCache.put(createReference(Integer.toString(i)),
+                    new MessageViewCache.Entry(null, "Text " + i, false));
+        }
+
+        assertNull(mCache.get(createReference("0")));
+        assertEquals("Text 19", mCache.get(createReference("19")).text);
+    }
+
+    private MessageReference createReference(String uid) {
+        MessageReference reference = new MessageReference();
+        reference.accountUuid = "account";
+        reference.folderName = "INBOX";
+        reference.uid = uid;
+        return reference;
+    }
+}
@@ -0,0 +1,76 @@
+package com.fsck.k9.controller;
+
+import com.fsck.k9.controller.MessagingController.Command;
+
+import junit.framework.TestCase;
+
+public class CommandSchedulerTest extends TestCase {
+    private CommandScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new CommandScheduler();
+    }
+
+    public void testCommandsOfDifferentLanesRunConcurrently() throws Exception {
+        Command first = command("account1", false);
+        Command second = command("account2", false);
+        mScheduler.put(first);
+        mScheduler.put(second);
+
+        assertSame(first, mScheduler.take());
+        assertSame(second, mScheduler.take());
+        assertFalse(mScheduler.hasQueuedCommands());
+    }
+
+    public void testCommandsOfSameLaneAreSerialized() throws Exception {
+        Command first = command("account1", false);
+        Command second = command("account1", false);
+        Command other = command("account2", false);
+        mScheduler.put(first);
+        mScheduler.put(second);
+        mScheduler.put(other);
+
+        assertSame(first, mScheduler.take());
+        // "second" has to wait for "first" to complete
+        assertSame(other, mScheduler.take());
+
+        mScheduler.complete(first);
+        assertSame(second, mScheduler.take());
+    }
+
+    public void testForegroundCommandsArePreferred() throws Exception {
+        Command background = command("account1", false);
+        Command foreground = command("account2", true);
+        mScheduler.put(background);
+        mScheduler.put(foreground);
+
+        assertSame(foreground, mScheduler.take());
+        assertSame(background, mScheduler.take());
+    }
+
+    public void testBarrierWaitsForOlderCommands() throws Exception {
+        Command sync = command("account1", false);
+        Command barrier = command(null, false);
+        Command later = command("account2", false);
+        mScheduler.put(sync);
+        mScheduler.put(barrier);
+        mScheduler.put(later);
+
+        assertSame(sync, mScheduler.take());
+        assertTrue(mScheduler.isBusy());
+
+        mScheduler.complete(sync);
+        assertSame(barrier, mScheduler.take());
+        assertSame(later, mScheduler.take());
+    }
+
+    private static Command command(String lane, boolean isForeground) {
+        Command command = new Command();
+        command.lane = lane;
+        command.isForeground = isForeground;
+        command.description = "test";
+        return command;
+    }
+}
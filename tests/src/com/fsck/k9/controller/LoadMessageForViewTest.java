@@ -0,0 +1,187 @@
+package com.fsck.k9.controller;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.activity.MessageReference;
+import com.fsck.k9.cache.MessageViewCache;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.internet.MimeBodyPart;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.mail.store.LocalStore.LocalMessage;
+
+/**
+ * The prepared messages in the {@link MessageViewCache} have to be checked against the database
+ * before they are displayed.
+ */
+public class LoadMessageForViewTest extends AndroidTestCase {
+    private static final String FOLDER_NAME = "ViewCacheTest";
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mLocalFolder;
+    private MessagingController mController;
+    private MessageViewCache mCache;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        // Marking the message as read would change its flags in the background
+        mAccount.setMarkMessageAsReadOnView(false);
+        mLocalStore = mAccount.getLocalStore();
+
+        mLocalFolder = mLocalStore.getFolder(FOLDER_NAME);
+        mLocalFolder.create(Folder.FolderType.HOLDS_MESSAGES);
+        mLocalFolder.open(Folder.OPEN_MODE_RW);
+        mLocalFolder.appendMessages(new Message[] { createMessage("1"), createMessage("2") });
+
+        mController = MessagingController.getInstance(
+                (Application) getContext().getApplicationContext());
+        mCache = MessageViewCache.getInstance();
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear();
+        mLocalFolder.close();
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testFlagsAreRefreshedOnCopy() throws Exception {
+        LocalMessage first = loadMessageForView("1");
+        assertSame(first, mCache.get(createReference("1")).message);
+
+        mLocalFolder.setFlags(new Message[] { mLocalFolder.getMessage("1") },
+                new Flag[] { Flag.FLAGGED }, true);
+
+        LocalMessage second = loadMessageForView("1");
+        assertNotSame(first, second);
+        assertTrue(second.isSet(Flag.FLAGGED));
+        assertSame(second, mCache.get(createReference("1")).message);
+
+        // The first instance may still be displayed, so it's left alone
+        assertFalse(first.isSet(Flag.FLAGGED));
+    }
+
+    public void testReplacedMessageIsNotUsed() throws Exception {
+        LocalMessage other = loadMessageForView("2");
+        mCache.put(createReference("1"), new MessageViewCache.Entry(other, "Stale", false));
+
+        LocalMessage message = loadMessageForView("1");
+        assertEquals(mLocalFolder.getMessage("1").getId(), message.getId());
+
+        MessageViewCache.Entry entry = mCache.get(createReference("1"));
+        assertSame(message, entry.message);
+        assertFalse("Stale".equals(entry.text));
+    }
+
+    public void testChangedDownloadStateIsNotUsed() throws Exception {
+        LocalMessage partial = loadMessageForView("1").clone();
+        partial.setFlagInternal(Flag.X_DOWNLOADED_FULL, false);
+        partial.setFlagInternal(Flag.X_DOWNLOADED_PARTIAL, true);
+        mCache.put(createReference("1"), new MessageViewCache.Entry(partial, "Partial", false));
+
+        LocalMessage message = loadMessageForView("1");
+        assertNotSame(partial, message);
+
+        MessageViewCache.Entry entry = mCache.get(createReference("1"));
+        assertSame(message, entry.message);
+        assertFalse("Partial".equals(entry.text));
+    }
+
+    public void testRemoteLoadRemovesEntry() throws Exception {
+        loadMessageForView("1");
+        assertNotNull(mCache.get(createReference("1")));
+
+        // The account has no server, so only the local part of this succeeds
+        mController.loadMessageForViewRemoteSynchronous(mAccount, FOLDER_NAME, "1", null,
+                false, false);
+
+        assertNull(mCache.get(createReference("1")));
+    }
+
+    public void testLoadingAttachmentRemovesEntry() throws Exception {
+        LocalMessage message = loadMessageForView("1");
+        assertNotNull(mCache.get(createReference("1")));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        Part part = new MimeBodyPart(null, "application/octet-stream");
+        mController.loadAttachment(mAccount, message, part, null, new MessagingListener() {
+            @Override
+            public void loadAttachmentFinished(Account account, Message message, Part part,
+                    Object tag) {
+                latch.countDown();
+            }
+
+            @Override
+            public void loadAttachmentFailed(Account account, Message message, Part part,
+                    Object tag, String reason) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(mCache.get(createReference("1")));
+    }
+
+    private LocalMessage loadMessageForView(String uid) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final LocalMessage[] result = new LocalMessage[1];
+        mController.loadMessageForView(mAccount, FOLDER_NAME, uid, new MessagingListener() {
+            @Override
+            public void loadMessageForViewFinished(Account account, String folder, String uid,
+                    Message message) {
+                result[0] = (LocalMessage) message;
+                latch.countDown();
+            }
+
+            @Override
+            public void loadMessageForViewFailed(Account account, String folder, String uid,
+                    Throwable t) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNotNull("Loading message " + uid + " failed", result[0]);
+        return result[0];
+    }
+
+    private MessageReference createReference(String uid) {
+        MessageReference reference = new MessageReference();
+        reference.accountUuid = mAccount.getUuid();
+        reference.folderName = FOLDER_NAME;
+        reference.uid = uid;
+        return reference;
+    }
+
+    private static MimeMessage createMessage(String uid) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setSubject("Message " + uid);
+        message.setFrom(new Address("from@example.com"));
+        message.setSentDate(new Date(Long.parseLong(uid) * 1000L));
+        message.setBody(new TextBody("Body " + uid));
+        message.setFlag(Flag.X_DOWNLOADED_FULL, true);
+        return message;
+    }
+}
@@ -0,0 +1,312 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessageRetrievalListener;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+
+/**
+ * Synchronize a folder whose server keeps mod-sequences (CONDSTORE/QRESYNC).
+ */
+public class ModSeqSyncTest extends AndroidTestCase {
+    private static final String FOLDER_NAME = "ModSeqTest";
+    private static final long UID_VALIDITY = 1;
+    private static final long LOCAL_MOD_SEQ = 100;
+    private static final int VISIBLE_LIMIT = 5;
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private FakeRemoteFolder mRemoteFolder;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+
+        LocalFolder localFolder = mLocalStore.getFolder(FOLDER_NAME);
+        localFolder.create(Folder.FolderType.HOLDS_MESSAGES);
+        localFolder.open(Folder.OPEN_MODE_RW);
+        try {
+            // The visible window contains the messages with UIDs 10 to 14
+            List<Message> messages = new ArrayList<Message>();
+            for (int uid = 10; uid < 15; uid++) {
+                MimeMessage message = createMessage(Integer.toString(uid));
+                message.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                messages.add(message);
+            }
+            localFolder.appendMessages(messages.toArray(new Message[messages.size()]));
+
+            localFolder.setVisibleLimit(VISIBLE_LIMIT);
+            localFolder.setModSeqState(UID_VALIDITY, LOCAL_MOD_SEQ);
+        } finally {
+            localFolder.close();
+        }
+
+        mRemoteFolder = new FakeRemoteFolder(mAccount);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testUnchangedModSeq() throws Exception {
+        mRemoteFolder.highestModSeq = LOCAL_MOD_SEQ;
+
+        synchronize();
+
+        assertEquals(0, mRemoteFolder.changedMessagesRequests);
+        assertEquals(0, mRemoteFolder.fetchedUids.size());
+        assertLocalUids("10", "11", "12", "13", "14");
+    }
+
+    public void testFlagsChangedOnly() throws Exception {
+        mRemoteFolder.highestModSeq = LOCAL_MOD_SEQ + 5;
+
+        MimeMessage read = createMessage("12");
+        read.setFlag(Flag.SEEN, true);
+        // An old message outside of the visible window that was flagged on another client
+        MimeMessage old = createMessage("3");
+        old.setFlag(Flag.FLAGGED, true);
+        mRemoteFolder.changedMessages = new Message[] { old, read };
+
+        synchronize();
+
+        assertEquals(1, mRemoteFolder.changedMessagesRequests);
+        assertEquals(0, mRemoteFolder.fetchedUids.size());
+        assertLocalUids("10", "11", "12", "13", "14");
+
+        LocalFolder localFolder = openLocalFolder();
+        try {
+            assertTrue(localFolder.getMessage("12").isSet(Flag.SEEN));
+            assertFalse(localFolder.getMessage("13").isSet(Flag.SEEN));
+            assertEquals(LOCAL_MOD_SEQ + 5, localFolder.getHighestModSeq());
+        } finally {
+            localFolder.close();
+        }
+    }
+
+    public void testVanishedUids() throws Exception {
+        mRemoteFolder.highestModSeq = LOCAL_MOD_SEQ + 2;
+        mRemoteFolder.vanishedUids = Arrays.asList("11", "13", "2");
+
+        synchronize();
+
+        assertEquals(0, mRemoteFolder.fetchedUids.size());
+        assertLocalUids("10", "12", "14");
+    }
+
+    private void synchronize() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        MessagingController controller = MessagingController.getInstance(
+                (Application) getContext().getApplicationContext());
+        controller.synchronizeMailbox(mAccount, FOLDER_NAME, new MessagingListener() {
+            @Override
+            public void synchronizeMailboxFinished(Account account, String folder,
+                    int totalMessagesInMailbox, int numNewMessages) {
+                latch.countDown();
+            }
+
+            @Override
+            public void synchronizeMailboxFailed(Account account, String folder, String message) {
+                fail("Synchronization failed: " + message);
+            }
+        }, mRemoteFolder);
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private void assertLocalUids(String... uids) throws Exception {
+        LocalFolder localFolder = openLocalFolder();
+        try {
+            List<String> localUids = new ArrayList<String>();
+            for (Message message : localFolder.getMessages(null)) {
+                localUids.add(message.getUid());
+            }
+            assertEquals(uids.length, localUids.size());
+            assertTrue(localUids.containsAll(Arrays.asList(uids)));
+        } finally {
+            localFolder.close();
+        }
+    }
+
+    private LocalFolder openLocalFolder() throws MessagingException {
+        LocalFolder localFolder = mLocalStore.getFolder(FOLDER_NAME);
+        localFolder.open(Folder.OPEN_MODE_RW);
+        return localFolder;
+    }
+
+    private static MimeMessage createMessage(String uid) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setSubject("Message " + uid);
+        message.setFrom(new Address("from@example.com"));
+        message.setSentDate(new Date(Long.parseLong(uid) * 1000L));
+        message.setBody(new TextBody("Body " + uid));
+        return message;
+    }
+
+
+    /**
+     * A remote folder that reports changes by mod-sequence and records what the sync asks for.
+     */
+    private static class FakeRemoteFolder extends Folder {
+        long highestModSeq;
+        Message[] changedMessages = new Message[0];
+        List<String> vanishedUids = new ArrayList<String>();
+
+        int changedMessagesRequests;
+        final List<String> fetchedUids = new ArrayList<String>();
+
+        FakeRemoteFolder(Account account) {
+            super(account);
+        }
+
+        @Override
+        public long getUidValidity() {
+            return UID_VALIDITY;
+        }
+
+        @Override
+        public long getHighestModSeq() {
+            return highestModSeq;
+        }
+
+        @Override
+        public boolean supportsVanishedMessages() {
+            return true;
+        }
+
+        @Override
+        public Message[] getChangedMessages(String[] uids, long modSeq,
+                List<String> vanishedUids) {
+            changedMessagesRequests++;
+            assertEquals(LOCAL_MOD_SEQ, modSeq);
+            vanishedUids.addAll(this.vanishedUids);
+            return changedMessages;
+        }
+
+        @Override
+        public void fetch(Message[] messages, FetchProfile fp,
+                MessageRetrievalListener listener) {
+            for (Message message : messages) {
+                fetchedUids.add(message.getUid());
+            }
+        }
+
+        @Override
+        public String getName() {
+            return FOLDER_NAME;
+        }
+
+        @Override
+        public int getMessageCount() {
+            return 100;
+        }
+
+        @Override
+        public void open(int mode) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public int getMode() {
+            return OPEN_MODE_RW;
+        }
+
+        @Override
+        public boolean create(FolderType type) {
+            return false;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public int getUnreadMessageCount() {
+            return 0;
+        }
+
+        @Override
+        public int getFlaggedMessageCount() {
+            return 0;
+        }
+
+        @Override
+        public Message getMessage(String uid) {
+            return null;
+        }
+
+        @Override
+        public Message[] getMessages(int start, int end, Date earliestDate,
+                MessageRetrievalListener listener) {
+            throw new UnsupportedOperationException("The message list isn't needed");
+        }
+
+        @Override
+        public Message[] getMessages(MessageRetrievalListener listener) {
+            throw new UnsupportedOperationException("The message list isn't needed");
+        }
+
+        @Override
+        public Message[] getMessages(String[] uids, MessageRetrievalListener listener) {
+            return new Message[0];
+        }
+
+        @Override
+        public Map<String, String> appendMessages(Message[] messages) {
+            return null;
+        }
+
+        @Override
+        public void setFlags(Message[] messages, Flag[] flags, boolean value) {
+        }
+
+        @Override
+        public void setFlags(Flag[] flags, boolean value) {
+        }
+
+        @Override
+        public String getUidFromMessageId(Message message) {
+            return null;
+        }
+
+        @Override
+        public void delete(boolean recurse) {
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.fsck.k9.controller;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.controller.PendingCommandCoalescer.Batch;
+import com.fsck.k9.mail.store.LocalStore.PendingCommand;
+
+public class PendingCommandCoalescerTest extends TestCase {
+    private static final String SET_FLAG = "setFlagBulk";
+    private static final String MOVE_OR_COPY = "moveOrCopyBulkNew";
+    private static final String APPEND = "append";
+
+    private PendingCommandCoalescer mCoalescer;
+
+
+    @Override
+    protected void setUp() {
+        mCoalescer = new PendingCommandCoalescer(SET_FLAG, MOVE_OR_COPY);
+    }
+
+    private static PendingCommand command(String name, String... arguments) {
+        PendingCommand command = new PendingCommand();
+        command.command = name;
+        command.arguments = arguments;
+        return command;
+    }
+
+    private static void assertArguments(PendingCommand command, String... expected) {
+        assertEquals(Arrays.asList(expected), Arrays.asList(command.arguments));
+    }
+
+    public void testSetFlagCommandsAreMerged() {
+        List<PendingCommand> commands = Arrays.asList(
+                command(SET_FLAG, "INBOX", "true", "SEEN", "1"),
+                command(SET_FLAG, "INBOX", "true", "SEEN", "2", "3"),
+                command(SET_FLAG, "INBOX", "true", "SEEN", "9"));
+
+        List<Batch> batches = mCoalescer.coalesce(commands);
+
+        assertEquals(1, batches.size());
+        assertEquals(commands, batches.get(0).sources);
+        assertEquals(1, batches.get(0).commands.size());
+        assertArguments(batches.get(0).commands.get(0), "INBOX", "true", "SEEN", "1", "2", "3", "9");
+    }
+
+    public void testLastFlagStateWins() {
+        List<PendingCommand> commands = Arrays.asList(
+                command(SET_FLAG, "INBOX", "true", "SEEN", "1", "2"),
+                command(SET_FLAG, "INBOX", "false", "SEEN", "2", "3"),
+                command(SET_FLAG, "INBOX", "true", "SEEN", "3"));
+
+        List<Batch> batches = mCoalescer.coalesce(commands);
+
+        assertEquals(1, batches.size());
+        List<PendingCommand> merged = batches.get(0).commands;
+        assertEquals(2, merged.size());
+        assertArguments(merged.get(0), "INBOX", "true", "SEEN", "1", "3");
+        assertArguments(merged.get(1), "INBOX", "false", "SEEN", "2");
+    }
+
+    public void testDifferentFoldersAndFlagsAreNotMerged() {
+        List<PendingCommand> commands = Arrays.asList(
+                command(SET_FLAG, "INBOX", "true", "SEEN", "1"),
+                command(SET_FLAG, "INBOX", "true", "FLAGGED", "2"),
+                command(SET_FLAG, "Sent", "true", "FLAGGED", "3"));
+
+        assertEquals(3, mCoalescer.coalesce(commands).size());
+    }
+
+    public void testOnlyAdjacentCommandsAreMerged() {
+        List<PendingCommand> commands = Arrays.asList(
+                command(SET_FLAG, "INBOX", "true", "SEEN", "1"),
+                command(APPEND, "INBOX", "K9LOCAL:1"),
+                command(SET_FLAG, "INBOX", "true", "SEEN", "2"));
+
+        List<Batch> batches = mCoalescer.coalesce(commands);
+
+        assertEquals(3, batches.size());
+        assertSame(commands.get(1), batches.get(1).commands.get(0));
+    }
+
+    public void testMoveCommandsAreMerged() {
+        List<PendingCommand> commands = Arrays.asList(
+                command(MOVE_OR_COPY, "INBOX", "Archive", "false", "false", "1", "2"),
+                command(MOVE_OR_COPY, "INBOX", "Archive", "false", "false", "5"),
+                command(MOVE_OR_COPY, "INBOX", "Archive", "true", "false", "6"));
+
+        List<Batch> batches = mCoalescer.coalesce(commands);
+
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).sources.size());
+        assertArguments(batches.get(0).commands.get(0), "INBOX", "Archive", "false", "false", "1", "2", "5");
+    }
+
+    public void testMoveCommandsWithNewUidsAreMerged() {
+        List<PendingCommand> commands = Arrays.asList(
+                command(MOVE_OR_COPY, "INBOX", "Archive", "false", "true", "1", "2", "K9LOCAL:1", "K9LOCAL:2"),
+                command(MOVE_OR_COPY, "INBOX", "Archive", "false", "true", "5", "K9LOCAL:3"));
+
+        List<Batch> batches = mCoalescer.coalesce(commands);
+
+        assertEquals(1, batches.size());
+        assertArguments(batches.get(0).commands.get(0), "INBOX", "Archive", "false", "true",
+                "1", "2", "5", "K9LOCAL:1", "K9LOCAL:2", "K9LOCAL:3");
+    }
+
+    public void testMergedCommandsAreLimited() {
+        String[] arguments = new String[3 + PendingCommandCoalescer.MAX_MERGED_UIDS];
+        arguments[0] = "INBOX";
+        arguments[1] = "true";
+        arguments[2] = "SEEN";
+        for (int i = 3; i < arguments.length; i++) {
+            arguments[i] = Integer.toString(i);
+        }
+
+        List<PendingCommand> commands = Arrays.asList(
+                command(SET_FLAG, arguments),
+                command(SET_FLAG, "INBOX", "true", "SEEN", "1"));
+
+        assertEquals(2, mCoalescer.coalesce(commands).size());
+    }
+}
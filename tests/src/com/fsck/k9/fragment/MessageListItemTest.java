@@ -0,0 +1,110 @@
+package com.fsck.k9.fragment;
+
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+
+/**
+ * Compare creating the {@link MessageListItem}s of 1,000 rows (what binding a row used to do)
+ * with getting them from the cache.
+ */
+public class MessageListItemTest extends AndroidTestCase {
+    private static final int ROW_COUNT = 1000;
+
+    private Account mAccount;
+    private MatrixCursor mCursor;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mAccount.setEmail("me@example.com");
+
+        mCursor = new MatrixCursor(new String[] {
+                "id", "uid", "internal_date", "subject", "date", "sender_list", "to_list",
+                "cc_list", "read", "flagged", "answered", "forwarded", "attachment_count",
+                "folder_id", "preview", "root", "account_uuid", "name", "thread_count" });
+
+        String to = Address.pack(new Address[] { new Address("me@example.com") });
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            String from = Address.pack(new Address[] {
+                    new Address("sender" + (i % 50) + "@example.com", "Sender " + (i % 50)) });
+            mCursor.addRow(new Object[] {
+                    i, Integer.toString(i), now - i * 60000L, "Re: Subject " + i, now - i * 60000L,
+                    from, to, null, i % 2, 0, 0, 0, 0, 1, "Preview", i, mAccount.getUuid(),
+                    "INBOX", (i % 3) + 1 });
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testCachedItemIsReused() {
+        MessageListItem.Cache cache = new MessageListItem.Cache();
+        mCursor.moveToPosition(4);
+
+        MessageListItem item = MessageListItem.getItem(getContext(), cache, mAccount, mCursor, true);
+        assertSame(item, MessageListItem.getItem(getContext(), cache, mAccount, mCursor, true));
+        assertEquals("Subject 4", item.subject);
+        assertEquals(2, item.threadCount);
+        assertTrue(item.toMe);
+        assertEquals("sender4@example.com", item.counterpartyAddress.getAddress());
+    }
+
+    public void testItemIsRecreatedWhenIdentitiesChange() {
+        MessageListItem.Cache cache = new MessageListItem.Cache();
+        mCursor.moveToPosition(4);
+
+        MessageListItem item = MessageListItem.getItem(getContext(), cache, mAccount, mCursor, true);
+        assertTrue(item.toMe);
+
+        mAccount.setEmail("somebody.else@example.com");
+        MessageListItem changed = MessageListItem.getItem(getContext(), cache, mAccount, mCursor,
+                true);
+        assertNotSame(item, changed);
+        assertFalse(changed.toMe);
+    }
+
+    public void testBenchmark() {
+        MessageListItem.Cache cache = new MessageListItem.Cache();
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = SystemClock.elapsedRealtime();
+        bindAll(cache);
+        long createTime = SystemClock.elapsedRealtime() - start;
+        int createAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = SystemClock.elapsedRealtime();
+        bindAll(cache);
+        long cachedTime = SystemClock.elapsedRealtime() - start;
+        int cachedAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i(K9.LOG_TAG, "Creating the items of " + ROW_COUNT + " rows took " + createTime +
+                "ms (" + createAllocations + " allocations), using the cached items " +
+                cachedTime + "ms (" + cachedAllocations + " allocations)");
+
+        assertTrue(cachedAllocations < createAllocations);
+    }
+
+    private void bindAll(MessageListItem.Cache cache) {
+        for (mCursor.moveToFirst(); !mCursor.isAfterLast(); mCursor.moveToNext()) {
+            MessageListItem.getItem(getContext(), cache, mAccount, mCursor, true);
+        }
+    }
+}
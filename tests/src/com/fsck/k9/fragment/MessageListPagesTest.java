@@ -0,0 +1,252 @@
+package com.fsck.k9.fragment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
+import com.fsck.k9.provider.EmailProvider;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+
+/**
+ * Load folders in pages the way {@link MessageListFragment} does and compare the result to
+ * loading all messages at once.
+ */
+public class MessageListPagesTest extends AndroidTestCase {
+    private static final String[] PROJECTION = { MessageColumns.ID, MessageColumns.DATE };
+    private static final int ID_COLUMN = 0;
+    private static final int DATE_COLUMN = 1;
+    private static final String SORT_ORDER = MessageColumns.DATE + " DESC, " +
+            MessageColumns.ID + " DESC";
+
+    private static class TestAccount {
+        public Account account;
+        public LocalStore localStore;
+        public LocalFolder folder;
+    }
+
+    private List<TestAccount> mAccounts = new ArrayList<TestAccount>();
+
+    /**
+     * All cursors returned by the content provider. A page that is turned into a closed range
+     * gets a new cursor, so closing the merged cursor doesn't close all of them.
+     */
+    private List<Cursor> mCursors = new ArrayList<Cursor>();
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        addAccount();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+        for (TestAccount testAccount : mAccounts) {
+            testAccount.folder.close();
+            testAccount.localStore.delete();
+            Preferences.getPreferences(getContext()).deleteAccount(testAccount.account);
+        }
+        super.tearDown();
+    }
+
+    public void testPagesContainAllMessages() throws Exception {
+        // Several messages share the same date, so pages have to be continued by ID
+        insertMessages(mAccounts.get(0), 1000, 3, 0);
+
+        MessageListPages pages = loadAllPages();
+        Cursor paged = pages.buildCursor(new DateComparator());
+        Cursor all = query(mAccounts.get(0), null, new ArrayList<String>(), 0);
+        assertEquals(all.getCount(), paged.getCount());
+        for (all.moveToFirst(), paged.moveToFirst(); !all.isAfterLast();
+                all.moveToNext(), paged.moveToNext()) {
+            assertEquals(all.getLong(ID_COLUMN), paged.getLong(ID_COLUMN));
+        }
+    }
+
+    public void testMergedPagesAreCutOff() throws Exception {
+        // The messages of the two accounts alternate
+        TestAccount second = addAccount();
+        insertMessages(mAccounts.get(0), 300, 1, 0);
+        insertMessages(second, 300, 1, 500);
+
+        MessageListPages pages = new MessageListPages(2, ID_COLUMN);
+        pages.reset(true, DATE_COLUMN, MessageColumns.DATE, false);
+        loadPages(pages, Arrays.asList(pages.getLoaderId(0, 0), pages.getLoaderId(1, 0)));
+
+        // The first page of the first account ends at 200000, the one of the second account at
+        // 200500. Older messages of the first account must not be displayed before the older
+        // messages of the second account have been loaded.
+        Cursor merged = pages.buildCursor(new DateComparator());
+        assertEquals(2 * MessageListPages.PAGE_SIZE - 1, merged.getCount());
+        assertTrue(merged.moveToLast());
+        assertEquals(200500, merged.getLong(DATE_COLUMN));
+
+        List<Integer> loaderIds = pages.addPages();
+        while (!loaderIds.isEmpty()) {
+            loadPages(pages, loaderIds);
+            loaderIds = pages.addPages();
+        }
+        assertTrue(pages.isComplete());
+
+        merged = pages.buildCursor(new DateComparator());
+        assertEquals(600, merged.getCount());
+        long previousDate = Long.MAX_VALUE;
+        for (merged.moveToFirst(); !merged.isAfterLast(); merged.moveToNext()) {
+            long date = merged.getLong(DATE_COLUMN);
+            assertTrue(date < previousDate);
+            previousDate = date;
+        }
+    }
+
+    public void testBenchmark() throws Exception {
+        final int messageCount = 50000;
+        TestAccount testAccount = mAccounts.get(0);
+        insertMessages(testAccount, messageCount, 1, 0);
+
+        long nativeHeap = Debug.getNativeHeapAllocatedSize();
+        long start = SystemClock.elapsedRealtime();
+        Cursor all = query(testAccount, null, new ArrayList<String>(), 0);
+        all.moveToLast();
+        long allTime = SystemClock.elapsedRealtime() - start;
+        long allMemory = Debug.getNativeHeapAllocatedSize() - nativeHeap;
+        all.close();
+
+        nativeHeap = Debug.getNativeHeapAllocatedSize();
+        start = SystemClock.elapsedRealtime();
+        Cursor firstPage = query(testAccount, null, new ArrayList<String>(),
+                MessageListPages.PAGE_SIZE);
+        firstPage.moveToLast();
+        long firstPageTime = SystemClock.elapsedRealtime() - start;
+        long firstPageMemory = Debug.getNativeHeapAllocatedSize() - nativeHeap;
+        firstPage.close();
+
+        Log.i(K9.LOG_TAG, "Loading " + messageCount + " messages took " + allTime + "ms (" +
+                allMemory + " bytes), the first page took " + firstPageTime + "ms (" +
+                firstPageMemory + " bytes)");
+    }
+
+    private TestAccount addAccount() throws Exception {
+        TestAccount testAccount = new TestAccount();
+        testAccount.account = Preferences.getPreferences(getContext()).newAccount();
+        testAccount.localStore = testAccount.account.getLocalStore();
+        testAccount.folder = testAccount.localStore.getFolder("PagingTest");
+        testAccount.folder.create(FolderType.HOLDS_MESSAGES);
+        testAccount.folder.open(LocalFolder.OPEN_MODE_RW);
+        mAccounts.add(testAccount);
+        return testAccount;
+    }
+
+    /**
+     * Keep scrolling to the end of the list until all pages have been loaded.
+     */
+    private MessageListPages loadAllPages() {
+        MessageListPages pages = new MessageListPages(1, ID_COLUMN);
+        pages.reset(true, DATE_COLUMN, MessageColumns.DATE, false);
+
+        List<Integer> loaderIds = new ArrayList<Integer>();
+        loaderIds.add(pages.getLoaderId(0, 0));
+        while (!loaderIds.isEmpty()) {
+            loadPages(pages, loaderIds);
+            loaderIds = pages.addPages();
+        }
+
+        assertTrue(pages.isComplete());
+        return pages;
+    }
+
+    /**
+     * Run the queries of the given loaders, like {@link MessageListFragment#onCreateLoader}.
+     */
+    private void loadPages(MessageListPages pages, List<Integer> loaderIds) {
+        for (int loaderId : loaderIds) {
+            int account = pages.getAccount(loaderId);
+            int page = pages.getPage(loaderId);
+            List<String> selectionArgs = new ArrayList<String>();
+            String selection = pages.getPageCondition(account, page, selectionArgs);
+            Cursor cursor = query(mAccounts.get(account), selection, selectionArgs,
+                    pages.getLimit(account, page));
+            assertTrue(pages.setCursor(loaderId, cursor));
+        }
+        assertTrue(pages.isLoadFinished());
+    }
+
+    private Cursor query(TestAccount testAccount, String selection, List<String> selectionArgs,
+            int limit) {
+        String folderCondition = MessageColumns.FOLDER_ID + " = ?";
+        selection = (selection == null) ? folderCondition : folderCondition + " AND " + selection;
+        selectionArgs.add(0, Long.toString(testAccount.folder.getId()));
+
+        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
+                "account/" + testAccount.account.getUuid() + "/messages");
+        if (limit > 0) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                    .build();
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(uri, PROJECTION, selection,
+                selectionArgs.toArray(new String[0]), SORT_ORDER);
+        mCursors.add(cursor);
+        return cursor;
+    }
+
+    private void insertMessages(TestAccount testAccount, final int count,
+            final int messagesPerDate, final long dateOffset) throws Exception {
+        final long folderId = testAccount.folder.getId();
+        testAccount.localStore.getDatabase().execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) throws WrappedException {
+                SQLiteStatement insert = db.compileStatement("INSERT INTO messages " +
+                        "(folder_id, uid, subject, date, internal_date, deleted, empty) " +
+                        "VALUES (?, ?, ?, ?, ?, 0, 0)");
+                try {
+                    for (int i = 0; i < count; i++) {
+                        long date = (i / messagesPerDate) * 1000L + dateOffset;
+                        insert.bindLong(1, folderId);
+                        insert.bindString(2, Integer.toString(i));
+                        insert.bindString(3, "Message " + i);
+                        insert.bindLong(4, date);
+                        insert.bindLong(5, date);
+                        insert.executeInsert();
+                    }
+                } finally {
+                    insert.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    private static class DateComparator implements Comparator<Cursor> {
+        @Override
+        public int compare(Cursor cursor1, Cursor cursor2) {
+            long date1 = cursor1.getLong(DATE_COLUMN);
+            long date2 = cursor2.getLong(DATE_COLUMN);
+            if (date1 != date2) {
+                return (date1 > date2) ? -1 : 1;
+            }
+            return (cursor1.getLong(ID_COLUMN) > cursor2.getLong(ID_COLUMN)) ? -1 : 1;
+        }
+    }
+}
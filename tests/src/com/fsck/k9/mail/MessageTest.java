@@ -12,6 +12,7 @@ import org.apache.james.mime4j.util.MimeUtil;
 import android.test.AndroidTestCase;
 
 import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.BinaryTempFileMessageBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
@@ -283,6 +284,21 @@ public class MessageTest extends AndroidTestCase {
         assertEquals(SEVEN_BIT_RESULT, out.toString());
     }
 
+    public void testCalculateSize() throws MessagingException, IOException {
+        BinaryTempFileBody.setTempDirectory(getContext().getCacheDir());
+
+        mMimeBoundary = 101;
+        MimeMessage message = nestedMessage(sampleMessage());
+        ((Multipart) message.getBody()).addBodyPart(binaryBodyPart(100000));
+
+        // Base64 attachments are only counted, not encoded
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+        message.writeTo(eolOut);
+        eolOut.flush();
+        assertEquals(out.size(), message.calculateSize());
+    }
+
     private MimeMessage nestedMessage(MimeMessage subMessage)
             throws MessagingException, IOException {
         BinaryTempFileMessageBody tempMessageBody = new BinaryTempFileMessageBody();
@@ -323,6 +339,24 @@ public class MessageTest extends AndroidTestCase {
         return message;
     }
 
+    private MimeBodyPart binaryBodyPart(int length) throws IOException, MessagingException {
+        BinaryTempFileBody tempFileBody = new BinaryTempFileBody();
+
+        OutputStream out = tempFileBody.getOutputStream();
+        try {
+            for (int i = 0; i < length; i++) {
+                out.write(i);
+            }
+        } finally {
+            out.close();
+        }
+
+        MimeBodyPart bodyPart = new MimeBodyPart(tempFileBody, "application/octet-stream");
+        bodyPart.setEncoding(MimeUtil.ENC_BASE64);
+
+        return bodyPart;
+    }
+
     private MimeBodyPart binaryBodyPart() throws IOException,
             MessagingException {
         String encodedTestString = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
@@ -0,0 +1,23 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class Base64OutputStreamTest extends TestCase {
+
+    public void testGetEncodedLength() throws IOException {
+        for (int length = 0; length < 1000; length++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Base64OutputStream base64Out = new Base64OutputStream(out);
+            for (int i = 0; i < length; i++) {
+                base64Out.write(i);
+            }
+            base64Out.close();
+
+            assertEquals("length " + length, out.size(),
+                    Base64OutputStream.getEncodedLength(length));
+        }
+    }
+}
@@ -58,6 +58,29 @@ public class ViewablesTest extends AndroidTestCase {
         assertEquals(expectedHtml, container.html);
     }
 
+    public void testEmojiAreReplacedInHtml() throws MessagingException {
+        String sun = new String(Character.toChars(0xFE000));
+        String bodyText = "<strong>Sunny</strong> " + sun;
+
+        // Create text/html body
+        TextBody body = new TextBody(bodyText);
+
+        // Create message
+        MimeMessage message = new MimeMessage();
+        message.setHeader("Content-Type", "text/html; charset=utf-8");
+        message.setBody(body);
+
+        // Extract text
+        ViewableContainer container = MimeUtility.extractTextAndAttachments(getContext(), message);
+
+        String expectedHtml =
+                "<strong>Sunny</strong> " +
+                "<img src=\"file:///android_asset/emoticons/sun.gif\" alt=\"sun\" />";
+
+        assertEquals(expectedHtml, container.html);
+        assertTrue(container.text.contains(sun));
+    }
+
     public void testMultipartPlainTextMessage() throws MessagingException {
         String bodyText1 = "text body 1";
         String bodyText2 = "text body 2";
@@ -99,6 +122,31 @@ public class ViewablesTest extends AndroidTestCase {
         assertEquals(expectedHtml, container.html);
     }
 
+    public void testHtmlOnlyAlternativeMessage() throws MessagingException {
+        String bodyText = "<strong>K-9 Mail</strong> rocks :&gt;";
+
+        // Create text/html body
+        TextBody body = new TextBody(bodyText);
+
+        // Create multipart/alternative part without a text/plain child
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.setSubType("alternative");
+        multipart.addBodyPart(new MimeBodyPart(body, "text/html"));
+
+        // Create message
+        MimeMessage message = new MimeMessage();
+        message.setBody(multipart);
+
+        // Extract text
+        ViewableContainer container = MimeUtility.extractTextAndAttachments(getContext(), message);
+
+        String expectedText = "K-9 Mail rocks :>";
+        String expectedHtml = bodyText;
+
+        assertEquals(expectedText, container.text);
+        assertEquals(expectedHtml, container.html);
+    }
+
     public void testTextPlusRfc822Message() throws MessagingException {
     	K9ActivityCommon.setLanguage(getContext(), "en");
         Locale.setDefault(Locale.US);
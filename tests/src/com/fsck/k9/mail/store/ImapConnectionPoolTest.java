@@ -0,0 +1,200 @@
+package com.fsck.k9.mail.store;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+import com.fsck.k9.mail.store.ImapStore.SelectedFolder;
+
+public class ImapConnectionPoolTest extends TestCase {
+    private static class FakeConnection extends ImapConnection {
+        boolean open = true;
+        boolean alive = true;
+        int commandCount;
+
+        FakeConnection() {
+            super(null);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public List<ImapResponse> executeSimpleCommand(String command) throws IOException {
+            commandCount++;
+            if (!alive) {
+                throw new IOException("Connection reset");
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    private static class TestPool extends ImapConnectionPool {
+        long time = 1000000;
+
+        TestPool(int maxSize) {
+            super(new ConnectionFactory() {
+                @Override
+                public ImapConnection createConnection() {
+                    return new FakeConnection();
+                }
+            }, maxSize);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+
+    public void testReleasedConnectionIsReused() {
+        TestPool pool = new TestPool(2);
+        ImapConnection first = pool.checkout(null);
+        pool.release(first);
+
+        assertSame(first, pool.checkout(null));
+        assertEquals(2, pool.getCheckoutCount());
+        assertEquals(1, pool.getReuseCount());
+        assertEquals(0, pool.getValidationCount());
+    }
+
+    public void testClosedConnectionIsNotReused() {
+        TestPool pool = new TestPool(2);
+        FakeConnection first = (FakeConnection) pool.checkout(null);
+        first.open = false;
+        pool.release(first);
+
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(first, pool.checkout(null));
+    }
+
+    public void testConnectionWithOutstandingCommandsIsNotReused() {
+        TestPool pool = new TestPool(2);
+        FakeConnection first = (FakeConnection) pool.checkout(null);
+        first.mPendingTags.add("7");
+        pool.release(first);
+
+        assertFalse(first.open);
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(first, pool.checkout(null));
+    }
+
+    public void testDoubleReleaseIsIgnored() {
+        TestPool pool = new TestPool(2);
+        ImapConnection first = pool.checkout(null);
+        pool.release(first);
+        pool.release(first);
+
+        assertEquals(1, pool.getIdleCount());
+        assertSame(first, pool.checkout(null));
+        assertNotSame(first, pool.checkout(null));
+    }
+
+    public void testCheckoutNewIgnoresIdleConnections() {
+        TestPool pool = new TestPool(2);
+        FakeConnection first = (FakeConnection) pool.checkout(null);
+        pool.release(first);
+
+        ImapConnection push = pool.checkoutNew();
+        assertNotSame(first, push);
+        assertEquals(1, pool.getCheckedOutCount());
+        assertEquals(1, pool.getIdleCount());
+
+        // Closed push connections are not reused
+        push.close();
+        pool.release(push);
+        assertEquals(0, pool.getCheckedOutCount());
+        assertEquals(1, pool.getIdleCount());
+        assertSame(first, pool.checkout(null));
+    }
+
+    public void testIdleConnectionIsValidatedBeforeReuse() {
+        TestPool pool = new TestPool(2);
+        FakeConnection first = (FakeConnection) pool.checkout(null);
+        pool.release(first);
+
+        pool.time += ImapConnectionPool.VALIDATION_INTERVAL;
+        first.alive = false;
+
+        assertNotSame(first, pool.checkout(null));
+        assertEquals(1, first.commandCount);
+        assertFalse(first.open);
+        assertEquals(1, pool.getValidationCount());
+        assertEquals(0, pool.getReuseCount());
+        assertEquals(1, pool.getCheckedOutCount());
+    }
+
+    public void testIdleConnectionIsEvicted() {
+        TestPool pool = new TestPool(2);
+        FakeConnection first = (FakeConnection) pool.checkout(null);
+        pool.release(first);
+
+        pool.time += ImapConnectionPool.IDLE_TIMEOUT;
+
+        assertNotSame(first, pool.checkout(null));
+        assertFalse(first.open);
+        assertEquals(0, first.commandCount);
+        assertEquals(1, pool.getEvictionCount());
+    }
+
+    public void testConnectionWithSelectedFolderIsPreferred() {
+        TestPool pool = new TestPool(3);
+        ImapConnection inbox = pool.checkout(null);
+        ImapConnection other = pool.checkout(null);
+        inbox.setSelectedFolder(new SelectedFolder("INBOX", Folder.OPEN_MODE_RW, 1, 10));
+        pool.release(inbox);
+        pool.release(other);
+
+        assertSame(inbox, pool.checkout("INBOX"));
+        assertEquals(1, pool.getAffinityCount());
+        assertNotNull(inbox.getSelectedFolder());
+    }
+
+    public void testSelectedFolderExpires() {
+        TestPool pool = new TestPool(3);
+        ImapConnection inbox = pool.checkout(null);
+        inbox.setSelectedFolder(new SelectedFolder("INBOX", Folder.OPEN_MODE_RW, 1, 10));
+        pool.release(inbox);
+
+        pool.time += ImapConnectionPool.SELECTION_REUSE_INTERVAL;
+
+        assertSame(inbox, pool.checkout("INBOX"));
+        assertEquals(0, pool.getAffinityCount());
+        assertNull(inbox.getSelectedFolder());
+    }
+
+    public void testCheckoutWaitsForRelease() throws Exception {
+        final TestPool pool = new TestPool(1);
+        final ImapConnection first = pool.checkout(null);
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                pool.release(first);
+            }
+        };
+        releaser.start();
+
+        assertSame(first, pool.checkout(null));
+        releaser.join();
+        assertEquals(1, pool.getCheckedOutCount());
+    }
+}
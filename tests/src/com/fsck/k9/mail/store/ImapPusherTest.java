@@ -0,0 +1,322 @@
+package com.fsck.k9.mail.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.helper.power.TracingPowerManager.TracingWakeLock;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+import com.fsck.k9.mail.store.ImapStore.ImapException;
+import com.fsck.k9.mail.store.ImapStore.ImapPusher;
+import com.fsck.k9.mail.store.ImapStore.MultiFolderPusher;
+import com.fsck.k9.mail.store.ImapStore.NotifyPusher;
+import com.fsck.k9.mail.store.ImapStore.RotatingIdlePusher;
+import com.fsck.k9.mail.store.ImapStore.UntaggedHandler;
+
+public class ImapPusherTest extends AndroidTestCase {
+    private static final List<String> FOLDERS = Arrays.asList("INBOX", "Work");
+
+    /**
+     * A connection that answers the commands of the pushers without a server.
+     */
+    private static class FakeConnection extends ImapConnection {
+        final Set<String> serverCapabilities = new HashSet<String>();
+        final List<String> commands = new ArrayList<String>();
+
+        /**
+         * The {@code STATUS} items reported for a folder name, e.g. {@code MESSAGES 3 UIDNEXT 10}.
+         */
+        final Map<String, String> statuses = new HashMap<String, String>();
+
+        /**
+         * If not {@code null}, {@code NOTIFY} commands containing this text fail with
+         * {@link #notifyResponse}.
+         */
+        String rejectedNotify;
+        String notifyResponse;
+
+        FakeConnection(String... capabilities) {
+            super(null);
+            serverCapabilities.addAll(Arrays.asList(capabilities));
+        }
+
+        @Override
+        protected boolean hasCapability(String capability) {
+            return serverCapabilities.contains(capability.toUpperCase(Locale.US));
+        }
+
+        @Override
+        protected boolean isIdleCapable() {
+            return hasCapability("IDLE");
+        }
+
+        @Override
+        public List<ImapResponse> executeSimpleCommand(String command)
+                throws IOException, MessagingException {
+            commands.add(command);
+            if (rejectedNotify != null && command.startsWith("NOTIFY") &&
+                    command.contains(rejectedNotify)) {
+                ImapResponse response = parse(notifyResponse);
+                throw new ImapException("Command: " + command + "; response: " + response,
+                        null, response.getResponseCode());
+            }
+            return new ArrayList<ImapResponse>();
+        }
+
+        @Override
+        public String sendCommand(String command, boolean sensitive) {
+            commands.add(command);
+            return Integer.toString(commands.size());
+        }
+
+        @Override
+        protected ArrayList<ImapResponse> readStatusResponse(String tag, String commandToLog,
+                UntaggedHandler untaggedHandler) throws IOException {
+            String command = commands.get(Integer.parseInt(tag) - 1);
+            ArrayList<ImapResponse> responses = new ArrayList<ImapResponse>();
+            for (Map.Entry<String, String> entry : statuses.entrySet()) {
+                if (command.startsWith("STATUS \"" + entry.getKey() + "\"")) {
+                    responses.add(parse("* STATUS \"" + entry.getKey() + "\" (" +
+                            entry.getValue() + ")"));
+                }
+            }
+            responses.add(parse(tag + " OK STATUS completed"));
+            return responses;
+        }
+
+        List<String> getCommands(String prefix) {
+            List<String> result = new ArrayList<String>();
+            for (String command : commands) {
+                if (command.startsWith(prefix)) {
+                    result.add(command);
+                }
+            }
+            return result;
+        }
+    }
+
+    private class TestPushReceiver implements PushReceiver {
+        public Context getContext() {
+            return ImapPusherTest.this.getContext();
+        }
+
+        public void syncFolder(Folder folder) {
+        }
+
+        public void messagesArrived(Folder folder, List<Message> mess) {
+        }
+
+        public void messagesFlagsChanged(Folder folder, List<Message> mess) {
+        }
+
+        public void messagesRemoved(Folder folder, List<Message> mess) {
+        }
+
+        public String getPushState(String folderName) {
+            return null;
+        }
+
+        public void pushError(String errorMessage, Exception e) {
+        }
+
+        public void setPushActive(String folderName, boolean enabled) {
+        }
+
+        public void sleep(TracingWakeLock wakeLock, long millis) {
+        }
+    }
+
+    private Account mAccount;
+    private ImapStore mStore;
+    private ImapPusher mPusher;
+    private TestPushReceiver mReceiver;
+    private List<String> mChangedFolders;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        // Nothing listens on this port, so the pusher threads fail to connect
+        mAccount.setStoreUri("imap://PLAIN:user:pass@127.0.0.1:1/");
+        mStore = new ImapStore(mAccount);
+        mReceiver = new TestPushReceiver();
+        mPusher = (ImapPusher) mStore.getPusher(mReceiver);
+        mChangedFolders = new ArrayList<String>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPusher.stop();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testStatusIsMappedToFolder() throws Exception {
+        NotifyPusher pusher = createNotifyPusher();
+        FakeConnection conn = new FakeConnection("IDLE", "NOTIFY");
+        assertTrue(pusher.prepareConnection(conn));
+
+        assertTrue(pusher.handleIdleResponse(parse("* STATUS \"Work\" (MESSAGES 3 UIDNEXT 10)")));
+        // Servers may report the inbox in any case
+        assertTrue(pusher.handleIdleResponse(parse("* STATUS inbox (MESSAGES 5 UIDNEXT 20)")));
+        assertFalse(pusher.handleIdleResponse(parse("* STATUS \"Other\" (MESSAGES 1)")));
+        assertFalse(pusher.handleIdleResponse(parse("* OK")));
+
+        assertEquals(Arrays.asList("Work", "INBOX"), mChangedFolders);
+    }
+
+    public void testNotificationOverflowRearmsNotify() throws Exception {
+        NotifyPusher pusher = createNotifyPusher();
+        FakeConnection conn = new FakeConnection("IDLE", "NOTIFY");
+        assertTrue(pusher.prepareConnection(conn));
+        pusher.beforeIdle(conn);
+        assertEquals(1, conn.getCommands("NOTIFY").size());
+
+        assertTrue(pusher.handleIdleResponse(parse("* OK [NOTIFICATIONOVERFLOW] Too many")));
+        assertEquals(FOLDERS, mChangedFolders);
+
+        pusher.beforeIdle(conn);
+        assertEquals(2, conn.getCommands("NOTIFY").size());
+
+        // NOTIFY is only sent again after another overflow
+        pusher.beforeIdle(conn);
+        assertEquals(2, conn.getCommands("NOTIFY").size());
+    }
+
+    public void testBadEventRetriesWithoutFlagChanges() throws Exception {
+        NotifyPusher pusher = createNotifyPusher();
+        FakeConnection conn = new FakeConnection("IDLE", "NOTIFY");
+        conn.rejectedNotify = "FlagChange";
+        conn.notifyResponse = "1 NO [BADEVENT (MessageNew MessageExpunge)] Unsupported event";
+
+        assertTrue(pusher.prepareConnection(conn));
+
+        List<String> commands = conn.getCommands("NOTIFY");
+        assertEquals(2, commands.size());
+        assertTrue(commands.get(0).contains("FlagChange"));
+        assertFalse(commands.get(1).contains("FlagChange"));
+        assertTrue(commands.get(1).contains("MessageNew MessageExpunge"));
+    }
+
+    public void testFallbackWithoutNotifyCapability() throws Exception {
+        mPusher.start(FOLDERS);
+        NotifyPusher pusher = getNotifyPusher();
+
+        assertFalse(pusher.prepareConnection(new FakeConnection("IDLE")));
+        pusher.connectionUnsupported();
+
+        assertTrue(mPusher.multiFolderPushers.isEmpty());
+        assertEquals(new HashSet<String>(FOLDERS), mPusher.folderPushers.keySet());
+
+        // The server doesn't support NOTIFY, so don't try again
+        mPusher.start(FOLDERS);
+        assertTrue(mPusher.multiFolderPushers.isEmpty());
+        assertEquals(2, mPusher.folderPushers.size());
+    }
+
+    public void testRejectedNotifyIsTriedAgain() throws Exception {
+        mPusher.start(FOLDERS);
+        NotifyPusher pusher = getNotifyPusher();
+
+        FakeConnection conn = new FakeConnection("IDLE", "NOTIFY");
+        conn.rejectedNotify = "MAILBOXES";
+        conn.notifyResponse = "1 NO [NONEXISTENT] Unknown mailbox";
+        assertFalse(pusher.prepareConnection(conn));
+        pusher.connectionUnsupported();
+
+        assertEquals(2, mPusher.folderPushers.size());
+
+        mPusher.start(FOLDERS);
+        assertTrue(mPusher.folderPushers.isEmpty());
+        assertNotNull(getNotifyPusher());
+    }
+
+    public void testRotatingIdlePusherDetectsChanges() throws Exception {
+        RotatingIdlePusher pusher = mStore.new RotatingIdlePusher(mReceiver, FOLDERS) {
+            @Override
+            protected void folderChanged(String folderName) {
+                mChangedFolders.add(folderName);
+            }
+        };
+        FakeConnection conn = new FakeConnection("IDLE");
+        conn.statuses.put("INBOX", "MESSAGES 5 UIDNEXT 20");
+        conn.statuses.put("Work", "MESSAGES 3 UIDNEXT 10");
+        assertTrue(pusher.prepareConnection(conn));
+
+        // The first round only records the status of both folders
+        pusher.beforeIdle(conn);
+        assertEquals(Arrays.asList("EXAMINE \"INBOX\""), conn.getCommands("EXAMINE"));
+        assertTrue(mChangedFolders.isEmpty());
+
+        // Changes of the selected folder are reported while idling
+        assertTrue(pusher.handleIdleResponse(parse("* 6 EXISTS")));
+        assertEquals(Arrays.asList("INBOX"), mChangedFolders);
+        mChangedFolders.clear();
+        conn.statuses.put("INBOX", "MESSAGES 6 UIDNEXT 21");
+        pusher.afterIdle(conn, false);
+
+        // IDLE was ended by a change, so the same folder is watched again
+        pusher.beforeIdle(conn);
+        assertEquals(1, conn.getCommands("EXAMINE").size());
+        assertTrue(mChangedFolders.isEmpty());
+        pusher.afterIdle(conn, true);
+
+        // Changes of the other folders are noticed by comparing their status
+        conn.statuses.put("Work", "MESSAGES 4 UIDNEXT 11");
+        pusher.beforeIdle(conn);
+        assertEquals("EXAMINE \"Work\"", conn.getCommands("EXAMINE").get(1));
+        assertEquals(Arrays.asList("Work"), mChangedFolders);
+        pusher.afterIdle(conn, true);
+
+        // The new message in the inbox was reported while idling, so it's not reported again
+        mChangedFolders.clear();
+        pusher.beforeIdle(conn);
+        assertTrue(mChangedFolders.isEmpty());
+
+        assertFalse(pusher.handleIdleResponse(parse("* OK Still here")));
+    }
+
+    private NotifyPusher createNotifyPusher() {
+        return mStore.new NotifyPusher(mPusher, mReceiver, FOLDERS) {
+            @Override
+            protected void folderChanged(String folderName) {
+                mChangedFolders.add(folderName);
+            }
+        };
+    }
+
+    private NotifyPusher getNotifyPusher() {
+        for (MultiFolderPusher pusher : mPusher.multiFolderPushers) {
+            if (pusher instanceof NotifyPusher) {
+                return (NotifyPusher) pusher;
+            }
+        }
+        fail("No NotifyPusher was started");
+        return null;
+    }
+
+    private static ImapResponse parse(String response) throws IOException {
+        ImapResponseParser parser = new ImapResponseParser(new PeekableInputStream(
+                new ByteArrayInputStream((response + "\r\n").getBytes())));
+        return parser.readResponse();
+    }
+}
@@ -1,10 +1,20 @@
 package com.fsck.k9.mail.store;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapStore.ImapMessage;
 import junit.framework.TestCase;
 
 public class ImapResponseParserTest extends TestCase {
@@ -89,6 +99,181 @@ public class ImapResponseParserTest extends TestCase {
         } catch (IllegalArgumentException e) { /* do nothing */ }
     }
 
+    public void testFetchResponse() throws IOException {
+        ImapResponseParser parser = createParser("* 23 FETCH (UID 1234 FLAGS (\\Seen \\Flagged $Label1) " +
+                "BODY[HEADER.FIELDS (SUBJECT)] {15}\r\nSubject: test\r\n)\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals("23", response.get(0));
+        assertSame("FETCH", response.get(1));
+
+        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+        assertEquals("1234", fetchList.getKeyedString("UID"));
+        assertEquals(1234, fetchList.getKeyedNumber("UID"));
+
+        ImapList flags = fetchList.getKeyedList("FLAGS");
+        assertEquals(3, flags.size());
+        assertSame("\\Seen", flags.get(0));
+        assertSame("\\Flagged", flags.get(1));
+        assertEquals("$Label1", flags.get(2));
+
+        assertEquals("BODY", fetchList.get(4));
+        assertEquals("HEADER.FIELDS", fetchList.getList(5).get(0));
+        assertEquals("Subject: test\r\n", fetchList.get(6));
+    }
+
+    public void testQuotedStringWithEscapes() throws IOException {
+        ImapResponseParser parser = createParser("* LIST (\\HasNoChildren) \".\" \"a \\\"b\\\" \\\\c\"\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals("LIST", response.get(0));
+        assertEquals(".", response.get(2));
+        assertEquals("a \"b\" \\c", response.get(3));
+    }
+
+    public void testTokensSpanningBufferBoundaries() throws IOException {
+        StringBuilder atom = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            atom.append((char) ('a' + (i % 26)));
+        }
+        StringBuilder quoted = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            quoted.append((i % 100 == 0) ? "\\\"" : "x");
+        }
+
+        ImapResponseParser parser = createParser("* OK first\r\n" +
+                "* 1 FETCH (X-ATOM " + atom + " X-QUOTED \"" + quoted + "\")\r\n" +
+                "A1 OK done\r\n");
+
+        assertEquals("first", parser.readResponse().get(1));
+
+        ImapList fetchList = (ImapList) parser.readResponse().getKeyedValue("FETCH");
+        assertEquals(atom.toString(), fetchList.getKeyedString("X-ATOM"));
+        assertEquals(quoted.toString().replace("\\\"", "\""), fetchList.getKeyedString("X-QUOTED"));
+
+        ImapResponse tagged = parser.readResponse();
+        assertEquals("A1", tagged.mTag);
+        assertEquals("OK", tagged.get(0));
+    }
+
+    public void testLargeLiteralIsStoredInTempFile() throws Exception {
+        final int bodySize = 4 * 1024 * 1024;
+        String header = "Content-Type: application/octet-stream\r\n\r\n";
+        int literalSize = header.length() + bodySize;
+
+        InputStream in = new SyntheticLiteralInputStream(
+                "* 1 FETCH (UID 1 BODY[] {" + literalSize + "}\r\n" + header, bodySize, ")\r\n");
+        ImapResponseParser parser = new ImapResponseParser(new PeekableInputStream(in));
+
+        ImapMessage message = new ImapMessage("1", null);
+        HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        messageMap.put("1", message);
+        ImapResponse response = parser.readResponse(new ImapStore.FetchBodyCallback(messageMap));
+
+        // The callback consumed the literal, only its placeholder is left in the response
+        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+        assertEquals("1", fetchList.getKeyedString("UID"));
+        assertEquals(Integer.valueOf(1), fetchList.get(fetchList.size() - 1));
+
+        Body body = message.getBody();
+        assertTrue(body instanceof BinaryTempFileBody);
+        File file = ((BinaryTempFileBody) body).getFile();
+        assertEquals(bodySize, file.length());
+
+        InputStream content = new BufferedInputStream(new FileInputStream(file));
+        try {
+            for (long position = 0; position < bodySize; position++) {
+                if (content.read() != SyntheticLiteralInputStream.getData(position)) {
+                    fail("Body differs at position " + position);
+                }
+            }
+            assertEquals(-1, content.read());
+        } finally {
+            content.close();
+            file.delete();
+        }
+    }
+
+    public void testIsBodySectionLiteral() throws IOException {
+        ImapList section = new ImapList();
+
+        ImapList fetchList = new ImapList();
+        fetchList.add("UID");
+        fetchList.add("1");
+        fetchList.add("BODY");
+        fetchList.add(section);
+        assertTrue(ImapStore.isBodySectionLiteral(fetchList));
+
+        fetchList.add("<0>");
+        assertTrue(ImapStore.isBodySectionLiteral(fetchList));
+
+        ImapList structure = new ImapList();
+        structure.add("TEXT");
+        structure.add("PLAIN");
+        assertFalse(ImapStore.isBodySectionLiteral(structure));
+
+        ImapList envelope = new ImapList();
+        envelope.add("UID");
+        envelope.add("1");
+        envelope.add("BODYSTRUCTURE");
+        envelope.add(structure);
+        assertFalse(ImapStore.isBodySectionLiteral(envelope));
+    }
+
+    /**
+     * Produces {@code prefix}, {@code size} bytes of message data and {@code suffix} without
+     * keeping the data in memory.
+     */
+    private static class SyntheticLiteralInputStream extends InputStream {
+        private final byte[] mPrefix;
+        private final byte[] mSuffix;
+        private final long mSize;
+        private long mPosition = 0;
+
+        SyntheticLiteralInputStream(String prefix, long size, String suffix) {
+            mPrefix = prefix.getBytes();
+            mSuffix = suffix.getBytes();
+            mSize = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long position = mPosition;
+            if (position < mPrefix.length) {
+                mPosition++;
+                return mPrefix[(int) position];
+            }
+            position -= mPrefix.length;
+            if (position < mSize) {
+                mPosition++;
+                return getData(position);
+            }
+            position -= mSize;
+            if (position < mSuffix.length) {
+                mPosition++;
+                return mSuffix[(int) position];
+            }
+            return -1;
+        }
+
+        static int getData(long position) {
+            return ((position % 78) == 77) ? '\n' : 'a' + (int) ((position / 78) % 26);
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            int count = 0;
+            while (count < length) {
+                int ch = read();
+                if (ch == -1) {
+                    return (count == 0) ? -1 : count;
+                }
+                b[offset + count++] = (byte) ch;
+            }
+            return count;
+        }
+    }
+
     private ImapResponseParser createParser(String response) {
         ByteArrayInputStream in = new ByteArrayInputStream(response.getBytes());
         PeekableInputStream pin = new PeekableInputStream(in);
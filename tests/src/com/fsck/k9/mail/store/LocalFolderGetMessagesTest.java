@@ -0,0 +1,127 @@
+package com.fsck.k9.mail.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.controller.MessageRetrievalListener;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+
+/**
+ * Test {@link LocalFolder#getMessages(String[], com.fsck.k9.mail.MessageRetrievalListener)}
+ * and compare it to loading the messages one by one.
+ */
+public class LocalFolderGetMessagesTest extends AndroidTestCase {
+    private static final int MESSAGE_COUNT = 1000;
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mFolder;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+        mFolder = mLocalStore.getFolder("GetMessagesTest");
+        mFolder.create(FolderType.HOLDS_MESSAGES);
+        mFolder.open(LocalFolder.OPEN_MODE_RW);
+
+        Message[] messages = new Message[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            MimeMessage message = new MimeMessage();
+            message.setUid(Integer.toString(i));
+            message.setSubject("Message " + i);
+            message.setFrom(new Address("from@example.com"));
+            message.setSentDate(new Date(i * 1000L));
+            message.setHeader("X-Test", Integer.toString(i));
+            message.setBody(new TextBody("Body " + i));
+            messages[i] = message;
+        }
+        mFolder.appendMessages(messages);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFolder.close();
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testOrderIsKept() throws Exception {
+        String[] uids = { "42", "unknown", "7", "999", "7" };
+
+        Message[] messages = mFolder.getMessages(uids, null);
+
+        assertEquals(4, messages.length);
+        assertEquals("42", messages[0].getUid());
+        assertEquals("7", messages[1].getUid());
+        assertEquals("999", messages[2].getUid());
+        assertEquals("7", messages[3].getUid());
+        assertNotSame(messages[1], messages[3]);
+        assertEquals("Message 42", messages[0].getSubject());
+        assertEquals("42", messages[0].getHeader("X-Test")[0]);
+    }
+
+    public void testListenerIsNotified() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        mFolder.getMessages(new String[] { "3", "unknown", "5" }, new MessageRetrievalListener() {
+            public void messageStarted(String uid, int number, int ofTotal) {
+                events.add("started " + uid + " " + number + "/" + ofTotal);
+            }
+
+            public void messageFinished(Message message, int number, int ofTotal) {
+                events.add("finished " + message.getUid() + " " + number + "/" + ofTotal);
+            }
+
+            public void messagesFinished(int total) {
+                events.add("done " + total);
+            }
+        });
+
+        assertEquals(Arrays.asList("started 3 0/2", "finished 3 0/2", "started 5 1/2",
+                "finished 5 1/2", "done 2"), events);
+    }
+
+    public void testBenchmark() throws Exception {
+        String[] uids = new String[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            uids[i] = Integer.toString(MESSAGE_COUNT - 1 - i);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (String uid : uids) {
+            mFolder.getMessage(uid).getHeader("X-Test");
+        }
+        long singleTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        Message[] messages = mFolder.getMessages(uids, null);
+        for (Message message : messages) {
+            message.getHeader("X-Test");
+        }
+        long bulkTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(K9.LOG_TAG, "Loading " + MESSAGE_COUNT + " messages one by one took " + singleTime +
+                "ms, in bulk " + bulkTime + "ms");
+
+        assertEquals(MESSAGE_COUNT, messages.length);
+        assertEquals(uids[0], messages[0].getUid());
+        assertEquals(uids[MESSAGE_COUNT - 1], messages[MESSAGE_COUNT - 1].getUid());
+    }
+}
@@ -0,0 +1,53 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.Flag;
+
+public class LocalMessageIndexTest extends TestCase {
+    private LocalMessageIndex mIndex;
+
+
+    @Override
+    protected void setUp() {
+        LocalMessageIndex.Builder builder = new LocalMessageIndex.Builder();
+        for (int i = 100; i > 0; i--) {
+            long flags = (i % 2 == 0) ? LocalMessageIndex.flagBit(Flag.SEEN) : 0;
+            if (i == 7) {
+                flags |= LocalMessageIndex.flagBit(Flag.DELETED) | LocalMessageIndex.EMPTY;
+            }
+            builder.add(Integer.toString(i), i * 10, flags, i * 1000L);
+        }
+        mIndex = builder.build();
+    }
+
+    public void testLookup() {
+        assertEquals(100, mIndex.size());
+
+        int position = mIndex.indexOf("42");
+        assertEquals("42", mIndex.getUid(position));
+        assertEquals(420, mIndex.getId(position));
+        assertEquals(-1, mIndex.indexOf("101"));
+        assertFalse(mIndex.contains("0"));
+    }
+
+    public void testFlags() {
+        assertTrue(mIndex.isSet(mIndex.indexOf("42"), Flag.SEEN));
+        assertFalse(mIndex.isSet(mIndex.indexOf("43"), Flag.SEEN));
+        assertFalse(mIndex.isSet(mIndex.indexOf("42"), Flag.FLAGGED));
+
+        int deleted = mIndex.indexOf("7");
+        assertTrue(mIndex.isSet(deleted, Flag.DELETED));
+        assertTrue(mIndex.isEmpty(deleted));
+        assertFalse(mIndex.isEmpty(mIndex.indexOf("8")));
+    }
+
+    public void testOlderThan() {
+        Date earliestDate = new Date(50000);
+        assertTrue(mIndex.olderThan(mIndex.indexOf("49"), earliestDate));
+        assertFalse(mIndex.olderThan(mIndex.indexOf("50"), earliestDate));
+        assertFalse(mIndex.olderThan(mIndex.indexOf("1"), null));
+    }
+}
@@ -0,0 +1,135 @@
+package com.fsck.k9.mail.store;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.SchemaDefinition;
+import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
+
+/**
+ * Measure how long a message list query takes while another thread stores 1,000 messages, with
+ * and without write-ahead logging.
+ */
+public class LockableDatabaseTest extends AndroidTestCase {
+    private static final int MESSAGE_COUNT = 1000;
+
+    private LockableDatabase mDatabase;
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDatabase != null) {
+            mDatabase.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testQueryLatencyWithRollbackJournal() throws Exception {
+        measureQueryLatency(false);
+    }
+
+    public void testQueryLatencyWithWriteAheadLogging() throws Exception {
+        measureQueryLatency(true);
+    }
+
+    private void measureQueryLatency(boolean writeAheadLogging) throws Exception {
+        Application application = (Application) getContext().getApplicationContext();
+        mDatabase = new LockableDatabase(application, "LockableDatabaseTest", new TestSchema());
+        mDatabase.setStorageProviderId(StorageManager.getInstance(application).getDefaultProviderId());
+        mDatabase.setWriteAheadLogging(writeAheadLogging);
+        mDatabase.open();
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    storeMessages();
+                } catch (UnavailableStorageException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+
+        int queries = 0;
+        long maxLatency = 0;
+        long totalLatency = 0;
+        while (writer.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            int count = queryMessageList();
+            long latency = SystemClock.elapsedRealtime() - start;
+
+            assertTrue(count <= 100);
+            queries++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+        writer.join();
+
+        Log.i(K9.LOG_TAG, "Write-ahead logging " + (writeAheadLogging ? "enabled" : "disabled") +
+                ": " + queries + " queries while storing " + MESSAGE_COUNT + " messages, " +
+                "average latency " + ((queries > 0) ? totalLatency / queries : 0) + "ms, " +
+                "maximum " + maxLatency + "ms");
+
+        assertEquals(100, queryMessageList());
+    }
+
+    private void storeMessages() throws UnavailableStorageException {
+        mDatabase.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) throws WrappedException {
+                SQLiteStatement insert = db.compileStatement(
+                        "INSERT INTO messages (subject, date, preview) VALUES (?, ?, ?)");
+                try {
+                    for (int i = 0; i < MESSAGE_COUNT; i++) {
+                        insert.bindString(1, "Message " + i);
+                        insert.bindLong(2, i * 1000L);
+                        insert.bindString(3, "Preview of message " + i);
+                        insert.executeInsert();
+                    }
+                } finally {
+                    insert.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    private int queryMessageList() throws UnavailableStorageException {
+        return mDatabase.execute(false, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(SQLiteDatabase db) throws WrappedException {
+                Cursor cursor = db.rawQuery("SELECT id, subject, date, preview FROM messages " +
+                        "ORDER BY date DESC LIMIT 100", null);
+                try {
+                    return cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private static class TestSchema implements SchemaDefinition {
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public void doDbUpgrade(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS messages");
+            db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, subject TEXT, " +
+                    "date INTEGER, preview TEXT)");
+            db.execSQL("CREATE INDEX messages_date ON messages (date)");
+            db.setVersion(getVersion());
+        }
+    }
+}
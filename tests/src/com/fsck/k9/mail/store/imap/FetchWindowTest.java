@@ -0,0 +1,54 @@
+package com.fsck.k9.mail.store.imap;
+
+import junit.framework.TestCase;
+
+public class FetchWindowTest extends TestCase {
+    public void testInitialSizeIsClamped() {
+        assertEquals(FetchWindow.MIN_WINDOW_SIZE, new FetchWindow(1).getSize());
+        assertEquals(FetchWindow.MAX_WINDOW_SIZE, new FetchWindow(100000).getSize());
+        assertEquals(100, new FetchWindow(100).getSize());
+    }
+
+    public void testWindowGrowsOnSlowLinkWithSmallResponses() {
+        FetchWindow window = new FetchWindow(100);
+        window.setRoundTripTime(500);
+
+        // 100 messages, 200 bytes each, received in 100 ms
+        window.windowCompleted(100, 20000, 100);
+        assertEquals(200, window.getSize());
+
+        window.windowCompleted(200, 40000, 200);
+        assertEquals(400, window.getSize());
+
+        window.windowCompleted(400, 80000, 400);
+        assertEquals(FetchWindow.MAX_WINDOW_SIZE, window.getSize());
+    }
+
+    public void testWindowShrinksForLargeResponses() {
+        FetchWindow window = new FetchWindow(100);
+        window.setRoundTripTime(10);
+
+        // 100 messages, 100 kB each, received in 10 s
+        window.windowCompleted(100, 10000000, 10000);
+        assertEquals(50, window.getSize());
+
+        window.windowCompleted(50, 5000000, 5000);
+        assertEquals(25, window.getSize());
+    }
+
+    public void testWindowIsLimitedByByteBudget() {
+        FetchWindow window = new FetchWindow(60);
+        window.setRoundTripTime(5000);
+
+        // Fast link, but 50 kB per message: at most MAX_WINDOW_BYTES per command
+        window.windowCompleted(60, 3000000, 100);
+        assertEquals(FetchWindow.MAX_WINDOW_BYTES / 50000, window.getSize());
+    }
+
+    public void testEmptyResponsesAreIgnored() {
+        FetchWindow window = new FetchWindow(100);
+        window.windowCompleted(100, 0, 100);
+        window.windowCompleted(0, 100, 100);
+        assertEquals(100, window.getSize());
+    }
+}
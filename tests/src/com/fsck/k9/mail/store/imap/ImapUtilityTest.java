@@ -144,4 +144,20 @@ public class ImapUtilityTest extends TestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual.toArray());
     }
+
+    /**
+     * Test creating compact sequence sets.
+     */
+    public void testToSequenceSet() {
+        assertEquals("1", ImapUtility.toSequenceSet(new String[] {"1"}));
+        assertEquals("1:5,9,12:20", ImapUtility.toSequenceSet(new String[] {
+                "9", "1", "2", "3", "4", "5", "12", "13", "14", "15", "16", "17", "18", "19", "20"}));
+        assertEquals("3:4", ImapUtility.toSequenceSet(new String[] {"4", "3", "4"}));
+        assertEquals("4294967294:4294967295",
+                ImapUtility.toSequenceSet(new String[] {"4294967295", "4294967294"}));
+
+        // Invalid values are passed through unchanged
+        assertEquals("2,a,1", ImapUtility.toSequenceSet(new String[] {"2", "a", "1"}));
+        assertEquals("1,4294967296", ImapUtility.toSequenceSet(new String[] {"1", "4294967296"}));
+    }
 }
@@ -0,0 +1,250 @@
+package com.fsck.k9.mail.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+
+/**
+ * Send an outbox of 50 messages to a local SMTP stand-in and count the round-trips.
+ */
+public class SmtpTransportTest extends AndroidTestCase {
+    private static final int MESSAGE_COUNT = 50;
+
+    private Account mAccount;
+    private FakeSmtpServer mServer;
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        if (mAccount != null) {
+            Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        }
+        super.tearDown();
+    }
+
+    public void testOutboxUsesOneConnection() throws Exception {
+        FakeSmtpServer server = startServer(false, 0);
+        sendOutbox();
+
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(MESSAGE_COUNT, server.getMessageCount());
+    }
+
+    public void testPipeliningSavesRoundTrips() throws Exception {
+        FakeSmtpServer server = startServer(false, 0);
+        sendOutbox();
+        int lockStepRoundTrips = server.getRoundTripCount();
+        server.shutdown();
+
+        server = startServer(true, 0);
+        sendOutbox();
+        int pipelinedRoundTrips = server.getRoundTripCount();
+
+        Log.i(K9.LOG_TAG, "Sending " + MESSAGE_COUNT + " messages took " + lockStepRoundTrips +
+                " round-trips without PIPELINING and " + pipelinedRoundTrips + " with PIPELINING");
+
+        assertEquals(MESSAGE_COUNT, server.getMessageCount());
+        assertTrue(pipelinedRoundTrips < lockStepRoundTrips);
+    }
+
+    public void testReconnectAfterServerClosedConnection() throws Exception {
+        FakeSmtpServer server = startServer(true, 1);
+        sendOutbox();
+
+        assertEquals(MESSAGE_COUNT, server.getConnectionCount());
+        assertEquals(MESSAGE_COUNT, server.getMessageCount());
+    }
+
+    private FakeSmtpServer startServer(boolean pipelining, int messagesPerConnection)
+            throws IOException {
+        mServer = new FakeSmtpServer(pipelining, messagesPerConnection);
+        mServer.start();
+
+        if (mAccount == null) {
+            mAccount = Preferences.getPreferences(getContext()).newAccount();
+        }
+        mAccount.setTransportUri("smtp://127.0.0.1:" + mServer.getPort());
+
+        return mServer;
+    }
+
+    private void sendOutbox() throws MessagingException {
+        SmtpTransport transport = new SmtpTransport(mAccount);
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                transport.sendMessage(createMessage(i));
+            }
+        } finally {
+            transport.close();
+        }
+    }
+
+    private MimeMessage createMessage(int number) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setFrom(new Address("sender@example.com"));
+        message.setRecipients(RecipientType.TO, new Address[] {
+                new Address("alice@example.com"), new Address("bob@example.com") });
+        message.setSubject("Message " + number);
+        message.setBody(new TextBody("Body of message " + number));
+        return message;
+    }
+
+
+    /**
+     * A minimal SMTP server that accepts everything.
+     *
+     * <p>
+     * A round-trip is counted every time the server has sent replies and needs to wait for the
+     * client before it can continue.
+     * </p>
+     */
+    private static class FakeSmtpServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private final boolean mPipelining;
+        private final int mMessagesPerConnection;
+
+        private volatile int mConnectionCount;
+        private volatile int mMessageCount;
+        private volatile int mRoundTripCount;
+
+        private InputStream mIn;
+        private OutputStream mOut;
+        private boolean mRepliesPending;
+
+        FakeSmtpServer(boolean pipelining, int messagesPerConnection) throws IOException {
+            mServerSocket = new ServerSocket(0);
+            mPipelining = pipelining;
+            mMessagesPerConnection = messagesPerConnection;
+        }
+
+        public int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        public int getConnectionCount() {
+            return mConnectionCount;
+        }
+
+        public int getMessageCount() {
+            return mMessageCount;
+        }
+
+        public int getRoundTripCount() {
+            return mRoundTripCount;
+        }
+
+        public void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = mServerSocket.accept();
+                    mConnectionCount++;
+                    try {
+                        mIn = new BufferedInputStream(socket.getInputStream());
+                        mOut = new BufferedOutputStream(socket.getOutputStream());
+                        handleSession();
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // The server socket was closed
+            }
+        }
+
+        private void handleSession() throws IOException {
+            int messagesInSession = 0;
+
+            reply("220 localhost ESMTP");
+            String line;
+            while ((line = readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO")) {
+                    reply("250-localhost");
+                    reply("250-8BITMIME");
+                    if (mPipelining) {
+                        reply("250-PIPELINING");
+                    }
+                    reply("250 OK");
+                } else if (command.equals("DATA")) {
+                    reply("354 Send data");
+                    while ((line = readLine()) != null && !line.equals(".")) {
+                        // Skip the message
+                    }
+                    mMessageCount++;
+                    messagesInSession++;
+                    reply("250 OK");
+
+                    if (messagesInSession == mMessagesPerConnection) {
+                        // Simulate an idle timeout after the reply was received
+                        flushReplies();
+                        return;
+                    }
+                } else if (command.equals("QUIT")) {
+                    reply("221 Bye");
+                    flushReplies();
+                    return;
+                } else {
+                    reply("250 OK");
+                }
+            }
+        }
+
+        private void reply(String line) throws IOException {
+            mOut.write((line + "\r\n").getBytes());
+            mRepliesPending = true;
+        }
+
+        private void flushReplies() throws IOException {
+            if (mRepliesPending) {
+                mOut.flush();
+                mRoundTripCount++;
+                mRepliesPending = false;
+            }
+        }
+
+        private String readLine() throws IOException {
+            if (mIn.available() == 0) {
+                // The client is waiting for our replies
+                flushReplies();
+            }
+
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = mIn.read()) != -1) {
+                if (c == '\n') {
+                    int length = sb.length();
+                    if (length > 0 && sb.charAt(length - 1) == '\r') {
+                        sb.setLength(length - 1);
+                    }
+                    return sb.toString();
+                }
+                sb.append((char) c);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.fsck.k9.provider;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.SpecialColumns;
+import com.fsck.k9.provider.EmailProvider.ThreadColumns;
+import com.fsck.k9.search.LocalSearch;
+import com.fsck.k9.search.SearchSpecification.Attribute;
+import com.fsck.k9.search.SearchSpecification.Searchfield;
+import com.fsck.k9.search.SqlQueryBuilder;
+
+/**
+ * Searches in the message bodies use the full-text index in both the flat and the threaded
+ * message list.
+ */
+public class FulltextSearchTest extends AndroidTestCase {
+    private static final String[] PROJECTION = { MessageColumns.ID, MessageColumns.UID };
+    private static final String[] THREADED_PROJECTION = {
+        MessageColumns.ID, MessageColumns.UID, ThreadColumns.ROOT, SpecialColumns.THREAD_COUNT };
+    private static final int UID_COLUMN = 1;
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mFolder;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+        mFolder = mLocalStore.getFolder("FulltextSearch");
+        mFolder.create(FolderType.HOLDS_MESSAGES);
+        mFolder.open(LocalFolder.OPEN_MODE_RW);
+
+        mFolder.appendMessages(new Message[] {
+                createMessage("1", "The agenda of the meeting"),
+                createMessage("2", "Pictures of the holiday") });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFolder.close();
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testFlatSearch() {
+        assertUids("messages", PROJECTION, Attribute.CONTAINS, "1");
+        assertUids("messages", PROJECTION, Attribute.NOT_CONTAINS, "2");
+    }
+
+    public void testThreadedSearch() {
+        assertUids("messages/threaded", THREADED_PROJECTION, Attribute.CONTAINS, "1");
+        assertUids("messages/threaded", THREADED_PROJECTION, Attribute.NOT_CONTAINS, "2");
+    }
+
+    private void assertUids(String path, String[] projection, Attribute attribute, String uid) {
+        LocalSearch search = new LocalSearch();
+        search.addAllowedFolder(mFolder.getName());
+        // The last word of the search term is matched as a prefix
+        search.and(Searchfield.MESSAGE_CONTENTS, "agend", attribute);
+
+        StringBuilder selection = new StringBuilder();
+        List<String> selectionArgs = new ArrayList<String>();
+        SqlQueryBuilder.buildWhereClause(mAccount, search.getConditions(), selection,
+                selectionArgs);
+
+        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
+                "account/" + mAccount.getUuid() + "/" + path);
+        Cursor cursor = getContext().getContentResolver().query(uri, projection,
+                selection.toString(), selectionArgs.toArray(new String[0]),
+                MessageColumns.DATE + " DESC");
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(uid, cursor.getString(UID_COLUMN));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Message createMessage(String uid, String text) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setMessageId("<" + uid + "@example.com>");
+        message.setSubject("Message " + uid);
+        message.setFrom(new Address("from@example.com"));
+        message.setSentDate(new Date(Long.parseLong(uid) * 1000L));
+        message.setBody(new TextBody(text));
+        return message;
+    }
+}
@@ -0,0 +1,147 @@
+package com.fsck.k9.provider;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.SpecialColumns;
+import com.fsck.k9.provider.EmailProvider.ThreadColumns;
+import com.fsck.k9.search.LocalSearch;
+import com.fsck.k9.search.SearchSpecification.Attribute;
+import com.fsck.k9.search.SearchSpecification.SearchCondition;
+import com.fsck.k9.search.SearchSpecification.Searchfield;
+import com.fsck.k9.search.SqlQueryBuilder;
+
+/**
+ * A thread with messages in two folders has to show up once in a list of both folders.
+ */
+public class ThreadSummaryTest extends AndroidTestCase {
+    private static final String[] PROJECTION = {
+        MessageColumns.ID, ThreadColumns.ROOT, SpecialColumns.THREAD_COUNT };
+    private static final int THREAD_COUNT_COLUMN = 2;
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mInbox;
+    private LocalFolder mSent;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+        mInbox = createFolder("ThreadInbox");
+        mSent = createFolder("ThreadSent");
+
+        mInbox.appendMessages(new Message[] { createMessage("1", "<1@example.com>", null) });
+        mSent.appendMessages(new Message[] {
+                createMessage("2", "<2@example.com>", "<1@example.com>") });
+        mInbox.appendMessages(new Message[] {
+                createMessage("3", "<3@example.com>", "<2@example.com>") });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mInbox.close();
+        mSent.close();
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testOnlySingleFolderUsesSummaries() {
+        LocalSearch search = new LocalSearch();
+        search.addAllowedFolder(mInbox.getName());
+        assertTrue(SqlQueryBuilder.isSingleFolderCondition(search.getConditions()));
+
+        search.or(new SearchCondition(Searchfield.FOLDER, Attribute.EQUALS, mSent.getName()));
+        assertFalse(SqlQueryBuilder.isSingleFolderCondition(search.getConditions()));
+
+        LocalSearch unified = new LocalSearch();
+        unified.and(Searchfield.INTEGRATE, "1", Attribute.EQUALS);
+        assertFalse(SqlQueryBuilder.isSingleFolderCondition(unified.getConditions()));
+    }
+
+    public void testThreadSpanningTwoFolders() throws Exception {
+        LocalSearch search = new LocalSearch();
+        search.addAllowedFolder(mInbox.getName());
+        search.or(new SearchCondition(Searchfield.FOLDER, Attribute.EQUALS, mSent.getName()));
+
+        StringBuilder selection = new StringBuilder();
+        List<String> selectionArgs = new ArrayList<String>();
+        SqlQueryBuilder.buildWhereClause(mAccount, search.getConditions(), selection,
+                selectionArgs);
+
+        Cursor cursor = query("messages/threaded", selection.toString(), selectionArgs);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(3, cursor.getInt(THREAD_COUNT_COLUMN));
+        } finally {
+            cursor.close();
+        }
+
+        // The summary of a single folder only counts the messages in that folder
+        assertSummaryThreadCount(mInbox, 2);
+        assertSummaryThreadCount(mSent, 1);
+    }
+
+    private void assertSummaryThreadCount(LocalFolder folder, int threadCount) {
+        List<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(Long.toString(folder.getId()));
+
+        Cursor cursor = query("messages/threaded/folders", MessageColumns.FOLDER_ID + " = ?",
+                selectionArgs);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(threadCount, cursor.getInt(THREAD_COUNT_COLUMN));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor query(String path, String selection, List<String> selectionArgs) {
+        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
+                "account/" + mAccount.getUuid() + "/" + path);
+        return getContext().getContentResolver().query(uri, PROJECTION, selection,
+                selectionArgs.toArray(new String[0]), MessageColumns.DATE + " DESC");
+    }
+
+    private LocalFolder createFolder(String name) throws Exception {
+        LocalFolder folder = mLocalStore.getFolder(name);
+        folder.create(FolderType.HOLDS_MESSAGES);
+        folder.open(LocalFolder.OPEN_MODE_RW);
+        return folder;
+    }
+
+    private Message createMessage(String uid, String messageId, String inReplyTo)
+            throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setMessageId(messageId);
+        if (inReplyTo != null) {
+            message.setInReplyTo(inReplyTo);
+        }
+        message.setSubject("Thread");
+        message.setFrom(new Address("from@example.com"));
+        message.setSentDate(new Date(Long.parseLong(uid) * 1000L));
+        message.setBody(new TextBody("Body " + uid));
+        return message;
+    }
+}